@@ -0,0 +1,232 @@
+package net.hogelab.android.projectiontest;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.MainThread;
+
+import net.hogelab.android.projectiontest.capture.DeltaStreamServer;
+import net.hogelab.android.projectiontest.capture.Frame;
+import net.hogelab.android.projectiontest.capture.FrameBus;
+import net.hogelab.android.projectiontest.capture.FramePool;
+import net.hogelab.android.projectiontest.capture.PixelFormatNegotiator;
+import net.hogelab.android.projectiontest.capture.TileDiffer;
+import net.hogelab.android.projectiontest.capture.WorkerExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+//--------------------------------------------------
+// class DeltaStreamer
+//--------------------------------------------------
+
+// Serves the live capture as a DeltaProtocol stream: a keyframe, then only the tiles that
+// changed, Deflate compressed, with per-client flow control. Frames from the frame bus are
+// copied once into pooled direct buffers on the export lane; the server diffs, encodes and
+// writes them on its own thread. Only while someone is connected.
+public class DeltaStreamer {
+    private static final String TAG = DeltaStreamer.class.getSimpleName();
+
+    private static final int STREAM_MAX_FPS = 30;
+    // one waiting in the server's mailbox, one the server keeps for catch-ups, one being filled
+    private static final int PIXEL_POOL_CAPACITY = 3;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final DeltaStreamServer server;
+    private final Executor copyExecutor;
+    private FrameBus.Subscription<Bitmap> subscription;
+
+    // guarded by this; replaced when the capture size changes
+    private FramePool<Frame<ByteBuffer>> pixelPool;
+    private int pixelPoolBytes;
+    private boolean formatWarned;
+
+    private final FrameBus.Subscriber<Bitmap> frameSubscriber;
+    private final DeltaStreamServer.Listener serverListener;
+    private final Frame.Recycler<ByteBuffer> pixelRecycler = this::recyclePixels;
+    private final Runnable offerCapturedFrameRunnable = this::offerCapturedFrame;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public DeltaStreamer() {
+        server = new DeltaStreamServer("delta_server", serverListener,
+                TileDiffer.DEFAULT_TILE_SIZE, true, DeltaStreamServer.DEFAULT_WINDOW);
+        copyExecutor = MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public boolean isRunning() {
+        return server.isRunning();
+    }
+
+    public int getClientCount() {
+        return server.getClientCount();
+    }
+
+    // Call before the capture session starts so the frame pool and pixel format account for
+    // the stream. Binds every interface, so the stream is reachable from the LAN as well.
+    @MainThread
+    public void start(int port) {
+        MyLog.d(TAG, "start: port=", port);
+
+        if (subscription != null) {
+            return;
+        }
+
+        try {
+            server.start(new InetSocketAddress(port));
+        } catch (IOException e) {
+            MyLog.e(TAG, "start: cannot listen on port " + port, e);
+            return;
+        }
+
+        // the protocol carries RGBA_8888
+        ScreenCaptureManager.getInstance().declarePixelFormatNeeds(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+        subscription = ScreenCaptureManager.getInstance().subscribeFrames(frameSubscriber,
+                copyExecutor, STREAM_MAX_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+    }
+
+    @MainThread
+    public void stop() {
+        MyLog.d(TAG, "stop");
+
+        if (subscription == null) {
+            return;
+        }
+
+        subscription.unsubscribe();
+        subscription = null;
+        ScreenCaptureManager.getInstance().retractPixelFormatNeeds(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+        server.stop();
+
+        MyLog.d(TAG, "stop: frames=" + server.getFrameCount()
+                + " keyframes=" + server.getKeyframeCount()
+                + " sent=" + server.getSentFrameCount()
+                + " bytes=" + server.getSentBytes()
+                + " skipped=" + server.getSkippedFrameCount());
+
+        synchronized (this) {
+            if (pixelPool != null) {
+                pixelPool.clear();
+                pixelPool = null;
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Export lane.
+    private void onFrame(Frame<Bitmap> frame) {
+        try {
+            if (server.isFrameWanted()) {
+                offer(frame);
+            } else {
+                // the screen moved on without anyone watching
+                server.invalidate();
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    // Main thread. A client needs a keyframe and the screen may be static, so don't wait for
+    // the next captured frame.
+    @MainThread
+    private void offerCapturedFrame() {
+        Frame<Bitmap> frame = ScreenCaptureManager.getInstance().acquireCapturedFrame();
+        if (frame == null) {
+            // nothing captured yet; the first frame off the bus will do
+            return;
+        }
+
+        try {
+            copyExecutor.execute(() -> {
+                try {
+                    offer(frame);
+                } finally {
+                    frame.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            frame.release();
+        }
+    }
+
+    private synchronized void offer(Frame<Bitmap> frame) {
+        Bitmap bitmap = frame.get();
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            if (!formatWarned) {
+                formatWarned = true;
+                MyLog.w(TAG, "offer: unsupported bitmap config " + bitmap.getConfig());
+            }
+            return;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        Frame<ByteBuffer> pixels = obtainPixelPool(width * height * 4).acquire()
+                .open(frame.getTimestampNanos(), frame.getSequenceNumber(), width, height, pixelRecycler);
+        ByteBuffer buffer = pixels.get();
+        buffer.clear();
+        // ARGB_8888 is stored as R, G, B, A bytes, which is what the protocol sends
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        server.offer(pixels);
+    }
+
+    private FramePool<Frame<ByteBuffer>> obtainPixelPool(int bytes) {
+        if (pixelPool == null || pixelPoolBytes != bytes) {
+            if (pixelPool != null) {
+                pixelPool.clear();
+            }
+
+            pixelPoolBytes = bytes;
+            pixelPool = new FramePool<>(PIXEL_POOL_CAPACITY, new FramePool.Factory<Frame<ByteBuffer>>() {
+
+                @Override
+                public Frame<ByteBuffer> create() {
+                    return new Frame<>(ByteBuffer.allocateDirect(bytes));
+                }
+
+                @Override
+                public void destroy(Frame<ByteBuffer> item) {
+                }
+            });
+        }
+
+        return pixelPool;
+    }
+
+    // Server thread or whoever releases last; buffers of an old size are left to the GC.
+    private synchronized void recyclePixels(Frame<ByteBuffer> frame) {
+        if (pixelPool != null && frame.get().capacity() == pixelPoolBytes) {
+            pixelPool.release(frame);
+        }
+    }
+
+
+    // FrameBus.Subscriber and DeltaStreamServer.Listener
+    {
+        frameSubscriber = this::onFrame;
+
+        serverListener = () -> MyExecutor.postMainHandler(offerCapturedFrameRunnable);
+    }
+}
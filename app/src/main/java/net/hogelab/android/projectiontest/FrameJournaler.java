@@ -0,0 +1,214 @@
+package net.hogelab.android.projectiontest;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import androidx.annotation.MainThread;
+
+import net.hogelab.android.projectiontest.capture.Frame;
+import net.hogelab.android.projectiontest.capture.FrameBus;
+import net.hogelab.android.projectiontest.capture.FrameJournal;
+import net.hogelab.android.projectiontest.capture.FrameJournalRecorder;
+import net.hogelab.android.projectiontest.capture.NearDuplicateFilter;
+import net.hogelab.android.projectiontest.capture.PixelFormatNegotiator;
+import net.hogelab.android.projectiontest.capture.SerialExecutor;
+import net.hogelab.android.projectiontest.capture.TileDiffer;
+import net.hogelab.android.projectiontest.capture.WorkerExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+
+//--------------------------------------------------
+// class FrameJournaler
+//--------------------------------------------------
+
+// Keeps a history of the capture on disk (files/journal) for inspection after the session:
+// frames from the frame bus are delta encoded into a FrameJournal on the export lane, and the
+// journal writes its batches on the same lane. The oldest segments go past a size or age limit.
+// Frames that look the same as the previous one are dropped before encoding.
+public class FrameJournaler {
+    private static final String TAG = FrameJournaler.class.getSimpleName();
+
+    private static final String JOURNAL_DIRECTORY = "journal";
+    private static final int JOURNAL_MAX_FPS = 10;
+    private static final long SEGMENT_BYTES = 8 << 20;
+    private static final long MAX_BYTES = 256 << 20;
+    private static final long MAX_AGE_NANOS = TimeUnit.HOURS.toNanos(1);
+    // only repeats of the previous frame with an identical perceptual hash, so a screen that
+    // comes back is journaled again
+    private static final int DUPLICATE_MAX_DISTANCE = 0;
+    private static final int DUPLICATE_WINDOW = 1;
+    // searchable hashes of journaled frames, about an hour at JOURNAL_MAX_FPS
+    private static final int HASH_HISTORY = 36000;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final File directory;
+    // frames are recorded in order, one at a time
+    private final Executor recordExecutor;
+    private FrameBus.Subscription<Bitmap> subscription;
+
+    // record executor
+    private FrameJournal journal;
+    private FrameJournalRecorder recorder;
+    private NearDuplicateFilter duplicateFilter;
+    private Frame<ByteBuffer> pixels;
+    private boolean formatWarned;
+
+    private final FrameBus.Subscriber<Bitmap> frameSubscriber;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public FrameJournaler(Context context) {
+        directory = new File(context.getFilesDir(), JOURNAL_DIRECTORY);
+        recordExecutor = new SerialExecutor(MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT));
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public boolean isRunning() {
+        return subscription != null;
+    }
+
+    // Call before the capture session starts so the pixel format accounts for the journal.
+    @MainThread
+    public void start() {
+        MyLog.d(TAG, "start");
+
+        if (subscription != null) {
+            return;
+        }
+
+        // opening recovers whatever a previous session left behind; before any frame
+        recordExecutor.execute(this::open);
+
+        // deltas are RGBA_8888
+        ScreenCaptureManager.getInstance().declarePixelFormatNeeds(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+        subscription = ScreenCaptureManager.getInstance().subscribeFrames(frameSubscriber,
+                recordExecutor, JOURNAL_MAX_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+    }
+
+    @MainThread
+    public void stop() {
+        MyLog.d(TAG, "stop");
+
+        if (subscription == null) {
+            return;
+        }
+
+        subscription.unsubscribe();
+        subscription = null;
+        ScreenCaptureManager.getInstance().retractPixelFormatNeeds(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+
+        // after any frame still queued
+        recordExecutor.execute(this::close);
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Record executor.
+    private void open() {
+        try {
+            journal = new FrameJournal(directory, SEGMENT_BYTES, MAX_BYTES, MAX_AGE_NANOS,
+                    MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT));
+        } catch (IOException e) {
+            MyLog.e(TAG, "open: cannot open " + directory, e);
+            return;
+        }
+        MyLog.d(TAG, "open: entries=" + journal.getEntryCount()
+                + " recovered=" + journal.getRecoveredBytes()
+                + " rebuiltIndexes=" + journal.getRebuiltIndexCount());
+
+        // journal time is wall clock time, so it stays ordered across sessions
+        long epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        recorder = new FrameJournalRecorder(journal, TileDiffer.DEFAULT_TILE_SIZE,
+                FrameJournalRecorder.DEFAULT_KEYFRAME_INTERVAL, epochOffsetNanos);
+        duplicateFilter = new NearDuplicateFilter(recorder, DUPLICATE_MAX_DISTANCE, DUPLICATE_WINDOW,
+                HASH_HISTORY);
+    }
+
+    // Record executor.
+    private void onFrame(Frame<Bitmap> frame) {
+        try {
+            if (recorder != null) {
+                record(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void record(Frame<Bitmap> frame) {
+        Bitmap bitmap = frame.get();
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            if (!formatWarned) {
+                formatWarned = true;
+                MyLog.w(TAG, "record: unsupported bitmap config " + bitmap.getConfig());
+            }
+            return;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (pixels == null || pixels.get().capacity() != width * height * 4) {
+            pixels = new Frame<>(ByteBuffer.allocateDirect(width * height * 4));
+        }
+
+        // the recorder is done with the buffer when onFrame returns, so one frame is reused
+        ByteBuffer buffer = pixels.get();
+        buffer.clear();
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+        duplicateFilter.onFrame(pixels.open(frame.getTimestampNanos(), frame.getSequenceNumber(),
+                width, height, null));
+    }
+
+    // Record executor.
+    private void close() {
+        if (recorder == null) {
+            return;
+        }
+
+        recorder.close();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            MyLog.e(TAG, "close: journal", e);
+        }
+
+        MyLog.d(TAG, "close: recorded=" + recorder.getRecordedCount()
+                + " duplicates=" + duplicateFilter.getSuppressedCount()
+                + " unchanged=" + recorder.getUnchangedCount()
+                + " entries=" + journal.getEntryCount()
+                + " dropped=" + journal.getDroppedCount()
+                + " writeErrors=" + journal.getWriteErrorCount()
+                + " evicted=" + journal.getEvictedSegmentCount());
+
+        recorder = null;
+        duplicateFilter = null;
+        journal = null;
+        pixels = null;
+    }
+
+
+    // FrameBus.Subscriber
+    {
+        frameSubscriber = this::onFrame;
+    }
+}
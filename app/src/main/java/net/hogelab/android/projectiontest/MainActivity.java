@@ -8,7 +8,6 @@ import android.graphics.Point;
 import android.hardware.display.DisplayManager;
 import android.os.Bundle;
 import android.util.DisplayMetrics;
-import android.util.Log;
 import android.view.Display;
 
 import androidx.activity.result.ActivityResult;
@@ -17,8 +16,13 @@ import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.databinding.DataBindingUtil;
 
+import net.hogelab.android.projectiontest.capture.CaptureMetrics;
+import net.hogelab.android.projectiontest.capture.FrameAnalyzer;
+import net.hogelab.android.projectiontest.capture.LatencyHistogram;
 import net.hogelab.android.projectiontest.databinding.ActivityMainBinding;
 
+import java.util.Locale;
+
 
 //--------------------------------------------------
 // class MainActivity
@@ -27,16 +31,31 @@ import net.hogelab.android.projectiontest.databinding.ActivityMainBinding;
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = MainActivity.class.getSimpleName();
 
+    private static final long METRICS_UPDATE_INTERVAL_MS = 500;
+
+    public static final String ACTION_REQUEST_CAPTURE = "action_request_capture";
+
     //--------------------------------------------------
     // static functions
     //--------------------------------------------------
 
     public static Intent createSettingIntent(Context context) {
-        Log.d(TAG, "createSettingIntent");
+        MyLog.d(TAG, "createSettingIntent");
 
         return new Intent(context, MainActivity.class);
     }
 
+    // Asks the user for capture consent on behalf of a bound client (see RemoteFrameServer).
+    public static Intent createCaptureRequestIntent(Context context) {
+        MyLog.d(TAG, "createCaptureRequestIntent");
+
+        Intent intent = new Intent(context, MainActivity.class);
+        intent.setAction(ACTION_REQUEST_CAPTURE);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+
+        return intent;
+    }
+
 
     //--------------------------------------------------
     // member variables
@@ -49,6 +68,9 @@ public class MainActivity extends AppCompatActivity {
 
     private final ScreenCaptureManager.Callback screenCaptureCallback;
 
+    private final Runnable updateMetricsRunnable = this::updateMetrics;
+    private CaptureMetrics.Snapshot metricsSnapshot;
+
 
     //--------------------------------------------------
     // public functions
@@ -60,7 +82,7 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        Log.d(TAG, "onCreate");
+        MyLog.d(TAG, "onCreate");
         super.onCreate(savedInstanceState);
 
         binding = DataBindingUtil.setContentView(this, R.layout.activity_main);
@@ -70,11 +92,24 @@ public class MainActivity extends AppCompatActivity {
         requestPermissionLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
                 this::onActivityResult);
+
+        if (savedInstanceState == null) {
+            handleIntent(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        MyLog.d(TAG, "onNewIntent");
+        super.onNewIntent(intent);
+
+        setIntent(intent);
+        handleIntent(intent);
     }
 
     @Override
     protected void onResume() {
-        Log.d(TAG, "onResume");
+        MyLog.d(TAG, "onResume");
         super.onResume();
 
         ScreenCaptureManager.getInstance().addCallback(screenCaptureCallback);
@@ -83,19 +118,22 @@ public class MainActivity extends AppCompatActivity {
 
         mainBindingHandler.externalDisplayTotalCount.setValue("-");
         mainBindingHandler.externalDisplayPresentationCount.setValue("-");
+
+        updateMetrics();
     }
 
     @Override
     protected void onPause() {
-        Log.d(TAG, "onPause");
+        MyLog.d(TAG, "onPause");
         super.onPause();
 
         ScreenCaptureManager.getInstance().removeCallback(screenCaptureCallback);
+        MyExecutor.getMainHandler().removeCallbacks(updateMetricsRunnable);
     }
 
     @Override
     protected void onDestroy() {
-        Log.d(TAG, "onDestroy");
+        MyLog.d(TAG, "onDestroy");
         super.onDestroy();
 
         binding.setMainBindingHandler(null);
@@ -106,26 +144,33 @@ public class MainActivity extends AppCompatActivity {
     // private functions
     //--------------------------------------------------
 
+    private void handleIntent(Intent intent) {
+        if (ACTION_REQUEST_CAPTURE.equals(intent.getAction())
+                && !ScreenCaptureManager.getInstance().getCapturing()) {
+            startScreenCapture();
+        }
+    }
+
     private void onCapturingChanged(boolean isCapturing) {
-        Log.d(TAG, "onCapturingChanged");
+        MyLog.d(TAG, "onCapturingChanged");
 
         mainBindingHandler.capturing.setValue(isCapturing);
     }
 
     private void onImageAvailableChanged(boolean isCapturing) {
-        Log.d(TAG, "onImageAvailableChanged");
+        MyLog.d(TAG, "onImageAvailableChanged");
     }
 
 
     private void startScreenCapture() {
-        Log.d(TAG, "startScreenCapture");
+        MyLog.d(TAG, "startScreenCapture");
 
         Intent intent = ScreenCaptureManager.getInstance().createScreenCaptureIntent();
         requestPermissionLauncher.launch(intent);
     }
 
     private void onActivityResult(ActivityResult result) {
-        Log.d(TAG, "onScreenCaptureIntentResult");
+        MyLog.d(TAG, "onScreenCaptureIntentResult");
 
         int resultCode = result.getResultCode();
         Intent resultData = result.getData();
@@ -144,14 +189,46 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void stopScreenCapture() {
-        Log.d(TAG, "stopScreenCapture");
+        MyLog.d(TAG, "stopScreenCapture");
 
         ScreenCaptureService.stopService(this);
     }
 
 
+    // Polled rather than pushed so the capture path never touches the UI for metrics.
+    private void updateMetrics() {
+        metricsSnapshot = ScreenCaptureManager.getInstance().getMetricsSnapshot(metricsSnapshot);
+
+        mainBindingHandler.deliveredFps.setValue(
+                String.format(Locale.US, "%.1f", metricsSnapshot.getDeliveredFps()));
+        mainBindingHandler.droppedFps.setValue(
+                String.format(Locale.US, "%.1f", metricsSnapshot.getDroppedFps()));
+        mainBindingHandler.deliverLatency.setValue(
+                formatLatency(metricsSnapshot.getStage(CaptureMetrics.STAGE_ACQUIRE_TO_DELIVER)));
+        mainBindingHandler.stageLatency.setValue(
+                formatLatency(metricsSnapshot.getStage(CaptureMetrics.STAGE_COPY)) + " / "
+                + formatLatency(metricsSnapshot.getStage(CaptureMetrics.STAGE_DIFF)) + " / "
+                + formatLatency(metricsSnapshot.getStage(CaptureMetrics.STAGE_ENCODE)));
+        mainBindingHandler.handlerDelay.setValue(
+                formatLatency(metricsSnapshot.getStage(CaptureMetrics.STAGE_HANDLER_DELAY)));
+        mainBindingHandler.bufferStarvedCount.setValue(String.valueOf(metricsSnapshot.getStarvedCount()));
+
+        MyExecutor.getMainHandler().postDelayed(updateMetricsRunnable, METRICS_UPDATE_INTERVAL_MS);
+    }
+
+    // p50/p99 in milliseconds
+    private static String formatLatency(LatencyHistogram.Snapshot snapshot) {
+        if (snapshot.getCount() == 0) {
+            return "-";
+        }
+
+        return String.format(Locale.US, "%.1f/%.1f",
+                snapshot.getPercentileNanos(0.5) / 1e6, snapshot.getPercentileNanos(0.99) / 1e6);
+    }
+
+
     private void updateExternalDisplayCount() {
-        Log.d(TAG, "updateExternalDisplayCount");
+        MyLog.d(TAG, "updateExternalDisplayCount");
 
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         Display[] displays = displayManager.getDisplays();
@@ -202,6 +279,10 @@ public class MainActivity extends AppCompatActivity {
             public void onImageAvailableChanged(boolean isImageAvailable) {
                 MainActivity.this.onImageAvailableChanged(isImageAvailable);
             }
+
+            @Override
+            public void onFrameStats(FrameAnalyzer.Stats stats) {
+            }
         };
     }
 }
@@ -8,6 +8,13 @@ public class MainBindingHandler {
     public MutableLiveData<String> externalDisplayTotalCount = new MutableLiveData<>();
     public MutableLiveData<String> externalDisplayPresentationCount = new MutableLiveData<>();
 
+    public MutableLiveData<String> deliveredFps = new MutableLiveData<>();
+    public MutableLiveData<String> droppedFps = new MutableLiveData<>();
+    public MutableLiveData<String> deliverLatency = new MutableLiveData<>();
+    public MutableLiveData<String> stageLatency = new MutableLiveData<>();
+    public MutableLiveData<String> handlerDelay = new MutableLiveData<>();
+    public MutableLiveData<String> bufferStarvedCount = new MutableLiveData<>();
+
     public void handleStartScreenCapture() {}
     public void handleStopScreenCapture() {}
     public void handleUpdateExternalDisplayCount() {}
@@ -1,16 +1,23 @@
 package net.hogelab.android.projectiontest;
 
 import android.app.Application;
-import android.util.Log;
+
+import net.hogelab.android.projectiontest.capture.Frame;
+import net.hogelab.android.projectiontest.capture.FrameLeakDetector;
 
 public class MyApplication extends Application {
     private static final String TAG = MyApplication.class.getSimpleName();
 
     @Override
     public void onCreate() {
-        Log.d(TAG, "onCreate");
+        MyLog.d(TAG, "onCreate");
         super.onCreate();
 
+        MyLog.init();
+        if (BuildConfig.DEBUG) {
+            Frame.setLeakDetector(new FrameLeakDetector((description, openedAt) ->
+                    MyLog.w(TAG, description, openedAt)));
+        }
         MyExecutor.init();
 
         ScreenCaptureManager.init(this);
@@ -3,17 +3,26 @@ package net.hogelab.android.projectiontest;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
-import android.util.Log;
+import android.view.Choreographer;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import net.hogelab.android.projectiontest.capture.WorkerExecutor;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 
 public class MyExecutor {
     private static final String TAG = MyExecutor.class.getSimpleName();
 
+    // the handler accessors run on per-frame paths, so they only log at VERBOSE
+
+    private static final int WORKER_MIN_THREADS = 2;
+    private static final int WORKER_MAX_THREADS = 4;
+    private static final int WORKER_QUEUE_CAPACITY = 64;
+
 
     //--------------------------------------------------
     // singleton
@@ -33,36 +42,58 @@ public class MyExecutor {
     //--------------------------------------------------
 
     private final Handler mainHandler;
+    private final CoalescingDispatcher mainDispatcher;
     private final Handler screenCaptureHandler;
-    private final ExecutorService workerExecutor;
+    private final WorkerExecutor workerExecutor;
 
 
+    @MainThread
     private MyExecutor() {
         mainHandler = new Handler(Looper.getMainLooper());
+        mainDispatcher = new CoalescingDispatcher(Choreographer.getInstance());
 
         HandlerThread handlerThread = new HandlerThread("capture_handler_thread");
         handlerThread.start();
         screenCaptureHandler = new Handler(handlerThread.getLooper());
 
-        workerExecutor = Executors.newCachedThreadPool();
+        // leave one core for the main and capture threads. The main and capture threads
+        // submit here, so a full queue rejects (and counts) the task rather than running it on
+        // them or making them wait; every submitter copes with a rejection
+        int workerThreads = Math.max(WORKER_MIN_THREADS,
+                Math.min(WORKER_MAX_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+        workerExecutor = new WorkerExecutor("worker", workerThreads, WORKER_QUEUE_CAPACITY,
+                WorkerExecutor.RejectionPolicy.ABORT);
     }
 
 
     @NonNull
     public static Handler getMainHandler() {
-        Log.d(TAG, "getMainHandler");
+        if (MyLog.V) {
+            MyLog.v(TAG, "getMainHandler");
+        }
 
         return singleton.mainHandler;
     }
 
     public static void postMainHandler(Runnable runnable) {
-        Log.d(TAG, "postMainHandler");
+        if (MyLog.V) {
+            MyLog.v(TAG, "postMainHandler");
+        }
 
         singleton.mainHandler.post(runnable);
     }
 
+    // Runs the runnable on the main thread at the next vsync. Posting the same instance
+    // again before then is a no-op, so the main thread wakes at most once per frame
+    // however fast updates arrive. Pass a long-lived Runnable to keep this allocation free.
+    public static void postMainHandlerCoalesced(Runnable runnable) {
+        singleton.mainDispatcher.dispatch(runnable);
+    }
+
     public static void executeMainHandler(Runnable runnable) {
-        Log.d(TAG, "executeMainHandler");
+        if (MyLog.V) {
+            MyLog.v(TAG, "executeMainHandler");
+        }
 
         if (Thread.currentThread() == singleton.mainHandler.getLooper().getThread()) {
             runnable.run();
@@ -73,22 +104,101 @@ public class MyExecutor {
 
     @NonNull
     public static Handler getScreenCaptureHandler() {
-        Log.d(TAG, "getScreenCaptureHandler");
+        if (MyLog.V) {
+            MyLog.v(TAG, "getScreenCaptureHandler");
+        }
 
         return singleton.screenCaptureHandler;
     }
 
     public static void postScreenCaptureHandler(Runnable runnable) {
-        Log.d(TAG, "postScreenCaptureHandler");
+        if (MyLog.V) {
+            MyLog.v(TAG, "postScreenCaptureHandler");
+        }
 
         singleton.screenCaptureHandler.post(runnable);
     }
 
 
     @NonNull
-    public static ExecutorService getWorkerExecutor() {
-        Log.d(TAG, "getWorkerExecutor");
+    public static WorkerExecutor getWorkerExecutor() {
+        if (MyLog.V) {
+            MyLog.v(TAG, "getWorkerExecutor");
+        }
 
         return singleton.workerExecutor;
     }
+
+    @NonNull
+    public static Executor getWorkerExecutor(int lane) {
+        if (MyLog.V) {
+            MyLog.v(TAG, "getWorkerExecutor: lane=" + lane);
+        }
+
+        return singleton.workerExecutor.getLaneExecutor(lane);
+    }
+
+
+    //--------------------------------------------------
+    // class CoalescingDispatcher
+    //--------------------------------------------------
+
+    private static class CoalescingDispatcher implements Choreographer.FrameCallback {
+        private static final int INITIAL_CAPACITY = 8;
+
+        private final Choreographer choreographer;
+
+        private final Object lock = new Object();
+        private Runnable[] pending = new Runnable[INITIAL_CAPACITY];
+        private int pendingCount;
+        private boolean scheduled;
+
+        // touched only from doFrame on the main thread
+        private Runnable[] running = new Runnable[INITIAL_CAPACITY];
+
+        CoalescingDispatcher(Choreographer choreographer) {
+            this.choreographer = choreographer;
+        }
+
+        void dispatch(Runnable runnable) {
+            synchronized (lock) {
+                for (int i = 0; i < pendingCount; i++) {
+                    if (pending[i] == runnable) {
+                        return;
+                    }
+                }
+
+                if (pendingCount == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingCount * 2);
+                }
+                pending[pendingCount++] = runnable;
+
+                if (!scheduled) {
+                    scheduled = true;
+                    choreographer.postFrameCallback(this);
+                }
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            Runnable[] batch;
+            int count;
+            synchronized (lock) {
+                batch = pending;
+                count = pendingCount;
+
+                pending = running.length >= batch.length ? running : new Runnable[batch.length];
+                pendingCount = 0;
+                scheduled = false;
+            }
+
+            running = batch;
+            for (int i = 0; i < count; i++) {
+                Runnable runnable = batch[i];
+                batch[i] = null;
+                runnable.run();
+            }
+        }
+    }
 }
@@ -0,0 +1,133 @@
+package net.hogelab.android.projectiontest;
+
+import android.util.Log;
+
+
+//--------------------------------------------------
+// class MyLog
+//--------------------------------------------------
+
+// Logging facade. The level comes from BuildConfig.LOG_LEVEL, so V/D/I/W are compile-time
+// constants: a call site wrapped in "if (MyLog.D)" is removed from release builds entirely,
+// and the arg overloads only concatenate when the level is enabled.
+//
+// Sampled traces are for field diagnostics and work in every build type: enable them with
+// "adb shell setprop log.tag.ProjectionTrace DEBUG" before starting the app, or
+// setTraceInterval().
+public final class MyLog {
+
+    public static final int LEVEL = BuildConfig.LOG_LEVEL;
+
+    public static final boolean V = LEVEL <= Log.VERBOSE;
+    public static final boolean D = LEVEL <= Log.DEBUG;
+    public static final boolean I = LEVEL <= Log.INFO;
+    public static final boolean W = LEVEL <= Log.WARN;
+
+    public static final String TRACE_TAG = "ProjectionTrace";
+    private static final int DEFAULT_TRACE_INTERVAL = 30;
+
+    private static volatile int traceInterval = BuildConfig.LOG_TRACE_INTERVAL;
+
+
+    private MyLog() {
+    }
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    public static void init() {
+        if (traceInterval == 0 && Log.isLoggable(TRACE_TAG, Log.DEBUG)) {
+            traceInterval = DEFAULT_TRACE_INTERVAL;
+        }
+        if (traceInterval > 0) {
+            Log.i(TRACE_TAG, "sampled trace: 1 of " + traceInterval);
+        }
+    }
+
+    // 0 turns sampled traces off.
+    public static void setTraceInterval(int interval) {
+        traceInterval = Math.max(0, interval);
+    }
+
+    public static int getTraceInterval() {
+        return traceInterval;
+    }
+
+
+    public static void v(String tag, String message) {
+        if (V) {
+            Log.v(tag, message);
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (D) {
+            Log.d(tag, message);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (D) {
+            Log.d(tag, message + arg);
+        }
+    }
+
+    public static void d(String tag, String message, long arg) {
+        if (D) {
+            Log.d(tag, message + arg);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (I) {
+            Log.i(tag, message);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (W) {
+            Log.w(tag, message);
+        }
+    }
+
+    public static void w(String tag, String message, Throwable tr) {
+        if (W) {
+            Log.w(tag, message, tr);
+        }
+    }
+
+    // Errors are always logged.
+    public static void e(String tag, String message, Throwable tr) {
+        Log.e(tag, message, tr);
+    }
+
+    public static void trace(String tag, String message, long arg) {
+        Log.i(TRACE_TAG, tag + ": " + message + arg);
+    }
+
+
+    //--------------------------------------------------
+    // class Sampler
+    //--------------------------------------------------
+
+    // One per call site and thread. sample() is true once every trace interval calls, and
+    // costs a field read and a compare when tracing is off.
+    public static final class Sampler {
+        private int count;
+
+        public boolean sample() {
+            int interval = traceInterval;
+            if (interval <= 0) {
+                return false;
+            }
+
+            if (++count < interval) {
+                return false;
+            }
+            count = 0;
+            return true;
+        }
+    }
+}
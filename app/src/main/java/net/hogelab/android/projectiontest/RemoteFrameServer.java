@@ -0,0 +1,504 @@
+package net.hogelab.android.projectiontest;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.RequiresApi;
+
+import net.hogelab.android.projectiontest.capture.Frame;
+import net.hogelab.android.projectiontest.capture.FrameBus;
+import net.hogelab.android.projectiontest.capture.PixelFormatNegotiator;
+import net.hogelab.android.projectiontest.capture.WorkerExecutor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+
+//--------------------------------------------------
+// class RemoteFrameServer
+//--------------------------------------------------
+
+// Messenger interface of ScreenCaptureService for other apps. Frames go through a small ring of
+// SharedMemory buffers that every client maps once; a frame message only carries the buffer
+// index, so pixels never go through a Binder parcel. A buffer is reused once every client it
+// was sent to has released it, and frames are skipped while none is free.
+//
+// Client protocol: send MSG_REGISTER_CLIENT with replyTo set, map the buffers of MSG_BUFFERS
+// read-only, and answer every MSG_FRAME with MSG_RELEASE_FRAME carrying the same arg1 and arg2.
+// Clients are told apart by replyTo, so MSG_UNREGISTER_CLIENT and MSG_RELEASE_FRAME must carry
+// the Messenger that registered; a release without it is ignored and holds the buffer until the
+// client unregisters or dies.
+// A MSG_BUFFERS with a new generation replaces all earlier buffers.
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+public class RemoteFrameServer {
+    private static final String TAG = RemoteFrameServer.class.getSimpleName();
+
+    // client -> service, replyTo set to the client's Messenger on every message
+    public static final int MSG_REGISTER_CLIENT = 1;
+    public static final int MSG_UNREGISTER_CLIENT = 2;
+    public static final int MSG_START_CAPTURE = 3;
+    public static final int MSG_STOP_CAPTURE = 4;
+    // arg1: buffer index, arg2: buffer generation
+    public static final int MSG_RELEASE_FRAME = 5;
+
+    // service -> client
+    // arg1: 1 while capturing
+    public static final int MSG_CAPTURE_STATE = 101;
+    // arg2: buffer generation; data: KEY_BUFFERS, KEY_WIDTH, KEY_HEIGHT, KEY_ROW_STRIDE
+    public static final int MSG_BUFFERS = 102;
+    // arg1: buffer index, arg2: buffer generation; data: KEY_TIMESTAMP_NANOS, KEY_SEQUENCE
+    public static final int MSG_FRAME = 103;
+
+    // SharedMemory[], RGBA_8888 pixels
+    public static final String KEY_BUFFERS = "buffers";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_ROW_STRIDE = "row_stride";
+    public static final String KEY_TIMESTAMP_NANOS = "timestamp_nanos";
+    public static final String KEY_SEQUENCE = "sequence";
+
+    private static final int STREAM_MAX_FPS = 30;
+    private static final int MAX_CLIENTS = 4;
+    // one being written, one with the clients, one they may still be holding on to
+    private static final int BUFFER_COUNT = 3;
+
+
+    //--------------------------------------------------
+    // class Client
+    //--------------------------------------------------
+
+    private static final class Client {
+        final Messenger messenger;
+        final IBinder.DeathRecipient deathRecipient;
+        final boolean[] held = new boolean[BUFFER_COUNT];
+
+        Client(Messenger messenger, IBinder.DeathRecipient deathRecipient) {
+            this.messenger = messenger;
+            this.deathRecipient = deathRecipient;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final Context context;
+    private final Messenger messenger;
+    private final Executor copyExecutor;
+    private FrameBus.Subscription<Bitmap> subscription;
+
+    // guarded by this; clients are only added and removed on the main thread
+    private final List<Client> clients = new ArrayList<>();
+    private SharedMemory[] buffers;
+    private ByteBuffer[] mappings;
+    // number of clients holding each buffer
+    private final int[] holdCounts = new int[BUFFER_COUNT];
+    private int generation;
+    private int bufferWidth;
+    private int bufferHeight;
+    private int bufferRowStride;
+    private int writingIndex = -1;
+    private boolean closePending;
+    private boolean formatWarned;
+    private long sentFrameCount;
+    private long skippedFrameCount;
+
+    private final Handler.Callback incomingCallback;
+    private final FrameBus.Subscriber<Bitmap> frameSubscriber;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    @MainThread
+    public RemoteFrameServer(Context context) {
+        this.context = context.getApplicationContext();
+        messenger = new Messenger(new Handler(Looper.getMainLooper(), incomingCallback));
+        copyExecutor = MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public IBinder getBinder() {
+        return messenger.getBinder();
+    }
+
+    public synchronized int getClientCount() {
+        return clients.size();
+    }
+
+    @MainThread
+    public void onCapturingChanged(boolean isCapturing) {
+        MyLog.d(TAG, "onCapturingChanged: ", isCapturing);
+
+        synchronized (this) {
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                send(clients.get(i), Message.obtain(null, MSG_CAPTURE_STATE, isCapturing ? 1 : 0, 0));
+            }
+        }
+    }
+
+    @MainThread
+    public void release() {
+        MyLog.d(TAG, "release");
+
+        synchronized (this) {
+            while (!clients.isEmpty()) {
+                removeClient(clients.get(clients.size() - 1));
+            }
+        }
+        unsubscribe();
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    @MainThread
+    private boolean handleMessage(Message msg) {
+        MyLog.d(TAG, "handleMessage: ", msg.what);
+
+        switch (msg.what) {
+            case MSG_REGISTER_CLIENT:
+                registerClient(msg.replyTo);
+                return true;
+            case MSG_UNREGISTER_CLIENT:
+                unregisterClient(msg.replyTo);
+                return true;
+            case MSG_START_CAPTURE:
+                startCapture();
+                return true;
+            case MSG_STOP_CAPTURE:
+                stopCapture();
+                return true;
+            case MSG_RELEASE_FRAME:
+                releaseFrame(msg.replyTo, msg.arg1, msg.arg2);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    @MainThread
+    private void registerClient(Messenger replyTo) {
+        if (replyTo == null) {
+            return;
+        }
+
+        Client client;
+        synchronized (this) {
+            if (findClient(replyTo) != null) {
+                return;
+            }
+            if (clients.size() >= MAX_CLIENTS) {
+                MyLog.w(TAG, "registerClient: too many clients");
+                return;
+            }
+
+            client = new Client(replyTo, () -> MyExecutor.postMainHandler(() -> unregisterClient(replyTo)));
+            try {
+                replyTo.getBinder().linkToDeath(client.deathRecipient, 0);
+            } catch (RemoteException e) {
+                // already gone
+                return;
+            }
+            clients.add(client);
+
+            send(client, Message.obtain(null, MSG_CAPTURE_STATE,
+                    ScreenCaptureManager.getInstance().getCapturing() ? 1 : 0, 0));
+            if (buffers != null) {
+                sendBuffers(client);
+            }
+        }
+
+        if (subscription == null) {
+            // the buffers carry RGBA_8888
+            ScreenCaptureManager.getInstance().declarePixelFormatNeeds(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+            subscription = ScreenCaptureManager.getInstance().subscribeFrames(frameSubscriber,
+                    copyExecutor, STREAM_MAX_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+        }
+    }
+
+    @MainThread
+    private void unregisterClient(Messenger replyTo) {
+        boolean empty;
+        synchronized (this) {
+            Client client = findClient(replyTo);
+            if (client == null) {
+                return;
+            }
+            removeClient(client);
+            empty = clients.isEmpty();
+        }
+
+        if (empty) {
+            unsubscribe();
+        }
+    }
+
+    @MainThread
+    private void startCapture() {
+        if (ScreenCaptureManager.getInstance().getCapturing()) {
+            return;
+        }
+
+        // only an activity can ask the user for MediaProjection consent
+        context.startActivity(MainActivity.createCaptureRequestIntent(context));
+    }
+
+    @MainThread
+    private void stopCapture() {
+        // ACTION_STOP goes through startForegroundService(), which must not reach a service
+        // that has nothing to put in the foreground
+        if (!ScreenCaptureManager.getInstance().getCapturing()) {
+            return;
+        }
+
+        ScreenCaptureService.stopService(context);
+    }
+
+    @MainThread
+    private synchronized void releaseFrame(Messenger replyTo, int index, int frameGeneration) {
+        Client client = findClient(replyTo);
+        if (client == null || frameGeneration != generation
+                || index < 0 || index >= BUFFER_COUNT || !client.held[index]) {
+            // late release of a replaced buffer
+            return;
+        }
+
+        client.held[index] = false;
+        holdCounts[index]--;
+    }
+
+    @MainThread
+    private void unsubscribe() {
+        if (subscription != null) {
+            subscription.unsubscribe();
+            subscription = null;
+            ScreenCaptureManager.getInstance().retractPixelFormatNeeds(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+
+            MyLog.d(TAG, "unsubscribe: sent=" + sentFrameCount + " skipped=" + skippedFrameCount);
+        }
+    }
+
+    private Client findClient(Messenger replyTo) {
+        for (Client client : clients) {
+            if (client.messenger.equals(replyTo)) {
+                return client;
+            }
+        }
+
+        return null;
+    }
+
+    private void removeClient(Client client) {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (client.held[i]) {
+                client.held[i] = false;
+                holdCounts[i]--;
+            }
+        }
+        client.messenger.getBinder().unlinkToDeath(client.deathRecipient, 0);
+        clients.remove(client);
+
+        if (clients.isEmpty()) {
+            closeBuffers();
+        }
+    }
+
+    // Export lane.
+    private void onFrame(Frame<Bitmap> frame) {
+        try {
+            publish(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void publish(Frame<Bitmap> frame) {
+        Bitmap bitmap = frame.get();
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            if (!formatWarned) {
+                formatWarned = true;
+                MyLog.w(TAG, "publish: unsupported bitmap config " + bitmap.getConfig());
+            }
+            return;
+        }
+
+        int index;
+        ByteBuffer mapping;
+        synchronized (this) {
+            if (clients.isEmpty()
+                    || !obtainBuffers(bitmap.getWidth(), bitmap.getHeight(), bitmap.getRowBytes())) {
+                return;
+            }
+
+            index = findFreeBuffer();
+            if (index < 0) {
+                skippedFrameCount++;
+                return;
+            }
+            writingIndex = index;
+            mapping = mappings[index];
+        }
+
+        // the one copy: straight into memory the clients have mapped
+        mapping.clear();
+        bitmap.copyPixelsToBuffer(mapping);
+
+        synchronized (this) {
+            writingIndex = -1;
+            if (closePending) {
+                closeBuffers();
+                return;
+            }
+
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                Client client = clients.get(i);
+                Message msg = Message.obtain(null, MSG_FRAME, index, generation);
+                Bundle data = new Bundle();
+                data.putLong(KEY_TIMESTAMP_NANOS, frame.getTimestampNanos());
+                data.putLong(KEY_SEQUENCE, frame.getSequenceNumber());
+                msg.setData(data);
+                if (send(client, msg)) {
+                    client.held[index] = true;
+                    holdCounts[index]++;
+                }
+            }
+            sentFrameCount++;
+        }
+    }
+
+    private int findFreeBuffer() {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            if (holdCounts[i] == 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    // Export lane, holding the lock. Buffers of another size are replaced under a new
+    // generation; clients keep their old mappings until they drop them.
+    private boolean obtainBuffers(int width, int height, int rowStride) {
+        if (buffers != null && bufferWidth == width && bufferHeight == height
+                && bufferRowStride == rowStride) {
+            return true;
+        }
+
+        closeBuffers();
+
+        SharedMemory[] newBuffers = new SharedMemory[BUFFER_COUNT];
+        ByteBuffer[] newMappings = new ByteBuffer[BUFFER_COUNT];
+        try {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                newBuffers[i] = SharedMemory.create("projection_frame_" + i, rowStride * height);
+                newMappings[i] = newBuffers[i].mapReadWrite();
+                // later mappings, the clients' included, can only read
+                newBuffers[i].setProtect(OsConstants.PROT_READ);
+            }
+        } catch (ErrnoException e) {
+            MyLog.e(TAG, "obtainBuffers: cannot create shared memory", e);
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                if (newMappings[i] != null) {
+                    SharedMemory.unmap(newMappings[i]);
+                }
+                if (newBuffers[i] != null) {
+                    newBuffers[i].close();
+                }
+            }
+            return false;
+        }
+
+        buffers = newBuffers;
+        mappings = newMappings;
+        bufferWidth = width;
+        bufferHeight = height;
+        bufferRowStride = rowStride;
+        generation++;
+
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            sendBuffers(clients.get(i));
+        }
+        return true;
+    }
+
+    // Holding the lock. A buffer being written is unmapped by the writer once it is done.
+    private void closeBuffers() {
+        if (writingIndex >= 0) {
+            closePending = true;
+            return;
+        }
+        closePending = false;
+
+        if (buffers != null) {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                SharedMemory.unmap(mappings[i]);
+                buffers[i].close();
+            }
+            buffers = null;
+            mappings = null;
+        }
+
+        for (Client client : clients) {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                client.held[i] = false;
+            }
+        }
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            holdCounts[i] = 0;
+        }
+    }
+
+    private void sendBuffers(Client client) {
+        Message msg = Message.obtain(null, MSG_BUFFERS, 0, generation);
+        Bundle data = new Bundle();
+        data.putParcelableArray(KEY_BUFFERS, buffers);
+        data.putInt(KEY_WIDTH, bufferWidth);
+        data.putInt(KEY_HEIGHT, bufferHeight);
+        data.putInt(KEY_ROW_STRIDE, bufferRowStride);
+        msg.setData(data);
+        send(client, msg);
+    }
+
+    // A dead client is removed by its death recipient.
+    private boolean send(Client client, Message msg) {
+        try {
+            client.messenger.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            MyLog.w(TAG, "send: client is gone");
+            return false;
+        }
+    }
+
+
+    // Handler.Callback and FrameBus.Subscriber
+    {
+        incomingCallback = this::handleMessage;
+
+        frameSubscriber = this::onFrame;
+    }
+}
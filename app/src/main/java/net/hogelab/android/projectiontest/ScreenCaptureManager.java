@@ -2,20 +2,56 @@ package net.hogelab.android.projectiontest;
 
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
-import android.util.Log;
+import android.os.Build;
+import android.os.Environment;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.view.Surface;
 
 import androidx.annotation.MainThread;
-
+import androidx.annotation.Nullable;
+
+import net.hogelab.android.projectiontest.capture.AdaptiveScaleController;
+import net.hogelab.android.projectiontest.capture.CaptureMetrics;
+import net.hogelab.android.projectiontest.capture.CaptureRatePolicy;
+import net.hogelab.android.projectiontest.capture.Downscaler;
+import net.hogelab.android.projectiontest.capture.EncodedFrameRing;
+import net.hogelab.android.projectiontest.capture.EncodedStreamSink;
+import net.hogelab.android.projectiontest.capture.Frame;
+import net.hogelab.android.projectiontest.capture.FrameAnalyzer;
+import net.hogelab.android.projectiontest.capture.FrameBus;
+import net.hogelab.android.projectiontest.capture.FrameIngest;
+import net.hogelab.android.projectiontest.capture.FrameCopier;
+import net.hogelab.android.projectiontest.capture.FrameLeakDetector;
+import net.hogelab.android.projectiontest.capture.FramePool;
+import net.hogelab.android.projectiontest.capture.PixelConverter;
+import net.hogelab.android.projectiontest.capture.PixelFormatNegotiator;
+import net.hogelab.android.projectiontest.capture.ReplayRecorder;
+import net.hogelab.android.projectiontest.capture.SegmentedRecorder;
+import net.hogelab.android.projectiontest.capture.SerialExecutor;
+import net.hogelab.android.projectiontest.capture.TileDiffer;
+import net.hogelab.android.projectiontest.capture.WorkerExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 
 //--------------------------------------------------
@@ -25,6 +61,18 @@ import java.util.List;
 public class ScreenCaptureManager {
     private static final String TAG = ScreenCaptureManager.class.getSimpleName();
 
+    public static final int CAPTURE_MODE_STILL = 0;
+    public static final int CAPTURE_MODE_RECORDING = 1;
+    public static final int CAPTURE_MODE_REPLAY = 2;
+
+    private static final long THERMAL_POLL_INTERVAL_NANOS = 2_000_000_000L;
+    private static final int THERMAL_FORECAST_SECONDS = 5;
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 1_000_000_000L / 60;
+    // the main thread legitimately holds the latest frame for as long as the screen is static
+    private static final long LEAK_REPORT_MIN_AGE_NANOS = 10_000_000_000L;
+    // one pixel in 16 is plenty to tell a blank or changed screen
+    private static final int FRAME_STATS_SAMPLE_STEP = 4;
+
     //--------------------------------------------------
     // callback interface
     //--------------------------------------------------
@@ -32,6 +80,8 @@ public class ScreenCaptureManager {
     public interface Callback {
         void onCapturingChanged(boolean isCapturing);
         void onImageAvailableChanged(boolean isImageAvailable);
+        // Each delivered frame, measured on the way in; valid until the call returns.
+        void onFrameStats(FrameAnalyzer.Stats stats);
     }
 
 
@@ -58,7 +108,8 @@ public class ScreenCaptureManager {
 
     private boolean isCapturing;
     private boolean isImageAvailable;
-    private Bitmap capturedImage;
+    // main thread; holds one reference
+    private Frame<Bitmap> capturedFrame;
 
     private final List<Callback> callbacks;
 
@@ -68,14 +119,82 @@ public class ScreenCaptureManager {
 
     private final VirtualDisplay.Callback virtualDisplayCallback;
     private VirtualDisplay virtualDisplay;
-
-    private int pixelFormat = PixelFormat.RGBA_8888;
+    private ImageReader imageReader;
+    private ScreenRecorder screenRecorder;
+    private volatile ReplayRecorder<MediaFormat> replayRecorder;
+
+    // PixelFormat.UNKNOWN: negotiate from what the consumers need
+    private int pixelFormat = PixelFormat.UNKNOWN;
+    // the captured image is saved as snapshots, so keep full color unless told otherwise
+    private int imageNeeds = PixelFormatNegotiator.NEEDS_8BIT_COLOR | PixelFormatNegotiator.NEEDS_FULL_CHROMA;
+    private final PixelFormatNegotiator formatNegotiator = new PixelFormatNegotiator();
     private int maxImages = 2;
+    private int consumerDepth = 1;
     private float scaleFactor = 0.05f;
+    private int targetFps = CaptureRatePolicy.UNLIMITED_FPS;
+    private boolean dropOnBackpressure = true;
+    private boolean frameDiffEnabled = true;
+    private int frameDiffTileSize = TileDiffer.DEFAULT_TILE_SIZE;
+    private boolean frameStatsEnabled = true;
+    private boolean adaptiveScaleEnabled = false;
+    private float adaptiveMinScale = 0.05f;
+    private float adaptiveMaxScale = 0.5f;
+
+    private int captureMode = CAPTURE_MODE_STILL;
+    private String recordingMimeType = ScreenRecorder.MIME_TYPE_AVC;
+    private int recordingBitRate = 6_000_000;
+    private int recordingFrameRate = 30;
+    private int recordingKeyFrameInterval = 1;
+    private long recordingSegmentDurationUs = 0;
+    private float recordingScaleFactor = 0.5f;
+    private int replayDurationSeconds = 30;
+    private final File recordingDirectory;
+
+    private Bitmap.CompressFormat snapshotFormat = Bitmap.CompressFormat.PNG;
+    private int snapshotQuality = 100;
+    private final File snapshotDirectory;
+    private final SnapshotExporter snapshotExporter;
+    // main thread; holds one reference while the exporter writes it
+    private Frame<Bitmap> snapshotFrame;
 
     private int captureWidth;
     private int captureHeight;
     private int captureDensityDpi;
+    private int capturePixelFormat;
+    // capture thread only: unscaled size of the captured content and the scale applied to it
+    private int sourceWidth;
+    private int sourceHeight;
+    private float captureScaleFactor;
+
+    private final PowerManager powerManager;
+    private AdaptiveScaleController scaleController;
+    private long nextThermalPollNanos;
+    private boolean adaptiveResizePending;
+    private final Runnable applyAdaptiveScaleRunnable = this::applyAdaptiveScaleInner;
+
+    private volatile BitmapPool framePool;
+    private ByteBuffer packedFrameBuffer;
+    private final byte[][] yuvPlanes = new byte[3][];
+    private int[] argbFrame;
+
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    // the main thread is its consumer
+    private final FrameIngest<Bitmap> frameIngest = new FrameIngest<>(metrics);
+    private final Frame.Recycler<Bitmap> frameRecycler = this::recycleFrame;
+    private final Runnable deliverCapturedImageRunnable = this::deliverCapturedImage;
+    // main thread only
+    private final FrameAnalyzer.Stats deliveredStats = new FrameAnalyzer.Stats();
+    // main thread only; scaled from the captured frame when asked for
+    private final int thumbnailMaxWidth;
+    private final int thumbnailMaxHeight;
+    private Downscaler thumbnailDownscaler;
+    private Downscaler.Output thumbnailOutput;
+    private ByteBuffer thumbnailSource;
+    private Bitmap thumbnailImage;
+
+    private volatile long deliverPostedNanos;
+    // capture thread only
+    private final MyLog.Sampler frameTrace = new MyLog.Sampler();
 
 
     //--------------------------------------------------
@@ -83,12 +202,24 @@ public class ScreenCaptureManager {
     //--------------------------------------------------
 
     private ScreenCaptureManager(Context context) {
-        Log.d(TAG, "constructor");
+        MyLog.d(TAG, "constructor");
 
         callbacks = new LinkedList<>();
 
         mediaProjectionManager =
                 (MediaProjectionManager) context.getSystemService(Context.MEDIA_PROJECTION_SERVICE);
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+
+        File moviesDirectory = context.getExternalFilesDir(Environment.DIRECTORY_MOVIES);
+        recordingDirectory = moviesDirectory != null ? moviesDirectory : context.getFilesDir();
+
+        File picturesDirectory = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        snapshotDirectory = picturesDirectory != null ? picturesDirectory : context.getFilesDir();
+        snapshotExporter = new SnapshotExporter(MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT));
+
+        Resources resources = context.getResources();
+        thumbnailMaxWidth = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        thumbnailMaxHeight = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
     }
 
 
@@ -98,23 +229,106 @@ public class ScreenCaptureManager {
 
     @MainThread
     public boolean getCapturing() {
-        Log.d(TAG, "getCaptureState: " + isCapturing);
+        MyLog.d(TAG, "getCaptureState: ", isCapturing);
 
         return isCapturing;
     }
 
     @MainThread
     public boolean getImageAvailable() {
-        Log.d(TAG, "getImageAvailable: " + isImageAvailable);
+        MyLog.d(TAG, "getImageAvailable: ", isImageAvailable);
 
         return isImageAvailable;
     }
 
+    // Only valid on the main thread until the next frame arrives; use acquireCapturedFrame()
+    // to keep it longer or hand it to another thread.
     @MainThread
+    @Nullable
     public Bitmap getCapturedImage() {
-        Log.d(TAG, "getCapturedImage");
+        MyLog.d(TAG, "getCapturedImage");
+
+        return capturedFrame != null ? capturedFrame.get() : null;
+    }
+
+    // The captured image fitted into a notification's large icon, area filtered; null when
+    // there is none or it is not ARGB_8888. Scaled on each call rather than for every frame,
+    // as it is only wanted now and then. Only valid on the main thread until the next call.
+    @MainThread
+    @Nullable
+    public Bitmap getThumbnailImage() {
+        Bitmap source = capturedFrame != null ? capturedFrame.get() : null;
+        if (source == null || source.getConfig() != Bitmap.Config.ARGB_8888) {
+            return null;
+        }
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (thumbnailDownscaler == null || thumbnailDownscaler.getSourceWidth() != width
+                || thumbnailDownscaler.getSourceHeight() != height
+                || thumbnailSource.capacity() < source.getByteCount()) {
+            thumbnailDownscaler = new Downscaler(width, height);
+            thumbnailOutput = thumbnailDownscaler.addFittedOutput(thumbnailMaxWidth, thumbnailMaxHeight,
+                    Downscaler.Filter.AREA);
+            thumbnailSource = ByteBuffer.allocate(source.getByteCount());
+            if (thumbnailImage != null) {
+                thumbnailImage.recycle();
+            }
+            thumbnailImage = Bitmap.createBitmap(thumbnailOutput.getWidth(), thumbnailOutput.getHeight(),
+                    Bitmap.Config.ARGB_8888);
+        }
+
+        // ARGB_8888 pixels are RGBA_8888 bytes
+        thumbnailSource.clear();
+        source.copyPixelsToBuffer(thumbnailSource);
+        thumbnailSource.rewind();
+        thumbnailDownscaler.scale(thumbnailSource, source.getRowBytes());
+        thumbnailImage.copyPixelsFromBuffer(ByteBuffer.wrap(thumbnailOutput.getPixels()));
+        return thumbnailImage;
+    }
+
+    // The caller owns the returned reference and must release it.
+    @MainThread
+    @Nullable
+    public Frame<Bitmap> acquireCapturedFrame() {
+        MyLog.d(TAG, "acquireCapturedFrame");
+
+        return capturedFrame != null ? capturedFrame.retain() : null;
+    }
+
+    // Delivers captured frames to subscriber on executor, at most maxFps and with up to
+    // queueDepth frames waiting; a subscriber that falls behind only loses its own frames.
+    // Frames are shared, not copied: each one must be released and must not be modified.
+    // Still capture mode only. Takes effect on the frame pool from the next session.
+    public FrameBus.Subscription<Bitmap> subscribeFrames(FrameBus.Subscriber<Bitmap> subscriber,
+                                                         Executor executor, int maxFps, int queueDepth,
+                                                         FrameBus.DropPolicy dropPolicy) {
+        MyLog.d(TAG, "subscribeFrames");
+
+        return frameIngest.getFrameBus().subscribe(subscriber, executor, maxFps, queueDepth, dropPolicy);
+    }
+
+    public long getFramePoolHitCount() {
+        BitmapPool pool = framePool;
+        return pool != null ? pool.getHitCount() : 0;
+    }
+
+    public long getFramePoolMissCount() {
+        BitmapPool pool = framePool;
+        return pool != null ? pool.getMissCount() : 0;
+    }
+
+    public long getDeliveredFrameCount() {
+        return frameIngest.getRatePolicy().getDeliveredCount();
+    }
+
+    public long getDroppedFrameCount() {
+        return frameIngest.getRatePolicy().getDroppedCount();
+    }
 
-        return capturedImage;
+    // Pass the previous snapshot back in to get fps over the polling interval.
+    public CaptureMetrics.Snapshot getMetricsSnapshot(CaptureMetrics.Snapshot reuse) {
+        return metrics.snapshot(reuse, System.nanoTime());
     }
 
     @MainThread
@@ -133,20 +347,132 @@ public class ScreenCaptureManager {
         this.pixelFormat = pixelFormat;
     }
 
+    // What getCapturedImage() users need, as PixelFormatNegotiator.NEEDS_* flags.
+    @MainThread
+    public void setDefaultImageNeeds(int needs) {
+        this.imageNeeds = needs;
+    }
+
+    // Other frame consumers declare their PixelFormatNegotiator.NEEDS_* flags here; they
+    // apply from the next session.
+    @MainThread
+    public void declarePixelFormatNeeds(int needs) {
+        formatNegotiator.declare(needs);
+    }
+
+    // Takes back what a consumer declared once it stops taking frames.
+    @MainThread
+    public void retractPixelFormatNeeds(int needs) {
+        formatNegotiator.retract(needs);
+    }
+
     @MainThread
     public void setDefaultMaxImages(int maxImages) {
         this.maxImages = maxImages;
     }
 
+    @MainThread
+    public void setDefaultConsumerDepth(int consumerDepth) {
+        this.consumerDepth = consumerDepth;
+    }
+
     @MainThread
     public void setDefaultScaleFactor(float scaleFactor) {
         this.scaleFactor = scaleFactor;
     }
 
+    // Lets the scale factor move between minScale and maxScale during a still capture
+    // session, following frame processing time and thermal headroom.
+    @MainThread
+    public void setDefaultAdaptiveScale(boolean enabled, float minScale, float maxScale) {
+        this.adaptiveScaleEnabled = enabled;
+        this.adaptiveMinScale = minScale;
+        this.adaptiveMaxScale = maxScale;
+    }
+
+    @MainThread
+    public void setDefaultTargetFps(int targetFps) {
+        this.targetFps = targetFps;
+    }
+
+    @MainThread
+    public void setDefaultDropOnBackpressure(boolean dropOnBackpressure) {
+        this.dropOnBackpressure = dropOnBackpressure;
+    }
+
+    @MainThread
+    public void setDefaultFrameDiffEnabled(boolean enabled) {
+        this.frameDiffEnabled = enabled;
+    }
+
+    @MainThread
+    public void setDefaultFrameDiffTileSize(int tileSize) {
+        this.frameDiffTileSize = tileSize;
+    }
+
+    @MainThread
+    public void setDefaultFrameStatsEnabled(boolean enabled) {
+        this.frameStatsEnabled = enabled;
+    }
+
+    @MainThread
+    public void setDefaultCaptureMode(int captureMode) {
+        this.captureMode = captureMode;
+    }
+
+    @MainThread
+    public void setDefaultRecordingMimeType(String mimeType) {
+        this.recordingMimeType = mimeType;
+    }
+
+    @MainThread
+    public void setDefaultRecordingBitRate(int bitRate) {
+        this.recordingBitRate = bitRate;
+    }
+
+    @MainThread
+    public void setDefaultRecordingFrameRate(int frameRate) {
+        this.recordingFrameRate = frameRate;
+    }
+
+    @MainThread
+    public void setDefaultRecordingKeyFrameInterval(int seconds) {
+        this.recordingKeyFrameInterval = seconds;
+    }
+
+    @MainThread
+    public void setDefaultRecordingSegmentDuration(long durationUs) {
+        this.recordingSegmentDurationUs = durationUs;
+    }
+
+    @MainThread
+    public void setDefaultRecordingScaleFactor(float scaleFactor) {
+        this.recordingScaleFactor = scaleFactor;
+    }
+
+    @MainThread
+    public void setDefaultSnapshotFormat(Bitmap.CompressFormat format, int quality) {
+        this.snapshotFormat = format;
+        this.snapshotQuality = quality;
+    }
+
+    @MainThread
+    public void setDefaultReplayDuration(int seconds) {
+        this.replayDurationSeconds = seconds;
+    }
+
+    public int getCaptureMode() {
+        return captureMode;
+    }
+
+    public File getRecordingDirectory() {
+        return recordingDirectory;
+    }
+
 
     @MainThread
     public Intent createScreenCaptureIntent() {
-        Log.d(TAG, "createScreenCaptureIntent");
+        MyLog.d(TAG, "createScreenCaptureIntent");
 
         return mediaProjectionManager.createScreenCaptureIntent();
     }
@@ -154,7 +480,7 @@ public class ScreenCaptureManager {
     @MainThread
     public void startScreenCapture(int resultCode, Intent resultData,
                                    int width, int height, int densityDpi) {
-        Log.d(TAG, "startScreenCapture");
+        MyLog.d(TAG, "startScreenCapture");
 
         if (!getCapturing()) {
             setCapturing(true);
@@ -169,7 +495,7 @@ public class ScreenCaptureManager {
 
     @MainThread
     public void stopScreenCapture() {
-        Log.d(TAG, "stopScreenCapture");
+        MyLog.d(TAG, "stopScreenCapture");
 
         if (getCapturing()) {
             setCapturing(false);
@@ -181,10 +507,76 @@ public class ScreenCaptureManager {
     }
 
 
+    // Changes the scale of a running still capture session without restarting the projection.
+    // Recording sessions keep their size: the encoder cannot change it on the fly.
+    @MainThread
+    public void resizeScreenCapture(float scaleFactor) {
+        MyLog.d(TAG, "resizeScreenCapture");
+
+        this.scaleFactor = scaleFactor;
+        if (getCapturing()) {
+            MyExecutor.postScreenCaptureHandler(() -> {
+                scaleController = createScaleController(scaleFactor);
+                resizeScreenCaptureInner(sourceWidth, sourceHeight, scaleFactor);
+            });
+        }
+    }
+
+
+    // Writes the last replayDurationSeconds of a CAPTURE_MODE_REPLAY session to a file.
+    @MainThread
+    public void saveReplay() {
+        MyLog.d(TAG, "saveReplay");
+
+        ReplayRecorder<MediaFormat> recorder = replayRecorder;
+        if (recorder == null) {
+            return;
+        }
+
+        recorder.flush(ScreenRecorder.createSegmentWriterFactory(recordingDirectory, "replay"),
+                new ReplayRecorder.FlushCallback() {
+
+                    @Override
+                    public void onFlushCompleted(int sampleCount) {
+                        MyLog.d(TAG, "saveReplay: completed, samples=", sampleCount);
+                    }
+
+                    @Override
+                    public void onFlushFailed(Exception e) {
+                        MyLog.e(TAG, "saveReplay: failed", e);
+                    }
+                });
+    }
+
+
     @MainThread
     public void doSnapshot() {
-        if (isImageAvailable) {
+        doSnapshot(null);
+    }
+
+    // Saves the current captured image without blocking the main thread. The bitmap stays out of
+    // the frame pool until it has been written. Returns null when there is nothing to save.
+    @MainThread
+    @Nullable
+    public Future<File> doSnapshot(@Nullable SnapshotExporter.Callback callback) {
+        MyLog.d(TAG, "doSnapshot");
+
+        Future<File> running = snapshotExporter.join(callback);
+        if (running != null) {
+            return running;
+        }
+
+        if (!isImageAvailable || capturedFrame == null) {
+            return null;
         }
+
+        snapshotFrame = capturedFrame.retain();
+        Bitmap bitmap = snapshotFrame.get();
+        Future<File> future = snapshotExporter.export(bitmap, createSnapshotFile(),
+                snapshotFormat, snapshotQuality, snapshotReleaseCallback);
+        snapshotExporter.join(callback);
+
+        return future;
     }
 
 
@@ -194,7 +586,7 @@ public class ScreenCaptureManager {
 
     @MainThread
     private void setCapturing(boolean newState) {
-        Log.d(TAG, "setCapturing: " + newState);
+        MyLog.d(TAG, "setCapturing: ", newState);
 
         if (isCapturing != newState) {
             isCapturing = newState;
@@ -207,7 +599,7 @@ public class ScreenCaptureManager {
 
     @MainThread
     private void setImageAvailable(boolean newState) {
-        Log.d(TAG, "setImageAvailable: " + newState);
+        MyLog.d(TAG, "setImageAvailable: ", newState);
 
         if (isImageAvailable != newState) {
             isImageAvailable = newState;
@@ -221,45 +613,374 @@ public class ScreenCaptureManager {
 
     public void startScreenCaptureInner(int resultCode, Intent resultData,
                                    int width, int height, int densityDpi) {
-        Log.d(TAG, "startScreenCaptureInner");
-
-        captureWidth = (int) (width * scaleFactor);
-        captureHeight = (int) (height * scaleFactor);
+        MyLog.d(TAG, "startScreenCaptureInner");
+
+        boolean encoding = captureMode == CAPTURE_MODE_RECORDING || captureMode == CAPTURE_MODE_REPLAY;
+        sourceWidth = width;
+        sourceHeight = height;
+        if (encoding) {
+            // hardware encoders want macroblock aligned sizes
+            captureScaleFactor = recordingScaleFactor;
+            captureWidth = alignToMacroblock((int) (width * recordingScaleFactor));
+            captureHeight = alignToMacroblock((int) (height * recordingScaleFactor));
+        } else {
+            capturePixelFormat = pixelFormat != PixelFormat.UNKNOWN
+                    ? pixelFormat
+                    : PixelFormatNegotiator.negotiate(imageNeeds | formatNegotiator.getNeeds());
+            MyLog.d(TAG, "startScreenCaptureInner: pixel format=", capturePixelFormat);
+
+            captureScaleFactor = scaleFactor;
+            captureWidth = scaledSize(width, scaleFactor);
+            captureHeight = scaledSize(height, scaleFactor);
+        }
         captureDensityDpi = densityDpi;
 
+        frameIngest.configure(new CaptureRatePolicy(targetFps, dropOnBackpressure),
+                frameDiffEnabled ? new TileDiffer(frameDiffTileSize) : null,
+                frameStatsEnabled ? new FrameAnalyzer(FRAME_STATS_SAMPLE_STEP) : null);
+        scaleController = encoding ? null : createScaleController(scaleFactor);
+        adaptiveResizePending = false;
+        metrics.reset();
+
+        Surface surface;
+        if (encoding) {
+            Executor outputExecutor = new SerialExecutor(MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_CAPTURE));
+            EncodedStreamSink<MediaFormat> sink;
+            if (captureMode == CAPTURE_MODE_REPLAY) {
+                replayRecorder = new ReplayRecorder<>(createReplayRing(),
+                        outputExecutor, MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT));
+                sink = replayRecorder;
+            } else {
+                sink = new SegmentedRecorder<>(
+                        ScreenRecorder.createSegmentWriterFactory(recordingDirectory, "capture"),
+                        recordingSegmentDurationUs);
+            }
+
+            screenRecorder = new ScreenRecorder(recordingMimeType,
+                    captureWidth, captureHeight,
+                    recordingBitRate, recordingFrameRate, recordingKeyFrameInterval,
+                    outputExecutor, sink);
+            screenRecorder.setMetrics(metrics);
+            try {
+                surface = screenRecorder.start(MyExecutor.getScreenCaptureHandler());
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                MyLog.e(TAG, "startScreenCaptureInner: cannot start encoder", e);
+
+                screenRecorder = null;
+                replayRecorder = null;
+                MyExecutor.postMainHandler(() -> stopScreenCapture());
+                return;
+            }
+        } else {
+            imageReader = ImageReader.newInstance(
+                    captureWidth, captureHeight,
+                    capturePixelFormat, maxImages);
+            imageReader.setOnImageAvailableListener(this::onImageAvailable,
+                    MyExecutor.getScreenCaptureHandler());
+            surface = imageReader.getSurface();
+        }
+
         mediaProjection = mediaProjectionManager.getMediaProjection(resultCode, resultData);
         mediaProjection.registerCallback(mediaProjectionCallback, null);
 
-        ImageReader imageReader = ImageReader.newInstance(
-                captureWidth, captureHeight,
-                pixelFormat, maxImages);
-        imageReader.setOnImageAvailableListener(this::onImageAvailable,
-                MyExecutor.getScreenCaptureHandler());
-
         virtualDisplay = mediaProjection.createVirtualDisplay(
                 "ProjectionTest",
                 captureWidth, captureHeight, captureDensityDpi,
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                imageReader.getSurface(),
+                surface,
                 virtualDisplayCallback,
                 MyExecutor.getScreenCaptureHandler());
     }
 
     public void stopScreenCaptureInner() {
-        Log.d(TAG, "stopScreenCaptureInner");
+        MyLog.d(TAG, "stopScreenCaptureInner");
 
         if (virtualDisplay != null) {
             virtualDisplay.release();
             virtualDisplay = null;
         }
 
+        if (screenRecorder != null) {
+            screenRecorder.stop();
+            screenRecorder = null;
+        }
+        replayRecorder = null;
+
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+
         if (mediaProjection != null) {
             mediaProjection.unregisterCallback(mediaProjectionCallback);
             mediaProjection.stop();
             mediaProjection = null;
         }
+
+        scaleController = null;
+
+        if (MyLog.D) {
+            logSessionStats();
+        }
+
+        FrameLeakDetector leakDetector = Frame.getLeakDetector();
+        if (leakDetector != null) {
+            leakDetector.reportOutstanding(System.nanoTime(), LEAK_REPORT_MIN_AGE_NANOS);
+        }
+
+        frameIngest.discardPending();
+        if (framePool != null) {
+            framePool.clear();
+        }
+
+        packedFrameBuffer = null;
+        yuvPlanes[0] = yuvPlanes[1] = yuvPlanes[2] = null;
+        argbFrame = null;
+    }
+
+    // Capture thread. Swaps in an ImageReader of the new size and points the running virtual
+    // display at it; frames still queued on the old reader are dropped with it.
+    private void resizeScreenCaptureInner(int width, int height, float scale) {
+        if (virtualDisplay == null || imageReader == null) {
+            return;
+        }
+
+        sourceWidth = width;
+        sourceHeight = height;
+        captureScaleFactor = scale;
+
+        int newWidth = scaledSize(width, scale);
+        int newHeight = scaledSize(height, scale);
+        if (newWidth == captureWidth && newHeight == captureHeight) {
+            return;
+        }
+
+        if (MyLog.D) {
+            MyLog.d(TAG, "resizeScreenCaptureInner: " + captureWidth + "x" + captureHeight
+                    + " -> " + newWidth + "x" + newHeight);
+        }
+
+        ImageReader newReader = ImageReader.newInstance(newWidth, newHeight, capturePixelFormat, maxImages);
+        newReader.setOnImageAvailableListener(this::onImageAvailable,
+                MyExecutor.getScreenCaptureHandler());
+
+        virtualDisplay.resize(newWidth, newHeight, captureDensityDpi);
+        virtualDisplay.setSurface(newReader.getSurface());
+
+        imageReader.close();
+        imageReader = newReader;
+        captureWidth = newWidth;
+        captureHeight = newHeight;
+    }
+
+    // Capture thread.
+    private void applyAdaptiveScaleInner() {
+        adaptiveResizePending = false;
+        if (scaleController != null) {
+            resizeScreenCaptureInner(sourceWidth, sourceHeight, scaleController.getScale());
+        }
+    }
+
+    @Nullable
+    private AdaptiveScaleController createScaleController(float initialScale) {
+        if (!adaptiveScaleEnabled) {
+            return null;
+        }
+
+        long frameBudgetNanos = targetFps > 0 ? 1_000_000_000L / targetFps : DEFAULT_FRAME_BUDGET_NANOS;
+        return new AdaptiveScaleController(adaptiveMinScale, adaptiveMaxScale, initialScale, frameBudgetNanos);
+    }
+
+    // Capture thread, once per processed frame.
+    private void updateAdaptiveScale(long processingNanos, long nowNanos) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && nowNanos >= nextThermalPollNanos) {
+            // rate limited by the platform; NaN when unsupported or asked too often
+            scaleController.onThermalHeadroom(powerManager.getThermalHeadroom(THERMAL_FORECAST_SECONDS));
+            nextThermalPollNanos = nowNanos + THERMAL_POLL_INTERVAL_NANOS;
+        }
+
+        float scale = scaleController.onFrameProcessed(processingNanos, nowNanos);
+        if (scale != captureScaleFactor && !adaptiveResizePending) {
+            adaptiveResizePending = true;
+            // not from inside the listener of the reader that is about to be closed
+            MyExecutor.getScreenCaptureHandler().post(applyAdaptiveScaleRunnable);
+        }
+    }
+
+    private void logSessionStats() {
+        if (framePool != null) {
+            MyLog.d(TAG, "frame pool: hit=" + framePool.getHitCount()
+                    + " miss=" + framePool.getMissCount()
+                    + " discard=" + framePool.getDiscardCount());
+        }
+
+        CaptureRatePolicy ratePolicy = frameIngest.getRatePolicy();
+        MyLog.d(TAG, "frames: delivered=" + ratePolicy.getDeliveredCount()
+                + " dropped(rate)=" + ratePolicy.getRateDroppedCount()
+                + " dropped(backpressure)=" + ratePolicy.getBackpressureDroppedCount()
+                + " superseded=" + ratePolicy.getSupersededCount());
+        TileDiffer tileDiffer = frameIngest.getTileDiffer();
+        if (tileDiffer != null) {
+            MyLog.d(TAG, "frame diff: frames=" + tileDiffer.getFrameCount()
+                    + " unchanged=" + tileDiffer.getUnchangedFrameCount());
+        }
+
+        WorkerExecutor worker = MyExecutor.getWorkerExecutor();
+        MyLog.d(TAG, "worker: active=" + worker.getActiveCount()
+                + " queued=" + worker.getQueuedTaskCount()
+                + " completed=" + worker.getCompletedTaskCount()
+                + " rejected=" + worker.getRejectedTaskCount()
+                + " wait(p99)=" + worker.getQueueLatency().snapshot(null).getPercentileNanos(0.99) / 1000 + "us");
+    }
+
+    // Sized from the configured bit rate, with headroom for key frames, so memory stays
+    // bounded no matter how long the session runs.
+    private EncodedFrameRing createReplayRing() {
+        long windowUs = replayDurationSeconds * 1_000_000L;
+        long byteCapacity = (long) recordingBitRate / 8 * (replayDurationSeconds + recordingKeyFrameInterval) * 3 / 2;
+        int sampleCapacity = recordingFrameRate * (replayDurationSeconds + recordingKeyFrameInterval) * 2;
+
+        return new EncodedFrameRing(windowUs, (int) Math.min(byteCapacity, Integer.MAX_VALUE - 8), sampleCapacity);
+    }
+
+    private File createSnapshotFile() {
+        String name = "snapshot_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date())
+                + "." + SnapshotExporter.getFileExtension(snapshotFormat);
+
+        return new File(snapshotDirectory, name);
+    }
+
+    @MainThread
+    private void onSnapshotFinished() {
+        if (snapshotFrame != null) {
+            snapshotFrame.release();
+            snapshotFrame = null;
+        }
+    }
+
+    private static int scaledSize(int size, float scale) {
+        return Math.max(1, (int) (size * scale));
+    }
+
+    private static int alignToMacroblock(int size) {
+        return Math.max(16, size & ~15);
     }
 
+    private BitmapPool obtainFramePool(int width, int height, Bitmap.Config config) {
+        BitmapPool pool = framePool;
+        if (pool == null || !pool.matches(width, height, config)) {
+            if (MyLog.D) {
+                MyLog.d(TAG, "obtainFramePool: " + width + "x" + height);
+            }
+
+            if (pool != null) {
+                pool.clear();
+            }
+
+            // frames held by subscribers must be able to come back, not be destroyed
+            pool = new BitmapPool(maxImages + consumerDepth + frameIngest.getFrameBus().getMaxHeldFrames(),
+                    width, height, config);
+            framePool = pool;
+        }
+
+        return pool;
+    }
+
+    // Any thread, when the last reference to a frame goes.
+    private void recycleFrame(Frame<Bitmap> frame) {
+        BitmapPool pool = framePool;
+        if (pool != null) {
+            pool.release(frame);
+        } else {
+            frame.get().recycle();
+        }
+    }
+
+    // YUV frames are not measured.
+    private void copyImageToBitmap(Image image, int width, int height, Bitmap bitmap) {
+        Image.Plane[] planes = image.getPlanes();
+        if (image.getFormat() != PixelFormatNegotiator.FORMAT_YUV_420_888) {
+            // RGBA_8888 and RGB_565 have the byte layout of the matching Bitmap.Config
+            copyPlaneToBitmap(planes[0], width, height, image.getTimestamp(), bitmap);
+            return;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer buffer = planes[i].getBuffer();
+            buffer.rewind();
+            if (yuvPlanes[i] == null || yuvPlanes[i].length < buffer.remaining()) {
+                yuvPlanes[i] = new byte[buffer.remaining()];
+            }
+            buffer.get(yuvPlanes[i], 0, buffer.remaining());
+        }
+        if (argbFrame == null || argbFrame.length < width * height) {
+            argbFrame = new int[width * height];
+        }
+
+        PixelConverter.yuv420ToArgb(yuvPlanes[0], planes[0].getRowStride(),
+                yuvPlanes[1], yuvPlanes[2], planes[1].getRowStride(), planes[1].getPixelStride(),
+                width, height, argbFrame, width);
+        bitmap.setPixels(argbFrame, 0, width, 0, 0, width, height);
+    }
+
+    private void copyPlaneToBitmap(Image.Plane plane, int width, int height, long timestampNanos, Bitmap bitmap) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        buffer.rewind();
+        if (FrameCopier.isTightlyPacked(width, rowStride, pixelStride)) {
+            // no copy of ours to measure in: only the sampled rows are read
+            frameIngest.copy(buffer, width, height, rowStride, pixelStride, timestampNanos, null);
+            bitmap.copyPixelsFromBuffer(buffer);
+        } else {
+            packedFrameBuffer = FrameCopier.ensureCapacity(packedFrameBuffer,
+                    FrameCopier.packedSize(width, height, pixelStride));
+            frameIngest.copy(buffer, width, height, rowStride, pixelStride, timestampNanos, packedFrameBuffer);
+            bitmap.copyPixelsFromBuffer(packedFrameBuffer);
+        }
+    }
+
+    @MainThread
+    private void deliverCapturedImage() {
+        long nowNanos = System.nanoTime();
+        metrics.recordStage(CaptureMetrics.STAGE_HANDLER_DELAY, nowNanos - deliverPostedNanos);
+
+        Frame<Bitmap> frame = frameIngest.take(nowNanos);
+        if (frame != null) {
+            boolean hasStats = frameIngest.takeStats(deliveredStats);
+
+            Frame<Bitmap> oldFrame = capturedFrame;
+            capturedFrame = frame;
+            if (oldFrame != null) {
+                oldFrame.release();
+            }
+
+            setImageAvailable(true);
+
+            if (hasStats) {
+                for (Callback callback : callbacks) {
+                    callback.onFrameStats(deliveredStats);
+                }
+            }
+        }
+    }
+
+
+    // SnapshotExporter.Callback
+    private final SnapshotExporter.Callback snapshotReleaseCallback = new SnapshotExporter.Callback() {
+
+        @Override
+        public void onSnapshotCompleted(File file) {
+            onSnapshotFinished();
+        }
+
+        @Override
+        public void onSnapshotFailed(Exception e) {
+            onSnapshotFinished();
+        }
+    };
 
     // MediaProjection.Callback
     {
@@ -267,7 +988,7 @@ public class ScreenCaptureManager {
 
             @Override
             public void onStop() {
-                Log.d(TAG, "MediaProjection.Callback: onStop");
+                MyLog.d(TAG, "MediaProjection.Callback: onStop");
                 super.onStop();
 
                 MyExecutor.postMainHandler(() -> stopScreenCapture());
@@ -275,13 +996,17 @@ public class ScreenCaptureManager {
 
             @Override
             public void onCapturedContentResize(int width, int height) {
-                Log.d(TAG, "MediaProjection.Callback: onCapturedContentResize");
+                MyLog.d(TAG, "MediaProjection.Callback: onCapturedContentResize");
                 super.onCapturedContentResize(width, height);
+
+                // keep the scale, follow the content
+                MyExecutor.postScreenCaptureHandler(() ->
+                        resizeScreenCaptureInner(width, height, captureScaleFactor));
             }
 
             @Override
             public void onCapturedContentVisibilityChanged(boolean isVisible) {
-                Log.d(TAG, "MediaProjection.Callback: onCapturedContentVisibilityChanged");
+                MyLog.d(TAG, "MediaProjection.Callback: onCapturedContentVisibilityChanged");
                 super.onCapturedContentVisibilityChanged(isVisible);
             }
         };
@@ -293,19 +1018,19 @@ public class ScreenCaptureManager {
 
             @Override
             public void onPaused() {
-                Log.d(TAG, "VirtualDisplay.Callback: onPaused");
+                MyLog.d(TAG, "VirtualDisplay.Callback: onPaused");
                 super.onPaused();
             }
 
             @Override
             public void onResumed() {
-                Log.d(TAG, "VirtualDisplay.Callback: onResumed");
+                MyLog.d(TAG, "VirtualDisplay.Callback: onResumed");
                 super.onResumed();
             }
 
             @Override
             public void onStopped() {
-                Log.d(TAG, "VirtualDisplay.Callback: onStopped");
+                MyLog.d(TAG, "VirtualDisplay.Callback: onStopped");
                 super.onStopped();
             }
         };
@@ -313,21 +1038,107 @@ public class ScreenCaptureManager {
 
     // ImageReader.OnImageAvailableListener
     public void onImageAvailable(ImageReader reader) {
-        Log.d(TAG, "ImageReader.OnImageAvailableListener: onImageAvailable");
-
-        Image image = reader.acquireLatestImage();
-        if (image != null) {
-            Image.Plane[] planes = image.getPlanes();
-            Image.Plane plane = planes[0];
-            Bitmap bitmap = Bitmap.createBitmap(
-                    plane.getRowStride() / plane.getPixelStride(),
-                    captureHeight,
-                    Bitmap.Config.ARGB_8888);
-            MyExecutor.postMainHandler(() -> capturedImage = bitmap);
+        if (MyLog.V) {
+            MyLog.v(TAG, "ImageReader.OnImageAvailableListener: onImageAvailable");
+        }
+
+        if (reader != imageReader) {
+            // queued before a resize swapped the reader out
+            return;
+        }
+
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // every buffer is still held downstream; the producer is stalled until one comes back
+            metrics.onBufferStarved();
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        long acquireNanos = System.nanoTime();
+        if (frameTrace.sample()) {
+            MyLog.trace(TAG, "onImageAvailable: frame age(us)=", (acquireNanos - image.getTimestamp()) / 1000);
+        }
+
+        if (!frameIngest.admit(SystemClock.elapsedRealtimeNanos())) {
+            image.close();
+            return;
+        }
 
+        // for YUV only luma is compared
+        Image.Plane plane = image.getPlanes()[0];
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (frameIngest.isUnchanged(plane.getBuffer(), width, height, plane.getRowStride(), plane.getPixelStride())) {
             image.close();
+            return;
+        }
+
+        Bitmap.Config config = image.getFormat() == PixelFormatNegotiator.FORMAT_RGB_565
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        BitmapPool pool = obtainFramePool(width, height, config);
+        Frame<Bitmap> frame = frameIngest.open(pool.acquire(), image.getTimestamp(), width, height, frameRecycler);
+        long copyStartNanos = System.nanoTime();
+        copyImageToBitmap(image, width, height, frame.get());
+        long copyEndNanos = System.nanoTime();
+        image.close();
+
+        if (scaleController != null) {
+            updateAdaptiveScale(copyEndNanos - acquireNanos, copyEndNanos);
         }
 
-        MyExecutor.postMainHandler(() -> setImageAvailable(true));
+        if (frameIngest.publish(frame, acquireNanos, copyStartNanos, copyEndNanos)) {
+            deliverPostedNanos = System.nanoTime();
+            MyExecutor.postMainHandlerCoalesced(deliverCapturedImageRunnable);
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class BitmapPool
+    //--------------------------------------------------
+
+    private static class BitmapPool extends FramePool<Frame<Bitmap>> {
+        private final int width;
+        private final int height;
+        private final Bitmap.Config config;
+
+        BitmapPool(int capacity, int width, int height, Bitmap.Config config) {
+            super(capacity, new Factory<Frame<Bitmap>>() {
+
+                @Override
+                public Frame<Bitmap> create() {
+                    return new Frame<>(Bitmap.createBitmap(width, height, config));
+                }
+
+                @Override
+                public void destroy(Frame<Bitmap> item) {
+                    item.get().recycle();
+                }
+            });
+
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        boolean matches(int width, int height, Bitmap.Config config) {
+            return this.width == width && this.height == height && this.config == config;
+        }
+
+        // Frames captured before a resize may come back after the pool has been replaced.
+        @Override
+        public void release(Frame<Bitmap> item) {
+            Bitmap bitmap = item != null ? item.get() : null;
+            if (bitmap != null && !matches(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())) {
+                bitmap.recycle();
+                return;
+            }
+
+            super.release(item);
+        }
     }
 }
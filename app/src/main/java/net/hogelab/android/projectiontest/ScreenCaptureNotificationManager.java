@@ -5,9 +5,15 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.util.Log;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
 
+import androidx.annotation.MainThread;
 import androidx.core.app.NotificationCompat;
 
 public class ScreenCaptureNotificationManager {
@@ -15,6 +21,9 @@ public class ScreenCaptureNotificationManager {
 
     private static final String NOTIFICATION_CHANNEL_ID = "screen_capturing_status_notification";
 
+    // the system drops updates past a few per second anyway; each carries the thumbnail
+    private static final long MIN_UPDATE_INTERVAL_MS = 1000;
+
 
     //--------------------------------------------------
     // singleton
@@ -39,13 +48,32 @@ public class ScreenCaptureNotificationManager {
 
     private final NotificationManager notificationManager;
 
+    // built once; notifications differ only in their large icon and time
+    private NotificationCompat.Builder builder;
+    private PendingIntent settingsIntent;
+    private PendingIntent snapshotIntent;
+
+    // reused for every update, sized for the large icon slot
+    private Bitmap thumbnail;
+    private Canvas thumbnailCanvas;
+    private final Paint thumbnailPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect sourceRect = new Rect();
+    private final Rect thumbnailRect = new Rect();
+
+    private int pendingUpdateId;
+    private boolean updatePending;
+    private long lastUpdateMillis;
+    private Context updateContext;
+
+    private final Runnable updateRunnable = this::postUpdate;
+
 
     //--------------------------------------------------
     // constructor
     //--------------------------------------------------
 
     private ScreenCaptureNotificationManager(Context context) {
-        Log.d(TAG, "constructor");
+        MyLog.d(TAG, "constructor");
 
         notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
     }
@@ -56,7 +84,7 @@ public class ScreenCaptureNotificationManager {
     //--------------------------------------------------
 
     public void createNotificationChannel(Context context) {
-        Log.d(TAG, "createNotificationChannel");
+        MyLog.d(TAG, "createNotificationChannel");
 
         NotificationChannel channel = new NotificationChannel(
                 NOTIFICATION_CHANNEL_ID,
@@ -66,18 +94,24 @@ public class ScreenCaptureNotificationManager {
         notificationManager.createNotificationChannel(channel);
     }
 
+    @MainThread
     public Notification createNotification(Context context) {
-        Log.d(TAG, "createNotification");
+        MyLog.d(TAG, "createNotification");
 
         return createNotificationInner(context)
+                .setLargeIcon((Bitmap) null)
+                .setWhen(System.currentTimeMillis())
                 .build();
     }
 
+    // Passes the bitmap through as is; prefer updateNotification() for captured frames.
+    @MainThread
     public Notification createNotification(Context context, Bitmap largeIcon) {
-        Log.d(TAG, "createNotification");
+        MyLog.d(TAG, "createNotification");
 
         return createNotificationInner(context)
                 .setLargeIcon(largeIcon)
+                .setWhen(System.currentTimeMillis())
                 .build();
     }
 
@@ -85,36 +119,121 @@ public class ScreenCaptureNotificationManager {
         notificationManager.notify(id, notification);
     }
 
+    // Shows image, scaled down to a thumbnail, as the notification's large icon. Updates
+    // closer together than MIN_UPDATE_INTERVAL_MS are coalesced into one carrying the latest
+    // image. image is not kept.
+    @MainThread
+    public void updateNotification(Context context, int id, Bitmap image) {
+        MyLog.d(TAG, "updateNotification");
+
+        drawThumbnail(context, image);
+
+        pendingUpdateId = id;
+        updateContext = context.getApplicationContext();
+        if (updatePending) {
+            return;
+        }
+
+        long delayMillis = lastUpdateMillis + MIN_UPDATE_INTERVAL_MS - SystemClock.uptimeMillis();
+        if (delayMillis <= 0) {
+            postUpdate();
+        } else {
+            updatePending = true;
+            MyExecutor.getMainHandler().postDelayed(updateRunnable, delayMillis);
+        }
+    }
+
+    // Drops a coalesced update that has not been posted yet, e.g. when the notification is
+    // about to go away.
+    @MainThread
+    public void cancelPendingUpdate() {
+        MyLog.d(TAG, "cancelPendingUpdate");
+
+        if (updatePending) {
+            updatePending = false;
+            MyExecutor.getMainHandler().removeCallbacks(updateRunnable);
+        }
+    }
+
 
     //--------------------------------------------------
     // private functions
     //--------------------------------------------------
 
+    @MainThread
     public NotificationCompat.Builder createNotificationInner(Context context) {
-        Log.d(TAG, "createNotificationInner");
+        if (builder != null) {
+            return builder;
+        }
+
+        MyLog.d(TAG, "createNotificationInner");
 
-        PendingIntent settingsIntent = PendingIntent.getActivity(
-                context,
+        // the builder outlives whichever component asked first
+        Context appContext = context.getApplicationContext();
+
+        settingsIntent = PendingIntent.getActivity(
+                appContext,
                 0,
-                MainActivity.createSettingIntent(context),
+                MainActivity.createSettingIntent(appContext),
                 PendingIntent.FLAG_MUTABLE);
 
-        PendingIntent snapShotIntent = PendingIntent.getService(
-                context,
+        snapshotIntent = PendingIntent.getService(
+                appContext,
                 0,
-                ScreenCaptureService.createSnapshotIntent(context),
+                ScreenCaptureService.createSnapshotIntent(appContext),
                 PendingIntent.FLAG_MUTABLE);
 
-        return new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL_ID)
+        builder = new NotificationCompat.Builder(appContext, NOTIFICATION_CHANNEL_ID)
                 .setSmallIcon(R.drawable.ic_launcher_foreground)
-                .setWhen(System.currentTimeMillis())
-                .setContentTitle(context.getString(R.string.app_notification_title))
-                .setContentText(context.getString(R.string.app_notification_text))
+                .setOnlyAlertOnce(true)
+                .setContentTitle(appContext.getString(R.string.app_notification_title))
+                .setContentText(appContext.getString(R.string.app_notification_text))
                 .addAction(R.drawable.baseline_settings_24,
-                        context.getString(R.string.app_notification_button_settings),
+                        appContext.getString(R.string.app_notification_button_settings),
                         settingsIntent)
                 .addAction(R.drawable.baseline_camera_alt_24,
-                        context.getString(R.string.app_notification_button_do_snapshot),
-                        snapShotIntent);
+                        appContext.getString(R.string.app_notification_button_do_snapshot),
+                        snapshotIntent);
+        return builder;
+    }
+
+    @MainThread
+    private void postUpdate() {
+        updatePending = false;
+        lastUpdateMillis = SystemClock.uptimeMillis();
+
+        notify(pendingUpdateId, createNotificationInner(updateContext)
+                .setLargeIcon(thumbnail)
+                .setWhen(System.currentTimeMillis())
+                .build());
+    }
+
+    // Fits the image into the thumbnail, keeping its aspect ratio. A pending update picks up
+    // the new content, so the thumbnail is only ever written on the main thread.
+    @MainThread
+    private void drawThumbnail(Context context, Bitmap image) {
+        if (thumbnail == null) {
+            Resources resources = context.getResources();
+            int width = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+            int height = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+            thumbnail = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            thumbnailCanvas = new Canvas(thumbnail);
+        }
+
+        int width = thumbnail.getWidth();
+        int height = thumbnail.getHeight();
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        if (imageWidth * height > imageHeight * width) {
+            int scaledHeight = Math.max(1, imageHeight * width / imageWidth);
+            thumbnailRect.set(0, (height - scaledHeight) / 2, width, (height + scaledHeight) / 2);
+        } else {
+            int scaledWidth = Math.max(1, imageWidth * height / imageHeight);
+            thumbnailRect.set((width - scaledWidth) / 2, 0, (width + scaledWidth) / 2, height);
+        }
+        sourceRect.set(0, 0, imageWidth, imageHeight);
+
+        thumbnail.eraseColor(Color.TRANSPARENT);
+        thumbnailCanvas.drawBitmap(image, sourceRect, thumbnailRect, thumbnailPaint);
     }
 }
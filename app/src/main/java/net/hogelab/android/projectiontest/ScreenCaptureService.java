@@ -5,12 +5,14 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.os.Build;
 import android.os.IBinder;
-import android.util.Log;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.Nullable;
 
+import net.hogelab.android.projectiontest.capture.FrameAnalyzer;
+
 
 //--------------------------------------------------
 // class MainService
@@ -29,6 +31,16 @@ public class ScreenCaptureService extends Service {
     public static final String EXTRA_WIDTH = "extra_width";
     public static final String EXTRA_HEIGHT = "extra_height";
     public static final String EXTRA_DENSITY_DPI = "extra_density_dpi";
+    public static final String EXTRA_STREAMING_PORT = "extra_streaming_port";
+    public static final String EXTRA_DELTA_STREAMING_PORT = "extra_delta_streaming_port";
+    public static final String EXTRA_JOURNALING = "extra_journaling";
+
+    public static final int STREAMING_DISABLED = 0;
+
+    // luma range of a blank screen: black, white or a splash, with some dithering
+    private static final int BLANK_LUMA_RANGE = 8;
+    // more than this much of the screen changed at once: a new screen, not an update
+    private static final float SCREEN_CHANGE_FRACTION = 0.6f;
 
 
     //--------------------------------------------------
@@ -37,7 +49,7 @@ public class ScreenCaptureService extends Service {
 
     @MainThread
     public static Intent createSnapshotIntent(Context context) {
-        Log.d(TAG, "createSnapshotIntent");
+        MyLog.d(TAG, "createSnapshotIntent");
 
         Intent intent = new Intent(context, ScreenCaptureService.class);
         intent.setAction(ACTION_DO_SNAPSHOT);
@@ -48,7 +60,18 @@ public class ScreenCaptureService extends Service {
     @MainThread
     public static void startService(Context context, int resultCode, Intent resultData,
                                     int width, int height, int densityDpi) {
-        Log.d(TAG, "startService");
+        startService(context, resultCode, resultData, width, height, densityDpi,
+                STREAMING_DISABLED, STREAMING_DISABLED, false);
+    }
+
+    // A streamingPort other than STREAMING_DISABLED also serves the capture as MJPEG over HTTP
+    // on that port (see ScreenStreamer), a deltaStreamingPort as a delta stream (DeltaStreamer).
+    // journaling keeps a history of the capture on disk (FrameJournaler).
+    @MainThread
+    public static void startService(Context context, int resultCode, Intent resultData,
+                                    int width, int height, int densityDpi,
+                                    int streamingPort, int deltaStreamingPort, boolean journaling) {
+        MyLog.d(TAG, "startService");
 
         Intent intent = new Intent(context, ScreenCaptureService.class);
         intent.setAction(ACTION_START);
@@ -57,12 +80,15 @@ public class ScreenCaptureService extends Service {
         intent.putExtra(EXTRA_WIDTH, width);
         intent.putExtra(EXTRA_HEIGHT, height);
         intent.putExtra(EXTRA_DENSITY_DPI, densityDpi);
+        intent.putExtra(EXTRA_STREAMING_PORT, streamingPort);
+        intent.putExtra(EXTRA_DELTA_STREAMING_PORT, deltaStreamingPort);
+        intent.putExtra(EXTRA_JOURNALING, journaling);
         context.startForegroundService(intent);
     }
 
     @MainThread
     public static void stopService(Context context) {
-        Log.d(TAG, "stopService");
+        MyLog.d(TAG, "stopService");
 
         Intent intent = new Intent(context, ScreenCaptureService.class);
         intent.setAction(ACTION_STOP);
@@ -76,6 +102,13 @@ public class ScreenCaptureService extends Service {
 
     private final ScreenCaptureManager.Callback screenCaptureCallback;
 
+    private ScreenStreamer screenStreamer;
+    private DeltaStreamer deltaStreamer;
+    private FrameJournaler frameJournaler;
+    // other apps bind for frames in shared memory; null before API 27
+    private RemoteFrameServer remoteFrameServer;
+    private boolean isScreenBlank;
+
 
     //--------------------------------------------------
     // override functions
@@ -85,23 +118,29 @@ public class ScreenCaptureService extends Service {
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        Log.d(TAG, "onBind");
-        throw new UnsupportedOperationException("Not implemented.");
+        MyLog.d(TAG, "onBind");
+
+        // see RemoteFrameServer for the protocol
+        return remoteFrameServer != null ? remoteFrameServer.getBinder() : null;
     }
 
     @MainThread
     @Override
     public void onCreate() {
-        Log.d(TAG, "onCreate");
+        MyLog.d(TAG, "onCreate");
         super.onCreate();
 
         ScreenCaptureManager.getInstance().addCallback(screenCaptureCallback);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            remoteFrameServer = new RemoteFrameServer(this);
+        }
     }
 
     @MainThread
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "onStartCommand");
+        MyLog.d(TAG, "onStartCommand");
 
         String action = intent.getAction();
         if (action != null) {
@@ -127,9 +166,16 @@ public class ScreenCaptureService extends Service {
     @MainThread
     @Override
     public void onDestroy() {
-        Log.d(TAG, "onDestroy");
+        MyLog.d(TAG, "onDestroy");
         super.onDestroy();
 
+        ScreenCaptureNotificationManager.getInstance().cancelPendingUpdate();
+        stopStreaming();
+        stopJournaling();
+        if (remoteFrameServer != null) {
+            remoteFrameServer.release();
+            remoteFrameServer = null;
+        }
         ScreenCaptureManager.getInstance().removeCallback(screenCaptureCallback);
     }
 
@@ -148,12 +194,24 @@ public class ScreenCaptureService extends Service {
         int width = intent.getIntExtra(EXTRA_WIDTH, 0);
         int height = intent.getIntExtra(EXTRA_HEIGHT, 0);
         int densityDpi = intent.getIntExtra(EXTRA_DENSITY_DPI, 0);
+        int streamingPort = intent.getIntExtra(EXTRA_STREAMING_PORT, STREAMING_DISABLED);
+        int deltaStreamingPort = intent.getIntExtra(EXTRA_DELTA_STREAMING_PORT, STREAMING_DISABLED);
+        boolean journaling = intent.getBooleanExtra(EXTRA_JOURNALING, false);
+        // the streamers subscribe to the frame bus, so before the session sizes its frame pool
+        startStreaming(streamingPort, deltaStreamingPort);
+        if (journaling) {
+            startJournaling();
+        }
         ScreenCaptureManager.getInstance().startScreenCapture(
                 resultCode, intent, width, height, densityDpi);
     }
 
     @MainThread
     private void onCommandActionStop() {
+        // a coalesced thumbnail update must not bring the notification back
+        ScreenCaptureNotificationManager.getInstance().cancelPendingUpdate();
+        stopStreaming();
+        stopJournaling();
         ScreenCaptureManager.getInstance().stopScreenCapture();
 
         stopForeground(true);
@@ -162,23 +220,94 @@ public class ScreenCaptureService extends Service {
 
     @MainThread
     private void onCommandActionDoSnapshot() {
-        Log.d(TAG, "ACTION_DO_SNAPSHOT");
+        MyLog.d(TAG, "ACTION_DO_SNAPSHOT");
+
+        if (ScreenCaptureManager.getInstance().getCaptureMode()
+                == ScreenCaptureManager.CAPTURE_MODE_REPLAY) {
+            ScreenCaptureManager.getInstance().saveReplay();
+            return;
+        }
 
-        Bitmap bitmap = ScreenCaptureManager.getInstance().getCapturedImage();
+        ScreenCaptureManager.getInstance().doSnapshot();
+
+        // the captured image as it is only for RGB_565
+        Bitmap bitmap = ScreenCaptureManager.getInstance().getThumbnailImage();
+        if (bitmap == null) {
+            bitmap = ScreenCaptureManager.getInstance().getCapturedImage();
+        }
         if (bitmap != null) {
-            Notification notification = ScreenCaptureNotificationManager.getInstance()
-                    .createNotification(this, bitmap);
-            ScreenCaptureNotificationManager.getInstance().notify(SERVICE_ID, notification);
+            ScreenCaptureNotificationManager.getInstance().updateNotification(this, SERVICE_ID, bitmap);
+        }
+    }
+
+
+    @MainThread
+    private void startStreaming(int port, int deltaPort) {
+        if (port != STREAMING_DISABLED) {
+            if (screenStreamer == null) {
+                screenStreamer = new ScreenStreamer();
+            }
+            screenStreamer.start(port);
+        }
+
+        if (deltaPort != STREAMING_DISABLED) {
+            if (deltaStreamer == null) {
+                deltaStreamer = new DeltaStreamer();
+            }
+            deltaStreamer.start(deltaPort);
+        }
+    }
+
+    @MainThread
+    private void stopStreaming() {
+        if (screenStreamer != null) {
+            screenStreamer.stop();
+        }
+        if (deltaStreamer != null) {
+            deltaStreamer.stop();
+        }
+    }
+
+    @MainThread
+    private void startJournaling() {
+        if (frameJournaler == null) {
+            frameJournaler = new FrameJournaler(this);
+        }
+        frameJournaler.start();
+    }
+
+    @MainThread
+    private void stopJournaling() {
+        if (frameJournaler != null) {
+            frameJournaler.stop();
         }
     }
 
 
     public void onCapturingChanged(boolean isCapturing) {
-        Log.d(TAG, "onCapturingChanged: " + isCapturing);
+        MyLog.d(TAG, "onCapturingChanged: ", isCapturing);
+
+        if (remoteFrameServer != null) {
+            remoteFrameServer.onCapturingChanged(isCapturing);
+        }
     }
 
     public void onImageAvailableChanged(boolean isImageAvailable) {
-        Log.d(TAG, "onImageAvailableChanged: " + isImageAvailable);
+        MyLog.d(TAG, "onImageAvailableChanged: ", isImageAvailable);
+    }
+
+    public void onFrameStats(FrameAnalyzer.Stats stats) {
+        boolean blank = stats.isUniform(BLANK_LUMA_RANGE);
+        if (blank != isScreenBlank) {
+            isScreenBlank = blank;
+            if (MyLog.D) {
+                MyLog.d(TAG, "onFrameStats: blank=" + blank + " luma=" + stats.getMeanLuma());
+            }
+        } else if (MyLog.D && stats.isComparedToPrevious()
+                && stats.getChangedFraction() > SCREEN_CHANGE_FRACTION) {
+            MyLog.d(TAG, "onFrameStats: screen changed=" + stats.getChangedFraction()
+                    + " edges=" + stats.getEdgeDensity());
+        }
     }
 
 
@@ -195,6 +324,11 @@ public class ScreenCaptureService extends Service {
             public void onImageAvailableChanged(boolean isImageAvailable) {
                 ScreenCaptureService.this.onImageAvailableChanged(isImageAvailable);
             }
+
+            @Override
+            public void onFrameStats(FrameAnalyzer.Stats stats) {
+                ScreenCaptureService.this.onFrameStats(stats);
+            }
         };
     }
 }
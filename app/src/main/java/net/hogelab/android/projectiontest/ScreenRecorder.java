@@ -0,0 +1,300 @@
+package net.hogelab.android.projectiontest;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Handler;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import net.hogelab.android.projectiontest.capture.CaptureMetrics;
+import net.hogelab.android.projectiontest.capture.EncodedStreamSink;
+import net.hogelab.android.projectiontest.capture.SegmentedRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+
+//--------------------------------------------------
+// class ScreenRecorder
+//--------------------------------------------------
+
+// Hardware video encoder fed through its input Surface, so pixels never pass through the CPU.
+// Encoded output is handed to an EncodedStreamSink on a serial executor.
+public class ScreenRecorder {
+    private static final String TAG = ScreenRecorder.class.getSimpleName();
+
+    public static final String MIME_TYPE_AVC = MediaFormat.MIMETYPE_VIDEO_AVC;
+    public static final String MIME_TYPE_HEVC = MediaFormat.MIMETYPE_VIDEO_HEVC;
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    // Writers for <directory>/<prefix>_<timestamp>_<index>.mp4
+    public static SegmentedRecorder.SegmentWriterFactory<MediaFormat> createSegmentWriterFactory(
+            File directory, String prefix) {
+        String baseName = prefix + "_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+
+        return (segmentIndex, format) -> new MediaMuxerSegmentWriter(
+                new File(directory, String.format(Locale.US, "%s_%03d.mp4", baseName, segmentIndex)),
+                format);
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final String mimeType;
+    private final int width;
+    private final int height;
+    private final int bitRate;
+    private final int frameRate;
+    private final int keyFrameIntervalSeconds;
+
+    private final Executor outputExecutor;
+    private final EncodedStreamSink<MediaFormat> sink;
+
+    // guarded by this; finish() runs once, from an error or from the end of stream
+    private MediaCodec codec;
+    private boolean finished;
+    private Surface inputSurface;
+
+    private CaptureMetrics metrics;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    // outputExecutor must run tasks one at a time in order, e.g. a SerialExecutor.
+    public ScreenRecorder(String mimeType, int width, int height,
+                          int bitRate, int frameRate, int keyFrameIntervalSeconds,
+                          Executor outputExecutor, EncodedStreamSink<MediaFormat> sink) {
+        if (MyLog.D) {
+            MyLog.d(TAG, "constructor: " + mimeType + " " + width + "x" + height
+                    + " " + bitRate + "bps " + frameRate + "fps");
+        }
+
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.keyFrameIntervalSeconds = keyFrameIntervalSeconds;
+
+        this.outputExecutor = outputExecutor;
+        this.sink = sink;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Encode latency and encoded frame counts go to metrics; call before start().
+    public void setMetrics(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // Encoder events are delivered on callbackHandler; the sink runs on the output executor.
+    @NonNull
+    public Surface start(Handler callbackHandler) throws IOException {
+        MyLog.d(TAG, "start");
+
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSeconds);
+        // A virtual display only produces frames when the screen changes; keep the stream going.
+        format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1_000_000L / frameRate);
+
+        MediaCodec newCodec = MediaCodec.createEncoderByType(mimeType);
+        Surface newSurface = null;
+        try {
+            newCodec.setCallback(codecCallback, callbackHandler);
+            newCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            newSurface = newCodec.createInputSurface();
+            newCodec.start();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // a hardware codec instance is held until released
+            newCodec.release();
+            if (newSurface != null) {
+                newSurface.release();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            codec = newCodec;
+            inputSurface = newSurface;
+        }
+        return newSurface;
+    }
+
+    // The codec is released once the end of stream has reached the sink. Does nothing once the
+    // codec has failed and been released.
+    public synchronized void stop() {
+        MyLog.d(TAG, "stop");
+
+        // null once finished
+        if (codec != null) {
+            try {
+                codec.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                // in error; onError() finishes it
+                MyLog.e(TAG, "stop", e);
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void writeOutput(MediaCodec mediaCodec, int index,
+                             int offset, int size, long presentationTimeUs, int flags) {
+        synchronized (this) {
+            if (finished) {
+                // queued before an error finished the codec
+                return;
+            }
+        }
+
+        try {
+            if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && size > 0) {
+                ByteBuffer buffer = mediaCodec.getOutputBuffer(index);
+                buffer.limit(offset + size);
+                buffer.position(offset);
+                sink.onEncodedFrame(buffer, presentationTimeUs,
+                        (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            }
+            mediaCodec.releaseOutputBuffer(index, false);
+
+            if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                finish(mediaCodec);
+            }
+        } catch (IOException | IllegalStateException e) {
+            MyLog.e(TAG, "writeOutput", e);
+            finish(mediaCodec);
+        }
+    }
+
+    private void finish(MediaCodec mediaCodec) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            codec = null;
+        }
+        MyLog.d(TAG, "finish");
+
+        try {
+            sink.onEndOfStream();
+        } catch (IOException | IllegalStateException e) {
+            MyLog.e(TAG, "finish", e);
+        }
+
+        mediaCodec.release();
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+    }
+
+
+    // MediaCodec.Callback
+    private final MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int index) {
+            // input comes from the Surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int index,
+                                            @NonNull MediaCodec.BufferInfo info) {
+            int offset = info.offset;
+            int size = info.size;
+            long presentationTimeUs = info.presentationTimeUs;
+            int flags = info.flags;
+            // surface input is stamped with the frame's System.nanoTime() base
+            if (metrics != null && size > 0 && (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                metrics.onFrameDelivered();
+                metrics.recordStage(CaptureMetrics.STAGE_ENCODE,
+                        System.nanoTime() - presentationTimeUs * 1000);
+            }
+            outputExecutor.execute(() -> writeOutput(
+                    mediaCodec, index, offset, size, presentationTimeUs, flags));
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+            MyLog.e(TAG, "MediaCodec.Callback: onError", e);
+
+            outputExecutor.execute(() -> finish(mediaCodec));
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat format) {
+            MyLog.d(TAG, "MediaCodec.Callback: onOutputFormatChanged: ", format);
+
+            outputExecutor.execute(() -> {
+                try {
+                    sink.onOutputFormatChanged(format);
+                } catch (IOException | IllegalStateException e) {
+                    MyLog.e(TAG, "onOutputFormatChanged", e);
+                }
+            });
+        }
+    };
+
+
+    //--------------------------------------------------
+    // class MediaMuxerSegmentWriter
+    //--------------------------------------------------
+
+    private static class MediaMuxerSegmentWriter implements SegmentedRecorder.SegmentWriter {
+        private final MediaMuxer muxer;
+        private final int trackIndex;
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        MediaMuxerSegmentWriter(File file, MediaFormat format) throws IOException {
+            MyLog.d(TAG, "MediaMuxerSegmentWriter: ", file);
+
+            muxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            trackIndex = muxer.addTrack(format);
+            muxer.start();
+        }
+
+        @Override
+        public void writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame) {
+            bufferInfo.set(data.position(), data.remaining(), presentationTimeUs,
+                    keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(trackIndex, data, bufferInfo);
+        }
+
+        @Override
+        public void close() {
+            try {
+                muxer.stop();
+            } finally {
+                muxer.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package net.hogelab.android.projectiontest;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.MainThread;
+
+import net.hogelab.android.projectiontest.capture.Frame;
+import net.hogelab.android.projectiontest.capture.FrameBus;
+import net.hogelab.android.projectiontest.capture.MjpegServer;
+import net.hogelab.android.projectiontest.capture.WorkerExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+
+//--------------------------------------------------
+// class ScreenStreamer
+//--------------------------------------------------
+
+// Serves the live capture over HTTP as MJPEG (see MjpegServer for the endpoints). Frames come
+// from ScreenCaptureManager's frame bus and are JPEG encoded once on the export lane, and only
+// while someone is connected.
+public class ScreenStreamer {
+    private static final String TAG = ScreenStreamer.class.getSimpleName();
+
+    private static final int STREAM_MAX_FPS = 15;
+    private static final int JPEG_QUALITY = 70;
+    private static final int INITIAL_JPEG_BUFFER_SIZE = 256 * 1024;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final MjpegServer server;
+    private final Executor encodeExecutor;
+    private FrameBus.Subscription<Bitmap> subscription;
+
+    // guarded by this; bus deliveries and on-demand encodes can run on different workers
+    private final ByteArrayOutputStream jpegStream = new ByteArrayOutputStream(INITIAL_JPEG_BUFFER_SIZE);
+
+    private final FrameBus.Subscriber<Bitmap> frameSubscriber;
+    private final MjpegServer.Listener serverListener;
+    private final Runnable encodeCapturedFrameRunnable = this::encodeCapturedFrame;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public ScreenStreamer() {
+        server = new MjpegServer("mjpeg_server", serverListener);
+        encodeExecutor = MyExecutor.getWorkerExecutor(WorkerExecutor.LANE_EXPORT);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public boolean isRunning() {
+        return server.isRunning();
+    }
+
+    public int getClientCount() {
+        return server.getClientCount();
+    }
+
+    // Call before the capture session starts so the frame pool is sized for the subscription.
+    // Binds every interface, so the stream is reachable from the LAN as well.
+    @MainThread
+    public void start(int port) {
+        MyLog.d(TAG, "start: port=", port);
+
+        if (subscription != null) {
+            return;
+        }
+
+        try {
+            server.start(new InetSocketAddress(port));
+        } catch (IOException e) {
+            MyLog.e(TAG, "start: cannot listen on port " + port, e);
+            return;
+        }
+
+        subscription = ScreenCaptureManager.getInstance().subscribeFrames(frameSubscriber,
+                encodeExecutor, STREAM_MAX_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+    }
+
+    @MainThread
+    public void stop() {
+        MyLog.d(TAG, "stop");
+
+        if (subscription == null) {
+            return;
+        }
+
+        subscription.unsubscribe();
+        subscription = null;
+        server.stop();
+
+        MyLog.d(TAG, "stop: published=" + server.getPublishedFrameCount()
+                + " sent=" + server.getSentFrameCount()
+                + " dropped=" + server.getDroppedFrameCount());
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Export lane.
+    private void onFrame(Frame<Bitmap> frame) {
+        try {
+            if (server.isFrameWanted()) {
+                encode(frame.get());
+            } else {
+                // the screen moved on without anyone watching
+                server.clearFrame();
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    // Main thread. A client connected while nothing current was encoded; the screen may be
+    // static, so don't wait for the next captured frame.
+    @MainThread
+    private void encodeCapturedFrame() {
+        Frame<Bitmap> frame = ScreenCaptureManager.getInstance().acquireCapturedFrame();
+        if (frame == null) {
+            // nothing captured yet; the first frame off the bus will do
+            return;
+        }
+
+        try {
+            encodeExecutor.execute(() -> {
+                try {
+                    encode(frame.get());
+                } finally {
+                    frame.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            frame.release();
+        }
+    }
+
+    private synchronized void encode(Bitmap bitmap) {
+        jpegStream.reset();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpegStream)) {
+            MyLog.w(TAG, "encode: Bitmap.compress failed");
+            return;
+        }
+
+        // the server holds on to the bytes while clients write them, so they can't be reused
+        server.publish(jpegStream.toByteArray(), jpegStream.size());
+    }
+
+
+    // FrameBus.Subscriber and MjpegServer.Listener
+    {
+        frameSubscriber = this::onFrame;
+
+        serverListener = () -> MyExecutor.postMainHandler(encodeCapturedFrameRunnable);
+    }
+}
@@ -0,0 +1,217 @@
+package net.hogelab.android.projectiontest;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+
+//--------------------------------------------------
+// class SnapshotExporter
+//--------------------------------------------------
+
+// Encodes bitmaps on a background executor, streaming straight into the destination.
+// Only one file export runs at a time; requests made while it is running share its result.
+public class SnapshotExporter {
+    private static final String TAG = SnapshotExporter.class.getSimpleName();
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+
+    //--------------------------------------------------
+    // callback interface
+    //--------------------------------------------------
+
+    public interface Callback {
+        void onSnapshotCompleted(File file);
+        void onSnapshotFailed(Exception e);
+    }
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    public static void writeTo(Bitmap bitmap, OutputStream out,
+                               Bitmap.CompressFormat format, int quality) throws IOException {
+        if (!bitmap.compress(format, quality, out)) {
+            throw new IOException("Bitmap.compress failed: " + format);
+        }
+        out.flush();
+    }
+
+    public static String getFileExtension(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return "png";
+            case JPEG:
+                return "jpg";
+            default:
+                return "webp";
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final Executor executor;
+
+    private final List<Callback> callbacks = new ArrayList<>();
+    private FutureTask<File> activeTask;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public SnapshotExporter(Executor executor) {
+        this.executor = executor;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    @MainThread
+    public boolean isBusy() {
+        return activeTask != null;
+    }
+
+    // Adds callback to the file export in flight. Returns its future, or null when none is
+    // running.
+    @MainThread
+    @Nullable
+    public Future<File> join(@Nullable Callback callback) {
+        if (activeTask == null) {
+            return null;
+        }
+
+        if (callback != null) {
+            callbacks.add(callback);
+        }
+        return activeTask;
+    }
+
+    // Callbacks run on the main thread. While a file export is in flight the arguments are
+    // ignored and the request joins it, as join() does.
+    @MainThread
+    public Future<File> export(Bitmap bitmap, File file, Bitmap.CompressFormat format, int quality,
+                               @Nullable Callback callback) {
+        if (file == null) {
+            throw new IllegalArgumentException("file is null");
+        }
+
+        Future<File> running = join(callback);
+        if (running != null) {
+            MyLog.d(TAG, "export: coalesced");
+            return running;
+        }
+
+        MyLog.d(TAG, "export: ", file);
+
+        if (callback != null) {
+            callbacks.add(callback);
+        }
+        FutureTask<File> task = new FutureTask<File>(() -> {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), OUTPUT_BUFFER_SIZE)) {
+                writeTo(bitmap, out, format, quality);
+            }
+            return file;
+        }) {
+
+            @Override
+            protected void done() {
+                MyExecutor.postMainHandler(() -> onTaskDone(this));
+            }
+        };
+
+        activeTask = task;
+        submit(task);
+        return task;
+    }
+
+    // Encodes into out on the executor; out is flushed but left open, and the callback, on the
+    // main thread, gets a null file. Not coalesced, since every stream is its own destination.
+    // The bitmap must not change until the export is done.
+    @MainThread
+    public Future<File> export(Bitmap bitmap, OutputStream out, Bitmap.CompressFormat format, int quality,
+                               @Nullable Callback callback) {
+        MyLog.d(TAG, "export: stream");
+
+        FutureTask<File> task = new FutureTask<File>(() -> {
+            writeTo(bitmap, out, format, quality);
+            return null;
+        }) {
+
+            @Override
+            protected void done() {
+                if (callback != null) {
+                    MyExecutor.postMainHandler(() -> report(this, new Callback[] {callback}));
+                }
+            }
+        };
+
+        submit(task);
+        return task;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void submit(FutureTask<File> task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // reported to the callbacks through done() as a cancellation
+            task.cancel(false);
+        }
+    }
+
+    @MainThread
+    private void onTaskDone(FutureTask<File> task) {
+        activeTask = null;
+
+        Callback[] pending = callbacks.toArray(new Callback[0]);
+        callbacks.clear();
+
+        report(task, pending);
+    }
+
+    @MainThread
+    private static void report(FutureTask<File> task, Callback[] pending) {
+        try {
+            File file = task.get();
+            MyLog.d(TAG, "report: ", file);
+
+            for (Callback callback : pending) {
+                callback.onSnapshotCompleted(file);
+            }
+        } catch (ExecutionException | InterruptedException | CancellationException e) {
+            Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            MyLog.e(TAG, "report", cause);
+
+            for (Callback callback : pending) {
+                callback.onSnapshotFailed(cause);
+            }
+        }
+    }
+}
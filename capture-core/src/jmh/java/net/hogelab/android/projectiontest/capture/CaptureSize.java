@@ -0,0 +1,31 @@
+package net.hogelab.android.projectiontest.capture;
+
+
+//--------------------------------------------------
+// class CaptureSize
+//--------------------------------------------------
+
+// Capture sizes the benchmarks run at, as a scale of a 1080x2400 phone screen: 0.05 is a
+// thumbnail, 0.25 and 0.5 adaptive-scale steps, 1 a full-resolution capture.
+final class CaptureSize {
+
+    static final int SCREEN_WIDTH = 1080;
+    static final int SCREEN_HEIGHT = 2400;
+
+    private CaptureSize() {
+    }
+
+    // Even, since YUV chroma is subsampled by two.
+    static int width(float scale) {
+        return Math.round(SCREEN_WIDTH * scale) & ~1;
+    }
+
+    static int height(float scale) {
+        return Math.round(SCREEN_HEIGHT * scale) & ~1;
+    }
+
+    // ImageReader planes are usually padded to a 64-byte row alignment.
+    static int paddedRowStride(int width, int pixelStride) {
+        return (width * pixelStride + 63) & ~63;
+    }
+}
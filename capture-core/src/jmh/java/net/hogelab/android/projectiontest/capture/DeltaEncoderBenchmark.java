@@ -0,0 +1,81 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeltaEncoderBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.05", "0.25", "0.5", "1"})
+    public float scale;
+
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private int width;
+    private int height;
+    private ByteBuffer pixels;
+    private boolean[] typingTiles;
+    private DeltaEncoder encoder;
+    private DeltaEncoder.Message message;
+    private int sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+
+        // screen-like: flat background with some gradients, which is what deflate sees in practice
+        pixels = ByteBuffer.allocateDirect(width * height * 4);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int band = y / 48 % 4;
+                pixels.putInt(band == 0 ? x * 0x010101 | 0xff : 0xf0f0f0ff);
+            }
+        }
+        pixels.flip();
+
+        int tileSize = TileDiffer.DEFAULT_TILE_SIZE;
+        int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+        // a line of typing: a few tiles in one row
+        typingTiles = new boolean[tileColumns * tileRows];
+        for (int i = 0; i < Math.min(4, tileColumns); i++) {
+            typingTiles[tileRows / 2 * tileColumns + i] = true;
+        }
+
+        encoder = new DeltaEncoder(tileSize, compress);
+        message = new DeltaEncoder.Message();
+    }
+
+    @Benchmark
+    public DeltaEncoder.Message encodeKeyframe() {
+        encoder.encode(pixels, width, height, width * 4, null, ++sequence, 0, message);
+        return message;
+    }
+
+    @Benchmark
+    public DeltaEncoder.Message encodeTypingDelta() {
+        encoder.encode(pixels, width, height, width * 4, typingTiles, ++sequence, 0, message);
+        return message;
+    }
+}
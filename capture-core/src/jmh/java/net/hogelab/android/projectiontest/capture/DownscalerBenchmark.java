@@ -0,0 +1,92 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownscalerBenchmark {
+
+    // source size, of 1080x2400, see CaptureSize
+    @Param({"0.5", "1"})
+    public float scale;
+
+    @Param({"BOX", "BILINEAR", "AREA"})
+    public Downscaler.Filter filter;
+
+    private int rowStride;
+    private ByteBuffer plane;
+    private byte[] array;
+    private Downscaler thumbnail;
+    private Downscaler medium;
+    private Downscaler both;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = CaptureSize.width(scale);
+        int height = CaptureSize.height(scale);
+        rowStride = CaptureSize.paddedRowStride(width, 4);
+
+        array = new byte[rowStride * height];
+        new Random(42).nextBytes(array);
+        plane = ByteBuffer.allocateDirect(array.length);
+        plane.put(array).clear();
+
+        // a notification thumbnail and a frame for analysis
+        int thumbnailWidth = CaptureSize.width(0.05f);
+        int thumbnailHeight = CaptureSize.height(0.05f);
+        int mediumWidth = CaptureSize.width(0.25f);
+        int mediumHeight = CaptureSize.height(0.25f);
+
+        thumbnail = new Downscaler(width, height);
+        thumbnail.addOutput(thumbnailWidth, thumbnailHeight, filter);
+        medium = new Downscaler(width, height);
+        medium.addOutput(mediumWidth, mediumHeight, filter);
+        both = new Downscaler(width, height);
+        both.addOutput(thumbnailWidth, thumbnailHeight, filter);
+        both.addOutput(mediumWidth, mediumHeight, filter);
+    }
+
+    @Benchmark
+    public Downscaler thumbnail() {
+        thumbnail.scale(plane, rowStride);
+        return thumbnail;
+    }
+
+    @Benchmark
+    public Downscaler medium() {
+        medium.scale(plane, rowStride);
+        return medium;
+    }
+
+    // Compare with thumbnail() + medium(): the source is read once.
+    @Benchmark
+    public Downscaler thumbnailAndMediumInOnePass() {
+        both.scale(plane, rowStride);
+        return both;
+    }
+
+    @Benchmark
+    public Downscaler thumbnailAndMediumFromArray() {
+        both.scale(array, 0, rowStride);
+        return both;
+    }
+}
@@ -0,0 +1,80 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameAnalyzerBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.25", "0.5", "1"})
+    public float scale;
+
+    // every pixel, or every sampleStep-th of every sampleStep-th row
+    @Param({"1", "2", "4"})
+    public int sampleStep;
+
+    private int width;
+    private int height;
+    private int rowStride;
+    private ByteBuffer src;
+    private ByteBuffer dst;
+    private FrameAnalyzer analyzer;
+    private final FrameAnalyzer.Stats stats = new FrameAnalyzer.Stats();
+    private long timestampNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+        rowStride = CaptureSize.paddedRowStride(width, 4);
+
+        byte[] bytes = new byte[rowStride * height];
+        new Random(42).nextBytes(bytes);
+        src = ByteBuffer.allocateDirect(bytes.length);
+        src.put(bytes).clear();
+        dst = FrameCopier.ensureCapacity(null, FrameCopier.packedSize(width, height, 4));
+        analyzer = new FrameAnalyzer(sampleStep);
+    }
+
+    // The baseline: the copy alone.
+    @Benchmark
+    public ByteBuffer copyOnly() {
+        FrameCopier.copy(src, width, height, rowStride, 4, dst);
+        return dst;
+    }
+
+    // Measured in the copy pass.
+    @Benchmark
+    public FrameAnalyzer.Stats copyAndAnalyze() {
+        analyzer.copy(src, width, height, rowStride, 4, dst, timestampNanos++, stats);
+        return stats;
+    }
+
+    // Copied, then measured in a second pass over the packed frame.
+    @Benchmark
+    public FrameAnalyzer.Stats copyThenAnalyze() {
+        FrameCopier.copy(src, width, height, rowStride, 4, dst);
+        analyzer.copy(dst, width, height, width * 4, 4, null, timestampNanos++, stats);
+        return stats;
+    }
+}
@@ -0,0 +1,68 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCopierBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.05", "0.25", "0.5", "1"})
+    public float scale;
+
+    private int width;
+    private int height;
+    private int paddedRowStride;
+    private ByteBuffer padded;
+    private ByteBuffer packed;
+    private ByteBuffer dst;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+        paddedRowStride = CaptureSize.paddedRowStride(width, 4);
+
+        Random random = new Random(42);
+        byte[] bytes = new byte[paddedRowStride * height];
+        random.nextBytes(bytes);
+        padded = ByteBuffer.allocateDirect(bytes.length);
+        padded.put(bytes).clear();
+        packed = ByteBuffer.allocateDirect(FrameCopier.packedSize(width, height, 4));
+        packed.put(bytes, 0, packed.capacity()).clear();
+        dst = FrameCopier.ensureCapacity(null, FrameCopier.packedSize(width, height, 4));
+    }
+
+    // Row by row, skipping the padding.
+    @Benchmark
+    public ByteBuffer copyPaddedRows() {
+        FrameCopier.copy(padded, width, height, paddedRowStride, 4, dst);
+        return dst;
+    }
+
+    // One bulk copy.
+    @Benchmark
+    public ByteBuffer copyPacked() {
+        FrameCopier.copy(packed, width, height, width * 4, 4, dst);
+        return dst;
+    }
+}
@@ -0,0 +1,75 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramePoolBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.05", "0.25", "0.5", "1"})
+    public float scale;
+
+    private int width;
+    private int height;
+    private int bytes;
+    private long sequence;
+    private FramePool<Frame<ByteBuffer>> pool;
+    private Frame.Recycler<ByteBuffer> recycler;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+        bytes = width * height * 4;
+
+        pool = new FramePool<>(2, new FramePool.Factory<Frame<ByteBuffer>>() {
+
+            @Override
+            public Frame<ByteBuffer> create() {
+                return new Frame<>(ByteBuffer.allocateDirect(bytes));
+            }
+
+            @Override
+            public void destroy(Frame<ByteBuffer> item) {
+            }
+        });
+        recycler = pool::release;
+        pool.release(pool.acquire());
+    }
+
+    // The per-frame cost once the pool is warm; should not allocate at any size.
+    @Benchmark
+    public Frame<ByteBuffer> acquireShareRelease() {
+        Frame<ByteBuffer> frame = pool.acquire().open(sequence, ++sequence, width, height, recycler);
+        // one subscriber holding it alongside the capture thread
+        frame.retain();
+        frame.release();
+        frame.release();
+        return frame;
+    }
+
+    // What a miss costs: the baseline the pool saves on every frame.
+    @Benchmark
+    public ByteBuffer allocateHeap() {
+        return ByteBuffer.allocate(bytes);
+    }
+}
@@ -0,0 +1,111 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+public class HammingIndexBenchmark {
+
+    // a full index, evicting on every add
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    // 4 and below probe one bucket per table, up to 11 more, 12 and above scan
+    @Param({"0", "4", "8", "12"})
+    public int maxDistance;
+
+    private static final int QUERIES = 1024;
+    // near-identical frames per screen
+    private static final int CLUSTER = 64;
+
+    private HammingIndex index;
+    private HammingIndex.Matches matches;
+    private long[] hashes;
+    private long[] queries;
+    private int query;
+    private long value;
+
+    private static long flip(long hash, int bits, Random random) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        index = new HammingIndex(entries);
+        matches = new HammingIndex.Matches(CLUSTER * 4);
+        hashes = new long[entries];
+
+        long base = 0;
+        for (int i = 0; i < entries; i++) {
+            if (i % CLUSTER == 0) {
+                base = random.nextLong();
+            }
+            hashes[i] = flip(base, random.nextInt(4), random);
+            index.add(hashes[i], i);
+        }
+        value = entries;
+
+        queries = new long[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = flip(hashes[random.nextInt(entries)], 2, random);
+        }
+    }
+
+    private long nextQuery() {
+        query = (query + 1) & (QUERIES - 1);
+        return queries[query];
+    }
+
+    @Benchmark
+    public int search() {
+        return index.search(nextQuery(), maxDistance, matches);
+    }
+
+    // Duplicate suppression against everything remembered.
+    @Benchmark
+    public boolean containsWithin() {
+        return index.containsWithin(nextQuery(), maxDistance, entries);
+    }
+
+    // The baseline the index saves.
+    @Benchmark
+    public int linearScan() {
+        long hash = nextQuery();
+        int count = 0;
+        for (long candidate : hashes) {
+            if (Long.bitCount(candidate ^ hash) <= maxDistance) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Steady state: adds and evicts; should not allocate.
+    @Benchmark
+    public HammingIndex add() {
+        index.add(nextQuery(), value++);
+        return index;
+    }
+}
@@ -0,0 +1,58 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PerceptualHasherBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.25", "0.5", "1"})
+    public float scale;
+
+    @Param({"1", "2", "4"})
+    public int sampleStep;
+
+    private int width;
+    private int height;
+    private int rowStride;
+    private ByteBuffer plane;
+    private PerceptualHasher hasher;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+        rowStride = CaptureSize.paddedRowStride(width, 4);
+
+        byte[] array = new byte[rowStride * height];
+        new Random(42).nextBytes(array);
+        plane = ByteBuffer.allocateDirect(array.length);
+        plane.put(array).clear();
+        hasher = new PerceptualHasher(sampleStep);
+    }
+
+    @Benchmark
+    public long hash() {
+        return hasher.hash(plane, width, height, rowStride);
+    }
+}
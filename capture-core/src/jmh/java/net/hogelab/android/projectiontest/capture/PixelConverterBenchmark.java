@@ -0,0 +1,99 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelConverterBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.05", "0.25", "0.5", "1"})
+    public float scale;
+
+    private int width;
+    private int height;
+    private int rgbaRowStride;
+    private byte[] rgba;
+    private byte[] gray;
+    private short[] rgb565;
+
+    private int yRowStride;
+    private int uvRowStride;
+    private byte[] y;
+    private byte[] u;
+    private byte[] v;
+    private byte[] uSemiPlanar;
+    private byte[] vSemiPlanar;
+    private int[] argb;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+        rgbaRowStride = CaptureSize.paddedRowStride(width, 4);
+        yRowStride = CaptureSize.paddedRowStride(width, 1);
+        uvRowStride = yRowStride;
+
+        Random random = new Random(42);
+        rgba = new byte[rgbaRowStride * height];
+        random.nextBytes(rgba);
+        gray = new byte[width * height];
+        rgb565 = new short[width * height];
+
+        y = new byte[yRowStride * height];
+        random.nextBytes(y);
+        u = new byte[uvRowStride / 2 * (height / 2)];
+        v = new byte[u.length];
+        random.nextBytes(u);
+        random.nextBytes(v);
+        // NV12-style interleaved chroma, the common YUV_420_888 layout
+        uSemiPlanar = new byte[uvRowStride * (height / 2)];
+        random.nextBytes(uSemiPlanar);
+        vSemiPlanar = new byte[uSemiPlanar.length];
+        System.arraycopy(uSemiPlanar, 1, vSemiPlanar, 0, uSemiPlanar.length - 1);
+        argb = new int[width * height];
+    }
+
+    @Benchmark
+    public int[] yuvPlanarToArgb() {
+        PixelConverter.yuv420ToArgb(y, yRowStride, u, v, uvRowStride / 2, 1, width, height, argb, width);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] yuvSemiPlanarToArgb() {
+        PixelConverter.yuv420ToArgb(y, yRowStride, uSemiPlanar, vSemiPlanar, uvRowStride, 2,
+                width, height, argb, width);
+        return argb;
+    }
+
+    @Benchmark
+    public byte[] rgbaToGray() {
+        PixelConverter.rgbaToGray(rgba, 0, rgbaRowStride, width, height, gray, width);
+        return gray;
+    }
+
+    @Benchmark
+    public short[] rgbaToRgb565() {
+        PixelConverter.rgbaToRgb565(rgba, 0, rgbaRowStride, width, height, rgb565, width);
+        return rgb565;
+    }
+}
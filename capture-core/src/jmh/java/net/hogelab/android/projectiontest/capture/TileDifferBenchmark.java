@@ -0,0 +1,82 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileDifferBenchmark {
+
+    // of 1080x2400, see CaptureSize
+    @Param({"0.05", "0.25", "0.5", "1"})
+    public float scale;
+
+    @Param({"16", "32", "64"})
+    public int tileSize;
+
+    private int width;
+    private int height;
+    private int rowStride;
+    private ByteBuffer plane;
+    private int[] pixels;
+    private TileDiffer bufferDiffer;
+    private TileDiffer arrayDiffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = CaptureSize.width(scale);
+        height = CaptureSize.height(scale);
+        rowStride = CaptureSize.paddedRowStride(width, 4);
+
+        Random random = new Random(42);
+        plane = ByteBuffer.allocateDirect(rowStride * height);
+        pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                plane.putInt(y * rowStride + x * 4, pixels[y * width + x]);
+            }
+        }
+
+        bufferDiffer = new TileDiffer(tileSize);
+        bufferDiffer.diff(plane, width, height, rowStride);
+        arrayDiffer = new TileDiffer(tileSize);
+        arrayDiffer.diff(pixels, width, height, width);
+    }
+
+    // The common case on a static screen: every tile is hashed, nothing is dirty.
+    @Benchmark
+    public FrameDiff diffUnchangedPlane() {
+        return bufferDiffer.diff(plane, width, height, rowStride);
+    }
+
+    @Benchmark
+    public FrameDiff diffUnchangedArray() {
+        return arrayDiffer.diff(pixels, width, height, width);
+    }
+
+    @Benchmark
+    public long hashTile() {
+        return TileHasher.hash(plane, 0, rowStride, tileSize, tileSize);
+    }
+}
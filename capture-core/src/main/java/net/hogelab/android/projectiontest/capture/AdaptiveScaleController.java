@@ -0,0 +1,128 @@
+package net.hogelab.android.projectiontest.capture;
+
+
+//--------------------------------------------------
+// class AdaptiveScaleController
+//--------------------------------------------------
+
+// Picks the capture scale factor from how long frames take to process and how close the
+// device is to thermal throttling. Processing cost grows with the area, i.e. the square of
+// the scale, so the step sizes and load thresholds are chosen so that one step up from a
+// lightly loaded state cannot land above the step-down threshold.
+// Called from the capture thread only.
+public class AdaptiveScaleController {
+
+    // fraction of the frame budget
+    private static final double HIGH_LOAD = 0.8;
+    private static final double LOW_LOAD = 0.4;
+
+    private static final float STEP_DOWN = 0.75f;
+    private static final float STEP_UP = 1.25f;
+
+    // PowerManager.getThermalHeadroom(): 1.0 is where severe throttling starts
+    private static final float THERMAL_HOT = 0.9f;
+    private static final float THERMAL_WARM = 0.75f;
+
+    private static final int MIN_SAMPLES = 15;
+    private static final double SMOOTHING = 0.1;
+    private static final long DOWN_COOLDOWN_NANOS = 1_000_000_000L;
+    private static final long UP_COOLDOWN_NANOS = 3_000_000_000L;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final float minScale;
+    private final float maxScale;
+    private final long frameBudgetNanos;
+
+    private float scale;
+    private double averageNanos;
+    private int sampleCount;
+    private long lastChangeNanos = Long.MIN_VALUE;
+    private float thermalHeadroom = Float.NaN;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public AdaptiveScaleController(float minScale, float maxScale, float initialScale, long frameBudgetNanos) {
+        if (minScale <= 0 || maxScale < minScale) {
+            throw new IllegalArgumentException("bad scale range: " + minScale + ".." + maxScale);
+        }
+        if (frameBudgetNanos <= 0) {
+            throw new IllegalArgumentException("frameBudgetNanos must be positive: " + frameBudgetNanos);
+        }
+
+        this.minScale = minScale;
+        this.maxScale = maxScale;
+        this.frameBudgetNanos = frameBudgetNanos;
+        scale = clamp(initialScale);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public float getScale() {
+        return scale;
+    }
+
+    public long getAverageProcessingNanos() {
+        return (long) averageNanos;
+    }
+
+    // NaN when the platform cannot tell.
+    public void onThermalHeadroom(float headroom) {
+        thermalHeadroom = headroom;
+    }
+
+    // Feeds one frame's processing time and returns the scale to use from now on.
+    public float onFrameProcessed(long processingNanos, long nowNanos) {
+        averageNanos = sampleCount == 0
+                ? processingNanos
+                : averageNanos + (processingNanos - averageNanos) * SMOOTHING;
+        sampleCount++;
+
+        if (sampleCount < MIN_SAMPLES) {
+            return scale;
+        }
+
+        boolean hot = !Float.isNaN(thermalHeadroom) && thermalHeadroom >= THERMAL_HOT;
+        boolean warm = !Float.isNaN(thermalHeadroom) && thermalHeadroom >= THERMAL_WARM;
+        long sinceChangeNanos = lastChangeNanos == Long.MIN_VALUE ? Long.MAX_VALUE : nowNanos - lastChangeNanos;
+
+        float next = scale;
+        if (hot || averageNanos > frameBudgetNanos * HIGH_LOAD) {
+            if (sinceChangeNanos >= DOWN_COOLDOWN_NANOS) {
+                next = clamp(scale * STEP_DOWN);
+            }
+        } else if (!warm && averageNanos < frameBudgetNanos * LOW_LOAD) {
+            if (sinceChangeNanos >= UP_COOLDOWN_NANOS) {
+                next = clamp(scale * STEP_UP);
+            }
+        }
+
+        if (next != scale) {
+            scale = next;
+            // the old average says nothing about the new size
+            sampleCount = 0;
+            averageNanos = 0;
+            lastChangeNanos = nowNanos;
+        }
+
+        return scale;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private float clamp(float value) {
+        return Math.max(minScale, Math.min(maxScale, value));
+    }
+}
@@ -0,0 +1,187 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class CaptureMetrics
+//--------------------------------------------------
+
+// Counters and stage latencies for the capture path. Recording is lock-free and allocation
+// free so it can sit on the per-frame path; readers take a Snapshot from any thread.
+public class CaptureMetrics {
+
+    // acquireLatestImage() returned to the frame reaching the main thread
+    public static final int STAGE_ACQUIRE_TO_DELIVER = 0;
+    // Image plane to Bitmap
+    public static final int STAGE_COPY = 1;
+    // tile diff against the previous frame
+    public static final int STAGE_DIFF = 2;
+    // frame presented to the encoder surface to encoded output
+    public static final int STAGE_ENCODE = 3;
+    // delivery posted to the main thread to it running there
+    public static final int STAGE_HANDLER_DELAY = 4;
+    public static final int STAGE_COUNT = 5;
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGE_COUNT];
+
+    private final AtomicLong acquiredCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+    private final AtomicLong starvedCount = new AtomicLong();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public CaptureMetrics() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public void recordStage(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public void onFrameAcquired() {
+        acquiredCount.incrementAndGet();
+    }
+
+    public void onFrameDelivered() {
+        deliveredCount.incrementAndGet();
+    }
+
+    // rate limited, back-pressured or superseded before reaching the consumer
+    public void onFrameDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    // identical to the previous frame, so never copied
+    public void onFrameUnchanged() {
+        unchangedCount.incrementAndGet();
+    }
+
+    // the consumer was holding every ImageReader buffer when a frame arrived
+    public void onBufferStarved() {
+        starvedCount.incrementAndGet();
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : stages) {
+            stage.reset();
+        }
+        acquiredCount.set(0);
+        deliveredCount.set(0);
+        droppedCount.set(0);
+        unchangedCount.set(0);
+        starvedCount.set(0);
+    }
+
+    // Copies the current state. Rates are measured against the snapshot being reused, so
+    // polling with the same instance yields fps over the polling interval.
+    public Snapshot snapshot(Snapshot reuse, long nowNanos) {
+        Snapshot snapshot = reuse != null ? reuse : new Snapshot();
+
+        long delivered = deliveredCount.get();
+        long dropped = droppedCount.get();
+        long elapsedNanos = nowNanos - snapshot.timestampNanos;
+        if (snapshot.timestampNanos != 0 && elapsedNanos > 0
+                && delivered >= snapshot.deliveredCount && dropped >= snapshot.droppedCount) {
+            snapshot.deliveredFps = (delivered - snapshot.deliveredCount) * NANOS_PER_SECOND / elapsedNanos;
+            snapshot.droppedFps = (dropped - snapshot.droppedCount) * NANOS_PER_SECOND / elapsedNanos;
+        } else {
+            snapshot.deliveredFps = 0;
+            snapshot.droppedFps = 0;
+        }
+
+        snapshot.timestampNanos = nowNanos;
+        snapshot.acquiredCount = acquiredCount.get();
+        snapshot.deliveredCount = delivered;
+        snapshot.droppedCount = dropped;
+        snapshot.unchangedCount = unchangedCount.get();
+        snapshot.starvedCount = starvedCount.get();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            stages[i].snapshot(snapshot.stages[i]);
+        }
+
+        return snapshot;
+    }
+
+
+    //--------------------------------------------------
+    // class Snapshot
+    //--------------------------------------------------
+
+    public static class Snapshot {
+        private final LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[STAGE_COUNT];
+        private long timestampNanos;
+        private long acquiredCount;
+        private long deliveredCount;
+        private long droppedCount;
+        private long unchangedCount;
+        private long starvedCount;
+        private double deliveredFps;
+        private double droppedFps;
+
+        public Snapshot() {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                stages[i] = new LatencyHistogram.Snapshot();
+            }
+        }
+
+        public LatencyHistogram.Snapshot getStage(int stage) {
+            return stages[stage];
+        }
+
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public long getAcquiredCount() {
+            return acquiredCount;
+        }
+
+        public long getDeliveredCount() {
+            return deliveredCount;
+        }
+
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        public long getUnchangedCount() {
+            return unchangedCount;
+        }
+
+        public long getStarvedCount() {
+            return starvedCount;
+        }
+
+        public double getDeliveredFps() {
+            return deliveredFps;
+        }
+
+        public double getDroppedFps() {
+            return droppedFps;
+        }
+    }
+}
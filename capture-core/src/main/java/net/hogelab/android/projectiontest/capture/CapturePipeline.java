@@ -0,0 +1,268 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+//--------------------------------------------------
+// class CapturePipeline
+//--------------------------------------------------
+
+// The still-capture path of ScreenCaptureManager without the Android parts: the same
+// FrameIngest (rate limiting, tile diff, measured copy into pooled frames, scaled outputs,
+// fan-out on a FrameBus, hand-off to a consumer) fed by any FrameSource, plus an optional export stage
+// recording into a FrameJournal. Runs on a plain JVM, so soak and throughput tests can drive
+// it with a SyntheticFrameSource at production sizes and rates.
+public class CapturePipeline {
+
+    // the frame being filled, one waiting for the consumer and the one the consumer holds
+    private static final int POOL_BASE_CAPACITY = 3;
+    // as ScreenCaptureManager measures frames
+    private static final int STATS_SAMPLE_STEP = 4;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int tileSize;
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    private final FrameIngest<ByteBuffer> ingest = new FrameIngest<>(metrics);
+    private final Executor consumerExecutor;
+
+    private FrameSource source;
+    private FrameBus.Subscription<ByteBuffer> exportSubscription;
+    // consumer executor only; held like ScreenCaptureManager's captured frame, so pool sizing
+    // matches the device
+    private Frame<ByteBuffer> latestFrame;
+    private final FrameAnalyzer.Stats latestStats = new FrameAnalyzer.Stats();
+    private boolean latestStatsValid;
+
+    // guarded by this; replaced when the frame size changes
+    private FramePool<Frame<ByteBuffer>> framePool;
+    private int framePoolBytes;
+
+    private final FrameSource.Listener sourceListener = this::onFrameAvailable;
+    private final Frame.Recycler<ByteBuffer> frameRecycler = this::recycleFrame;
+    private final Runnable deliverRunnable = this::deliver;
+    private final Runnable releaseLatestFrameRunnable = this::releaseLatestFrame;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    // The consumer takes each frame on the source thread, so the mailbox never backs up.
+    public CapturePipeline(int targetFps, int tileSize) {
+        this(targetFps, tileSize, false, Runnable::run);
+    }
+
+    // A tileSize of 0 passes every admitted frame on, changed or not. consumerExecutor stands
+    // in for ScreenCaptureManager's main thread and must run tasks one at a time in order,
+    // e.g. a SerialExecutor; new frames are dropped while it is behind.
+    public CapturePipeline(int targetFps, int tileSize, boolean measureFrames, Executor consumerExecutor) {
+        this.tileSize = tileSize;
+        this.consumerExecutor = consumerExecutor;
+        ingest.configure(new CaptureRatePolicy(targetFps, true),
+                tileSize > 0 ? new TileDiffer(tileSize) : null,
+                measureFrames ? new FrameAnalyzer(STATS_SAMPLE_STEP) : null);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // See ScreenCaptureManager.subscribeFrames(); the frames are packed RGBA_8888 in direct
+    // buffers. Subscribe before start() so the frame pool is sized for it.
+    public FrameBus.Subscription<ByteBuffer> subscribe(FrameBus.Subscriber<ByteBuffer> subscriber,
+                                                       Executor executor, int maxFps, int queueDepth,
+                                                       FrameBus.DropPolicy dropPolicy) {
+        return ingest.getFrameBus().subscribe(subscriber, executor, maxFps, queueDepth, dropPolicy);
+    }
+
+    // See FrameIngest.addScaledOutput(). Call before start().
+    public FrameIngest.ScaledOutput addScaledOutput(int maxWidth, int maxHeight, Downscaler.Filter filter) {
+        return ingest.addScaledOutput(maxWidth, maxHeight, filter);
+    }
+
+    // The export stage: records frames into journal on exportExecutor, which must run tasks
+    // one at a time, at most maxFps and with up to queueDepth frames waiting. Call before
+    // start(); stop() unsubscribes it, and the recorder is to be closed once exportExecutor
+    // has run dry.
+    public synchronized FrameJournalRecorder export(FrameJournal journal, Executor exportExecutor,
+                                                    int maxFps, int queueDepth) {
+        if (exportSubscription != null) {
+            throw new IllegalStateException("already exporting");
+        }
+
+        // journal time is wall clock time, as the app records it
+        long epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+        FrameJournalRecorder recorder = new FrameJournalRecorder(journal,
+                tileSize > 0 ? tileSize : TileDiffer.DEFAULT_TILE_SIZE,
+                FrameJournalRecorder.DEFAULT_KEYFRAME_INTERVAL, epochOffsetNanos);
+        exportSubscription = subscribe(recorder, exportExecutor, maxFps, queueDepth,
+                FrameBus.DropPolicy.DROP_OLDEST);
+        return recorder;
+    }
+
+    public synchronized void start(FrameSource frameSource) {
+        if (source != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        source = frameSource;
+        source.start(sourceListener);
+    }
+
+    // Frames subscribers still hold go back to the pool when they release them.
+    public void stop() {
+        FrameSource stopping;
+        FrameBus.Subscription<ByteBuffer> export;
+        synchronized (this) {
+            stopping = source;
+            source = null;
+            export = exportSubscription;
+            exportSubscription = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+
+        // outside the lock, which the source thread takes for the frame pool
+        stopping.stop();
+        if (export != null) {
+            export.unsubscribe();
+        }
+        ingest.discardPending();
+        try {
+            consumerExecutor.execute(releaseLatestFrameRunnable);
+        } catch (RejectedExecutionException e) {
+            // the consumer is gone, and deliver() with it
+            releaseLatestFrame();
+        }
+    }
+
+    public CaptureMetrics.Snapshot getMetricsSnapshot(CaptureMetrics.Snapshot reuse) {
+        return metrics.snapshot(reuse, System.nanoTime());
+    }
+
+    public long getDeliveredFrameCount() {
+        return ingest.getRatePolicy().getDeliveredCount();
+    }
+
+    public long getDroppedFrameCount() {
+        return ingest.getRatePolicy().getDroppedCount();
+    }
+
+    // Frames that reached the subscribers, whether the consumer got them or not.
+    public long getPublishedFrameCount() {
+        return ingest.getPublishedCount();
+    }
+
+    // Consumer executor only: the measurements of the last frame delivered, when measured.
+    public boolean getLatestStats(FrameAnalyzer.Stats stats) {
+        if (latestStatsValid) {
+            stats.copyFrom(latestStats);
+        }
+        return latestStatsValid;
+    }
+
+    public synchronized int getFramePoolCapacity() {
+        return framePool != null ? framePool.getCapacity() : 0;
+    }
+
+    // Frames allocated because the pool was empty. Flat once the pipeline has warmed up.
+    public synchronized long getFramePoolMissCount() {
+        return framePool != null ? framePool.getMissCount() : 0;
+    }
+
+    public synchronized long getFramePoolHitCount() {
+        return framePool != null ? framePool.getHitCount() : 0;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Source thread. Admitted on the frame's own clock, so a stepped source gets exact rates.
+    private void onFrameAvailable(ByteBuffer pixels, int width, int height, int rowStride,
+                                  long timestampNanos) {
+        long acquireNanos = System.nanoTime();
+        if (!ingest.admit(timestampNanos)) {
+            return;
+        }
+        if (ingest.isUnchanged(pixels, width, height, rowStride, 4)) {
+            return;
+        }
+
+        Frame<ByteBuffer> frame = ingest.open(obtainFramePool(width * height * 4).acquire(),
+                timestampNanos, width, height, frameRecycler);
+        long copyStartNanos = System.nanoTime();
+        ingest.copy(pixels, width, height, rowStride, 4, timestampNanos, frame.get());
+        long copyEndNanos = System.nanoTime();
+
+        if (ingest.publish(frame, acquireNanos, copyStartNanos, copyEndNanos)) {
+            try {
+                consumerExecutor.execute(deliverRunnable);
+            } catch (RejectedExecutionException e) {
+                // nobody is going to take it; an empty mailbox lets the next frame try again
+                ingest.discardPending();
+            }
+        }
+    }
+
+    // Consumer executor.
+    private void deliver() {
+        Frame<ByteBuffer> frame = ingest.take(System.nanoTime());
+        if (frame != null) {
+            latestStatsValid = ingest.takeStats(latestStats);
+            if (latestFrame != null) {
+                latestFrame.release();
+            }
+            latestFrame = frame;
+        }
+    }
+
+    // Consumer executor, after stop().
+    private void releaseLatestFrame() {
+        if (latestFrame != null) {
+            latestFrame.release();
+            latestFrame = null;
+        }
+    }
+
+    private synchronized FramePool<Frame<ByteBuffer>> obtainFramePool(int bytes) {
+        if (framePool == null || framePoolBytes != bytes) {
+            if (framePool != null) {
+                framePool.clear();
+            }
+
+            framePoolBytes = bytes;
+            framePool = new FramePool<>(POOL_BASE_CAPACITY + ingest.getFrameBus().getMaxHeldFrames(),
+                    new FramePool.Factory<Frame<ByteBuffer>>() {
+
+                        @Override
+                        public Frame<ByteBuffer> create() {
+                            return new Frame<>(ByteBuffer.allocateDirect(bytes));
+                        }
+
+                        @Override
+                        public void destroy(Frame<ByteBuffer> item) {
+                        }
+                    });
+        }
+
+        return framePool;
+    }
+
+    // Whoever releases last; buffers of an old size are left to the GC.
+    private synchronized void recycleFrame(Frame<ByteBuffer> frame) {
+        if (framePool != null && frame.get().capacity() == framePoolBytes) {
+            framePool.release(frame);
+        }
+    }
+}
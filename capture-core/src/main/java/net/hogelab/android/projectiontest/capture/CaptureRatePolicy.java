@@ -0,0 +1,113 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class CaptureRatePolicy
+//--------------------------------------------------
+
+// Decides, before any pixels are touched, whether an incoming frame is worth processing.
+// admit() is called from the capture thread only; the counters may be read from any thread.
+public class CaptureRatePolicy {
+
+    public static final int UNLIMITED_FPS = 0;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final long frameIntervalNanos;
+    private final long frameSlackNanos;
+    private final boolean dropOnBackpressure;
+
+    private long nextDueNanos = Long.MIN_VALUE;
+
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong rateDroppedCount = new AtomicLong();
+    private final AtomicLong backpressureDroppedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public CaptureRatePolicy(int targetFps, boolean dropOnBackpressure) {
+        if (targetFps < 0) {
+            throw new IllegalArgumentException("targetFps must not be negative: " + targetFps);
+        }
+
+        frameIntervalNanos = targetFps == UNLIMITED_FPS ? 0 : NANOS_PER_SECOND / targetFps;
+        // Frames arrive on vsync with some jitter; without slack a 30fps target on a 60Hz
+        // display would alternate between just-too-early and late and settle at 20fps.
+        frameSlackNanos = frameIntervalNanos / 4;
+        this.dropOnBackpressure = dropOnBackpressure;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public long getFrameIntervalNanos() {
+        return frameIntervalNanos;
+    }
+
+    public boolean getDropOnBackpressure() {
+        return dropOnBackpressure;
+    }
+
+    public boolean admit(long nowNanos, boolean consumerBusy) {
+        if (frameIntervalNanos > 0 && nextDueNanos != Long.MIN_VALUE
+                && nowNanos + frameSlackNanos < nextDueNanos) {
+            rateDroppedCount.incrementAndGet();
+            return false;
+        }
+
+        if (consumerBusy && dropOnBackpressure) {
+            backpressureDroppedCount.incrementAndGet();
+            return false;
+        }
+
+        if (nextDueNanos == Long.MIN_VALUE || nowNanos - nextDueNanos > frameIntervalNanos) {
+            nextDueNanos = nowNanos + frameIntervalNanos;
+        } else {
+            nextDueNanos += frameIntervalNanos;
+        }
+
+        return true;
+    }
+
+    // A frame that was admitted but replaced in the mailbox before the consumer saw it.
+    public void onSuperseded() {
+        supersededCount.incrementAndGet();
+    }
+
+    public void onDelivered() {
+        deliveredCount.incrementAndGet();
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    public long getDroppedCount() {
+        return rateDroppedCount.get() + backpressureDroppedCount.get() + supersededCount.get();
+    }
+
+    public long getRateDroppedCount() {
+        return rateDroppedCount.get();
+    }
+
+    public long getBackpressureDroppedCount() {
+        return backpressureDroppedCount.get();
+    }
+
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+}
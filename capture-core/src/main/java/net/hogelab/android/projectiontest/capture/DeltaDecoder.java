@@ -0,0 +1,234 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+
+//--------------------------------------------------
+// class DeltaDecoder
+//--------------------------------------------------
+
+// Client side of DeltaProtocol: applies keyframes and deltas to an RGBA_8888 image, rows
+// packed. Malformed input and deltas whose sequence does not follow the last applied frame
+// throw IOException; the client should then request a keyframe. Keyframes are taken at any
+// sequence. Not thread safe.
+public class DeltaDecoder {
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final Inflater inflater = new Inflater();
+    private byte[] raw = new byte[0];
+    private byte[] pixels = new byte[0];
+
+    private int width;
+    private int height;
+    private boolean hasKeyframe;
+    private int sequence;
+    private long timestampNanos;
+    private int tileCount;
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // width * height * 4 bytes are valid.
+    public byte[] getPixels() {
+        return pixels;
+    }
+
+    public boolean hasKeyframe() {
+        return hasKeyframe;
+    }
+
+    // Of the last applied frame.
+    public int getSequence() {
+        return sequence;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    // Decodes one whole message, starting at its length field, and returns its type.
+    public byte decode(ByteBuffer message) throws IOException {
+        int length = message.getInt();
+        if (length < 1 || length != message.remaining()) {
+            throw new IOException("bad message length: " + length);
+        }
+
+        byte type = message.get();
+        switch (type) {
+            case DeltaProtocol.MSG_HELLO:
+                decodeHello(message);
+                break;
+            case DeltaProtocol.MSG_KEYFRAME:
+            case DeltaProtocol.MSG_DELTA:
+                decodeFrame(message, type == DeltaProtocol.MSG_KEYFRAME);
+                break;
+            default:
+                throw new IOException("unknown message type: " + type);
+        }
+        return type;
+    }
+
+    public void close() {
+        inflater.end();
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void decodeHello(ByteBuffer message) throws IOException {
+        if (message.getInt() != DeltaProtocol.MAGIC) {
+            throw new IOException("not a delta stream");
+        }
+        int version = message.getShort();
+        if (version != DeltaProtocol.VERSION) {
+            throw new IOException("unsupported version: " + version);
+        }
+        int format = message.get();
+        if (format != PixelFormatNegotiator.FORMAT_RGBA_8888) {
+            throw new IOException("unsupported pixel format: " + format);
+        }
+        hasKeyframe = false;
+    }
+
+    private void decodeFrame(ByteBuffer message, boolean keyframe) throws IOException {
+        byte codec = message.get();
+        int tileSize = message.getShort();
+        int frameSequence = message.getInt();
+        long frameTimestampNanos = message.getLong();
+        int frameWidth = message.getInt();
+        int frameHeight = message.getInt();
+        int frameTileCount = message.getInt();
+        int rawLength = message.getInt();
+
+        if (tileSize <= 0 || frameWidth <= 0 || frameHeight <= 0
+                || rawLength < 0 || rawLength > DeltaProtocol.MAX_MESSAGE_LENGTH) {
+            throw new IOException("bad frame header");
+        }
+        if (keyframe) {
+            if (frameWidth != width || frameHeight != height) {
+                width = frameWidth;
+                height = frameHeight;
+                pixels = new byte[width * height * 4];
+            }
+        } else if (!hasKeyframe) {
+            throw new IOException("delta before keyframe");
+        } else if (frameWidth != width || frameHeight != height) {
+            throw new IOException("delta size " + frameWidth + "x" + frameHeight
+                    + " does not match " + width + "x" + height);
+        } else if (frameSequence - sequence <= 0) {
+            // wraps like the sequence itself
+            throw new IOException("delta " + frameSequence + " does not follow " + sequence);
+        }
+
+        if (raw.length < rawLength) {
+            raw = new byte[rawLength];
+        }
+        if (codec == DeltaProtocol.CODEC_NONE) {
+            if (message.remaining() != rawLength) {
+                throw new IOException("bad payload length");
+            }
+            message.get(raw, 0, rawLength);
+        } else if (codec == DeltaProtocol.CODEC_DEFLATE) {
+            inflate(message, rawLength);
+        } else {
+            throw new IOException("unknown codec: " + codec);
+        }
+
+        applyTiles(rawLength, tileSize, frameTileCount);
+
+        hasKeyframe = true;
+        sequence = frameSequence;
+        timestampNanos = frameTimestampNanos;
+        tileCount = frameTileCount;
+    }
+
+    private void inflate(ByteBuffer message, int rawLength) throws IOException {
+        byte[] input;
+        int offset;
+        int length = message.remaining();
+        if (message.hasArray()) {
+            input = message.array();
+            offset = message.arrayOffset() + message.position();
+        } else {
+            input = new byte[length];
+            offset = 0;
+            message.duplicate().get(input);
+        }
+        message.position(message.limit());
+
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        try {
+            int total = 0;
+            while (total < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, total, rawLength - total);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                total += n;
+            }
+            if (total != rawLength || !inflater.finished()) {
+                throw new IOException("payload does not inflate to " + rawLength + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt payload", e);
+        }
+    }
+
+    private void applyTiles(int rawLength, int tileSize, int frameTileCount) throws IOException {
+        int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+        int stride = width << 2;
+
+        int offset = 0;
+        for (int i = 0; i < frameTileCount; i++) {
+            if (offset + 4 > rawLength) {
+                throw new IOException("truncated payload");
+            }
+            int tileIndex = ((raw[offset] & 0xff) << 24) | ((raw[offset + 1] & 0xff) << 16)
+                    | ((raw[offset + 2] & 0xff) << 8) | (raw[offset + 3] & 0xff);
+            offset += 4;
+            if (tileIndex < 0 || tileIndex >= tileColumns * tileRows) {
+                throw new IOException("bad tile index: " + tileIndex);
+            }
+
+            int x = (tileIndex % tileColumns) * tileSize;
+            int y = (tileIndex / tileColumns) * tileSize;
+            int rowBytes = Math.min(tileSize, width - x) << 2;
+            int tileHeight = Math.min(tileSize, height - y);
+            if (offset + rowBytes * tileHeight > rawLength) {
+                throw new IOException("truncated payload");
+            }
+            for (int row = 0; row < tileHeight; row++) {
+                System.arraycopy(raw, offset, pixels, (y + row) * stride + (x << 2), rowBytes);
+                offset += rowBytes;
+            }
+        }
+
+        if (offset != rawLength) {
+            throw new IOException("trailing payload bytes");
+        }
+    }
+}
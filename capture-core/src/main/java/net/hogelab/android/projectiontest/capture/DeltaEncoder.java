@@ -0,0 +1,216 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+
+//--------------------------------------------------
+// class DeltaEncoder
+//--------------------------------------------------
+
+// Builds DeltaProtocol frame messages from RGBA_8888 frames. diff() tracks which tiles
+// changed since the previous frame; encode() packs any set of tiles of the current frame, so
+// one diff can serve both clients that are up to date and clients that missed frames.
+// Deflate runs at its fastest level; a payload that doesn't shrink goes out uncompressed.
+// Not thread safe.
+public class DeltaEncoder {
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int tileSize;
+    private final boolean compress;
+    private final TileDiffer differ;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    // tiles gathered before compression
+    private byte[] raw = new byte[0];
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public DeltaEncoder(int tileSize, boolean compress) {
+        if (tileSize <= 0 || tileSize > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("bad tileSize: " + tileSize);
+        }
+
+        this.tileSize = tileSize;
+        this.compress = compress;
+        differ = new TileDiffer(tileSize);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    // Compares the frame with the one given to the previous call. rowStride is in bytes.
+    public FrameDiff diff(ByteBuffer pixels, int width, int height, int rowStride) {
+        return differ.diff(pixels, width, height, rowStride);
+    }
+
+    public void reset() {
+        differ.reset();
+    }
+
+    // Packs the tiles flagged in tiles, indexed like FrameDiff, or every tile for a keyframe
+    // when tiles is null. Tile data is read from the buffer's position on.
+    public void encode(ByteBuffer pixels, int width, int height, int rowStride, boolean[] tiles,
+                       int sequence, long timestampNanos, Message out) {
+        int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+        int maxRawLength = tileColumns * tileRows * 4 + width * height * 4;
+
+        byte[] target;
+        if (compress) {
+            if (raw.length < maxRawLength) {
+                raw = new byte[maxRawLength];
+            }
+            target = raw;
+        } else {
+            out.ensureCapacity(maxRawLength);
+            target = out.payload;
+        }
+
+        int base = pixels.position();
+        int rawLength = 0;
+        int tileCount = 0;
+        for (int row = 0; row < tileRows; row++) {
+            int y = row * tileSize;
+            int tileHeight = Math.min(tileSize, height - y);
+            for (int column = 0; column < tileColumns; column++) {
+                int tileIndex = row * tileColumns + column;
+                if (tiles != null && !tiles[tileIndex]) {
+                    continue;
+                }
+
+                int x = column * tileSize;
+                int rowBytes = Math.min(tileSize, width - x) << 2;
+                rawLength = putInt(target, rawLength, tileIndex);
+                for (int i = 0; i < tileHeight; i++) {
+                    pixels.position(base + (y + i) * rowStride + (x << 2));
+                    pixels.get(target, rawLength, rowBytes);
+                    rawLength += rowBytes;
+                }
+                tileCount++;
+            }
+        }
+        pixels.position(base);
+
+        byte codec = DeltaProtocol.CODEC_NONE;
+        int payloadLength = rawLength;
+        if (compress) {
+            payloadLength = deflate(rawLength, out);
+            if (payloadLength < 0) {
+                out.ensureCapacity(rawLength);
+                System.arraycopy(raw, 0, out.payload, 0, rawLength);
+                payloadLength = rawLength;
+            } else {
+                codec = DeltaProtocol.CODEC_DEFLATE;
+            }
+        }
+
+        ByteBuffer header = out.header;
+        header.clear();
+        header.putInt(DeltaProtocol.FRAME_HEADER_LENGTH - 4 + payloadLength);
+        header.put(tiles == null ? DeltaProtocol.MSG_KEYFRAME : DeltaProtocol.MSG_DELTA);
+        header.put(codec);
+        header.putShort((short) tileSize);
+        header.putInt(sequence);
+        header.putLong(timestampNanos);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(tileCount);
+        header.putInt(rawLength);
+        header.flip();
+
+        out.payloadLength = payloadLength;
+        out.sequence = sequence;
+        out.tileCount = tileCount;
+    }
+
+    // Frees the native compressor; the encoder is unusable afterwards.
+    public void close() {
+        deflater.end();
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Returns -1 when the result would not be smaller than the input.
+    private int deflate(int rawLength, Message out) {
+        out.ensureCapacity(rawLength);
+        deflater.reset();
+        deflater.setInput(raw, 0, rawLength);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == rawLength) {
+                return -1;
+            }
+            length += deflater.deflate(out.payload, length, rawLength - length);
+        }
+        return length < rawLength ? length : -1;
+    }
+
+    private static int putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+
+    //--------------------------------------------------
+    // class Message
+    //--------------------------------------------------
+
+    // One encoded frame message, reusable. The header lives in a direct buffer; the payload
+    // array only grows. Write getHeader() and getPayload() with one gathering write.
+    public static final class Message {
+        private final ByteBuffer header = ByteBuffer.allocateDirect(DeltaProtocol.FRAME_HEADER_LENGTH);
+        private byte[] payload = new byte[0];
+        private int payloadLength;
+        private int sequence;
+        private int tileCount;
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public int getTileCount() {
+            return tileCount;
+        }
+
+        public int getLength() {
+            return header.limit() + payloadLength;
+        }
+
+        // Independent views, so several writers can share the message.
+        public ByteBuffer getHeader() {
+            return header.duplicate();
+        }
+
+        public ByteBuffer getPayload() {
+            return ByteBuffer.wrap(payload, 0, payloadLength);
+        }
+
+        // contents are not kept
+        private void ensureCapacity(int capacity) {
+            if (payload.length < capacity) {
+                payload = new byte[Math.max(capacity, payload.length * 3 / 2)];
+            }
+        }
+    }
+}
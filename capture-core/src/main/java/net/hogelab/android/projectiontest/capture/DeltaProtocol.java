@@ -0,0 +1,70 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class DeltaProtocol
+//--------------------------------------------------
+
+// Wire format of the delta frame stream, big-endian throughout. Every message starts with an
+// int length of the rest of the message and a byte type.
+//
+// server -> client
+//   HELLO     int magic, short version, byte pixel format
+//   KEYFRAME  frame header, then every tile
+//   DELTA     frame header, then the tiles that changed since the client's previous frame
+// frame header: byte codec, short tile size, int sequence, long timestamp (ns), int width,
+//   int height, int tile count, int raw payload length; then the payload, which is
+//   (int tile index, tile rows packed RGBA) per tile, compressed as the codec says.
+//
+// client -> server
+//   ACK               int sequence: every frame up to and including it has been applied
+//   KEYFRAME_REQUEST  int sequence (ignored): resync with a full frame
+//
+// The server keeps at most a window of unacknowledged frames in flight per client; a client
+// that falls behind has its changed tiles merged into its next frame instead.
+public final class DeltaProtocol {
+
+    public static final int MAGIC = 0x504a4453; // "PJDS"
+    public static final int VERSION = 1;
+
+    public static final byte MSG_HELLO = 1;
+    public static final byte MSG_KEYFRAME = 2;
+    public static final byte MSG_DELTA = 3;
+    public static final byte MSG_ACK = 16;
+    public static final byte MSG_KEYFRAME_REQUEST = 17;
+
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    public static final int HELLO_LENGTH = 4 + 1 + 4 + 2 + 1;
+    public static final int FRAME_HEADER_LENGTH = 4 + 1 + 1 + 2 + 4 + 8 + 4 + 4 + 4 + 4;
+    public static final int CLIENT_MESSAGE_LENGTH = 4 + 1 + 4;
+
+    // sanity limit for the length field
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+
+
+    private DeltaProtocol() {
+    }
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    public static void writeHello(ByteBuffer out) {
+        out.putInt(HELLO_LENGTH - 4);
+        out.put(MSG_HELLO);
+        out.putInt(MAGIC);
+        out.putShort((short) VERSION);
+        out.put((byte) PixelFormatNegotiator.FORMAT_RGBA_8888);
+    }
+
+    public static void writeClientMessage(ByteBuffer out, byte type, int sequence) {
+        out.putInt(CLIENT_MESSAGE_LENGTH - 4);
+        out.put(type);
+        out.putInt(sequence);
+    }
+}
@@ -0,0 +1,618 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class DeltaStreamServer
+//--------------------------------------------------
+
+// Streams frames to TCP clients in DeltaProtocol, on one thread with non-blocking sockets.
+// Each offered frame is diffed once; clients that are up to date share one encoded delta.
+// A client gets at most window frames ahead of its acknowledgements. While it is at the
+// limit, the tiles it misses are only remembered, and it gets them all in one delta from
+// the latest frame once it acknowledges, so a slow client costs no memory and no queueing.
+// Messages are written with gathering writes straight from the encoder's buffers.
+public class DeltaStreamServer {
+
+    //--------------------------------------------------
+    // listener interface
+    //--------------------------------------------------
+
+    public interface Listener {
+        // Server thread. A client needs a keyframe and there is no frame to make it from,
+        // e.g. after invalidate(); offer one.
+        void onFrameWanted();
+    }
+
+
+    public static final int DEFAULT_WINDOW = 2;
+
+    private static final int MAX_CLIENTS = 4;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+    private static final long STALL_TIMEOUT_NANOS = 10_000_000_000L;
+    private static final int MESSAGE_POOL_CAPACITY = MAX_CLIENTS * 2;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final String name;
+    private final Listener listener;
+    private final int tileSize;
+    private final boolean compress;
+    private final int window;
+
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    private final FrameMailbox<Frame<ByteBuffer>> mailbox = new FrameMailbox<>();
+    private volatile boolean invalidated;
+    private volatile int clientCount;
+
+    private final AtomicLong frameCount = new AtomicLong();
+    private final AtomicLong keyframeCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    // server thread only
+    private DeltaEncoder encoder;
+    private final FramePool<Frame<DeltaEncoder.Message>> messagePool;
+    private final Frame.Recycler<DeltaEncoder.Message> messageRecycler;
+    private final List<Client> clients = new ArrayList<>();
+    private Frame<ByteBuffer> lastFrame;
+    private int tileCount;
+    private int sequence;
+    private boolean frameRequested;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public DeltaStreamServer(String name, Listener listener, int tileSize, boolean compress, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+
+        this.name = name;
+        this.listener = listener;
+        this.tileSize = tileSize;
+        this.compress = compress;
+        this.window = window;
+
+        messagePool = new FramePool<>(MESSAGE_POOL_CAPACITY, new FramePool.Factory<Frame<DeltaEncoder.Message>>() {
+
+            @Override
+            public Frame<DeltaEncoder.Message> create() {
+                return new Frame<>(new DeltaEncoder.Message());
+            }
+
+            @Override
+            public void destroy(Frame<DeltaEncoder.Message> item) {
+            }
+        });
+        messageRecycler = messagePool::release;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Binds and starts the server thread. Port 0 picks a free port; see getLocalPort().
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(address);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        encoder = new DeltaEncoder(tileSize, compress);
+        tileCount = 0;
+        frameRequested = false;
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Closes every connection. Waits briefly for the server thread to finish.
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+
+        Frame<ByteBuffer> frame = mailbox.take();
+        if (frame != null) {
+            frame.release();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getLocalPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null ? channel.socket().getLocalPort() : -1;
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    // Frames are only worth offering while this is true.
+    public boolean isFrameWanted() {
+        return clientCount > 0;
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    public long getKeyframeCount() {
+        return keyframeCount.get();
+    }
+
+    // Frame messages written out in full, counted per client.
+    public long getSentFrameCount() {
+        return sentCount.get();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    // Frames a client did not get on time because its window was full.
+    public long getSkippedFrameCount() {
+        return skippedCount.get();
+    }
+
+    // Takes over the caller's reference. The frame is RGBA_8888 with rows packed, starting
+    // at the buffer's position; width, height and timestamp come from the frame. A frame not
+    // yet picked up is superseded and released.
+    public void offer(Frame<ByteBuffer> frame) {
+        if (!running) {
+            frame.release();
+            return;
+        }
+
+        Frame<ByteBuffer> superseded = mailbox.offer(frame);
+        if (superseded != null) {
+            superseded.release();
+        }
+        selector.wakeup();
+    }
+
+    // The last offered frame no longer shows what is on screen, e.g. because frames were
+    // not offered while nobody was connected. The next keyframe waits for a fresh one.
+    public void invalidate() {
+        invalidated = true;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+
+                if (invalidated) {
+                    invalidated = false;
+                    releaseLastFrame();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            onReadable(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            onWritable(client);
+                        }
+                    } catch (IOException e) {
+                        close(client);
+                    }
+                }
+
+                Frame<ByteBuffer> frame = mailbox.take();
+                if (frame != null) {
+                    onFrame(frame);
+                }
+
+                closeStalledClients(System.nanoTime());
+            }
+        } catch (IOException e) {
+            // the selector itself failed; nothing left to serve with
+        } finally {
+            running = false;
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                close(clients.get(i));
+            }
+            releaseLastFrame();
+            encoder.close();
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (clients.size() >= MAX_CLIENTS) {
+            closeQuietly(channel);
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Client client = new Client(channel, key, window);
+        key.attach(client);
+        client.pending = new boolean[tileCount];
+        clients.add(client);
+        clientCount++;
+
+        ByteBuffer hello = ByteBuffer.allocate(DeltaProtocol.HELLO_LENGTH);
+        DeltaProtocol.writeHello(hello);
+        hello.flip();
+        client.output[0] = hello;
+        try {
+            startWrite(client, null, 1);
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+
+        catchUp(client);
+    }
+
+    private void onReadable(Client client) throws IOException {
+        ByteBuffer input = client.input;
+        if (client.channel.read(input) < 0) {
+            close(client);
+            return;
+        }
+
+        input.flip();
+        while (input.remaining() >= DeltaProtocol.CLIENT_MESSAGE_LENGTH) {
+            if (input.getInt() != DeltaProtocol.CLIENT_MESSAGE_LENGTH - 4) {
+                throw new IOException("bad client message");
+            }
+            byte type = input.get();
+            int acked = input.getInt();
+
+            if (type == DeltaProtocol.MSG_ACK) {
+                client.acknowledge(acked);
+            } else if (type == DeltaProtocol.MSG_KEYFRAME_REQUEST) {
+                client.needsKeyframe = true;
+            } else {
+                throw new IOException("unknown client message: " + type);
+            }
+        }
+        input.compact();
+
+        catchUp(client);
+    }
+
+    private void onFrame(Frame<ByteBuffer> frame) {
+        frameCount.incrementAndGet();
+        frameRequested = false;
+
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        FrameDiff diff = encoder.diff(frame.get(), width, height, width << 2);
+        if (diff.isFull()) {
+            tileCount = diff.getTileColumns() * diff.getTileRows();
+        }
+
+        if (lastFrame != null) {
+            lastFrame.release();
+        }
+        lastFrame = frame;
+        sequence++;
+
+        Frame<DeltaEncoder.Message> shared = null;
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            Client client = clients.get(i);
+            boolean upToDate = client.merge(diff, tileCount);
+            if (client.needsKeyframe || client.pendingCount > 0) {
+                if (!client.hasWindow()) {
+                    skippedCount.incrementAndGet();
+                } else if (upToDate && !client.needsKeyframe) {
+                    // same tiles as every other up-to-date client
+                    if (shared == null) {
+                        shared = encode(client.pending);
+                    }
+                    client.clearPending();
+                    send(client, shared.retain());
+                } else {
+                    catchUp(client);
+                }
+            }
+        }
+
+        if (shared != null) {
+            shared.release();
+        }
+    }
+
+    // Sends whatever the client is missing from the last frame, if its window allows.
+    private void catchUp(Client client) {
+        if (!client.hasWindow() || (!client.needsKeyframe && client.pendingCount == 0)) {
+            return;
+        }
+
+        if (lastFrame == null) {
+            if (client.needsKeyframe && !frameRequested) {
+                frameRequested = true;
+                listener.onFrameWanted();
+            }
+            return;
+        }
+
+        Frame<DeltaEncoder.Message> message;
+        if (client.needsKeyframe) {
+            client.needsKeyframe = false;
+            keyframeCount.incrementAndGet();
+            message = encode(null);
+        } else {
+            message = encode(client.pending);
+        }
+        client.clearPending();
+        send(client, message);
+    }
+
+    private Frame<DeltaEncoder.Message> encode(boolean[] tiles) {
+        Frame<DeltaEncoder.Message> message = messagePool.acquire()
+                .open(lastFrame.getTimestampNanos(), sequence, lastFrame.getWidth(), lastFrame.getHeight(),
+                        messageRecycler);
+        encoder.encode(lastFrame.get(), lastFrame.getWidth(), lastFrame.getHeight(), lastFrame.getWidth() << 2,
+                tiles, sequence, lastFrame.getTimestampNanos(), message.get());
+        return message;
+    }
+
+    private void send(Client client, Frame<DeltaEncoder.Message> message) {
+        client.inFlight[(client.inFlightHead + client.inFlightCount) % window] = message.get().getSequence();
+        client.inFlightCount++;
+
+        if (client.writing) {
+            client.queue.addLast(message);
+            return;
+        }
+
+        try {
+            client.output[0] = message.get().getHeader();
+            client.output[1] = message.get().getPayload();
+            startWrite(client, message, 2);
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    private void startWrite(Client client, Frame<DeltaEncoder.Message> message, int count) throws IOException {
+        client.writingMessage = message;
+        client.outputCount = count;
+        client.writing = true;
+        client.lastProgressNanos = System.nanoTime();
+        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // most writes fit in the socket buffer; don't wait a select round for them
+        onWritable(client);
+    }
+
+    private void onWritable(Client client) throws IOException {
+        while (client.writing) {
+            ByteBuffer[] output = client.output;
+            int count = client.outputCount;
+            long written = client.channel.write(output, 0, count);
+            if (written > 0) {
+                client.lastProgressNanos = System.nanoTime();
+            }
+            if (output[count - 1].hasRemaining()) {
+                return;
+            }
+
+            Arrays.fill(output, null);
+            Frame<DeltaEncoder.Message> message = client.writingMessage;
+            client.writingMessage = null;
+            client.writing = false;
+            if (message != null) {
+                sentCount.incrementAndGet();
+                sentBytes.addAndGet(message.get().getLength());
+                message.release();
+            }
+
+            Frame<DeltaEncoder.Message> next = client.queue.pollFirst();
+            if (next != null) {
+                output[0] = next.get().getHeader();
+                output[1] = next.get().getPayload();
+                client.writingMessage = next;
+                client.outputCount = 2;
+                client.writing = true;
+            }
+        }
+
+        client.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void closeStalledClients(long nowNanos) {
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            Client client = clients.get(i);
+            if (client.writing && nowNanos - client.lastProgressNanos > STALL_TIMEOUT_NANOS) {
+                close(client);
+            }
+        }
+    }
+
+    private void close(Client client) {
+        if (!clients.remove(client)) {
+            return;
+        }
+
+        clientCount--;
+        if (client.writingMessage != null) {
+            client.writingMessage.release();
+            client.writingMessage = null;
+        }
+        Frame<DeltaEncoder.Message> message;
+        while ((message = client.queue.pollFirst()) != null) {
+            message.release();
+        }
+        client.key.cancel();
+        closeQuietly(client.channel);
+    }
+
+    private void releaseLastFrame() {
+        if (lastFrame != null) {
+            lastFrame.release();
+            lastFrame = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class Client
+    //--------------------------------------------------
+
+    // Server thread only.
+    private static final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer input = ByteBuffer.allocate(DeltaProtocol.CLIENT_MESSAGE_LENGTH * 8);
+
+        // sequences sent and not yet acknowledged, oldest first
+        final int[] inFlight;
+        int inFlightHead;
+        int inFlightCount;
+
+        boolean needsKeyframe = true;
+        // tiles changed since the last frame this client was sent
+        boolean[] pending = new boolean[0];
+        int pendingCount;
+
+        final ByteBuffer[] output = new ByteBuffer[2];
+        int outputCount;
+        boolean writing;
+        Frame<DeltaEncoder.Message> writingMessage;
+        final ArrayDeque<Frame<DeltaEncoder.Message>> queue = new ArrayDeque<>();
+        long lastProgressNanos;
+
+        Client(SocketChannel channel, SelectionKey key, int window) {
+            this.channel = channel;
+            this.key = key;
+            inFlight = new int[window];
+        }
+
+        boolean hasWindow() {
+            return inFlightCount < inFlight.length;
+        }
+
+        // Acknowledgements are cumulative.
+        void acknowledge(int sequence) {
+            while (inFlightCount > 0 && inFlight[inFlightHead] - sequence <= 0) {
+                inFlightHead = (inFlightHead + 1) % inFlight.length;
+                inFlightCount--;
+            }
+        }
+
+        // Adds the frame's dirty tiles. Returns true when they are all the client is missing.
+        boolean merge(FrameDiff diff, int tileCount) {
+            if (diff.isFull()) {
+                if (pending.length < tileCount) {
+                    pending = new boolean[tileCount];
+                }
+                clearPending();
+                needsKeyframe = true;
+                return false;
+            }
+
+            if (pending.length < tileCount) {
+                pending = Arrays.copyOf(pending, tileCount);
+            }
+
+            boolean upToDate = pendingCount == 0;
+            if (!diff.isUnchanged()) {
+                for (int i = 0; i < tileCount; i++) {
+                    if (!pending[i] && diff.isTileDirty(i)) {
+                        pending[i] = true;
+                        pendingCount++;
+                    }
+                }
+            }
+            return upToDate;
+        }
+
+        void clearPending() {
+            Arrays.fill(pending, false);
+            pendingCount = 0;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+//--------------------------------------------------
+// class Downscaler
+//--------------------------------------------------
+
+// Shrinks 32-bit-per-pixel frames (RGBA_8888 bytes; all four channels are filtered alike) to
+// any number of smaller sizes while reading the source once, row by row. Each output is a
+// separable filter, vertical first: a source row is weighted into at most two pending
+// output rows at full width, a flat multiply-add the JIT can vectorize, and only a finished
+// row is filtered horizontally. Weights are 14-bit fixed point.
+// Not thread safe; output pixels are reused by the next scale().
+public class Downscaler {
+
+    public enum Filter {
+        // unweighted mean of the source pixels centered in the output pixel; cheap, and exact
+        // for integer ratios
+        BOX,
+        // two taps per axis at the output pixel's center; fastest, but aliases past 2x
+        BILINEAR,
+        // every source pixel weighted by how much of it the output pixel covers
+        AREA
+    }
+
+    private static final int WEIGHT_BITS = 14;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+    // intermediate precision kept after the vertical pass; 255 << 7 times WEIGHT_ONE fits
+    private static final int FRACTION_BITS = 7;
+    private static final int V_SHIFT = WEIGHT_BITS - FRACTION_BITS;
+    private static final int H_SHIFT = WEIGHT_BITS + FRACTION_BITS;
+
+
+    //--------------------------------------------------
+    // class Output
+    //--------------------------------------------------
+
+    public static final class Output {
+        private final int width;
+        private final int height;
+        private final Filter filter;
+        private final byte[] pixels;
+
+        private final Kernel columns;
+        private final Kernel rows;
+        // the pending output row and the one after it, at source width
+        private int[] accumulator;
+        private int[] nextAccumulator;
+        private int row;
+
+        Output(int sourceWidth, int sourceHeight, int width, int height, Filter filter) {
+            this.width = width;
+            this.height = height;
+            this.filter = filter;
+            pixels = new byte[width * height * 4];
+
+            columns = new Kernel(sourceWidth, width, filter);
+            rows = new Kernel(sourceHeight, height, filter);
+            accumulator = new int[sourceWidth * 4];
+            nextAccumulator = new int[sourceWidth * 4];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public Filter getFilter() {
+            return filter;
+        }
+
+        // Packed RGBA_8888, width * 4 bytes per row.
+        public byte[] getPixels() {
+            return pixels;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final List<Output> outputs = new ArrayList<>();
+    private Output[] outputArray = new Output[0];
+    private final byte[] sourceRow;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public Downscaler(int sourceWidth, int sourceHeight) {
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            throw new IllegalArgumentException("bad source size: " + sourceWidth + "x" + sourceHeight);
+        }
+
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        sourceRow = new byte[sourceWidth * 4];
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    // Downscaling only: the output may not be larger than the source on either axis.
+    public Output addOutput(int width, int height, Filter filter) {
+        if (width <= 0 || height <= 0 || width > sourceWidth || height > sourceHeight) {
+            throw new IllegalArgumentException("bad output size " + width + "x" + height
+                    + " for " + sourceWidth + "x" + sourceHeight);
+        }
+
+        Output output = new Output(sourceWidth, sourceHeight, width, height, filter);
+        outputs.add(output);
+        outputArray = outputs.toArray(new Output[0]);
+        return output;
+    }
+
+    // The source fitted into maxWidth x maxHeight, keeping its aspect ratio and never scaled up.
+    public Output addFittedOutput(int maxWidth, int maxHeight, Filter filter) {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("bad size: " + maxWidth + "x" + maxHeight);
+        }
+
+        float scale = Math.min(1f, Math.min((float) maxWidth / sourceWidth, (float) maxHeight / sourceHeight));
+        return addOutput(
+                Math.max(1, Math.min(sourceWidth, Math.round(sourceWidth * scale))),
+                Math.max(1, Math.min(sourceHeight, Math.round(sourceHeight * scale))),
+                filter);
+    }
+
+    // Reads the frame from the buffer's position on; the position is left unchanged.
+    public void scale(ByteBuffer source, int rowStride) {
+        checkRowStride(rowStride);
+
+        int base = source.position();
+        begin();
+        for (int y = 0; y < sourceHeight; y++) {
+            if (isRowWanted(y)) {
+                source.position(base + y * rowStride);
+                source.get(sourceRow, 0, sourceRow.length);
+                processRow(sourceRow, 0, y);
+            }
+        }
+        source.position(base);
+    }
+
+    public void scale(byte[] source, int offset, int rowStride) {
+        checkRowStride(rowStride);
+
+        begin();
+        for (int y = 0; y < sourceHeight; y++) {
+            if (isRowWanted(y)) {
+                processRow(source, offset + y * rowStride, y);
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void checkRowStride(int rowStride) {
+        if (rowStride < sourceWidth * 4) {
+            throw new IllegalArgumentException("rowStride " + rowStride + " < row bytes " + sourceWidth * 4);
+        }
+    }
+
+    private void begin() {
+        for (Output output : outputArray) {
+            output.row = 0;
+            clear(output.accumulator);
+            clear(output.nextAccumulator);
+        }
+    }
+
+    // Bilinear outputs skip most rows at large ratios; so does the copy out of a ByteBuffer.
+    private boolean isRowWanted(int y) {
+        for (Output output : outputArray) {
+            if (output.row < output.height && y >= output.rows.start[output.row]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void processRow(byte[] source, int offset, int y) {
+        for (Output output : outputArray) {
+            Kernel rows = output.rows;
+            int row = output.row;
+            if (row >= output.height || y < rows.start[row]) {
+                continue;
+            }
+
+            int weight = rows.weightAt(row, y);
+            if (weight != 0) {
+                accumulate(source, offset, weight, output.accumulator);
+            }
+            if (row + 1 < output.height) {
+                weight = rows.weightAt(row + 1, y);
+                if (weight != 0) {
+                    accumulate(source, offset, weight, output.nextAccumulator);
+                }
+            }
+
+            // at most the two pending rows can end here
+            while (output.row < output.height && rows.end[output.row] == y) {
+                finishRow(output);
+            }
+        }
+    }
+
+    private static void accumulate(byte[] source, int offset, int weight, int[] accumulator) {
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] += weight * (source[offset + i] & 0xff);
+        }
+    }
+
+    private static void finishRow(Output output) {
+        int[] accumulator = output.accumulator;
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] = (accumulator[i] + (1 << (V_SHIFT - 1))) >> V_SHIFT;
+        }
+        filterRow(accumulator, output.columns, output.pixels, output.row * output.width * 4);
+
+        clear(accumulator);
+        output.accumulator = output.nextAccumulator;
+        output.nextAccumulator = accumulator;
+        output.row++;
+    }
+
+    private static void filterRow(int[] source, Kernel columns, byte[] pixels, int offset) {
+        int[] start = columns.start;
+        int[] count = columns.count;
+        int[] weightOffset = columns.weightOffset;
+        int[] weights = columns.weights;
+
+        for (int x = 0, o = offset; x < start.length; x++, o += 4) {
+            int p = start[x] << 2;
+            int w = weightOffset[x];
+            int wEnd = w + count[x];
+            int c0 = 0;
+            int c1 = 0;
+            int c2 = 0;
+            int c3 = 0;
+            for (; w < wEnd; w++, p += 4) {
+                int weight = weights[w];
+                c0 += weight * source[p];
+                c1 += weight * source[p + 1];
+                c2 += weight * source[p + 2];
+                c3 += weight * source[p + 3];
+            }
+            pixels[o] = (byte) ((c0 + (1 << (H_SHIFT - 1))) >> H_SHIFT);
+            pixels[o + 1] = (byte) ((c1 + (1 << (H_SHIFT - 1))) >> H_SHIFT);
+            pixels[o + 2] = (byte) ((c2 + (1 << (H_SHIFT - 1))) >> H_SHIFT);
+            pixels[o + 3] = (byte) ((c3 + (1 << (H_SHIFT - 1))) >> H_SHIFT);
+        }
+    }
+
+    private static void clear(int[] array) {
+        for (int i = 0; i < array.length; i++) {
+            array[i] = 0;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class Kernel
+    //--------------------------------------------------
+
+    // Per output pixel along one axis: the first source pixel, the tap count and the tap
+    // weights, summing to WEIGHT_ONE.
+    private static final class Kernel {
+        final int[] start;
+        final int[] count;
+        final int[] end;
+        final int[] weightOffset;
+        final int[] weights;
+
+        Kernel(int sourceSize, int size, Filter filter) {
+            start = new int[size];
+            count = new int[size];
+            end = new int[size];
+            weightOffset = new int[size];
+
+            double ratio = (double) sourceSize / size;
+            List<double[]> taps = new ArrayList<>(size);
+            int total = 0;
+            for (int i = 0; i < size; i++) {
+                double[] tap;
+                switch (filter) {
+                    case BOX:
+                        tap = boxTaps(i, ratio, sourceSize);
+                        break;
+                    case BILINEAR:
+                        tap = bilinearTaps(i, ratio, sourceSize);
+                        break;
+                    default:
+                        tap = areaTaps(i, ratio, sourceSize);
+                        break;
+                }
+                start[i] = (int) tap[0];
+                count[i] = tap.length - 1;
+                end[i] = start[i] + count[i] - 1;
+                weightOffset[i] = total;
+                total += count[i];
+                taps.add(tap);
+            }
+
+            weights = new int[total];
+            for (int i = 0; i < size; i++) {
+                quantize(taps.get(i), weights, weightOffset[i]);
+            }
+        }
+
+        int weightAt(int index, int position) {
+            int tap = position - start[index];
+            return tap >= 0 && tap < count[index] ? weights[weightOffset[index] + tap] : 0;
+        }
+
+        // The returned arrays hold the first source index, then one weight per tap.
+
+        private static double[] boxTaps(int i, double ratio, int sourceSize) {
+            // source pixels whose centers fall in [i * ratio, (i + 1) * ratio)
+            int first = (int) Math.ceil(i * ratio - 0.5);
+            int last = Math.min(sourceSize, (int) Math.ceil((i + 1) * ratio - 0.5)) - 1;
+            double[] tap = new double[last - first + 2];
+            tap[0] = first;
+            for (int t = 1; t < tap.length; t++) {
+                tap[t] = 1;
+            }
+            return tap;
+        }
+
+        private static double[] bilinearTaps(int i, double ratio, int sourceSize) {
+            double center = (i + 0.5) * ratio - 0.5;
+            int first = (int) Math.floor(center);
+            double fraction = center - first;
+            if (first < 0) {
+                return new double[] {0, 1};
+            }
+            if (first >= sourceSize - 1) {
+                return new double[] {sourceSize - 1, 1};
+            }
+            return new double[] {first, 1 - fraction, fraction};
+        }
+
+        private static double[] areaTaps(int i, double ratio, int sourceSize) {
+            double from = i * ratio;
+            double to = Math.min(sourceSize, (i + 1) * ratio);
+            int first = (int) Math.floor(from);
+            int last = Math.min(sourceSize, (int) Math.ceil(to)) - 1;
+            double[] tap = new double[last - first + 2];
+            tap[0] = first;
+            for (int j = first; j <= last; j++) {
+                tap[j - first + 1] = Math.min(to, j + 1) - Math.max(from, j);
+            }
+            return tap;
+        }
+
+        // Rounds to fixed point and gives the rounding error to the heaviest tap, so a flat
+        // source stays exactly flat.
+        private static void quantize(double[] tap, int[] weights, int offset) {
+            double sum = 0;
+            for (int t = 1; t < tap.length; t++) {
+                sum += tap[t];
+            }
+
+            int total = 0;
+            int heaviest = 0;
+            for (int t = 1; t < tap.length; t++) {
+                int weight = (int) Math.round(tap[t] / sum * WEIGHT_ONE);
+                weights[offset + t - 1] = weight;
+                total += weight;
+                if (weight > weights[offset + heaviest]) {
+                    heaviest = t - 1;
+                }
+            }
+            weights[offset + heaviest] += WEIGHT_ONE - total;
+        }
+    }
+}
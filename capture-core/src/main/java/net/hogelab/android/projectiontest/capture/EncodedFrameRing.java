@@ -0,0 +1,250 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class EncodedFrameRing
+//--------------------------------------------------
+
+// Keeps the most recent window of an encoded stream in fixed, preallocated memory.
+// The oldest retained sample is always a key frame, so the contents can be muxed as-is.
+// Whole GOPs are evicted once the next GOP alone still covers the window, and earlier
+// when the byte or sample capacity runs out. Not thread safe.
+public class EncodedFrameRing {
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final long windowUs;
+
+    private final byte[] data;
+    private int dataHead;
+    private int dataSize;
+
+    private final int[] sampleSizes;
+    private final long[] samplePresentationTimesUs;
+    private final boolean[] sampleKeyFrames;
+    private int sampleHead;
+    private int sampleCount;
+
+    private long evictedSampleCount;
+    private long rejectedSampleCount;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public EncodedFrameRing(long windowUs, int byteCapacity, int sampleCapacity) {
+        if (byteCapacity <= 0 || sampleCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        this.windowUs = windowUs;
+
+        data = new byte[byteCapacity];
+        sampleSizes = new int[sampleCapacity];
+        samplePresentationTimesUs = new long[sampleCapacity];
+        sampleKeyFrames = new boolean[sampleCapacity];
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getByteCount() {
+        return dataSize;
+    }
+
+    public int getByteCapacity() {
+        return data.length;
+    }
+
+    public long getEvictedSampleCount() {
+        return evictedSampleCount;
+    }
+
+    public long getRejectedSampleCount() {
+        return rejectedSampleCount;
+    }
+
+    public long getDurationUs() {
+        if (sampleCount == 0) {
+            return 0;
+        }
+
+        return samplePresentationTimesUs[sampleIndex(sampleCount - 1)]
+                - samplePresentationTimesUs[sampleHead];
+    }
+
+    public void append(ByteBuffer sample, long presentationTimeUs, boolean keyFrame) {
+        int size = sample.remaining();
+        if (size > data.length) {
+            // could never be retained together with its key frame
+            clear();
+            rejectedSampleCount++;
+            return;
+        }
+
+        if (sampleCount == 0 && !keyFrame) {
+            rejectedSampleCount++;
+            return;
+        }
+
+        while (sampleCount == sampleSizes.length || dataSize + size > data.length) {
+            evictHeadGop();
+            if (sampleCount == 0 && !keyFrame) {
+                rejectedSampleCount++;
+                return;
+            }
+        }
+
+        int offset = (dataHead + dataSize) % data.length;
+        int firstPart = Math.min(size, data.length - offset);
+        int position = sample.position();
+        sample.get(data, offset, firstPart);
+        if (firstPart < size) {
+            sample.get(data, 0, size - firstPart);
+        }
+        sample.position(position);
+
+        int index = sampleIndex(sampleCount);
+        sampleSizes[index] = size;
+        samplePresentationTimesUs[index] = presentationTimeUs;
+        sampleKeyFrames[index] = keyFrame;
+        sampleCount++;
+        dataSize += size;
+
+        evictExpiredGops(presentationTimeUs);
+    }
+
+    public void clear() {
+        evictedSampleCount += sampleCount;
+        sampleHead = 0;
+        sampleCount = 0;
+        dataHead = 0;
+        dataSize = 0;
+    }
+
+    // Copies the current contents out, reusing a snapshot previously taken from this or any ring
+    // when it is large enough. Sized to the contents, not the capacity: the ring is sized for
+    // the worst case bit rate.
+    public Snapshot snapshot(Snapshot reuse) {
+        Snapshot snapshot = reuse != null && reuse.data.length >= dataSize
+                && reuse.sizes.length >= sampleCount
+                ? reuse : new Snapshot(dataSize, sampleCount);
+
+        int firstPart = Math.min(dataSize, data.length - dataHead);
+        System.arraycopy(data, dataHead, snapshot.data, 0, firstPart);
+        System.arraycopy(data, 0, snapshot.data, firstPart, dataSize - firstPart);
+
+        for (int i = 0; i < sampleCount; i++) {
+            int index = sampleIndex(i);
+            snapshot.sizes[i] = sampleSizes[index];
+            snapshot.presentationTimesUs[i] = samplePresentationTimesUs[index];
+            snapshot.keyFrames[i] = sampleKeyFrames[index];
+        }
+        snapshot.sampleCount = sampleCount;
+
+        return snapshot;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private int sampleIndex(int i) {
+        return (sampleHead + i) % sampleSizes.length;
+    }
+
+    private void evictExpiredGops(long newestUs) {
+        while (true) {
+            int nextKey = findNextKeyFrame();
+            if (nextKey < 0 || newestUs - samplePresentationTimesUs[sampleIndex(nextKey)] < windowUs) {
+                return;
+            }
+
+            evictSamples(nextKey);
+        }
+    }
+
+    private void evictHeadGop() {
+        int nextKey = findNextKeyFrame();
+        evictSamples(nextKey < 0 ? sampleCount : nextKey);
+    }
+
+    // index (relative to head) of the first key frame after the head, or -1
+    private int findNextKeyFrame() {
+        for (int i = 1; i < sampleCount; i++) {
+            if (sampleKeyFrames[sampleIndex(i)]) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void evictSamples(int count) {
+        for (int i = 0; i < count; i++) {
+            int size = sampleSizes[sampleHead];
+            dataHead = (dataHead + size) % data.length;
+            dataSize -= size;
+            sampleHead = (sampleHead + 1) % sampleSizes.length;
+        }
+        sampleCount -= count;
+        evictedSampleCount += count;
+
+        if (sampleCount == 0) {
+            sampleHead = 0;
+            dataHead = 0;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class Snapshot
+    //--------------------------------------------------
+
+    public static class Snapshot {
+        private final byte[] data;
+        private final int[] sizes;
+        private final long[] presentationTimesUs;
+        private final boolean[] keyFrames;
+        private int sampleCount;
+
+        private Snapshot(int byteCapacity, int sampleCapacity) {
+            data = new byte[byteCapacity];
+            sizes = new int[sampleCapacity];
+            presentationTimesUs = new long[sampleCapacity];
+            keyFrames = new boolean[sampleCapacity];
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        public int getByteCapacity() {
+            return data.length;
+        }
+
+        public void writeTo(SegmentedRecorder.SegmentWriter writer) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int offset = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                buffer.limit(offset + sizes[i]);
+                buffer.position(offset);
+                writer.writeSample(buffer, presentationTimesUs[i], keyFrames[i]);
+                offset += sizes[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// interface EncodedStreamSink
+//--------------------------------------------------
+
+// Consumer of an encoder's output, called from a single (serial) executor.
+public interface EncodedStreamSink<F> {
+    void onOutputFormatChanged(F format) throws IOException;
+    void onEncodedFrame(ByteBuffer data, long presentationTimeUs, boolean keyFrame) throws IOException;
+    void onEndOfStream() throws IOException;
+}
@@ -0,0 +1,155 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+//--------------------------------------------------
+// class Frame
+//--------------------------------------------------
+
+// Reference-counted handle to one captured frame. Every holder calls release() once; the last
+// release hands the frame to its recycler, normally back to a FramePool. The handle is pooled
+// with its storage, so open() rather than a constructor starts each use.
+public final class Frame<T> {
+
+    //--------------------------------------------------
+    // recycler interface
+    //--------------------------------------------------
+
+    public interface Recycler<T> {
+        void recycle(Frame<T> frame);
+    }
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    private static volatile FrameLeakDetector leakDetector;
+
+    // Debug builds only: records where every frame was acquired. null turns it off.
+    public static void setLeakDetector(FrameLeakDetector detector) {
+        leakDetector = detector;
+    }
+
+    public static FrameLeakDetector getLeakDetector() {
+        return leakDetector;
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final T storage;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private Recycler<T> recycler;
+    private long timestampNanos;
+    private long sequenceNumber;
+    private int width;
+    private int height;
+    // non-null while a leak detector tracks this use
+    FrameLeakDetector.Record leakRecord;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public Frame(T storage) {
+        this.storage = storage;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Starts a new use with a single reference owned by the caller.
+    public Frame<T> open(long timestampNanos, long sequenceNumber, int width, int height,
+                         Recycler<T> recycler) {
+        if (refCount.get() != 0) {
+            throw new IllegalStateException("frame still referenced: " + refCount.get());
+        }
+
+        this.timestampNanos = timestampNanos;
+        this.sequenceNumber = sequenceNumber;
+        this.width = width;
+        this.height = height;
+        this.recycler = recycler;
+        refCount.set(1);
+
+        FrameLeakDetector detector = leakDetector;
+        if (detector != null) {
+            detector.track(this);
+        }
+        return this;
+    }
+
+    public T get() {
+        return storage;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    // Adds a reference for a new holder; only valid while the caller holds one.
+    public Frame<T> retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("retain after final release");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+
+        FrameLeakDetector.Record record = leakRecord;
+        if (record != null) {
+            record.onRetain();
+        }
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            FrameLeakDetector.Record record = leakRecord;
+            if (record != null) {
+                leakRecord = null;
+                record.untrack();
+            }
+
+            Recycler<T> r = recycler;
+            recycler = null;
+            if (r != null) {
+                r.recycle(this);
+            }
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("released more often than retained");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Frame#" + sequenceNumber + " " + width + "x" + height
+                + " t=" + timestampNanos + " refs=" + refCount.get();
+    }
+}
@@ -0,0 +1,352 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class FrameAnalyzer
+//--------------------------------------------------
+
+// Per-frame statistics gathered while a frame is copied, so the pixels are walked once: mean,
+// range and histogram of luma, per-channel color histograms, edge density, and how many
+// pixels changed since the previous frame. Enough to spot a blank screen or a screen change
+// without looking at the pixels again. Every sampleStep-th pixel of every sampleStep-th row is
+// measured; rows in between are only copied. RGBA_8888 (pixelStride 4) and RGB_565
+// (pixelStride 2) planes. Not thread safe.
+public class FrameAnalyzer {
+
+    public static final int CHANNEL_RED = 0;
+    public static final int CHANNEL_GREEN = 1;
+    public static final int CHANNEL_BLUE = 2;
+    public static final int CHANNEL_LUMA = 3;
+    public static final int CHANNEL_COUNT = 4;
+    public static final int HISTOGRAM_BINS = 16;
+    private static final int BIN_SHIFT = 4;
+
+    // sum of the luma steps to the left and upper samples
+    private static final int EDGE_THRESHOLD = 48;
+    // luma noise that doesn't count as a change, e.g. dithering
+    private static final int CHANGE_THRESHOLD = 4;
+
+
+    //--------------------------------------------------
+    // class Stats
+    //--------------------------------------------------
+
+    // Reused from frame to frame; copyFrom() to hand one to another thread.
+    public static class Stats {
+        private final int[] histogram = new int[CHANNEL_COUNT * HISTOGRAM_BINS];
+        private long timestampNanos;
+        private int width;
+        private int height;
+        private int sampleCount;
+        private long lumaSum;
+        private int lumaMin;
+        private int lumaMax;
+        private int edgeCount;
+        private int changedCount;
+        private boolean compared;
+
+        public void copyFrom(Stats other) {
+            System.arraycopy(other.histogram, 0, histogram, 0, histogram.length);
+            timestampNanos = other.timestampNanos;
+            width = other.width;
+            height = other.height;
+            sampleCount = other.sampleCount;
+            lumaSum = other.lumaSum;
+            lumaMin = other.lumaMin;
+            lumaMax = other.lumaMax;
+            edgeCount = other.edgeCount;
+            changedCount = other.changedCount;
+            compared = other.compared;
+        }
+
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        // 0 to 255
+        public float getMeanLuma() {
+            return sampleCount == 0 ? 0 : (float) lumaSum / sampleCount;
+        }
+
+        public int getLumaMin() {
+            return lumaMin;
+        }
+
+        public int getLumaMax() {
+            return lumaMax;
+        }
+
+        // A blank screen: every sample within maxLumaRange of the others.
+        public boolean isUniform(int maxLumaRange) {
+            return lumaMax - lumaMin <= maxLumaRange;
+        }
+
+        // Samples in bin (values bin * 16 to bin * 16 + 15) of a CHANNEL_ channel.
+        public int getHistogram(int channel, int bin) {
+            return histogram[channel * HISTOGRAM_BINS + bin];
+        }
+
+        // Fraction of samples on an edge: near 0 for flat screens, high for text and detail.
+        public float getEdgeDensity() {
+            return sampleCount == 0 ? 0 : (float) edgeCount / sampleCount;
+        }
+
+        // Fraction of samples whose luma moved since the previous frame; 1 for the first frame
+        // and after a size change.
+        public float getChangedFraction() {
+            if (!compared) {
+                return 1;
+            }
+            return sampleCount == 0 ? 0 : (float) changedCount / sampleCount;
+        }
+
+        public boolean isComparedToPrevious() {
+            return compared;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int sampleStep;
+
+    private byte[] row = new byte[0];
+    // the previous frame's luma per sample, and the previous sampled row's
+    private byte[] previousLuma = new byte[0];
+    private int[] upperLuma = new int[0];
+    // one sampled row, 0x00RRGGBB
+    private int[] rgb = new int[0];
+    private int width;
+    private int height;
+    private int pixelStride;
+    private boolean hasPrevious;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public FrameAnalyzer(int sampleStep) {
+        if (sampleStep <= 0) {
+            throw new IllegalArgumentException("bad sampleStep: " + sampleStep);
+        }
+
+        this.sampleStep = sampleStep;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getSampleStep() {
+        return sampleStep;
+    }
+
+    // The next frame is not compared with the last one.
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    // Like FrameCopier.copy(), measuring the frame on the way: on return dst holds the packed
+    // frame ready for a relative read, and src has its position and limit restored. With dst
+    // null the frame is only measured.
+    public void copy(ByteBuffer src, int width, int height, int rowStride, int pixelStride,
+                     ByteBuffer dst, long timestampNanos, Stats out) {
+        if (pixelStride != 4 && pixelStride != 2) {
+            throw new IllegalArgumentException("unsupported pixelStride: " + pixelStride);
+        }
+        int rowBytes = width * pixelStride;
+        if (rowStride < rowBytes) {
+            throw new IllegalArgumentException("rowStride " + rowStride + " < row bytes " + rowBytes);
+        }
+        if (dst != null && dst.capacity() < rowBytes * height) {
+            throw new IllegalArgumentException("destination too small: " + dst.capacity() + " < " + rowBytes * height);
+        }
+
+        prepare(width, height, pixelStride);
+        begin(out, timestampNanos);
+
+        int srcPosition = src.position();
+        int srcLimit = src.limit();
+        int capacity = src.capacity();
+        if (dst != null) {
+            dst.clear();
+        }
+
+        int rowStart = srcPosition;
+        for (int y = 0; y < height; y++, rowStart += rowStride) {
+            src.limit(capacity);
+            src.position(rowStart);
+            if (y % sampleStep == 0) {
+                // through the row array: measured while it is in cache
+                src.get(row, 0, rowBytes);
+                if (pixelStride == 4) {
+                    measureRgbaRow(y / sampleStep, out);
+                } else {
+                    measureRgb565Row(y / sampleStep, out);
+                }
+                if (dst != null) {
+                    dst.put(row, 0, rowBytes);
+                }
+            } else if (dst != null) {
+                src.limit(rowStart + rowBytes);
+                dst.put(src);
+            }
+        }
+
+        if (dst != null) {
+            dst.flip();
+        }
+        src.limit(srcLimit);
+        src.position(srcPosition);
+
+        out.compared = hasPrevious;
+        hasPrevious = true;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void prepare(int width, int height, int pixelStride) {
+        if (width == this.width && height == this.height && pixelStride == this.pixelStride) {
+            return;
+        }
+
+        this.width = width;
+        this.height = height;
+        this.pixelStride = pixelStride;
+        int columns = (width + sampleStep - 1) / sampleStep;
+        int rows = (height + sampleStep - 1) / sampleStep;
+        row = new byte[width * pixelStride];
+        previousLuma = new byte[columns * rows];
+        upperLuma = new int[columns];
+        rgb = new int[columns];
+        hasPrevious = false;
+    }
+
+    private void begin(Stats out, long timestampNanos) {
+        int[] histogram = out.histogram;
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = 0;
+        }
+        out.timestampNanos = timestampNanos;
+        out.width = width;
+        out.height = height;
+        out.sampleCount = 0;
+        out.lumaSum = 0;
+        out.lumaMin = 255;
+        out.lumaMax = 0;
+        out.edgeCount = 0;
+        out.changedCount = 0;
+    }
+
+    private void measureRgbaRow(int sampleRow, Stats out) {
+        int step = sampleStep << 2;
+        int end = width << 2;
+        int columns = upperLuma.length;
+        int offset = sampleRow * columns;
+        for (int p = 0, column = 0; p < end; p += step, column++) {
+            int r = row[p] & 0xff;
+            int g = row[p + 1] & 0xff;
+            int b = row[p + 2] & 0xff;
+            rgb[column] = r << 16 | g << 8 | b;
+        }
+        measureRow(columns, offset, sampleRow > 0, out);
+    }
+
+    // Little-endian RRRRRGGG GGGBBBBB, widened to 8 bits per channel.
+    private void measureRgb565Row(int sampleRow, Stats out) {
+        int step = sampleStep << 1;
+        int end = width << 1;
+        int columns = upperLuma.length;
+        int offset = sampleRow * columns;
+        for (int p = 0, column = 0; p < end; p += step, column++) {
+            int pixel = (row[p] & 0xff) | (row[p + 1] & 0xff) << 8;
+            int r = pixel >>> 11;
+            int g = (pixel >>> 5) & 0x3f;
+            int b = pixel & 0x1f;
+            rgb[column] = (r << 3 | r >>> 2) << 16 | (g << 2 | g >>> 4) << 8 | (b << 3 | b >>> 2);
+        }
+        measureRow(columns, offset, sampleRow > 0, out);
+    }
+
+    // The sampled row is unpacked into rgb; the sums are kept in locals for the row.
+    private void measureRow(int columns, int offset, boolean hasUpper, Stats out) {
+        int[] histogram = out.histogram;
+        int[] upper = upperLuma;
+        byte[] previous = previousLuma;
+        boolean compare = hasPrevious;
+        long lumaSum = 0;
+        int lumaMin = out.lumaMin;
+        int lumaMax = out.lumaMax;
+        int edgeCount = 0;
+        int changedCount = 0;
+        int left = luma(rgb[0]);
+        if (!hasUpper) {
+            for (int column = 0; column < columns; column++) {
+                upper[column] = luma(rgb[column]);
+            }
+        }
+
+        for (int column = 0; column < columns; column++) {
+            int pixel = rgb[column];
+            int r = pixel >>> 16;
+            int g = (pixel >>> 8) & 0xff;
+            int b = pixel & 0xff;
+            int luma = luma(pixel);
+            histogram[r >> BIN_SHIFT]++;
+            histogram[HISTOGRAM_BINS + (g >> BIN_SHIFT)]++;
+            histogram[2 * HISTOGRAM_BINS + (b >> BIN_SHIFT)]++;
+            histogram[3 * HISTOGRAM_BINS + (luma >> BIN_SHIFT)]++;
+
+            lumaSum += luma;
+            lumaMin = Math.min(lumaMin, luma);
+            lumaMax = Math.max(lumaMax, luma);
+
+            // counted without branches, which a busy screen would keep mispredicting. On the
+            // frame's edges the missing neighbor is the sample itself
+            int gradient = Math.abs(luma - left) + Math.abs(luma - upper[column]);
+            edgeCount += (EDGE_THRESHOLD - gradient) >>> 31;
+            left = luma;
+            upper[column] = luma;
+
+            int index = offset + column;
+            changedCount += (CHANGE_THRESHOLD - Math.abs(luma - (previous[index] & 0xff))) >>> 31;
+            previous[index] = (byte) luma;
+        }
+
+        if (!compare) {
+            changedCount = 0;
+        }
+        out.sampleCount += columns;
+        out.lumaSum += lumaSum;
+        out.lumaMin = lumaMin;
+        out.lumaMax = lumaMax;
+        out.edgeCount += edgeCount;
+        out.changedCount += changedCount;
+    }
+
+    private static int luma(int pixel) {
+        return (PixelConverter.LUMA_R * (pixel >>> 16) + PixelConverter.LUMA_G * ((pixel >>> 8) & 0xff)
+                + PixelConverter.LUMA_B * (pixel & 0xff) + 128) >> 8;
+    }
+}
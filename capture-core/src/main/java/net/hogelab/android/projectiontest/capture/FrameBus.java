@@ -0,0 +1,244 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class FrameBus
+//--------------------------------------------------
+
+// Fans frames out to any number of subscribers without copying. Each subscriber gets its own
+// rate limit, bounded queue and drop policy, and is fed on its own executor, so a slow one
+// only ever drops its own frames. publish() never blocks and does not allocate.
+public class FrameBus<T> {
+
+    //--------------------------------------------------
+    // subscriber interface
+    //--------------------------------------------------
+
+    public interface Subscriber<T> {
+        // The subscriber owns one reference and must release it, possibly later and on
+        // another thread.
+        void onFrame(Frame<T> frame);
+    }
+
+    public enum DropPolicy {
+        // keep the newest frames: evict the oldest queued one to make room
+        DROP_OLDEST,
+        // keep what is queued: the incoming frame is dropped
+        DROP_NEWEST
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final Object lock = new Object();
+    private volatile Subscription<T>[] subscriptions = newSubscriptionArray(0);
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // maxFps of CaptureRatePolicy.UNLIMITED_FPS takes every frame.
+    public Subscription<T> subscribe(Subscriber<T> subscriber, Executor executor,
+                                     int maxFps, int queueDepth, DropPolicy dropPolicy) {
+        Subscription<T> subscription = new Subscription<>(this, subscriber, executor,
+                maxFps, queueDepth, dropPolicy);
+
+        synchronized (lock) {
+            Subscription<T>[] current = subscriptions;
+            Subscription<T>[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+            subscriptions = next;
+        }
+
+        return subscription;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.length;
+    }
+
+    // Frames that subscribers can hold at once: everything queued plus one in hand each.
+    public int getMaxHeldFrames() {
+        int total = 0;
+        for (Subscription<T> subscription : subscriptions) {
+            total += subscription.queueDepth + 1;
+        }
+        return total;
+    }
+
+    // Called from a single producer thread. The caller keeps its own reference.
+    public void publish(Frame<T> frame, long nowNanos) {
+        Subscription<T>[] current = subscriptions;
+        for (Subscription<T> subscription : current) {
+            subscription.offer(frame, nowNanos);
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Generic arrays cannot be created; the elements are only ever Subscription<T>.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Subscription<T>[] newSubscriptionArray(int length) {
+        return new Subscription[length];
+    }
+
+    private void remove(Subscription<T> subscription) {
+        synchronized (lock) {
+            Subscription<T>[] current = subscriptions;
+            int index = Arrays.asList(current).indexOf(subscription);
+            if (index < 0) {
+                return;
+            }
+
+            Subscription<T>[] next = newSubscriptionArray(current.length - 1);
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+            subscriptions = next;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class Subscription
+    //--------------------------------------------------
+
+    public static final class Subscription<T> {
+        private final FrameBus<T> bus;
+        private final Subscriber<T> subscriber;
+        private final Executor executor;
+        private final int queueDepth;
+        private final DropPolicy dropPolicy;
+        // touched by the producer thread only
+        private final CaptureRatePolicy ratePolicy;
+
+        private final ArrayDeque<Frame<T>> queue;
+        private boolean scheduled;
+        private boolean cancelled;
+        private final Runnable drainRunnable = this::drain;
+
+        private final AtomicLong deliveredCount = new AtomicLong();
+        private final AtomicLong rateDroppedCount = new AtomicLong();
+        private final AtomicLong overflowDroppedCount = new AtomicLong();
+
+        Subscription(FrameBus<T> bus, Subscriber<T> subscriber, Executor executor,
+                     int maxFps, int queueDepth, DropPolicy dropPolicy) {
+            if (queueDepth <= 0) {
+                throw new IllegalArgumentException("queueDepth must be positive: " + queueDepth);
+            }
+
+            this.bus = bus;
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.queueDepth = queueDepth;
+            this.dropPolicy = dropPolicy;
+            ratePolicy = new CaptureRatePolicy(maxFps, false);
+            queue = new ArrayDeque<>(queueDepth);
+        }
+
+        // Stops deliveries and releases whatever is still queued. A frame already handed to
+        // onFrame() stays the subscriber's to release.
+        public void unsubscribe() {
+            bus.remove(this);
+
+            synchronized (this) {
+                cancelled = true;
+                Frame<T> frame;
+                while ((frame = queue.pollFirst()) != null) {
+                    frame.release();
+                }
+            }
+        }
+
+        public long getDeliveredCount() {
+            return deliveredCount.get();
+        }
+
+        public long getRateDroppedCount() {
+            return rateDroppedCount.get();
+        }
+
+        public long getOverflowDroppedCount() {
+            return overflowDroppedCount.get();
+        }
+
+        public synchronized int getQueuedCount() {
+            return queue.size();
+        }
+
+        void offer(Frame<T> frame, long nowNanos) {
+            if (!ratePolicy.admit(nowNanos, false)) {
+                rateDroppedCount.incrementAndGet();
+                return;
+            }
+
+            Frame<T> evicted = null;
+            boolean schedule;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+
+                if (queue.size() == queueDepth) {
+                    overflowDroppedCount.incrementAndGet();
+                    if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                        return;
+                    }
+                    evicted = queue.pollFirst();
+                }
+                queue.addLast(frame.retain());
+
+                schedule = !scheduled;
+                scheduled = true;
+            }
+
+            if (evicted != null) {
+                evicted.release();
+            }
+            if (schedule) {
+                try {
+                    executor.execute(drainRunnable);
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                }
+            }
+        }
+
+        private void drain() {
+            for (;;) {
+                Frame<T> frame;
+                synchronized (this) {
+                    frame = queue.pollFirst();
+                    if (frame == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                deliveredCount.incrementAndGet();
+                try {
+                    subscriber.onFrame(frame);
+                } catch (RuntimeException e) {
+                    // let the next offer schedule a fresh drain
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+}
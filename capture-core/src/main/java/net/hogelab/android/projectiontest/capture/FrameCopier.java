@@ -0,0 +1,89 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class FrameCopier
+//--------------------------------------------------
+
+// Copies a single image plane into tightly packed storage (width * pixelStride bytes per row).
+// The source buffer may be row-padded, and its last row may stop right after the last pixel.
+public final class FrameCopier {
+
+    private FrameCopier() {
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public static boolean isTightlyPacked(int width, int rowStride, int pixelStride) {
+        return rowStride == width * pixelStride;
+    }
+
+    public static int packedSize(int width, int height, int pixelStride) {
+        return width * height * pixelStride;
+    }
+
+    public static ByteBuffer ensureCapacity(ByteBuffer buffer, int size) {
+        if (buffer == null || buffer.capacity() < size) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        return buffer;
+    }
+
+    // On return dst holds the packed frame in [0, packedSize) ready for a relative read,
+    // and src has its position and limit restored.
+    public static void copy(ByteBuffer src, int width, int height, int rowStride, int pixelStride,
+                            ByteBuffer dst) {
+        int rowBytes = width * pixelStride;
+        int packedSize = rowBytes * height;
+        if (rowStride < rowBytes) {
+            throw new IllegalArgumentException("rowStride " + rowStride + " < row bytes " + rowBytes);
+        }
+        if (dst.capacity() < packedSize) {
+            throw new IllegalArgumentException("destination too small: " + dst.capacity() + " < " + packedSize);
+        }
+
+        int srcPosition = src.position();
+        int srcLimit = src.limit();
+
+        dst.clear();
+        if (rowStride == rowBytes) {
+            copyBulk(src, srcPosition, packedSize, dst);
+        } else {
+            copyRows(src, srcPosition, rowBytes, height, rowStride, dst);
+        }
+        dst.flip();
+
+        src.limit(srcLimit);
+        src.position(srcPosition);
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private static void copyBulk(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        src.limit(offset + size);
+        src.position(offset);
+        dst.put(src);
+    }
+
+    private static void copyRows(ByteBuffer src, int offset, int rowBytes, int height, int rowStride,
+                                 ByteBuffer dst) {
+        int capacity = src.capacity();
+        int rowStart = offset;
+        for (int y = 0; y < height; y++) {
+            src.limit(capacity);
+            src.position(rowStart);
+            src.limit(rowStart + rowBytes);
+            dst.put(src);
+            rowStart += rowStride;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.Arrays;
+
+
+//--------------------------------------------------
+// class FrameDiff
+//--------------------------------------------------
+
+// Result of comparing a frame with its predecessor, owned and reused by a TileDiffer.
+// Dirty tiles are also merged into rectangles (in pixels) for consumers that only care
+// about the changed area.
+public class FrameDiff {
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private int width;
+    private int height;
+    private int tileSize;
+    private int tileColumns;
+    private int tileRows;
+
+    private boolean full;
+    private boolean[] dirtyTiles = new boolean[0];
+    private int dirtyTileCount;
+
+    // x, y, width, height per rectangle
+    private int[] rects = new int[4 * 16];
+    private int rectCount;
+    private int[] openRects = new int[0];
+    private int[] nextOpenRects = new int[0];
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTileColumns() {
+        return tileColumns;
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    // true for the first frame after a reset or a size change
+    public boolean isFull() {
+        return full;
+    }
+
+    public boolean isUnchanged() {
+        return dirtyTileCount == 0;
+    }
+
+    public int getDirtyTileCount() {
+        return dirtyTileCount;
+    }
+
+    public float getDirtyFraction() {
+        int tileCount = tileColumns * tileRows;
+        return tileCount == 0 ? 0 : (float) dirtyTileCount / tileCount;
+    }
+
+    public boolean isTileDirty(int column, int row) {
+        return dirtyTiles[row * tileColumns + column];
+    }
+
+    public int getDirtyRectCount() {
+        return rectCount;
+    }
+
+    public int getDirtyRectX(int index) {
+        return rects[index * 4];
+    }
+
+    public int getDirtyRectY(int index) {
+        return rects[index * 4 + 1];
+    }
+
+    public int getDirtyRectWidth(int index) {
+        return rects[index * 4 + 2];
+    }
+
+    public int getDirtyRectHeight(int index) {
+        return rects[index * 4 + 3];
+    }
+
+
+    //--------------------------------------------------
+    // package functions
+    //--------------------------------------------------
+
+    boolean isTileDirty(int tileIndex) {
+        return dirtyTiles[tileIndex];
+    }
+
+    void reset(int width, int height, int tileSize, int tileColumns, int tileRows, boolean full) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tileColumns = tileColumns;
+        this.tileRows = tileRows;
+        this.full = full;
+
+        int tileCount = tileColumns * tileRows;
+        if (dirtyTiles.length < tileCount) {
+            dirtyTiles = new boolean[tileCount];
+        } else {
+            Arrays.fill(dirtyTiles, 0, tileCount, false);
+        }
+        dirtyTileCount = 0;
+        rectCount = 0;
+    }
+
+    void markDirty(int tileIndex) {
+        dirtyTiles[tileIndex] = true;
+        dirtyTileCount++;
+    }
+
+    // Horizontal runs of dirty tiles, extended downwards while the run below has the same span.
+    void buildRects() {
+        rectCount = 0;
+        if (dirtyTileCount == 0) {
+            return;
+        }
+
+        // at most one run per two columns can be open on a row
+        int maxRuns = tileColumns / 2 + 1;
+        if (openRects.length < maxRuns) {
+            openRects = new int[maxRuns];
+            nextOpenRects = new int[maxRuns];
+        }
+        int openCount = 0;
+
+        for (int row = 0; row < tileRows; row++) {
+            int rowStart = row * tileColumns;
+            int y = row * tileSize;
+            int h = Math.min(y + tileSize, height) - y;
+            int nextOpenCount = 0;
+
+            int column = 0;
+            while (column < tileColumns) {
+                if (!dirtyTiles[rowStart + column]) {
+                    column++;
+                    continue;
+                }
+
+                int runStart = column;
+                while (column < tileColumns && dirtyTiles[rowStart + column]) {
+                    column++;
+                }
+
+                int x = runStart * tileSize;
+                int w = Math.min(column * tileSize, width) - x;
+                int rect = findOpenRect(openCount, x, w);
+                if (rect >= 0) {
+                    rects[rect * 4 + 3] += h;
+                } else {
+                    rect = addRect(x, y, w, h);
+                }
+                nextOpenRects[nextOpenCount++] = rect;
+            }
+
+            int[] swap = openRects;
+            openRects = nextOpenRects;
+            nextOpenRects = swap;
+            openCount = nextOpenCount;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private int findOpenRect(int openCount, int x, int w) {
+        for (int i = 0; i < openCount; i++) {
+            int rect = openRects[i];
+            if (rects[rect * 4] == x && rects[rect * 4 + 2] == w) {
+                return rect;
+            }
+        }
+
+        return -1;
+    }
+
+    private int addRect(int x, int y, int w, int h) {
+        if ((rectCount + 1) * 4 > rects.length) {
+            rects = Arrays.copyOf(rects, rects.length * 2);
+        }
+
+        int base = rectCount * 4;
+        rects[base] = x;
+        rects[base + 1] = y;
+        rects[base + 2] = w;
+        rects[base + 3] = h;
+        return rectCount++;
+    }
+}
@@ -0,0 +1,327 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+//--------------------------------------------------
+// class FrameIngest
+//--------------------------------------------------
+
+// The ingest path shared by ScreenCaptureManager and CapturePipeline: rate limiting against a
+// busy consumer, tile diff, a measured copy into a pooled frame, fan-out on a FrameBus and a
+// latest-wins hand-off to one consumer. The caller owns the frame storage and the threads; per
+// frame it calls admit(), isUnchanged(), open(), copy() and publish() on the capture thread,
+// and take() on the consumer thread whenever publish() asks for it.
+// Scaled outputs, e.g. a notification thumbnail and a medium frame for analysis, are made from
+// RGBA_8888 frames during copy(), in one Downscaler pass for all of them.
+public class FrameIngest<T> {
+
+    //--------------------------------------------------
+    // class ScaledOutput
+    //--------------------------------------------------
+
+    // The latest frame fitted into maxWidth x maxHeight, keeping its aspect ratio and never
+    // scaled up. Filled on the capture thread, read on any.
+    public static final class ScaledOutput {
+
+        public interface Reader {
+            // pixels are packed RGBA_8888, width * 4 bytes per row, valid during the call only
+            void read(byte[] pixels, int width, int height, long timestampNanos);
+        }
+
+        private final int maxWidth;
+        private final int maxHeight;
+        private final Downscaler.Filter filter;
+
+        // guarded by this
+        private byte[] pixels = new byte[0];
+        private int width;
+        private int height;
+        private long timestampNanos;
+        private boolean valid;
+
+        ScaledOutput(int maxWidth, int maxHeight, Downscaler.Filter filter) {
+            if (maxWidth <= 0 || maxHeight <= 0) {
+                throw new IllegalArgumentException("bad size: " + maxWidth + "x" + maxHeight);
+            }
+
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.filter = filter;
+        }
+
+        // Hands the latest scaled frame to reader under the output's lock; false when there
+        // has been none this session.
+        public synchronized boolean read(Reader reader) {
+            if (!valid) {
+                return false;
+            }
+
+            reader.read(pixels, width, height, timestampNanos);
+            return true;
+        }
+
+        synchronized void update(Downscaler.Output output, long timestampNanos) {
+            int size = output.getWidth() * output.getHeight() * 4;
+            if (pixels.length < size) {
+                pixels = new byte[size];
+            }
+            System.arraycopy(output.getPixels(), 0, pixels, 0, size);
+            width = output.getWidth();
+            height = output.getHeight();
+            this.timestampNanos = timestampNanos;
+            valid = true;
+        }
+
+        synchronized void clear() {
+            valid = false;
+        }
+
+        Downscaler.Output addTo(Downscaler downscaler) {
+            return downscaler.addFittedOutput(maxWidth, maxHeight, filter);
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final CaptureMetrics metrics;
+    private final FrameBus<T> frameBus = new FrameBus<>();
+    private final FrameMailbox<Frame<T>> mailbox = new FrameMailbox<>();
+
+    private volatile CaptureRatePolicy ratePolicy = new CaptureRatePolicy(CaptureRatePolicy.UNLIMITED_FPS, true);
+    // capture thread only
+    private TileDiffer tileDiffer;
+    private FrameAnalyzer frameAnalyzer;
+    // capture thread only; keeps counting across sessions
+    private long frameSequence;
+    private final FrameAnalyzer.Stats analyzerStats = new FrameAnalyzer.Stats();
+    private boolean analyzerStatsValid;
+    // handed to the consumer like pendingAcquireNanos, under its own lock
+    private final FrameAnalyzer.Stats pendingStats = new FrameAnalyzer.Stats();
+    private boolean pendingStatsValid;
+    // written by the capture thread before the frame goes into the mailbox; a frame that
+    // supersedes another between take() and the read can skew one sample by a frame interval
+    private volatile long pendingAcquireNanos;
+    private volatile long publishedCount;
+
+    private final Object outputLock = new Object();
+    private volatile ScaledOutput[] scaledOutputs = new ScaledOutput[0];
+    // capture thread only; rebuilt when the frame size or the outputs change
+    private Downscaler downscaler;
+    private ScaledOutput[] downscalerTargets;
+    private Downscaler.Output[] downscalerOutputs;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public FrameIngest(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Capture thread, before a session. tileDiffer and frameAnalyzer may be null to skip the
+    // diff and the measurement.
+    public void configure(CaptureRatePolicy ratePolicy, TileDiffer tileDiffer, FrameAnalyzer frameAnalyzer) {
+        this.ratePolicy = ratePolicy;
+        this.tileDiffer = tileDiffer;
+        this.frameAnalyzer = frameAnalyzer;
+        for (ScaledOutput output : scaledOutputs) {
+            output.clear();
+        }
+    }
+
+    // Any thread; takes effect from the next frame.
+    public ScaledOutput addScaledOutput(int maxWidth, int maxHeight, Downscaler.Filter filter) {
+        ScaledOutput output = new ScaledOutput(maxWidth, maxHeight, filter);
+        synchronized (outputLock) {
+            ScaledOutput[] current = scaledOutputs;
+            ScaledOutput[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = output;
+            scaledOutputs = next;
+        }
+        return output;
+    }
+
+    // Any thread; takes effect from the next frame. Frames are no longer scaled at all once
+    // the last output is gone.
+    public void removeScaledOutput(ScaledOutput output) {
+        synchronized (outputLock) {
+            ScaledOutput[] current = scaledOutputs;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == output) {
+                    ScaledOutput[] next = new ScaledOutput[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, next.length - i);
+                    scaledOutputs = next;
+                    break;
+                }
+            }
+        }
+    }
+
+    public CaptureMetrics getMetrics() {
+        return metrics;
+    }
+
+    public FrameBus<T> getFrameBus() {
+        return frameBus;
+    }
+
+    public CaptureRatePolicy getRatePolicy() {
+        return ratePolicy;
+    }
+
+    public TileDiffer getTileDiffer() {
+        return tileDiffer;
+    }
+
+    // Frames that reached the bus, delivered to the consumer or not.
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    // Capture thread, first for every acquired frame. false: let the frame go.
+    public boolean admit(long nowNanos) {
+        metrics.onFrameAcquired();
+        analyzerStatsValid = false;
+
+        if (!ratePolicy.admit(nowNanos, !mailbox.isEmpty())) {
+            metrics.onFrameDropped();
+            return false;
+        }
+        return true;
+    }
+
+    // Capture thread. true when the plane is the previous frame again: no copy, no delivery,
+    // no consumer wake-up. The differ hashes 4-byte units, which is 2 pixels of RGB_565 and 4
+    // of a Y plane; rows that are not a whole number of units are never compared.
+    public boolean isUnchanged(ByteBuffer plane, int width, int height, int rowStride, int pixelStride) {
+        int rowBytes = width * pixelStride;
+        if (tileDiffer == null || (rowBytes & 3) != 0) {
+            return false;
+        }
+
+        long diffStartNanos = System.nanoTime();
+        FrameDiff diff = tileDiffer.diff(plane, rowBytes >> 2, height, rowStride);
+        metrics.recordStage(CaptureMetrics.STAGE_DIFF, System.nanoTime() - diffStartNanos);
+        if (diff.isUnchanged()) {
+            metrics.onFrameUnchanged();
+            return true;
+        }
+        return false;
+    }
+
+    // Capture thread. Opens a pooled frame with the next sequence number.
+    public Frame<T> open(Frame<T> frame, long timestampNanos, int width, int height,
+                         Frame.Recycler<T> recycler) {
+        return frame.open(timestampNanos, ++frameSequence, width, height, recycler);
+    }
+
+    // Capture thread. Packs a plane of 4- or 2-byte pixels into dst, measuring the full-size
+    // pixels in the same pass when there is an analyzer, and makes the scaled outputs of
+    // 4-byte frames. With a null dst a tightly packed plane is only measured and scaled, for
+    // callers that can take it as it is. src is left as it was.
+    public void copy(ByteBuffer src, int width, int height, int rowStride, int pixelStride,
+                     long timestampNanos, ByteBuffer dst) {
+        if (pixelStride == 4) {
+            scale(src, width, height, rowStride, timestampNanos);
+        }
+
+        if (frameAnalyzer != null) {
+            frameAnalyzer.copy(src, width, height, rowStride, pixelStride, dst, timestampNanos, analyzerStats);
+            analyzerStatsValid = true;
+        } else if (dst != null) {
+            FrameCopier.copy(src, width, height, rowStride, pixelStride, dst);
+        }
+    }
+
+    // Capture thread, once the frame is filled; the frame's reference passes to the ingest.
+    // Returns true when the consumer has to be woken to take() it, false when a wake-up is
+    // already on its way.
+    public boolean publish(Frame<T> frame, long acquireNanos, long copyStartNanos, long copyEndNanos) {
+        metrics.recordStage(CaptureMetrics.STAGE_COPY, copyEndNanos - copyStartNanos);
+        frameBus.publish(frame, copyEndNanos);
+        publishedCount++;
+
+        pendingAcquireNanos = acquireNanos;
+        synchronized (pendingStats) {
+            pendingStatsValid = analyzerStatsValid;
+            if (analyzerStatsValid) {
+                pendingStats.copyFrom(analyzerStats);
+            }
+        }
+
+        Frame<T> superseded = mailbox.offer(frame);
+        if (superseded != null) {
+            ratePolicy.onSuperseded();
+            metrics.onFrameDropped();
+            superseded.release();
+            return false;
+        }
+        return true;
+    }
+
+    // Consumer thread. The latest published frame, which the caller now owns, or null when
+    // an earlier take() got it.
+    public Frame<T> take(long nowNanos) {
+        Frame<T> frame = mailbox.take();
+        if (frame != null) {
+            ratePolicy.onDelivered();
+            metrics.onFrameDelivered();
+            metrics.recordStage(CaptureMetrics.STAGE_ACQUIRE_TO_DELIVER, nowNanos - pendingAcquireNanos);
+        }
+        return frame;
+    }
+
+    // Consumer thread, after take(). Copies the measurements of the frame taken into stats;
+    // false when it was not measured.
+    public boolean takeStats(FrameAnalyzer.Stats stats) {
+        synchronized (pendingStats) {
+            if (pendingStatsValid) {
+                stats.copyFrom(pendingStats);
+            }
+            return pendingStatsValid;
+        }
+    }
+
+    // Capture thread.
+    private void scale(ByteBuffer src, int width, int height, int rowStride, long timestampNanos) {
+        ScaledOutput[] targets = scaledOutputs;
+        if (targets.length == 0) {
+            return;
+        }
+
+        if (downscaler == null || downscalerTargets != targets
+                || downscaler.getSourceWidth() != width || downscaler.getSourceHeight() != height) {
+            downscaler = new Downscaler(width, height);
+            downscalerTargets = targets;
+            downscalerOutputs = new Downscaler.Output[targets.length];
+            for (int i = 0; i < targets.length; i++) {
+                downscalerOutputs[i] = targets[i].addTo(downscaler);
+            }
+        }
+
+        downscaler.scale(src, rowStride);
+        for (int i = 0; i < targets.length; i++) {
+            targets[i].update(downscalerOutputs[i], timestampNanos);
+        }
+    }
+
+    // Any thread, at the end of a session: releases a frame the consumer never took.
+    public void discardPending() {
+        Frame<T> frame = mailbox.take();
+        if (frame != null) {
+            frame.release();
+        }
+    }
+}
@@ -0,0 +1,855 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+
+//--------------------------------------------------
+// class FrameJournal
+//--------------------------------------------------
+
+// Append-only, on-disk history of timestamped records, e.g. DeltaProtocol frames (see
+// FrameJournalRecorder). Records go into segment files of about segmentBytes; a new segment
+// only starts at a keyframe, so every segment decodes on its own and evicting the oldest
+// ones, by total size or by age, never breaks a chain. Each sealed segment has a compact
+// index file of timestamps and offsets; lookups by time are binary searches.
+//
+// append() only copies into a batch; the batch is written by one task on ioExecutor, so the
+// capture side never waits for the disk. Opening a journal recovers it: a torn or corrupt
+// tail left by a crash is cut off, and missing or stale index files are rebuilt by scanning.
+// Timestamps must not decrease, across sessions too.
+//
+// Records are lost when the batch outgrows MAX_BATCH_BYTES or a write fails. Since a lost
+// record can break a delta chain, the journal then takes nothing but a keyframe: append()
+// refuses everything else, and records already batched behind the loss are dropped up to the
+// next keyframe. A caller that gets false from append() should make its next record a keyframe.
+public class FrameJournal implements Closeable {
+
+    public static final long UNLIMITED = 0;
+
+    static final int SEGMENT_MAGIC = 0x504a5347;
+    static final int INDEX_MAGIC = 0x504a4958;
+    static final short VERSION = 1;
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+
+    // magic, version, reserved
+    static final int SEGMENT_HEADER_LENGTH = 8;
+    // payload length, payload CRC-32, timestamp, flags
+    static final int RECORD_HEADER_LENGTH = 17;
+    // magic, version, reserved, entry count, segment length
+    static final int INDEX_HEADER_LENGTH = 16;
+    // timestamp, offset, flags
+    static final int INDEX_ENTRY_LENGTH = 13;
+
+    private static final byte FLAG_KEYFRAME = 1;
+    // appends past this while the disk is behind are dropped rather than buffered
+    private static final int MAX_BATCH_BYTES = 32 << 20;
+    private static final int INITIAL_BATCH_BYTES = 64 << 10;
+
+
+    //--------------------------------------------------
+    // class Entry
+    //--------------------------------------------------
+
+    // A record's place in the journal, filled in by seek() and next().
+    public static final class Entry {
+        private Segment segment;
+        private int index;
+        private long timestampNanos;
+        private boolean keyframe;
+        private int offset;
+        private int length;
+
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        public boolean isKeyframe() {
+            return keyframe;
+        }
+
+        // Of the payload.
+        public int getLength() {
+            return length;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private final Executor ioExecutor;
+
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment activeSegment;
+    private ByteBuffer batch = ByteBuffer.allocate(INITIAL_BATCH_BYTES);
+    private ByteBuffer spareBatch = ByteBuffer.allocate(INITIAL_BATCH_BYTES);
+    private long lastTimestampNanos = Long.MIN_VALUE;
+    private boolean flushScheduled;
+    // records were lost; only a keyframe restarts the chain
+    private boolean keyframeNeeded;
+    private boolean closed;
+    private final CRC32 appendCrc = new CRC32();
+
+    // file writes, whichever thread flushes
+    private final Object ioLock = new Object();
+    private final CRC32 scanCrc = new CRC32();
+
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong writeErrorCount = new AtomicLong();
+    private final AtomicLong evictedSegmentCount = new AtomicLong();
+    private long recoveredBytes;
+    private int rebuiltIndexCount;
+
+    private final Runnable flushRunnable = this::flushQuietly;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    // maxBytes and maxAgeNanos of UNLIMITED keep everything. Recovers what is in directory.
+    public FrameJournal(File directory, long segmentBytes, long maxBytes, long maxAgeNanos,
+                        Executor ioExecutor) throws IOException {
+        if (segmentBytes <= SEGMENT_HEADER_LENGTH || segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad segmentBytes: " + segmentBytes);
+        }
+        if (maxBytes < 0 || maxAgeNanos < 0) {
+            throw new IllegalArgumentException("negative limit");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+        this.ioExecutor = ioExecutor;
+
+        try {
+            recover();
+            long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+            activeSegment = Segment.create(directory, number);
+            segments.add(activeSegment);
+            evict();
+        } catch (IOException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    // Records refused or discarded: the unwritten batch was full, or a record followed a loss
+    // before the next keyframe.
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    // Batches lost to a failed write.
+    public long getWriteErrorCount() {
+        return writeErrorCount.get();
+    }
+
+    // Records were lost and the journal waits for a keyframe.
+    public synchronized boolean isKeyframeNeeded() {
+        return keyframeNeeded;
+    }
+
+    public long getEvictedSegmentCount() {
+        return evictedSegmentCount.get();
+    }
+
+    // Bytes cut off torn or corrupt segment tails when the journal was opened.
+    public long getRecoveredBytes() {
+        return recoveredBytes;
+    }
+
+    // Index files rebuilt by scanning their segment when the journal was opened.
+    public int getRebuiltIndexCount() {
+        return rebuiltIndexCount;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Written records, which is what seek() and next() see.
+    public synchronized long getEntryCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    public synchronized long getByteCount() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.length;
+        }
+        return bytes;
+    }
+
+    // Copies payload's remaining bytes. Never blocks on I/O. Returns false when the record is
+    // dropped (see getDroppedCount()).
+    public boolean append(long timestampNanos, boolean keyframe, ByteBuffer payload) {
+        return append(timestampNanos, keyframe, payload, null);
+    }
+
+    // Stores first and then second as one record's payload; second may be null.
+    public boolean append(long timestampNanos, boolean keyframe, ByteBuffer first, ByteBuffer second) {
+        int length = first.remaining() + (second != null ? second.remaining() : 0);
+        boolean schedule;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("closed");
+            }
+            if (timestampNanos < lastTimestampNanos) {
+                throw new IllegalArgumentException("timestamp " + timestampNanos
+                        + " before " + lastTimestampNanos);
+            }
+
+            int recordLength = RECORD_HEADER_LENGTH + length;
+            if (batch.position() > 0 && batch.position() + recordLength > MAX_BATCH_BYTES) {
+                droppedCount.incrementAndGet();
+                keyframeNeeded = true;
+                return false;
+            }
+            if (keyframeNeeded && !keyframe) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            keyframeNeeded = false;
+            if (batch.remaining() < recordLength) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + recordLength));
+                batch.flip();
+                grown.put(batch);
+                batch = grown;
+            }
+
+            appendCrc.reset();
+            appendCrc.update(first.duplicate());
+            if (second != null) {
+                appendCrc.update(second.duplicate());
+            }
+            batch.putInt(length);
+            batch.putInt((int) appendCrc.getValue());
+            batch.putLong(timestampNanos);
+            batch.put(keyframe ? FLAG_KEYFRAME : 0);
+            batch.put(first.duplicate());
+            if (second != null) {
+                batch.put(second.duplicate());
+            }
+
+            lastTimestampNanos = timestampNanos;
+            appendedCount.incrementAndGet();
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+
+        if (schedule) {
+            try {
+                ioExecutor.execute(flushRunnable);
+            } catch (RejectedExecutionException e) {
+                // the batch waits for the next append
+                synchronized (this) {
+                    flushScheduled = false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Writes everything appended so far on the calling thread. Mostly for tests and for
+    // inspecting a journal that is still being written.
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            ByteBuffer pending;
+            synchronized (this) {
+                flushScheduled = false;
+                if (batch.position() == 0) {
+                    return;
+                }
+                pending = batch;
+                batch = spareBatch;
+                spareBatch = null;
+            }
+
+            try {
+                pending.flip();
+                write(pending);
+            } catch (IOException e) {
+                writeErrorCount.incrementAndGet();
+                synchronized (this) {
+                    keyframeNeeded = true;
+                    dropUntilKeyframe();
+                }
+                throw e;
+            } finally {
+                pending.clear();
+                synchronized (this) {
+                    spareBatch = pending;
+                    evict();
+                }
+            }
+            batchCount.incrementAndGet();
+        }
+    }
+
+    // The last record at or before timestampNanos, or the last keyframe if keyframe is set.
+    // Returns false when there is none.
+    public synchronized boolean seek(long timestampNanos, boolean keyframe, Entry out) {
+        // the last segment starting at or before the time, then back while it has no keyframe;
+        // only the active segment can be empty
+        int low = 0;
+        int high = segments.size() - 1;
+        if (high >= 0 && segments.get(high).count == 0) {
+            high--;
+        }
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (segments.get(middle).timestamps[0] <= timestampNanos) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        for (int i = found; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            int index = keyframe ? segment.floorKeyframe(timestampNanos) : segment.floor(timestampNanos);
+            if (index >= 0) {
+                fill(segment, index, out);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves entry to the record after it. Returns false at the end or when its segment is gone.
+    public synchronized boolean next(Entry entry) {
+        Segment segment = entry.segment;
+        if (entry.index + 1 < segment.count) {
+            fill(segment, entry.index + 1, entry);
+            return true;
+        }
+
+        int i = segments.indexOf(segment);
+        if (i < 0) {
+            return false;
+        }
+        for (i++; i < segments.size(); i++) {
+            if (segments.get(i).count > 0) {
+                fill(segments.get(i), 0, entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reads the entry's payload into dst, which must have room for it. Throws IOException
+    // if the segment has been evicted meanwhile.
+    public void read(Entry entry, ByteBuffer dst) throws IOException {
+        if (dst.remaining() < entry.length) {
+            throw new IllegalArgumentException("no room for " + entry.length + " bytes");
+        }
+
+        int limit = dst.limit();
+        dst.limit(dst.position() + entry.length);
+        try {
+            readFully(entry.segment.channel, dst, entry.offset + RECORD_HEADER_LENGTH);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    // Writes what is pending and seals the active segment.
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        synchronized (ioLock) {
+            try {
+                flush();
+                seal(activeSegment);
+            } finally {
+                synchronized (this) {
+                    closeSegments();
+                }
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void fill(Segment segment, int index, Entry out) {
+        out.segment = segment;
+        out.index = index;
+        out.timestampNanos = segment.timestamps[index];
+        out.keyframe = (segment.flags[index] & FLAG_KEYFRAME) != 0;
+        out.offset = segment.offsets[index];
+        long end = index + 1 < segment.count ? segment.offsets[index + 1] : segment.length;
+        out.length = (int) (end - out.offset - RECORD_HEADER_LENGTH);
+    }
+
+    // I/O executor.
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            // counted by flush()
+        }
+    }
+
+    // Holding this, after a loss: drops the batched records ahead of the first keyframe, which
+    // may depend on what was lost.
+    private void dropUntilKeyframe() {
+        int end = batch.position();
+        int offset = 0;
+        while (offset < end && (batch.get(offset + RECORD_HEADER_LENGTH - 1) & FLAG_KEYFRAME) == 0) {
+            offset += RECORD_HEADER_LENGTH + batch.getInt(offset);
+            droppedCount.incrementAndGet();
+        }
+        if (offset == end) {
+            batch.clear();
+            return;
+        }
+
+        ByteBuffer rest = batch.duplicate();
+        rest.position(offset).limit(end);
+        batch.clear();
+        batch.put(rest);
+        keyframeNeeded = false;
+    }
+
+    // Holding ioLock. Writes runs of whole records, starting a new segment before a keyframe
+    // once the active one is full.
+    private void write(ByteBuffer pending) throws IOException {
+        int runStart = pending.position();
+        int end = pending.limit();
+        Segment segment = activeSegment;
+        long segmentLength = segment.length;
+        long runLength = 0;
+
+        for (int p = runStart; p < end; ) {
+            int recordLength = RECORD_HEADER_LENGTH + pending.getInt(p);
+            boolean keyframe = (pending.get(p + 16) & FLAG_KEYFRAME) != 0;
+            if (keyframe && segmentLength + runLength + recordLength > segmentBytes
+                    && (segment.count > 0 || runLength > 0)) {
+                writeRun(segment, pending, runStart, p);
+                seal(segment);
+                segment = Segment.create(directory, segment.number + 1);
+                synchronized (this) {
+                    segments.add(segment);
+                    activeSegment = segment;
+                }
+                segmentLength = segment.length;
+                runStart = p;
+                runLength = 0;
+            }
+            runLength += recordLength;
+            p += recordLength;
+        }
+        writeRun(segment, pending, runStart, end);
+    }
+
+    // Writes the records in [from, to) and only then indexes them.
+    private void writeRun(Segment segment, ByteBuffer pending, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+
+        ByteBuffer run = pending.duplicate();
+        run.limit(to);
+        run.position(from);
+        long position = segment.length;
+        while (run.hasRemaining()) {
+            position += segment.channel.write(run, position);
+        }
+
+        synchronized (this) {
+            long offset = segment.length;
+            for (int p = from; p < to; ) {
+                int recordLength = RECORD_HEADER_LENGTH + pending.getInt(p);
+                segment.add(pending.getLong(p + 8), (int) offset, pending.get(p + 16));
+                offset += recordLength;
+                p += recordLength;
+            }
+            segment.length = offset;
+        }
+    }
+
+    // Holding ioLock. The index goes to a temporary file first, so a crash leaves either the
+    // old index or none, never a torn one.
+    private void seal(Segment segment) throws IOException {
+        if (segment.count == 0) {
+            synchronized (this) {
+                segments.remove(segment);
+            }
+            segment.delete();
+            return;
+        }
+
+        segment.channel.force(false);
+        segment.writeIndex();
+    }
+
+    // Holding this. The active segment always stays.
+    private void evict() {
+        long newestNanos = lastTimestampNanos;
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.length;
+        }
+
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            boolean tooBig = maxBytes != UNLIMITED && total > maxBytes;
+            boolean tooOld = maxAgeNanos != UNLIMITED && oldest.count > 0
+                    && newestNanos - oldest.timestamps[oldest.count - 1] > maxAgeNanos;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+
+            segments.remove(0);
+            total -= oldest.length;
+            oldest.delete();
+            evictedSegmentCount.incrementAndGet();
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            throw new IOException("cannot list " + directory);
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            long number;
+            try {
+                number = Long.parseLong(file.getName().substring(0,
+                        file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            Segment segment = Segment.open(directory, number);
+            if (!segment.readIndex()) {
+                recoveredBytes += scan(segment);
+                if (segment.count > 0) {
+                    segment.writeIndex();
+                    rebuiltIndexCount++;
+                }
+            }
+
+            if (segment.count == 0 || segment.timestamps[0] < lastTimestampNanos) {
+                // nothing usable, or out of order with what came before
+                segment.delete();
+                continue;
+            }
+            segments.add(segment);
+            lastTimestampNanos = segment.timestamps[segment.count - 1];
+        }
+    }
+
+    // Indexes every intact record and truncates the file after the last one. Returns the
+    // number of bytes cut off.
+    private long scan(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(Math.max(RECORD_HEADER_LENGTH, SEGMENT_HEADER_LENGTH));
+        ByteBuffer payload = ByteBuffer.allocate(0);
+
+        header.limit(SEGMENT_HEADER_LENGTH);
+        if (size < SEGMENT_HEADER_LENGTH || !tryRead(channel, header, 0)
+                || header.getInt(0) != SEGMENT_MAGIC || header.getShort(4) != VERSION) {
+            // not even a header; the caller drops it
+            return size;
+        }
+
+        long position = SEGMENT_HEADER_LENGTH;
+        long previousNanos = Long.MIN_VALUE;
+        while (position + RECORD_HEADER_LENGTH <= size) {
+            header.clear();
+            header.limit(RECORD_HEADER_LENGTH);
+            if (!tryRead(channel, header, position)) {
+                break;
+            }
+            int length = header.getInt(0);
+            long timestampNanos = header.getLong(8);
+            if (length < 0 || position + RECORD_HEADER_LENGTH + length > size
+                    || timestampNanos < previousNanos) {
+                break;
+            }
+
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear();
+            payload.limit(length);
+            if (!tryRead(channel, payload, position + RECORD_HEADER_LENGTH)) {
+                break;
+            }
+            payload.flip();
+            scanCrc.reset();
+            scanCrc.update(payload);
+            if ((int) scanCrc.getValue() != header.getInt(4)) {
+                break;
+            }
+
+            segment.add(timestampNanos, (int) position, header.get(16));
+            previousNanos = timestampNanos;
+            position += RECORD_HEADER_LENGTH + length;
+        }
+
+        segment.length = position;
+        if (position < size) {
+            channel.truncate(position);
+            channel.force(false);
+        }
+        return size - position;
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments) {
+            closeQuietly(segment.channel);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        if (!tryRead(channel, dst, position)) {
+            throw new IOException("unexpected end of segment");
+        }
+    }
+
+    private static boolean tryRead(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                return false;
+            }
+            position += n;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class Segment
+    //--------------------------------------------------
+
+    // One segment file and its index. The index arrays are guarded by the journal's lock.
+    private static final class Segment {
+        final long number;
+        final File file;
+        final File indexFile;
+        final FileChannel channel;
+
+        long length;
+        int count;
+        long[] timestamps = new long[64];
+        int[] offsets = new int[64];
+        byte[] flags = new byte[64];
+        // entry indices of the keyframes, for keyframe seeks
+        int keyframeCount;
+        int[] keyframes = new int[8];
+
+        private Segment(File directory, long number, FileChannel channel) {
+            this.number = number;
+            String name = String.format("%016d", number);
+            file = new File(directory, name + SEGMENT_SUFFIX);
+            indexFile = new File(directory, name + INDEX_SUFFIX);
+            this.channel = channel;
+        }
+
+        static Segment create(File directory, long number) throws IOException {
+            File file = new File(directory, String.format("%016d", number) + SEGMENT_SUFFIX);
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(directory, number, channel);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+                header.putInt(SEGMENT_MAGIC).putShort(VERSION).putShort((short) 0).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+            } catch (IOException e) {
+                closeQuietly(channel);
+                throw e;
+            }
+            segment.length = SEGMENT_HEADER_LENGTH;
+            return segment;
+        }
+
+        static Segment open(File directory, long number) throws IOException {
+            File file = new File(directory, String.format("%016d", number) + SEGMENT_SUFFIX);
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            return new Segment(directory, number, channel);
+        }
+
+        void add(long timestampNanos, int offset, byte flag) {
+            if (count == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                flags = Arrays.copyOf(flags, count * 2);
+            }
+            timestamps[count] = timestampNanos;
+            offsets[count] = offset;
+            flags[count] = flag;
+            if ((flag & FLAG_KEYFRAME) != 0) {
+                if (keyframeCount == keyframes.length) {
+                    keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+                }
+                keyframes[keyframeCount++] = count;
+            }
+            count++;
+        }
+
+        // Last entry at or before timestampNanos, or -1.
+        int floor(long timestampNanos) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[middle] <= timestampNanos) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high;
+        }
+
+        int floorKeyframe(long timestampNanos) {
+            int low = 0;
+            int high = keyframeCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (timestamps[keyframes[middle]] <= timestampNanos) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return high >= 0 ? keyframes[high] : -1;
+        }
+
+        void writeIndex() throws IOException {
+            ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_LENGTH + count * INDEX_ENTRY_LENGTH);
+            index.putInt(INDEX_MAGIC).putShort(VERSION).putShort((short) 0);
+            index.putInt(count).putInt((int) length);
+            for (int i = 0; i < count; i++) {
+                index.putLong(timestamps[i]).putInt(offsets[i]).put(flags[i]);
+            }
+            index.flip();
+
+            File temporary = new File(indexFile.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (index.hasRemaining()) {
+                    out.write(index);
+                }
+                out.force(false);
+            }
+            Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // False when there is no usable index for the segment as it is on disk.
+        boolean readIndex() throws IOException {
+            if (!indexFile.isFile()) {
+                return false;
+            }
+
+            ByteBuffer index;
+            try (FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                long size = in.size();
+                if (size < INDEX_HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                    return false;
+                }
+                index = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            int entryCount = index.getInt(8);
+            long segmentLength = index.getInt(12) & 0xffffffffL;
+            if (index.getInt(0) != INDEX_MAGIC || index.getShort(4) != VERSION || entryCount <= 0
+                    || index.capacity() != INDEX_HEADER_LENGTH + (long) entryCount * INDEX_ENTRY_LENGTH
+                    || segmentLength != channel.size()) {
+                return false;
+            }
+
+            index.position(INDEX_HEADER_LENGTH);
+            for (int i = 0; i < entryCount; i++) {
+                add(index.getLong(), index.getInt(), index.get());
+            }
+            length = segmentLength;
+            return true;
+        }
+
+        void delete() {
+            closeQuietly(channel);
+            file.delete();
+            indexFile.delete();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class FrameJournalRecorder
+//--------------------------------------------------
+
+// Records packed RGBA_8888 frames from a FrameBus into a FrameJournal as DeltaProtocol
+// messages: a keyframe every keyframeInterval recorded frames and on size changes, deltas of
+// the changed tiles in between, nothing for unchanged frames. Journal time is the frame
+// timestamp plus epochOffsetNanos; pass the wall clock minus the frame clock so a journal
+// kept across sessions stays in order. A record the journal drops restarts the chain with a
+// keyframe. Subscribe it on a serial executor.
+public class FrameJournalRecorder implements FrameBus.Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final FrameJournal journal;
+    private final int keyframeInterval;
+    private final long epochOffsetNanos;
+
+    private final DeltaEncoder encoder;
+    private final DeltaEncoder.Message message = new DeltaEncoder.Message();
+    private boolean[] tiles = new boolean[0];
+    private int sequence;
+    private int framesSinceKeyframe;
+    private long lastTimestampNanos = Long.MIN_VALUE;
+
+    private volatile long recordedCount;
+    private volatile long unchangedCount;
+    private volatile long droppedCount;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public FrameJournalRecorder(FrameJournal journal, int tileSize, int keyframeInterval,
+                                long epochOffsetNanos) {
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("bad keyframeInterval: " + keyframeInterval);
+        }
+
+        this.journal = journal;
+        this.keyframeInterval = keyframeInterval;
+        this.epochOffsetNanos = epochOffsetNanos;
+        encoder = new DeltaEncoder(tileSize, true);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public long getRecordedCount() {
+        return recordedCount;
+    }
+
+    public long getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    // Frames the journal refused.
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // Frees the encoder; the journal is left open.
+    public void close() {
+        encoder.close();
+    }
+
+    // Decodes the journal's picture as of timestampNanos (journal time) into decoder: from
+    // the last keyframe at or before it, through every later record up to it. scratch must
+    // hold the largest record. Returns false when no keyframe precedes the time.
+    public static boolean decodeAt(FrameJournal journal, long timestampNanos, DeltaDecoder decoder,
+                                   ByteBuffer scratch) throws IOException {
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        if (!journal.seek(timestampNanos, true, entry)) {
+            return false;
+        }
+
+        do {
+            scratch.clear();
+            journal.read(entry, scratch);
+            scratch.flip();
+            decoder.decode(scratch);
+        } while (journal.next(entry) && entry.getTimestampNanos() <= timestampNanos);
+        return true;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private boolean isKeyframeDue(FrameDiff diff) {
+        return diff.isFull() || framesSinceKeyframe >= keyframeInterval || journal.isKeyframeNeeded();
+    }
+
+    private void record(Frame<ByteBuffer> frame) {
+        ByteBuffer pixels = frame.get();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        FrameDiff diff = encoder.diff(pixels, width, height, width << 2);
+
+        if (!diff.isFull() && diff.isUnchanged()) {
+            unchangedCount++;
+            return;
+        }
+
+        boolean keyframe = isKeyframeDue(diff);
+        boolean[] dirty = null;
+        if (!keyframe) {
+            dirty = dirtyTiles(diff);
+        }
+        encoder.encode(pixels, width, height, width << 2, dirty, sequence++,
+                frame.getTimestampNanos(), message);
+
+        long timestampNanos = Math.max(lastTimestampNanos, frame.getTimestampNanos() + epochOffsetNanos);
+        lastTimestampNanos = timestampNanos;
+        if (!journal.append(timestampNanos, keyframe, message.getHeader(), message.getPayload())) {
+            // the encoder thinks this frame is stored: start over with a keyframe
+            encoder.reset();
+            framesSinceKeyframe = keyframeInterval;
+            droppedCount++;
+            return;
+        }
+        framesSinceKeyframe = keyframe ? 1 : framesSinceKeyframe + 1;
+        recordedCount++;
+    }
+
+    private boolean[] dirtyTiles(FrameDiff diff) {
+        int columns = diff.getTileColumns();
+        int rows = diff.getTileRows();
+        if (tiles.length != columns * rows) {
+            tiles = new boolean[columns * rows];
+        }
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                tiles[row * columns + column] = diff.isTileDirty(column, row);
+            }
+        }
+        return tiles;
+    }
+
+
+    //--------------------------------------------------
+    // FrameBus.Subscriber Overrides
+    //--------------------------------------------------
+
+    @Override
+    public void onFrame(Frame<ByteBuffer> frame) {
+        try {
+            record(frame);
+        } finally {
+            frame.release();
+        }
+    }
+}
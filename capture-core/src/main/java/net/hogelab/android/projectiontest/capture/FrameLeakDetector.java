@@ -0,0 +1,147 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class FrameLeakDetector
+//--------------------------------------------------
+
+// Debug aid for Frame. Each open() captures a stack trace and keeps a weak reference to the
+// frame; a frame that becomes unreachable without its final release() is a leak, and the
+// reporter gets the site where it was opened. reportOutstanding() additionally lists frames
+// that are still reachable but have been held longer than expected.
+// Costs a Throwable per frame, so install it in debug builds only.
+public class FrameLeakDetector {
+
+    //--------------------------------------------------
+    // reporter interface
+    //--------------------------------------------------
+
+    public interface Reporter {
+        void onLeak(String description, Throwable openedAt);
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final Reporter reporter;
+    private final ReferenceQueue<Frame<?>> collected = new ReferenceQueue<>();
+    private final Set<Record> live = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong leakCount = new AtomicLong();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public FrameLeakDetector(Reporter reporter) {
+        this.reporter = reporter;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getOutstandingCount() {
+        return live.size();
+    }
+
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    // Reports frames that were garbage collected while still referenced. Also runs on every
+    // open(), so a steady capture session needs no extra calls.
+    public int poll() {
+        int count = 0;
+        Record record;
+        while ((record = (Record) collected.poll()) != null) {
+            if (live.remove(record)) {
+                leakCount.incrementAndGet();
+                reporter.onLeak("leaked " + record.describe() + ", never released", record.openedAt);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Reports frames opened more than minAgeNanos ago and not yet released, e.g. at the end of
+    // a session when every frame should be back in its pool. Does not count them as leaks.
+    public int reportOutstanding(long nowNanos, long minAgeNanos) {
+        poll();
+
+        int count = 0;
+        for (Record record : live) {
+            long ageNanos = nowNanos - record.openedNanos;
+            if (ageNanos >= minAgeNanos) {
+                reporter.onLeak("outstanding " + record.describe() + " for "
+                        + ageNanos / 1_000_000L + "ms", record.lastRetainedAt != null
+                        ? record.lastRetainedAt : record.openedAt);
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    //--------------------------------------------------
+    // package private functions
+    //--------------------------------------------------
+
+    void track(Frame<?> frame) {
+        poll();
+
+        Record record = new Record(this, frame);
+        frame.leakRecord = record;
+        live.add(record);
+    }
+
+
+    //--------------------------------------------------
+    // class Record
+    //--------------------------------------------------
+
+    // One per open(). Copies what it needs from the frame, which is gone by the time a leak
+    // is noticed.
+    static final class Record extends WeakReference<Frame<?>> {
+        private final FrameLeakDetector detector;
+        private final long sequenceNumber;
+        private final int width;
+        private final int height;
+        private final long openedNanos;
+        private final Throwable openedAt;
+        private volatile Throwable lastRetainedAt;
+
+        Record(FrameLeakDetector detector, Frame<?> frame) {
+            super(frame, detector.collected);
+            this.detector = detector;
+            sequenceNumber = frame.getSequenceNumber();
+            width = frame.getWidth();
+            height = frame.getHeight();
+            openedNanos = System.nanoTime();
+            openedAt = new Throwable("frame #" + sequenceNumber + " opened here");
+        }
+
+        void onRetain() {
+            lastRetainedAt = new Throwable("frame #" + sequenceNumber + " last retained here");
+        }
+
+        void untrack() {
+            detector.live.remove(this);
+            clear();
+        }
+
+        String describe() {
+            return "frame #" + sequenceNumber + " " + width + "x" + height;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+//--------------------------------------------------
+// class FrameMailbox
+//--------------------------------------------------
+
+// Single-slot, latest-wins hand-off between the capture thread and one consumer.
+public class FrameMailbox<T> {
+
+    private final AtomicReference<T> slot = new AtomicReference<>();
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Returns the frame that was still waiting and is now superseded, or null.
+    public T offer(T item) {
+        return slot.getAndSet(item);
+    }
+
+    public T take() {
+        return slot.getAndSet(null);
+    }
+
+    public boolean isEmpty() {
+        return slot.get() == null;
+    }
+}
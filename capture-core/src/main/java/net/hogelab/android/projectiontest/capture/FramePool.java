@@ -0,0 +1,111 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class FramePool
+//--------------------------------------------------
+
+// Bounded free list of frame buffers shared between the capture thread and its consumers.
+// acquire() and release() never allocate once the pool is warm.
+public class FramePool<T> {
+
+    //--------------------------------------------------
+    // factory interface
+    //--------------------------------------------------
+
+    public interface Factory<T> {
+        T create();
+        void destroy(T item);
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int capacity;
+    private final Factory<T> factory;
+    private final ArrayBlockingQueue<T> freeItems;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong discardCount = new AtomicLong();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public FramePool(int capacity, Factory<T> factory) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.factory = factory;
+        freeItems = new ArrayBlockingQueue<>(capacity);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getFreeCount() {
+        return freeItems.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    public T acquire() {
+        T item = freeItems.poll();
+        if (item != null) {
+            hitCount.incrementAndGet();
+            return item;
+        }
+
+        missCount.incrementAndGet();
+        return factory.create();
+    }
+
+    public void release(T item) {
+        if (item == null) {
+            return;
+        }
+
+        if (!freeItems.offer(item)) {
+            discardCount.incrementAndGet();
+            factory.destroy(item);
+        }
+    }
+
+    public void clear() {
+        T item;
+        while ((item = freeItems.poll()) != null) {
+            factory.destroy(item);
+        }
+    }
+
+    public void resetCounters() {
+        hitCount.set(0);
+        missCount.set(0);
+        discardCount.set(0);
+    }
+}
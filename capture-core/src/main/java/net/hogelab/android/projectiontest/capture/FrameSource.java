@@ -0,0 +1,25 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// interface FrameSource
+//--------------------------------------------------
+
+// Produces RGBA_8888 frames the way an ImageReader plane does: possibly row-padded, owned by
+// the source, and only valid for the duration of the callback.
+public interface FrameSource {
+
+    interface Listener {
+        // Called on the source's thread, one frame at a time. pixels must not be modified;
+        // its position and limit are to be left as they were.
+        void onFrameAvailable(ByteBuffer pixels, int width, int height, int rowStride,
+                              long timestampNanos);
+    }
+
+    void start(Listener listener);
+
+    // Waits for the source's thread; no callback runs after this returns.
+    void stop();
+}
@@ -0,0 +1,313 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.Arrays;
+
+
+//--------------------------------------------------
+// class HammingIndex
+//--------------------------------------------------
+
+// The most recent capacity 64-bit hashes, each with a long value (a frame timestamp, say),
+// searchable by Hamming distance. Multi-index hashing: the hash is split into four 16-bit
+// substrings, each with its own table, and two hashes at most k apart have some substring at
+// most k / 4 apart, so a search only probes the buckets near the query's substrings. Past
+// MAX_TABLE_RADIUS the probes would outnumber the entries and it scans instead.
+// Every array is allocated up front and the oldest entry is evicted once full, so memory
+// stays flat however long it runs. Not thread safe.
+public class HammingIndex {
+
+    private static final int TABLES = 4;
+    private static final int SUBSTRING_BITS = 64 / TABLES;
+    private static final int BUCKETS = 1 << SUBSTRING_BITS;
+    private static final int BUCKET_MASK = BUCKETS - 1;
+    // per-table search radius probed through the tables: up to 137 buckets per table
+    private static final int MAX_TABLE_RADIUS = 2;
+    private static final int NONE = -1;
+
+
+    //--------------------------------------------------
+    // class Matches
+    //--------------------------------------------------
+
+    // Reusable search results, in no particular order.
+    public static final class Matches {
+        private final long[] values;
+        private final int[] distances;
+        private int count;
+        private boolean truncated;
+
+        public Matches(int capacity) {
+            values = new long[capacity];
+            distances = new int[capacity];
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getValue(int index) {
+            return values[index];
+        }
+
+        public int getDistance(int index) {
+            return distances[index];
+        }
+
+        // More entries matched than there was room for.
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        // false once full
+        private boolean add(long value, int distance) {
+            if (count == values.length) {
+                truncated = true;
+                return false;
+            }
+            values[count] = value;
+            distances[count] = distance;
+            count++;
+            return true;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int capacity;
+    private final long[] hashes;
+    private final long[] values;
+
+    // per table: the first slot of each bucket and doubly linked chains through the slots
+    private final int[][] heads = new int[TABLES][BUCKETS];
+    private final int[][] next;
+    private final int[][] previous;
+
+    // slots are a ring, oldest first
+    private int oldest;
+    private int size;
+
+    // a slot reached through several tables is only looked at once per search
+    private final int[] visits;
+    private int visit;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public HammingIndex(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("bad capacity: " + capacity);
+        }
+
+        this.capacity = capacity;
+        hashes = new long[capacity];
+        values = new long[capacity];
+        next = new int[TABLES][capacity];
+        previous = new int[TABLES][capacity];
+        visits = new int[capacity];
+        for (int[] tableHeads : heads) {
+            Arrays.fill(tableHeads, NONE);
+        }
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        for (int[] tableHeads : heads) {
+            Arrays.fill(tableHeads, NONE);
+        }
+        oldest = 0;
+        size = 0;
+    }
+
+    // Evicts the oldest entry when full.
+    public void add(long hash, long value) {
+        if (size == capacity) {
+            unlink(oldest);
+            oldest = oldest + 1 == capacity ? 0 : oldest + 1;
+            size--;
+        }
+
+        int slot = slotOf(size);
+        hashes[slot] = hash;
+        values[slot] = value;
+        for (int table = 0; table < TABLES; table++) {
+            int[] tableHeads = heads[table];
+            int bucket = substring(hash, table);
+            int head = tableHeads[bucket];
+            next[table][slot] = head;
+            previous[table][slot] = NONE;
+            if (head != NONE) {
+                previous[table][head] = slot;
+            }
+            tableHeads[bucket] = slot;
+        }
+        size++;
+    }
+
+    // Collects the entries at most maxDistance from hash and returns how many there are.
+    public int search(long hash, int maxDistance, Matches out) {
+        out.count = 0;
+        out.truncated = false;
+        find(hash, maxDistance, size, out);
+        return out.count;
+    }
+
+    // Whether any of the recent most recently added entries is at most maxDistance from hash.
+    public boolean containsWithin(long hash, int maxDistance, int recent) {
+        return find(hash, maxDistance, Math.min(recent, size), null);
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // The ring position counted from the oldest entry.
+    private int slotOf(int age) {
+        int slot = oldest + age;
+        return slot >= capacity ? slot - capacity : slot;
+    }
+
+    private static int substring(long hash, int table) {
+        return (int) (hash >>> (table * SUBSTRING_BITS)) & BUCKET_MASK;
+    }
+
+    private void unlink(int slot) {
+        long hash = hashes[slot];
+        for (int table = 0; table < TABLES; table++) {
+            int[] tableNext = next[table];
+            int[] tablePrevious = previous[table];
+            int after = tableNext[slot];
+            int before = tablePrevious[slot];
+            if (before != NONE) {
+                tableNext[before] = after;
+            } else {
+                heads[table][substring(hash, table)] = after;
+            }
+            if (after != NONE) {
+                tablePrevious[after] = before;
+            }
+        }
+    }
+
+    // Looks at the newest recent entries only. Adds to out, or with out null stops at the
+    // first match; returns whether there was one.
+    private boolean find(long hash, int maxDistance, int recent, Matches out) {
+        if (recent <= 0 || maxDistance < 0) {
+            return false;
+        }
+
+        int radius = maxDistance / TABLES;
+        if (radius > MAX_TABLE_RADIUS) {
+            return scan(hash, maxDistance, recent, out);
+        }
+
+        // entries newer than this are in range
+        int firstSlot = slotOf(size - recent);
+        if (++visit == 0) {
+            Arrays.fill(visits, 0);
+            visit = 1;
+        }
+
+        boolean found = false;
+        for (int table = 0; table < TABLES; table++) {
+            int key = substring(hash, table);
+            if (probe(table, key, hash, maxDistance, firstSlot, out)) {
+                found = true;
+                if (out == null || out.truncated) {
+                    return true;
+                }
+            }
+            for (int i = 0; i < SUBSTRING_BITS && radius >= 1; i++) {
+                int flipped = key ^ (1 << i);
+                if (probe(table, flipped, hash, maxDistance, firstSlot, out)) {
+                    found = true;
+                    if (out == null || out.truncated) {
+                        return true;
+                    }
+                }
+                for (int j = i + 1; j < SUBSTRING_BITS && radius >= 2; j++) {
+                    if (probe(table, flipped ^ (1 << j), hash, maxDistance, firstSlot, out)) {
+                        found = true;
+                        if (out == null || out.truncated) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean probe(int table, int bucket, long hash, int maxDistance, int firstSlot, Matches out) {
+        int[] tableNext = next[table];
+        boolean found = false;
+        for (int slot = heads[table][bucket]; slot != NONE; slot = tableNext[slot]) {
+            if (!isRecent(slot, firstSlot)) {
+                // chains run newest first: the rest of it is older still
+                break;
+            }
+            if (visits[slot] == visit) {
+                continue;
+            }
+            visits[slot] = visit;
+
+            int distance = Long.bitCount(hashes[slot] ^ hash);
+            if (distance <= maxDistance) {
+                found = true;
+                if (out == null || !out.add(values[slot], distance)) {
+                    return true;
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean isRecent(int slot, int firstSlot) {
+        int age = slot - oldest;
+        int firstAge = firstSlot - oldest;
+        return (age < 0 ? age + capacity : age) >= (firstAge < 0 ? firstAge + capacity : firstAge);
+    }
+
+    // The ring holds at most two runs of slots.
+    private boolean scan(long hash, int maxDistance, int recent, Matches out) {
+        int from = slotOf(size - recent);
+        int to = from + recent;
+        boolean found = scan(hash, maxDistance, from, Math.min(to, capacity), out);
+        if (to > capacity && !(found && (out == null || out.truncated))) {
+            found |= scan(hash, maxDistance, 0, to - capacity, out);
+        }
+        return found;
+    }
+
+    private boolean scan(long hash, int maxDistance, int from, int to, Matches out) {
+        long[] candidates = hashes;
+        boolean found = false;
+        for (int slot = from; slot < to; slot++) {
+            int distance = Long.bitCount(candidates[slot] ^ hash);
+            if (distance <= maxDistance) {
+                found = true;
+                if (out == null || !out.add(values[slot], distance)) {
+                    return true;
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,324 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+//--------------------------------------------------
+// class LaneBlockingQueue
+//--------------------------------------------------
+
+// Bounded work queue with FIFO lanes; lower lane numbers are always taken first.
+// Tasks that are not LaneTasks go to the default lane.
+class LaneBlockingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ArrayDeque<Runnable>[] lanes;
+    private final int defaultLane;
+    private final int capacity;
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    LaneBlockingQueue(int laneCount, int defaultLane, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        lanes = newLaneArray(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        this.defaultLane = defaultLane;
+        this.capacity = capacity;
+    }
+
+
+    //--------------------------------------------------
+    // package functions
+    //--------------------------------------------------
+
+    int size(int lane) {
+        lock.lock();
+        try {
+            return lanes[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes the oldest task from the lowest-priority non-empty lane that is not more
+    // important than minLane, or returns null if every queued task outranks it.
+    Runnable pollLeastImportant(int minLane) {
+        lock.lock();
+        try {
+            for (int lane = lanes.length - 1; lane >= minLane; lane--) {
+                Runnable task = lanes[lane].pollFirst();
+                if (task != null) {
+                    count--;
+                    notFull.signal();
+                    return task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    //--------------------------------------------------
+    // BlockingQueue functions
+    //--------------------------------------------------
+
+    @Override
+    public boolean offer(Runnable task) {
+        lock.lock();
+        try {
+            if (count == capacity) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> lane : lanes) {
+                Runnable task = lane.peekFirst();
+                if (task != null) {
+                    return task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> lane : lanes) {
+                if (lane.removeFirstOccurrence(o)) {
+                    count--;
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Weakly consistent: iterates over a copy, remove() goes back to the queue.
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> copy = new ArrayList<>();
+        lock.lock();
+        try {
+            for (ArrayDeque<Runnable> lane : lanes) {
+                copy.addAll(lane);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Iterator<Runnable> iterator = copy.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = iterator.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                LaneBlockingQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    // Generic arrays cannot be created; the elements are only ever ArrayDeque<Runnable>.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Runnable>[] newLaneArray(int length) {
+        return new ArrayDeque[length];
+    }
+
+    private int laneOf(Runnable task) {
+        if (task instanceof WorkerExecutor.LaneTask) {
+            return ((WorkerExecutor.LaneTask) task).lane;
+        }
+        return defaultLane;
+    }
+
+    private void enqueue(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+
+        lanes[laneOf(task)].addLast(task);
+        count++;
+        notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        for (ArrayDeque<Runnable> lane : lanes) {
+            Runnable task = lane.pollFirst();
+            if (task != null) {
+                count--;
+                notFull.signal();
+                return task;
+            }
+        }
+        throw new IllegalStateException("count out of sync");
+    }
+}
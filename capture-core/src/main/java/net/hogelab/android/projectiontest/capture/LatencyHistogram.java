@@ -0,0 +1,163 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+//--------------------------------------------------
+// class LatencyHistogram
+//--------------------------------------------------
+
+// Lock-free histogram of nanosecond durations with fixed log-linear buckets: four sub-buckets per
+// power of two, so any recorded value is reported within 25% of its true value. record() never
+// allocates and may be called from any thread.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // covers up to 2^40ns (about 18 minutes); larger values land in the last bucket
+    private static final int MAX_EXPONENT = 40;
+
+    public static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    public static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return value <= 0 ? 0 : (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int index = SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    public static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public static long bucketUpperBound(int index) {
+        return index == BUCKET_COUNT - 1 ? Long.MAX_VALUE : bucketLowerBound(index + 1) - 1;
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(nanos));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    // Copies the current state; pass the previous snapshot to reuse its storage.
+    public Snapshot snapshot(Snapshot reuse) {
+        Snapshot snapshot = reuse != null ? reuse : new Snapshot();
+
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long bucket = counts.get(i);
+            snapshot.counts[i] = bucket;
+            count += bucket;
+        }
+        // buckets are read one by one while writers keep going; keep count consistent with them
+        snapshot.count = count;
+        snapshot.totalNanos = totalNanos.get();
+        snapshot.maxNanos = maxNanos.get();
+
+        return snapshot;
+    }
+
+
+    //--------------------------------------------------
+    // class Snapshot
+    //--------------------------------------------------
+
+    public static class Snapshot {
+        private final long[] counts = new long[BUCKET_COUNT];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getBucketCount(int index) {
+            return counts[index];
+        }
+
+        // Upper bound of the bucket holding the given quantile (0..1), capped at the maximum seen.
+        public long getPercentileNanos(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(quantile * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+
+            return maxNanos;
+        }
+    }
+}
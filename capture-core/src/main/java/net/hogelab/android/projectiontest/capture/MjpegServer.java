@@ -0,0 +1,571 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class MjpegServer
+//--------------------------------------------------
+
+// Minimal HTTP server for JPEG frames, on one thread with non-blocking sockets.
+//   GET /stream     multipart/x-mixed-replace stream of every published frame
+//   GET /frame.jpg  the current frame, once
+// A frame is encoded once by the caller and the same bytes are written to every client. A
+// client that is still writing one frame when the next arrives skips straight to the newest
+// one, so nothing queues up behind a slow connection; one that makes no progress at all for
+// STALL_TIMEOUT_NANOS is disconnected.
+public class MjpegServer {
+
+    //--------------------------------------------------
+    // listener interface
+    //--------------------------------------------------
+
+    public interface Listener {
+        // Server thread. A client is waiting and there is no current frame, e.g. because
+        // clearFrame() was called while nobody was watching; publish one.
+        void onFrameWanted();
+    }
+
+
+    public static final String STREAM_PATH = "/stream";
+    public static final String FRAME_PATH = "/frame.jpg";
+
+    private static final String BOUNDARY = "mjpegframe";
+    private static final int MAX_CLIENTS = 8;
+    private static final int MAX_REQUEST_BYTES = 4096;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+    private static final long STALL_TIMEOUT_NANOS = 10_000_000_000L;
+
+    private static final int STATE_REQUEST = 0;
+    private static final int STATE_STREAM = 1;
+    private static final int STATE_WAIT_FRAME = 2;
+    private static final int STATE_CLOSING = 3;
+
+    private static final byte[] STREAM_HEADER = ascii("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+            + "Cache-Control: no-cache, no-store\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Connection: close\r\n"
+            + "\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final String name;
+    private final Listener listener;
+
+    private volatile Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    // null when there is none yet or it went stale
+    private volatile EncodedFrame currentFrame;
+    private final AtomicLong frameSequence = new AtomicLong();
+    private volatile int clientCount;
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    // server thread only
+    private final List<Client> clients = new ArrayList<>();
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(256);
+    private boolean frameRequested;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public MjpegServer(String name, Listener listener) {
+        this.name = name;
+        this.listener = listener;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Binds and starts the server thread. Port 0 picks a free port; see getLocalPort().
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (thread != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(address);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        frameRequested = false;
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Closes every connection. Waits briefly for the server thread to finish.
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        currentFrame = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getLocalPort() {
+        ServerSocketChannel channel = serverChannel;
+        return channel != null ? channel.socket().getLocalPort() : -1;
+    }
+
+    // Streaming clients plus clients waiting for a single frame.
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    // Frames are only worth encoding while this is true.
+    public boolean isFrameWanted() {
+        return clientCount > 0;
+    }
+
+    public long getPublishedFrameCount() {
+        return publishedCount.get();
+    }
+
+    // Frames written out in full, counted per client.
+    public long getSentFrameCount() {
+        return sentCount.get();
+    }
+
+    // Frames a client skipped because it was still writing an earlier one.
+    public long getDroppedFrameCount() {
+        return droppedCount.get();
+    }
+
+    // Makes jpeg[0, length) the current frame. The server keeps the array until every client
+    // is done with it, so the caller must not reuse it.
+    public void publish(byte[] jpeg, int length) {
+        currentFrame = new EncodedFrame(frameSequence.incrementAndGet(), jpeg, length);
+        publishedCount.incrementAndGet();
+
+        Selector s = selector;
+        if (running && s != null) {
+            s.wakeup();
+        }
+    }
+
+    // The current frame no longer shows what is on screen. The next client to arrive
+    // triggers Listener.onFrameWanted() instead of getting it.
+    public void clearFrame() {
+        currentFrame = null;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void run() {
+        EncodedFrame dispatched = null;
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT_MILLIS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            onReadable(client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            onWritable(client);
+                        }
+                    } catch (IOException e) {
+                        close(client);
+                    }
+                }
+
+                EncodedFrame frame = currentFrame;
+                if (frame != dispatched) {
+                    dispatched = frame;
+                    if (frame != null) {
+                        dispatch(frame);
+                    }
+                }
+
+                closeStalledClients(System.nanoTime());
+            }
+        } catch (IOException e) {
+            // the selector itself failed; nothing left to serve with
+        } finally {
+            running = false;
+            for (int i = clients.size() - 1; i >= 0; i--) {
+                close(clients.get(i));
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (clients.size() >= MAX_CLIENTS) {
+            closeQuietly(channel);
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Client client = new Client(channel, key);
+        key.attach(client);
+        clients.add(client);
+    }
+
+    private void onReadable(Client client) throws IOException {
+        if (client.state != STATE_REQUEST) {
+            // nothing more is expected from the client; only notice when it goes away
+            discardBuffer.clear();
+            if (client.channel.read(discardBuffer) < 0) {
+                close(client);
+            }
+            return;
+        }
+
+        ByteBuffer request = client.request;
+        if (client.channel.read(request) < 0) {
+            close(client);
+            return;
+        }
+
+        int end = findHeaderEnd(request.array(), request.position());
+        if (end < 0) {
+            if (!request.hasRemaining()) {
+                respondError(client, "431 Request Header Fields Too Large");
+            }
+            return;
+        }
+
+        String header = new String(request.array(), 0, end, StandardCharsets.US_ASCII);
+        client.request = null;
+        handleRequest(client, header);
+    }
+
+    private void handleRequest(Client client, String header) throws IOException {
+        int lineEnd = header.indexOf("\r\n");
+        String[] parts = (lineEnd >= 0 ? header.substring(0, lineEnd) : header).split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/")) {
+            respondError(client, "400 Bad Request");
+            return;
+        }
+        if (!parts[0].equals("GET")) {
+            respondError(client, "405 Method Not Allowed");
+            return;
+        }
+
+        String path = parts[1];
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        EncodedFrame frame = currentFrame;
+        if (path.equals(STREAM_PATH) || path.equals("/")) {
+            client.state = STATE_STREAM;
+            clientCount++;
+            client.prefix = ByteBuffer.wrap(STREAM_HEADER);
+            if (frame != null) {
+                sendPart(client, frame);
+            } else {
+                // the header goes out now, the first part once there is a frame
+                startWrite(client, 0);
+                requestFrame();
+            }
+        } else if (path.equals(FRAME_PATH)) {
+            if (frame != null) {
+                sendSingle(client, frame);
+            } else {
+                client.state = STATE_WAIT_FRAME;
+                clientCount++;
+                requestFrame();
+            }
+        } else {
+            respondError(client, "404 Not Found");
+        }
+    }
+
+    private void requestFrame() {
+        if (!frameRequested) {
+            frameRequested = true;
+            listener.onFrameWanted();
+        }
+    }
+
+    private void dispatch(EncodedFrame frame) throws IOException {
+        frameRequested = false;
+
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            Client client = clients.get(i);
+            try {
+                if (client.state == STATE_STREAM) {
+                    if (client.writing) {
+                        if (client.pending) {
+                            droppedCount.incrementAndGet();
+                        }
+                        client.pending = true;
+                    } else {
+                        sendPart(client, frame);
+                    }
+                } else if (client.state == STATE_WAIT_FRAME) {
+                    clientCount--;
+                    sendSingle(client, frame);
+                }
+            } catch (IOException e) {
+                close(client);
+            }
+        }
+    }
+
+    private void sendPart(Client client, EncodedFrame frame) throws IOException {
+        ByteBuffer[] output = client.output;
+        int count = 0;
+        if (client.prefix != null) {
+            output[count++] = client.prefix;
+            client.prefix = null;
+        }
+        output[count++] = frame.partHeader.duplicate();
+        output[count++] = frame.body.duplicate();
+        output[count++] = ByteBuffer.wrap(CRLF);
+
+        client.sentSequence = frame.sequence;
+        client.sendingFrame = true;
+        startWrite(client, count);
+    }
+
+    private void sendSingle(Client client, EncodedFrame frame) throws IOException {
+        client.state = STATE_CLOSING;
+        client.output[0] = ByteBuffer.wrap(ascii("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Length: " + frame.body.remaining() + "\r\n"
+                + "Cache-Control: no-cache, no-store\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"));
+        client.output[1] = frame.body.duplicate();
+        client.sendingFrame = true;
+        startWrite(client, 2);
+    }
+
+    private void respondError(Client client, String status) throws IOException {
+        client.state = STATE_CLOSING;
+        String body = status + "\n";
+        client.output[0] = ByteBuffer.wrap(ascii("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + body));
+        startWrite(client, 1);
+    }
+
+    // count 0 writes a pending prefix alone.
+    private void startWrite(Client client, int count) throws IOException {
+        if (count == 0) {
+            client.output[0] = client.prefix;
+            client.prefix = null;
+            count = 1;
+        }
+
+        client.outputCount = count;
+        client.writing = true;
+        client.lastProgressNanos = System.nanoTime();
+        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        // most writes fit in the socket buffer; don't wait a select round for them
+        onWritable(client);
+    }
+
+    private void onWritable(Client client) throws IOException {
+        if (!client.writing) {
+            client.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+
+        ByteBuffer[] output = client.output;
+        int count = client.outputCount;
+        if (client.channel.write(output, 0, count) > 0) {
+            client.lastProgressNanos = System.nanoTime();
+        }
+        if (output[count - 1].hasRemaining()) {
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            output[i] = null;
+        }
+        client.writing = false;
+        if (client.sendingFrame) {
+            client.sendingFrame = false;
+            sentCount.incrementAndGet();
+        }
+
+        if (client.state == STATE_CLOSING) {
+            close(client);
+            return;
+        }
+
+        client.key.interestOps(SelectionKey.OP_READ);
+        if (client.pending) {
+            client.pending = false;
+            EncodedFrame frame = currentFrame;
+            if (frame != null && frame.sequence != client.sentSequence) {
+                sendPart(client, frame);
+            }
+        }
+    }
+
+    private void closeStalledClients(long nowNanos) {
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            Client client = clients.get(i);
+            if (client.writing && nowNanos - client.lastProgressNanos > STALL_TIMEOUT_NANOS) {
+                close(client);
+            }
+        }
+    }
+
+    private void close(Client client) {
+        if (!clients.remove(client)) {
+            return;
+        }
+
+        if (client.state == STATE_STREAM || client.state == STATE_WAIT_FRAME) {
+            clientCount--;
+        }
+        client.key.cancel();
+        closeQuietly(client.channel);
+    }
+
+    private static int findHeaderEnd(byte[] data, int length) {
+        for (int i = 3; i < length; i++) {
+            if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class EncodedFrame
+    //--------------------------------------------------
+
+    // Shared by every client; each one writes from its own duplicate() of the buffers.
+    private static final class EncodedFrame {
+        final long sequence;
+        final ByteBuffer partHeader;
+        final ByteBuffer body;
+
+        EncodedFrame(long sequence, byte[] jpeg, int length) {
+            this.sequence = sequence;
+            partHeader = ByteBuffer.wrap(ascii("--" + BOUNDARY + "\r\n"
+                    + "Content-Type: image/jpeg\r\n"
+                    + "Content-Length: " + length + "\r\n"
+                    + "\r\n")).asReadOnlyBuffer();
+            body = ByteBuffer.wrap(jpeg, 0, length).asReadOnlyBuffer();
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class Client
+    //--------------------------------------------------
+
+    // Server thread only.
+    private static final class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        int state = STATE_REQUEST;
+
+        final ByteBuffer[] output = new ByteBuffer[4];
+        int outputCount;
+        ByteBuffer prefix;
+        boolean writing;
+        boolean sendingFrame;
+        // a newer frame arrived while writing
+        boolean pending;
+        long sentSequence;
+        long lastProgressNanos;
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class NearDuplicateFilter
+//--------------------------------------------------
+
+// Sits in front of another packed RGBA_8888 frame subscriber (an exporter, a
+// FrameJournalRecorder) and drops frames that look like one it recently passed on: those
+// whose perceptual hash is at most maxDistance bits from any of the last window passed
+// frames. A window of 1 only drops repeats of the previous frame, which keeps a journal
+// faithful; larger windows also drop screens that come back. The hashes of the last
+// historyCapacity passed frames stay searchable by similarity, valued by frame timestamp.
+// Frames are taken on one executor at a time; search() may be called from anywhere.
+public class NearDuplicateFilter implements FrameBus.Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_MAX_DISTANCE = 4;
+    private static final int SAMPLE_STEP = 2;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final FrameBus.Subscriber<ByteBuffer> downstream;
+    private final int maxDistance;
+    private final int window;
+
+    private final PerceptualHasher hasher = new PerceptualHasher(SAMPLE_STEP);
+    // guarded by this
+    private final HammingIndex index;
+
+    private volatile long lastHash;
+    private volatile long passedCount;
+    private volatile long suppressedCount;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public NearDuplicateFilter(FrameBus.Subscriber<ByteBuffer> downstream, int maxDistance,
+                               int window, int historyCapacity) {
+        if (maxDistance < 0 || maxDistance > Long.SIZE) {
+            throw new IllegalArgumentException("bad maxDistance: " + maxDistance);
+        }
+        if (window <= 0 || window > historyCapacity) {
+            throw new IllegalArgumentException("bad window " + window + " for history " + historyCapacity);
+        }
+
+        this.downstream = downstream;
+        this.maxDistance = maxDistance;
+        this.window = window;
+        index = new HammingIndex(historyCapacity);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public long getPassedCount() {
+        return passedCount;
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    // Of the latest frame, passed on or not.
+    public long getLastHash() {
+        return lastHash;
+    }
+
+    // Timestamps of remembered passed frames at most maxDistance bits from hash.
+    public synchronized int search(long hash, int maxDistance, HammingIndex.Matches out) {
+        return index.search(hash, maxDistance, out);
+    }
+
+
+    //--------------------------------------------------
+    // FrameBus.Subscriber Overrides
+    //--------------------------------------------------
+
+    @Override
+    public void onFrame(Frame<ByteBuffer> frame) {
+        if (frame.getWidth() < PerceptualHasher.GRID_WIDTH || frame.getHeight() < PerceptualHasher.GRID_HEIGHT) {
+            // too small to hash; nothing to compare it with
+            passedCount++;
+            downstream.onFrame(frame);
+            return;
+        }
+
+        long hash = hasher.hash(frame.get(), frame.getWidth(), frame.getHeight(), frame.getWidth() << 2);
+        lastHash = hash;
+
+        synchronized (this) {
+            if (index.containsWithin(hash, maxDistance, window)) {
+                suppressedCount++;
+                frame.release();
+                return;
+            }
+            index.add(hash, frame.getTimestampNanos());
+        }
+
+        passedCount++;
+        // the reference goes with it
+        downstream.onFrame(frame);
+    }
+}
@@ -0,0 +1,159 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class PerceptualHasher
+//--------------------------------------------------
+
+// 64-bit difference hashes (dHash) of RGBA_8888 frames: the frame is averaged down to a 9x8
+// grayscale grid in one pass, and each bit says whether a cell is darker than its right-hand
+// neighbour. Frames that look alike hash a few bits apart whatever their size, so the Hamming
+// distance (distance()) measures similarity. sampleStep reads every n-th pixel of every n-th
+// row, which barely moves 72 cell means. Not thread safe.
+public class PerceptualHasher {
+
+    public static final int GRID_WIDTH = 9;
+    public static final int GRID_HEIGHT = 8;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int sampleStep;
+
+    // per frame size
+    private int width;
+    private int height;
+    // grid column of each sampled x, and the samples in each cell
+    private int[] cellColumns = new int[0];
+    private final int[] counts = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] sums = new int[GRID_WIDTH * GRID_HEIGHT];
+    private byte[] row = new byte[0];
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public PerceptualHasher(int sampleStep) {
+        if (sampleStep <= 0) {
+            throw new IllegalArgumentException("bad sampleStep: " + sampleStep);
+        }
+
+        this.sampleStep = sampleStep;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public static int distance(long hash, long otherHash) {
+        return Long.bitCount(hash ^ otherHash);
+    }
+
+    public int getSampleStep() {
+        return sampleStep;
+    }
+
+    // Reads the frame from the buffer's position on; the position is left unchanged.
+    public long hash(ByteBuffer pixels, int width, int height, int rowStride) {
+        prepare(width, height, rowStride);
+
+        int base = pixels.position();
+        int rowBytes = ((width - 1) / sampleStep * sampleStep + 1) * 4;
+        if (row.length < rowBytes) {
+            row = new byte[rowBytes];
+        }
+        for (int y = 0; y < height; y += sampleStep) {
+            pixels.position(base + y * rowStride);
+            pixels.get(row, 0, rowBytes);
+            accumulate(row, 0, y);
+        }
+        pixels.position(base);
+
+        return finish();
+    }
+
+    public long hash(byte[] pixels, int offset, int width, int height, int rowStride) {
+        prepare(width, height, rowStride);
+
+        for (int y = 0; y < height; y += sampleStep) {
+            accumulate(pixels, offset + y * rowStride, y);
+        }
+
+        return finish();
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void prepare(int width, int height, int rowStride) {
+        if (width < GRID_WIDTH || height < GRID_HEIGHT) {
+            throw new IllegalArgumentException("frame smaller than the grid: " + width + "x" + height);
+        }
+        if (rowStride < width * 4) {
+            throw new IllegalArgumentException("rowStride " + rowStride + " < row bytes " + width * 4);
+        }
+
+        if (width != this.width || height != this.height) {
+            this.width = width;
+            this.height = height;
+
+            int samples = (width + sampleStep - 1) / sampleStep;
+            cellColumns = new int[samples];
+            for (int i = 0; i < samples; i++) {
+                cellColumns[i] = i * sampleStep * GRID_WIDTH / width;
+            }
+
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+            for (int y = 0; y < height; y += sampleStep) {
+                int cellRow = y * GRID_HEIGHT / height * GRID_WIDTH;
+                for (int cellColumn : cellColumns) {
+                    counts[cellRow + cellColumn]++;
+                }
+            }
+        }
+
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = 0;
+        }
+    }
+
+    private void accumulate(byte[] pixels, int offset, int y) {
+        int[] columns = cellColumns;
+        int cellRow = y * GRID_HEIGHT / height * GRID_WIDTH;
+        int step = sampleStep << 2;
+
+        for (int i = 0, p = offset; i < columns.length; i++, p += step) {
+            int r = pixels[p] & 0xff;
+            int g = pixels[p + 1] & 0xff;
+            int b = pixels[p + 2] & 0xff;
+            sums[cellRow + columns[i]] += (PixelConverter.LUMA_R * r + PixelConverter.LUMA_G * g
+                    + PixelConverter.LUMA_B * b + 128) >> 8;
+        }
+    }
+
+    // Compares cell means without dividing: a / n < b / m exactly when a * m < b * n.
+    private long finish() {
+        long hash = 0;
+        for (int cellRow = 0; cellRow < GRID_HEIGHT; cellRow++) {
+            for (int column = 0; column < GRID_WIDTH - 1; column++) {
+                int left = cellRow * GRID_WIDTH + column;
+                int right = left + 1;
+                hash <<= 1;
+                if ((long) sums[left] * counts[right] < (long) sums[right] * counts[left]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+}
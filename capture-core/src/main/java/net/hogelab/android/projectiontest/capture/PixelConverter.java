@@ -0,0 +1,120 @@
+package net.hogelab.android.projectiontest.capture;
+
+
+//--------------------------------------------------
+// class PixelConverter
+//--------------------------------------------------
+
+// Pixel format conversions over primitive arrays. Strides are in elements of the array
+// they describe; RGBA input is bytes in R, G, B, A order as an RGBA_8888 ImageReader
+// delivers them, ARGB output is 0xAARRGGBB ints as Bitmap.setPixels() takes them.
+public final class PixelConverter {
+
+    // BT.601 full range (JFIF) in 16.16 fixed point
+    private static final int V_TO_R = 91881;
+    private static final int U_TO_G = 22554;
+    private static final int V_TO_G = 46802;
+    private static final int U_TO_B = 116130;
+    private static final int HALF = 1 << 15;
+
+    // BT.601 luma weights, summing to 256
+    static final int LUMA_R = 77;
+    static final int LUMA_G = 150;
+    static final int LUMA_B = 29;
+
+
+    private PixelConverter() {
+    }
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    // YUV_420_888 planes to opaque ARGB. uvPixelStride is 1 for planar and 2 for
+    // semi-planar chroma, the only layouts YUV_420_888 allows.
+    public static void yuv420ToArgb(byte[] y, int yRowStride,
+                                    byte[] u, byte[] v, int uvRowStride, int uvPixelStride,
+                                    int width, int height, int[] argb, int argbStride) {
+        for (int row = 0; row < height; row++) {
+            int yIndex = row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            int out = row * argbStride;
+
+            for (int column = 0; column < width; column += 2) {
+                int uvIndex = uvRow + (column >> 1) * uvPixelStride;
+                int d = (u[uvIndex] & 0xff) - 128;
+                int e = (v[uvIndex] & 0xff) - 128;
+
+                // the chroma terms are shared by the two pixels of the pair
+                int r = V_TO_R * e + HALF;
+                int g = -U_TO_G * d - V_TO_G * e + HALF;
+                int b = U_TO_B * d + HALF;
+
+                argb[out++] = yuvPixel((y[yIndex++] & 0xff) << 16, r, g, b);
+                if (column + 1 < width) {
+                    argb[out++] = yuvPixel((y[yIndex++] & 0xff) << 16, r, g, b);
+                }
+            }
+        }
+    }
+
+    public static void rgbaToGray(byte[] rgba, int offset, int rowStride,
+                                  int width, int height, byte[] gray, int grayStride) {
+        for (int row = 0; row < height; row++) {
+            int in = offset + row * rowStride;
+            int out = row * grayStride;
+            int end = out + width;
+
+            while (out < end) {
+                int r = rgba[in] & 0xff;
+                int g = rgba[in + 1] & 0xff;
+                int b = rgba[in + 2] & 0xff;
+                gray[out++] = (byte) ((LUMA_R * r + LUMA_G * g + LUMA_B * b + 128) >> 8);
+                in += 4;
+            }
+        }
+    }
+
+    // Truncates each channel, as Bitmap.copy(RGB_565) does.
+    public static void rgbaToRgb565(byte[] rgba, int offset, int rowStride,
+                                    int width, int height, short[] rgb565, int rgb565Stride) {
+        for (int row = 0; row < height; row++) {
+            int in = offset + row * rowStride;
+            int out = row * rgb565Stride;
+            int end = out + width;
+
+            while (out < end) {
+                int r = rgba[in] & 0xf8;
+                int g = rgba[in + 1] & 0xfc;
+                int b = rgba[in + 2] & 0xf8;
+                rgb565[out++] = (short) ((r << 8) | (g << 3) | (b >>> 3));
+                in += 4;
+            }
+        }
+    }
+
+    // Expands with bit replication, so full white and black survive the round trip.
+    public static int rgb565ToArgb(short pixel) {
+        int r = (pixel >>> 11) & 0x1f;
+        int g = (pixel >>> 5) & 0x3f;
+        int b = pixel & 0x1f;
+        return 0xff000000 | ((r << 3 | r >>> 2) << 16) | ((g << 2 | g >>> 4) << 8) | (b << 3 | b >>> 2);
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private static int yuvPixel(int luma, int r, int g, int b) {
+        return 0xff000000
+                | clamp((luma + r) >> 16) << 16
+                | clamp((luma + g) >> 16) << 8
+                | clamp((luma + b) >> 16);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,145 @@
+package net.hogelab.android.projectiontest.capture;
+
+
+//--------------------------------------------------
+// class PixelFormatNegotiator
+//--------------------------------------------------
+
+// Picks the capture pixel format with the least bandwidth that still gives every consumer
+// what it declared it needs. Format values are those of android.graphics.PixelFormat and
+// android.graphics.ImageFormat.
+public final class PixelFormatNegotiator {
+
+    public static final int FORMAT_RGBA_8888 = 1;
+    public static final int FORMAT_RGB_565 = 4;
+    public static final int FORMAT_YUV_420_888 = 0x23;
+
+    // cheapest first
+    private static final int[] FORMATS = {FORMAT_YUV_420_888, FORMAT_RGB_565, FORMAT_RGBA_8888};
+
+    // an alpha channel
+    public static final int NEEDS_ALPHA = 1;
+    // 8 bits per color channel; rules out RGB_565
+    public static final int NEEDS_8BIT_COLOR = 1 << 1;
+    // chroma for every pixel; rules out 4:2:0 subsampling
+    public static final int NEEDS_FULL_CHROMA = 1 << 2;
+    // packed pixels a Bitmap can take without conversion; rules out YUV
+    public static final int NEEDS_PACKED_RGB = 1 << 3;
+    private static final int NEEDS_BIT_COUNT = 4;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    // consumers that declared each NEEDS_* bit
+    private final int[] needCounts = new int[NEEDS_BIT_COUNT];
+
+
+    //--------------------------------------------------
+    // static functions
+    //--------------------------------------------------
+
+    public static boolean satisfies(int format, int needs) {
+        return (needs & ~capabilities(format)) == 0;
+    }
+
+    // Average bytes per pixel times two, to stay integral for 4:2:0.
+    public static int halfBytesPerPixel(int format) {
+        switch (format) {
+            case FORMAT_YUV_420_888:
+                return 3;
+            case FORMAT_RGB_565:
+                return 4;
+            case FORMAT_RGBA_8888:
+                return 8;
+            default:
+                throw new IllegalArgumentException("unknown format: " + format);
+        }
+    }
+
+    public static int negotiate(int needs) {
+        for (int format : FORMATS) {
+            if (satisfies(format, needs)) {
+                return format;
+            }
+        }
+
+        // RGBA_8888 has every capability
+        throw new IllegalStateException("unreachable");
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // Adds one consumer's needs to the set the format must satisfy.
+    public void declare(int consumerNeeds) {
+        checkNeeds(consumerNeeds);
+        for (int bit = 0; bit < NEEDS_BIT_COUNT; bit++) {
+            if ((consumerNeeds & (1 << bit)) != 0) {
+                needCounts[bit]++;
+            }
+        }
+    }
+
+    // Takes back what one consumer declared; a need stays while another consumer declared it.
+    public void retract(int consumerNeeds) {
+        checkNeeds(consumerNeeds);
+        for (int bit = 0; bit < NEEDS_BIT_COUNT; bit++) {
+            if ((consumerNeeds & (1 << bit)) != 0 && needCounts[bit] == 0) {
+                throw new IllegalStateException("not declared: " + consumerNeeds);
+            }
+        }
+        for (int bit = 0; bit < NEEDS_BIT_COUNT; bit++) {
+            if ((consumerNeeds & (1 << bit)) != 0) {
+                needCounts[bit]--;
+            }
+        }
+    }
+
+    public void clear() {
+        for (int bit = 0; bit < NEEDS_BIT_COUNT; bit++) {
+            needCounts[bit] = 0;
+        }
+    }
+
+    public int getNeeds() {
+        int needs = 0;
+        for (int bit = 0; bit < NEEDS_BIT_COUNT; bit++) {
+            if (needCounts[bit] > 0) {
+                needs |= 1 << bit;
+            }
+        }
+        return needs;
+    }
+
+    public int negotiate() {
+        return negotiate(getNeeds());
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private static void checkNeeds(int needs) {
+        if ((needs & ~((1 << NEEDS_BIT_COUNT) - 1)) != 0) {
+            throw new IllegalArgumentException("unknown needs: " + needs);
+        }
+    }
+
+    private static int capabilities(int format) {
+        switch (format) {
+            case FORMAT_YUV_420_888:
+                return NEEDS_8BIT_COLOR;
+            case FORMAT_RGB_565:
+                return NEEDS_FULL_CHROMA | NEEDS_PACKED_RGB;
+            case FORMAT_RGBA_8888:
+                return NEEDS_ALPHA | NEEDS_8BIT_COLOR | NEEDS_FULL_CHROMA | NEEDS_PACKED_RGB;
+            default:
+                throw new IllegalArgumentException("unknown format: " + format);
+        }
+    }
+}
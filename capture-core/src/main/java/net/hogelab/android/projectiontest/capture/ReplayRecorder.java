@@ -0,0 +1,140 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+
+//--------------------------------------------------
+// class ReplayRecorder
+//--------------------------------------------------
+
+// Encoded stream sink that only remembers the last few seconds. flush() takes a copy of the ring
+// on the sink's own (serial) executor and writes it out on ioExecutor, so capture keeps running
+// while the file is written. One flush is in flight at a time; requests made meanwhile join it
+// and are told its result. Callbacks run on the sink's executor.
+public class ReplayRecorder<F> implements EncodedStreamSink<F> {
+
+    //--------------------------------------------------
+    // callback interface
+    //--------------------------------------------------
+
+    public interface FlushCallback {
+        void onFlushCompleted(int sampleCount);
+        void onFlushFailed(Exception e);
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final EncodedFrameRing ring;
+    private final Executor sinkExecutor;
+    private final Executor ioExecutor;
+
+    private F format;
+    private EncodedFrameRing.Snapshot spareSnapshot;
+    private boolean flushing;
+    // callers of the flush in flight
+    private final List<FlushCallback> flushCallbacks = new ArrayList<>();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    // sinkExecutor must be the executor the encoder output is delivered on.
+    public ReplayRecorder(EncodedFrameRing ring, Executor sinkExecutor, Executor ioExecutor) {
+        this.ring = ring;
+        this.sinkExecutor = sinkExecutor;
+        this.ioExecutor = ioExecutor;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public EncodedFrameRing getRing() {
+        return ring;
+    }
+
+    @Override
+    public void onOutputFormatChanged(F format) {
+        ring.clear();
+        this.format = format;
+    }
+
+    @Override
+    public void onEncodedFrame(ByteBuffer data, long presentationTimeUs, boolean keyFrame) {
+        if (format != null) {
+            ring.append(data, presentationTimeUs, keyFrame);
+        }
+    }
+
+    @Override
+    public void onEndOfStream() {
+    }
+
+    // A flush asked for while another is in flight is not written on its own; callback gets the
+    // result of the one in flight, and writerFactory is not used.
+    public void flush(SegmentedRecorder.SegmentWriterFactory<F> writerFactory, FlushCallback callback) {
+        sinkExecutor.execute(() -> {
+            if (flushing) {
+                flushCallbacks.add(callback);
+                return;
+            }
+            if (format == null || ring.getSampleCount() == 0) {
+                callback.onFlushCompleted(0);
+                return;
+            }
+
+            flushing = true;
+            flushCallbacks.add(callback);
+            F snapshotFormat = format;
+            EncodedFrameRing.Snapshot snapshot = ring.snapshot(spareSnapshot);
+            spareSnapshot = null;
+
+            ioExecutor.execute(() -> writeSnapshot(writerFactory, snapshotFormat, snapshot));
+        });
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void writeSnapshot(SegmentedRecorder.SegmentWriterFactory<F> writerFactory, F snapshotFormat,
+                               EncodedFrameRing.Snapshot snapshot) {
+        Exception error = null;
+        try {
+            SegmentedRecorder.SegmentWriter writer = writerFactory.open(0, snapshotFormat);
+            try {
+                snapshot.writeTo(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            error = e;
+        }
+
+        Exception result = error;
+        int sampleCount = snapshot.getSampleCount();
+        sinkExecutor.execute(() -> {
+            spareSnapshot = snapshot;
+            flushing = false;
+
+            for (FlushCallback callback : flushCallbacks) {
+                if (result == null) {
+                    callback.onFlushCompleted(sampleCount);
+                } else {
+                    callback.onFlushFailed(result);
+                }
+            }
+            flushCallbacks.clear();
+        });
+    }
+}
@@ -0,0 +1,131 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class SegmentedRecorder
+//--------------------------------------------------
+
+// Routes an encoded elementary stream into one or more container files. Each segment starts on a
+// key frame; when segmentDurationUs is positive a new segment is opened at the first key frame
+// past that duration. The format type F is the encoder's output format (MediaFormat on device).
+// Not thread safe: feed it from a single (serial) executor.
+public class SegmentedRecorder<F> implements EncodedStreamSink<F> {
+
+    public static final long SINGLE_SEGMENT = 0;
+
+
+    //--------------------------------------------------
+    // writer interfaces
+    //--------------------------------------------------
+
+    public interface SegmentWriter {
+        void writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame) throws IOException;
+        void close() throws IOException;
+    }
+
+    public interface SegmentWriterFactory<F> {
+        SegmentWriter open(int segmentIndex, F format) throws IOException;
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final SegmentWriterFactory<F> writerFactory;
+    private final long segmentDurationUs;
+
+    private F format;
+    private SegmentWriter writer;
+    private long segmentStartUs;
+
+    private int segmentCount;
+    private long sampleCount;
+    private long skippedSampleCount;
+    private long byteCount;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public SegmentedRecorder(SegmentWriterFactory<F> writerFactory, long segmentDurationUs) {
+        this.writerFactory = writerFactory;
+        this.segmentDurationUs = segmentDurationUs;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getSkippedSampleCount() {
+        return skippedSampleCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    // The encoder reports its output format once, before the first sample (codec config included).
+    @Override
+    public void onOutputFormatChanged(F format) throws IOException {
+        if (writer != null) {
+            closeSegment();
+        }
+
+        this.format = format;
+    }
+
+    @Override
+    public void onEncodedFrame(ByteBuffer data, long presentationTimeUs, boolean keyFrame) throws IOException {
+        if (format == null || (writer == null && !keyFrame)) {
+            skippedSampleCount++;
+            return;
+        }
+
+        if (writer != null && keyFrame && segmentDurationUs > SINGLE_SEGMENT
+                && presentationTimeUs - segmentStartUs >= segmentDurationUs) {
+            closeSegment();
+        }
+
+        if (writer == null) {
+            writer = writerFactory.open(segmentCount, format);
+            segmentStartUs = presentationTimeUs;
+            segmentCount++;
+        }
+
+        byteCount += data.remaining();
+        sampleCount++;
+        writer.writeSample(data, presentationTimeUs, keyFrame);
+    }
+
+    @Override
+    public void onEndOfStream() throws IOException {
+        if (writer != null) {
+            closeSegment();
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void closeSegment() throws IOException {
+        SegmentWriter closing = writer;
+        writer = null;
+        closing.close();
+    }
+}
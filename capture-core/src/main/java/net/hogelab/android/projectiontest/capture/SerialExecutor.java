@@ -0,0 +1,86 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+//--------------------------------------------------
+// class SerialExecutor
+//--------------------------------------------------
+
+// Runs tasks one at a time, in submission order, on top of a shared (possibly multi-threaded) executor.
+// If the shared executor rejects a task, nothing is lost: it runs on the fallback executor,
+// still in order, since the last task of a line, e.g. an encoder's end of stream, may have no
+// later execute() to carry it.
+public class SerialExecutor implements Executor {
+
+    private static final long FALLBACK_KEEP_ALIVE_SECONDS = 30;
+
+    // one thread for all lines, only alive while the shared executors are saturated or shut down
+    private static final Executor DEFAULT_FALLBACK = new ThreadPoolExecutor(0, 1,
+            FALLBACK_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "serial-fallback");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Executor executor;
+    private final Executor fallback;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private Runnable active;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public SerialExecutor(Executor executor) {
+        this(executor, DEFAULT_FALLBACK);
+    }
+
+    // fallback runs what executor rejects; it must not reject itself.
+    public SerialExecutor(Executor executor, Executor fallback) {
+        this.executor = executor;
+        this.fallback = fallback;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    @Override
+    public synchronized void execute(Runnable runnable) {
+        tasks.offer(() -> {
+            try {
+                runnable.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private synchronized void scheduleNext() {
+        if ((active = tasks.poll()) != null) {
+            try {
+                executor.execute(active);
+            } catch (RejectedExecutionException e) {
+                fallback.execute(active);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+
+//--------------------------------------------------
+// class SyntheticFrameSource
+//--------------------------------------------------
+
+// A FrameSource for running the capture path without a device. Frames come at a fixed rate
+// from its own thread, rows padded like an ImageReader plane, and between two frames
+// changeFraction of the tiles are repainted: 0 is a static screen, 1 full-screen video.
+public class SyntheticFrameSource implements FrameSource {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int rowStride;
+    private final long frameIntervalNanos;
+    private final float changeFraction;
+    private final int tileSize;
+
+    // touched by the source thread only
+    private final ByteBuffer plane;
+    private final Random random;
+    private final byte[] tileRow;
+    private int paintValue;
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long frameCount;
+    private volatile long lateCount;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    // fps of CaptureRatePolicy.UNLIMITED_FPS produces frames as fast as the listener takes them.
+    public SyntheticFrameSource(String name, int width, int height, int fps, float changeFraction,
+                                int tileSize, long seed) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size: " + width + "x" + height);
+        }
+        if (fps < 0) {
+            throw new IllegalArgumentException("fps must not be negative: " + fps);
+        }
+        if (changeFraction < 0 || changeFraction > 1) {
+            throw new IllegalArgumentException("changeFraction must be in [0, 1]: " + changeFraction);
+        }
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive: " + tileSize);
+        }
+
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        // ImageReader planes are usually padded to a 64-byte row alignment
+        rowStride = (width * 4 + 63) & ~63;
+        frameIntervalNanos = fps == CaptureRatePolicy.UNLIMITED_FPS ? 0 : NANOS_PER_SECOND / fps;
+        this.changeFraction = changeFraction;
+        this.tileSize = tileSize;
+
+        plane = ByteBuffer.allocateDirect(rowStride * height);
+        random = new Random(seed);
+        tileRow = new byte[tileSize * 4];
+        paintBackground();
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    // Frames that came more than a frame interval late because the listener was too slow.
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if (thread != null) {
+            throw new IllegalStateException("already started");
+        }
+
+        running = true;
+        thread = new Thread(() -> run(listener), name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        running = false;
+        LockSupport.unpark(thread);
+        if (thread != Thread.currentThread()) {
+            // however long the callback in progress takes: the contract is that none runs after
+            // this returns, and callers release what the listener touches right after
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+
+    //--------------------------------------------------
+    // package private functions
+    //--------------------------------------------------
+
+    // Repaints the tiles that change in the next frame, leaves the plane at position 0 and
+    // returns how many were repainted.
+    int nextFrame() {
+        int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+        int tileCount = tileColumns * tileRows;
+
+        // the fractional part of a tile is changed with that probability, so low change rates
+        // average out right
+        float exact = changeFraction * tileCount;
+        int changed = (int) exact;
+        if (random.nextFloat() < exact - changed) {
+            changed++;
+        }
+
+        if (changed == tileCount) {
+            for (int i = 0; i < tileCount; i++) {
+                paintTile(i % tileColumns, i / tileColumns);
+            }
+        } else {
+            // repeats are rare at low rates and harmless at high ones
+            for (int i = 0; i < changed; i++) {
+                int tileIndex = random.nextInt(tileCount);
+                paintTile(tileIndex % tileColumns, tileIndex / tileColumns);
+            }
+        }
+        plane.clear();
+        return changed;
+    }
+
+    ByteBuffer getPlane() {
+        return plane;
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private void run(Listener listener) {
+        long dueNanos = System.nanoTime();
+        while (running) {
+            if (frameIntervalNanos > 0) {
+                long waitNanos = dueNanos - System.nanoTime();
+                while (running && waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                    waitNanos = dueNanos - System.nanoTime();
+                }
+                if (!running) {
+                    break;
+                }
+
+                if (-waitNanos > frameIntervalNanos) {
+                    // fell behind: don't try to catch up with a burst
+                    lateCount++;
+                    dueNanos = System.nanoTime() + frameIntervalNanos;
+                } else {
+                    dueNanos += frameIntervalNanos;
+                }
+            }
+
+            if (frameCount > 0) {
+                nextFrame();
+            }
+            listener.onFrameAvailable(plane, width, height, rowStride, System.nanoTime());
+            frameCount++;
+        }
+    }
+
+    private void paintBackground() {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                plane.putInt(y * rowStride + x * 4, (x << 24) | (y << 8) | 0xff);
+            }
+        }
+    }
+
+    private void paintTile(int column, int row) {
+        // every paint differs from the last, so a repainted tile always hashes differently
+        paintValue += 0x9e3779b9;
+        int value = paintValue | 0xff;
+        for (int i = 0; i < tileRow.length; i += 4) {
+            tileRow[i] = (byte) (value >>> 24);
+            tileRow[i + 1] = (byte) (value >>> 16);
+            tileRow[i + 2] = (byte) (value >>> 8);
+            tileRow[i + 3] = (byte) value;
+        }
+
+        int x = column * tileSize;
+        int y = row * tileSize;
+        int rowBytes = Math.min(tileSize, width - x) * 4;
+        int tileHeight = Math.min(tileSize, height - y);
+        for (int i = 0; i < tileHeight; i++) {
+            plane.position((y + i) * rowStride + x * 4);
+            plane.put(tileRow, 0, rowBytes);
+        }
+    }
+}
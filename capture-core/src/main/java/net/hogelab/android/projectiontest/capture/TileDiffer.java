@@ -0,0 +1,151 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class TileDiffer
+//--------------------------------------------------
+
+// Compares each 32-bit-per-pixel frame with the previous one by hashing fixed-size tiles.
+// The frame can be the raw image plane (row padding is skipped), so unchanged frames can be
+// discarded before they are copied anywhere. Not thread safe; the returned FrameDiff is reused.
+public class TileDiffer {
+
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final int tileSize;
+    private final FrameDiff diff = new FrameDiff();
+
+    private long[] tileHashes = new long[0];
+    private int width;
+    private int height;
+    private boolean hasPrevious;
+
+    private long frameCount;
+    private long unchangedFrameCount;
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public TileDiffer(int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize must be positive: " + tileSize);
+        }
+
+        this.tileSize = tileSize;
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getUnchangedFrameCount() {
+        return unchangedFrameCount;
+    }
+
+    public FrameDiff getLastDiff() {
+        return diff;
+    }
+
+    // Forget the previous frame; the next diff reports every tile as dirty.
+    public void reset() {
+        hasPrevious = false;
+    }
+
+    // rowStride is in bytes, the first pixel is at the buffer's position.
+    public FrameDiff diff(ByteBuffer frame, int width, int height, int rowStride) {
+        boolean full = begin(width, height);
+        int base = frame.position();
+        int tileColumns = diff.getTileColumns();
+        int tileRows = diff.getTileRows();
+
+        for (int row = 0; row < tileRows; row++) {
+            int y = row * tileSize;
+            int tileHeight = Math.min(tileSize, height - y);
+            for (int column = 0; column < tileColumns; column++) {
+                int x = column * tileSize;
+                int tileWidth = Math.min(tileSize, width - x);
+                long hash = TileHasher.hash(frame, base + y * rowStride + (x << 2),
+                        rowStride, tileWidth, tileHeight);
+                update(row * tileColumns + column, hash, full);
+            }
+        }
+
+        return end();
+    }
+
+    // stride is in pixels.
+    public FrameDiff diff(int[] pixels, int width, int height, int stride) {
+        boolean full = begin(width, height);
+        int tileColumns = diff.getTileColumns();
+        int tileRows = diff.getTileRows();
+
+        for (int row = 0; row < tileRows; row++) {
+            int y = row * tileSize;
+            int tileHeight = Math.min(tileSize, height - y);
+            for (int column = 0; column < tileColumns; column++) {
+                int x = column * tileSize;
+                int tileWidth = Math.min(tileSize, width - x);
+                long hash = TileHasher.hash(pixels, y * stride + x, stride, tileWidth, tileHeight);
+                update(row * tileColumns + column, hash, full);
+            }
+        }
+
+        return end();
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private boolean begin(int width, int height) {
+        boolean full = !hasPrevious || this.width != width || this.height != height;
+        this.width = width;
+        this.height = height;
+
+        int tileColumns = (width + tileSize - 1) / tileSize;
+        int tileRows = (height + tileSize - 1) / tileSize;
+        if (tileHashes.length < tileColumns * tileRows) {
+            tileHashes = new long[tileColumns * tileRows];
+        }
+        diff.reset(width, height, tileSize, tileColumns, tileRows, full);
+
+        return full;
+    }
+
+    private void update(int tileIndex, long hash, boolean full) {
+        if (full || tileHashes[tileIndex] != hash) {
+            tileHashes[tileIndex] = hash;
+            diff.markDirty(tileIndex);
+        }
+    }
+
+    private FrameDiff end() {
+        hasPrevious = true;
+        frameCount++;
+        if (diff.isUnchanged()) {
+            unchangedFrameCount++;
+        }
+        diff.buildRects();
+
+        return diff;
+    }
+}
@@ -0,0 +1,83 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.nio.ByteBuffer;
+
+
+//--------------------------------------------------
+// class TileHasher
+//--------------------------------------------------
+
+// 64-bit content hash of a rectangular block of 32-bit pixels. Reads eight bytes (two pixels)
+// at a time and mixes them with a multiply-rotate step; it is a change detector, not a
+// cryptographic hash.
+public final class TileHasher {
+
+    private static final long SEED = 0x27D4EB2F165667C5L;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private TileHasher() {
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    // offset and rowStride are in bytes; tileWidth is in pixels.
+    public static long hash(ByteBuffer frame, int offset, int rowStride, int tileWidth, int tileHeight) {
+        int rowBytes = tileWidth << 2;
+        int longBytes = rowBytes & ~7;
+
+        long h = SEED;
+        int rowStart = offset;
+        for (int y = 0; y < tileHeight; y++) {
+            int end = rowStart + longBytes;
+            for (int i = rowStart; i < end; i += 8) {
+                h = mix(h, frame.getLong(i));
+            }
+            if (longBytes != rowBytes) {
+                h = mix(h, frame.getInt(end));
+            }
+            rowStart += rowStride;
+        }
+
+        return finish(h);
+    }
+
+    // offset and stride are in pixels.
+    public static long hash(int[] pixels, int offset, int stride, int tileWidth, int tileHeight) {
+        int pairEnd = tileWidth & ~1;
+
+        long h = SEED;
+        int rowStart = offset;
+        for (int y = 0; y < tileHeight; y++) {
+            int i = rowStart;
+            int end = rowStart + pairEnd;
+            for (; i < end; i += 2) {
+                h = mix(h, ((long) pixels[i] << 32) | (pixels[i + 1] & 0xFFFFFFFFL));
+            }
+            if (pairEnd != tileWidth) {
+                h = mix(h, pixels[i]);
+            }
+            rowStart += stride;
+        }
+
+        return finish(h);
+    }
+
+
+    //--------------------------------------------------
+    // private functions
+    //--------------------------------------------------
+
+    private static long mix(long h, long value) {
+        return Long.rotateLeft(h ^ (value * MULTIPLIER), 27) * MULTIPLIER;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
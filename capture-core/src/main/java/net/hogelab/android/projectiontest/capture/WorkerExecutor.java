@@ -0,0 +1,267 @@
+package net.hogelab.android.projectiontest.capture;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+//--------------------------------------------------
+// class WorkerExecutor
+//--------------------------------------------------
+
+// Fixed-size pool of named threads over a bounded queue with priority lanes: capture work is
+// always dequeued ahead of default work, and default work ahead of export. Records queue wait
+// and run time of every task. A task rejected while submitted from one of the pool's own threads
+// runs there whatever the policy: a worker is not a producer, and waiting for room would
+// deadlock a pool whose workers are all waiting.
+public class WorkerExecutor extends ThreadPoolExecutor {
+
+    public static final int LANE_CAPTURE = 0;
+    public static final int LANE_DEFAULT = 1;
+    public static final int LANE_EXPORT = 2;
+    private static final int LANE_COUNT = 3;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum RejectionPolicy {
+        // throw RejectedExecutionException
+        ABORT,
+        // run the task on the submitting thread, slowing the producer down. Not for pools that
+        // main or capture threads submit to
+        CALLER_RUNS,
+        // make room by dropping the oldest task of the least important lane, or the new task
+        // if everything queued is more important
+        DISCARD_OLDEST,
+        // wait for room in the queue
+        BLOCK
+    }
+
+
+    //--------------------------------------------------
+    // member variables
+    //--------------------------------------------------
+
+    private final LaneBlockingQueue laneQueue;
+
+    private final AtomicLong rejectedTaskCount = new AtomicLong();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram runLatency = new LatencyHistogram();
+
+
+    //--------------------------------------------------
+    // constructor
+    //--------------------------------------------------
+
+    public WorkerExecutor(String name, int threadCount, int queueCapacity, RejectionPolicy rejectionPolicy) {
+        this(threadCount, new LaneBlockingQueue(LANE_COUNT, LANE_DEFAULT, queueCapacity),
+                new NamedThreadFactory(name), rejectionPolicy);
+    }
+
+    private WorkerExecutor(int threadCount, LaneBlockingQueue queue, NamedThreadFactory threadFactory,
+                           RejectionPolicy rejectionPolicy) {
+        super(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                threadFactory, new LaneRejectionHandler(rejectionPolicy));
+
+        laneQueue = queue;
+        threadFactory.owner = this;
+        allowCoreThreadTimeOut(true);
+    }
+
+
+    //--------------------------------------------------
+    // public functions
+    //--------------------------------------------------
+
+    @Override
+    public void execute(Runnable runnable) {
+        execute(runnable, LANE_DEFAULT);
+    }
+
+    public void execute(Runnable runnable, int lane) {
+        if (lane < 0 || lane >= LANE_COUNT) {
+            throw new IllegalArgumentException("unknown lane: " + lane);
+        }
+
+        super.execute(runnable instanceof LaneTask ? runnable : new LaneTask(runnable, lane, this));
+    }
+
+    public <T> Future<T> submit(Callable<T> callable, int lane) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        execute(task, lane);
+        return task;
+    }
+
+    // An Executor that submits everything to one lane.
+    public Executor getLaneExecutor(int lane) {
+        return runnable -> execute(runnable, lane);
+    }
+
+    public int getQueuedTaskCount() {
+        return laneQueue.size();
+    }
+
+    public int getQueuedTaskCount(int lane) {
+        return laneQueue.size(lane);
+    }
+
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.get();
+    }
+
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    public LatencyHistogram getRunLatency() {
+        return runLatency;
+    }
+
+
+    //--------------------------------------------------
+    // class LaneTask
+    //--------------------------------------------------
+
+    static final class LaneTask implements Runnable {
+        final Runnable runnable;
+        final int lane;
+        private final WorkerExecutor owner;
+        private final long enqueuedNanos;
+
+        LaneTask(Runnable runnable, int lane, WorkerExecutor owner) {
+            this.runnable = runnable;
+            this.lane = lane;
+            this.owner = owner;
+            enqueuedNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            long startNanos = System.nanoTime();
+            owner.queueLatency.record(startNanos - enqueuedNanos);
+            try {
+                runnable.run();
+            } finally {
+                owner.runLatency.record(System.nanoTime() - startNanos);
+            }
+        }
+
+        void discard() {
+            if (runnable instanceof Future) {
+                ((Future<?>) runnable).cancel(false);
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class LaneRejectionHandler
+    //--------------------------------------------------
+
+    private static class LaneRejectionHandler implements RejectedExecutionHandler {
+        private final RejectionPolicy policy;
+
+        LaneRejectionHandler(RejectionPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            WorkerExecutor worker = (WorkerExecutor) executor;
+            LaneTask task = (LaneTask) runnable;
+
+            if (worker.isShutdown()) {
+                worker.rejectedTaskCount.incrementAndGet();
+                task.discard();
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+
+            Thread thread = Thread.currentThread();
+            if (thread instanceof WorkerThread && ((WorkerThread) thread).owner == worker) {
+                worker.rejectedTaskCount.incrementAndGet();
+                task.run();
+                return;
+            }
+
+            switch (policy) {
+                case CALLER_RUNS:
+                    worker.rejectedTaskCount.incrementAndGet();
+                    task.run();
+                    break;
+
+                case DISCARD_OLDEST: {
+                    worker.rejectedTaskCount.incrementAndGet();
+                    LaneTask victim = (LaneTask) worker.laneQueue.pollLeastImportant(task.lane);
+                    if (victim == null) {
+                        task.discard();
+                    } else {
+                        victim.discard();
+                        worker.execute(task);
+                    }
+                    break;
+                }
+
+                case BLOCK:
+                    try {
+                        worker.laneQueue.put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        worker.rejectedTaskCount.incrementAndGet();
+                        task.discard();
+                        throw new RejectedExecutionException("interrupted while waiting for queue space", e);
+                    }
+                    break;
+
+                case ABORT:
+                default:
+                    worker.rejectedTaskCount.incrementAndGet();
+                    task.discard();
+                    throw new RejectedExecutionException("worker queue full");
+            }
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class NamedThreadFactory
+    //--------------------------------------------------
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        // set once the executor is constructed, before any thread is made
+        private WorkerExecutor owner;
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new WorkerThread(runnable, name + "-" + threadNumber.incrementAndGet(), owner);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+
+    //--------------------------------------------------
+    // class WorkerThread
+    //--------------------------------------------------
+
+    private static class WorkerThread extends Thread {
+        private final WorkerExecutor owner;
+
+        WorkerThread(Runnable runnable, String name, WorkerExecutor owner) {
+            super(runnable, name);
+            this.owner = owner;
+        }
+    }
+}
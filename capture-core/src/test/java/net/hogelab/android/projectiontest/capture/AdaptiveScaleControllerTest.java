@@ -0,0 +1,73 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveScaleControllerTest {
+
+    private static final long BUDGET = 16_000_000L;
+    private static final long FRAME = 16_666_667L;
+
+    // Feeds frames whose cost is proportional to the scaled area, like a real copy.
+    private static float run(AdaptiveScaleController controller, long costAtFullScale, int frames, long[] clock) {
+        float scale = controller.getScale();
+        for (int i = 0; i < frames; i++) {
+            clock[0] += FRAME;
+            long cost = (long) (costAtFullScale * scale * scale);
+            scale = controller.onFrameProcessed(cost, clock[0]);
+        }
+        return scale;
+    }
+
+    @Test
+    public void scalesDownWhenOverBudget() {
+        AdaptiveScaleController controller = new AdaptiveScaleController(0.1f, 1.0f, 1.0f, BUDGET);
+        long[] clock = {0};
+
+        float scale = run(controller, 40_000_000L, 600, clock);
+        assertTrue(scale < 1.0f);
+        // settles where the cost fits the budget
+        assertTrue(40_000_000L * scale * scale <= BUDGET * 0.8);
+    }
+
+    @Test
+    public void scalesUpWhenIdleAndSettlesWithoutOscillating() {
+        AdaptiveScaleController controller = new AdaptiveScaleController(0.05f, 1.0f, 0.05f, BUDGET);
+        long[] clock = {0};
+
+        float settled = run(controller, 20_000_000L, 3000, clock);
+        assertTrue(settled > 0.05f);
+        assertTrue(20_000_000L * settled * settled <= BUDGET * 0.8);
+
+        float after = run(controller, 20_000_000L, 3000, clock);
+        assertEquals(settled, after, 0.0f);
+    }
+
+    @Test
+    public void thermalPressureOverridesIdleLoad() {
+        AdaptiveScaleController controller = new AdaptiveScaleController(0.1f, 1.0f, 0.5f, BUDGET);
+        long[] clock = {0};
+
+        controller.onThermalHeadroom(0.95f);
+        float scale = run(controller, 1_000_000L, 600, clock);
+        assertEquals(0.1f, scale, 1e-6f);
+
+        // warm: no longer shrinking, but not growing either
+        controller.onThermalHeadroom(0.8f);
+        assertEquals(scale, run(controller, 1_000_000L, 600, clock), 0.0f);
+
+        controller.onThermalHeadroom(Float.NaN);
+        assertTrue(run(controller, 1_000_000L, 600, clock) > scale);
+    }
+
+    @Test
+    public void staysWithinRange() {
+        AdaptiveScaleController controller = new AdaptiveScaleController(0.25f, 0.5f, 2.0f, BUDGET);
+        assertEquals(0.5f, controller.getScale(), 0.0f);
+
+        long[] clock = {0};
+        assertEquals(0.5f, run(controller, 1_000L, 1000, clock), 0.0f);
+        assertEquals(0.25f, run(controller, 1_000_000_000L, 1000, clock), 0.0f);
+    }
+}
@@ -0,0 +1,68 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureMetricsTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void fpsIsMeasuredAgainstReusedSnapshot() {
+        CaptureMetrics metrics = new CaptureMetrics();
+
+        CaptureMetrics.Snapshot snapshot = metrics.snapshot(null, SECOND);
+        assertEquals(0.0, snapshot.getDeliveredFps(), 0.0);
+
+        for (int i = 0; i < 30; i++) {
+            metrics.onFrameAcquired();
+            metrics.onFrameDelivered();
+        }
+        for (int i = 0; i < 15; i++) {
+            metrics.onFrameDropped();
+        }
+
+        assertSame(snapshot, metrics.snapshot(snapshot, SECOND + SECOND / 2));
+        assertEquals(60.0, snapshot.getDeliveredFps(), 1e-9);
+        assertEquals(30.0, snapshot.getDroppedFps(), 1e-9);
+        assertEquals(30, snapshot.getAcquiredCount());
+
+        // nothing new: rates fall back to zero
+        metrics.snapshot(snapshot, 2 * SECOND);
+        assertEquals(0.0, snapshot.getDeliveredFps(), 0.0);
+        assertEquals(30, snapshot.getDeliveredCount());
+    }
+
+    @Test
+    public void resetDoesNotProduceNegativeRates() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        metrics.onFrameDelivered();
+        metrics.onFrameDelivered();
+        CaptureMetrics.Snapshot snapshot = metrics.snapshot(null, SECOND);
+
+        metrics.reset();
+        metrics.onFrameDelivered();
+        metrics.snapshot(snapshot, 2 * SECOND);
+        assertEquals(0.0, snapshot.getDeliveredFps(), 0.0);
+        assertEquals(1, snapshot.getDeliveredCount());
+    }
+
+    @Test
+    public void stagesAndCountersAreCopied() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        metrics.recordStage(CaptureMetrics.STAGE_COPY, 2_000_000);
+        metrics.recordStage(CaptureMetrics.STAGE_COPY, 4_000_000);
+        metrics.recordStage(CaptureMetrics.STAGE_ENCODE, 10_000_000);
+        metrics.onBufferStarved();
+        metrics.onFrameUnchanged();
+
+        CaptureMetrics.Snapshot snapshot = metrics.snapshot(null, SECOND);
+        assertEquals(2, snapshot.getStage(CaptureMetrics.STAGE_COPY).getCount());
+        assertEquals(3_000_000, snapshot.getStage(CaptureMetrics.STAGE_COPY).getMeanNanos());
+        assertEquals(1, snapshot.getStage(CaptureMetrics.STAGE_ENCODE).getCount());
+        assertEquals(0, snapshot.getStage(CaptureMetrics.STAGE_DIFF).getCount());
+        assertEquals(1, snapshot.getStarvedCount());
+        assertEquals(1, snapshot.getUnchangedCount());
+    }
+}
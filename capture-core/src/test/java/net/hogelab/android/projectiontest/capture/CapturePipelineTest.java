@@ -0,0 +1,332 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class CapturePipelineTest {
+
+    private static final int TILE = TileDiffer.DEFAULT_TILE_SIZE;
+    // a quarter of a 1080x2400 screen
+    private static final int WIDTH = 270;
+    private static final int HEIGHT = 600;
+    // ./gradlew :capture-core:test -PsoakSeconds=600 for a real soak run
+    private static final long SOAK_SECONDS = Long.getLong("capture.soakSeconds", 1);
+
+    private WorkerExecutor executor = new WorkerExecutor("pipeline-test", 2, 64,
+            WorkerExecutor.RejectionPolicy.CALLER_RUNS);
+    private CapturePipeline pipeline;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    // Counts and releases frames, optionally taking its time over each.
+    private static class CountingSubscriber implements FrameBus.Subscriber<ByteBuffer> {
+        final AtomicLong frames = new AtomicLong();
+        final AtomicLong checksum = new AtomicLong();
+        final long workMillis;
+
+        CountingSubscriber(long workMillis) {
+            this.workMillis = workMillis;
+        }
+
+        @Override
+        public void onFrame(Frame<ByteBuffer> frame) {
+            try {
+                ByteBuffer pixels = frame.get();
+                assertEquals(frame.getWidth() * frame.getHeight() * 4, pixels.remaining());
+                checksum.addAndGet(pixels.getInt(pixels.remaining() / 2));
+                if (workMillis > 0) {
+                    Thread.sleep(workMillis);
+                }
+                frames.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    // Hands out the frames of a SyntheticFrameSource when told to, on the caller's thread and
+    // stamped on a clock of its own, so rates come out exact.
+    private static class SteppedSource implements FrameSource {
+        final SyntheticFrameSource frames;
+        final long frameIntervalNanos;
+        Listener listener;
+        long count;
+
+        SteppedSource(SyntheticFrameSource frames, int fps) {
+            this.frames = frames;
+            frameIntervalNanos = 1_000_000_000L / fps;
+        }
+
+        @Override
+        public void start(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            listener = null;
+        }
+
+        void step(int frameCount) {
+            for (int i = 0; i < frameCount; i++) {
+                if (count > 0) {
+                    frames.nextFrame();
+                }
+                listener.onFrameAvailable(frames.getPlane(), WIDTH, HEIGHT, frames.getRowStride(),
+                        count * frameIntervalNanos);
+                count++;
+            }
+        }
+
+        // The current frame, packed.
+        byte[] packed() {
+            ByteBuffer packed = ByteBuffer.allocate(WIDTH * HEIGHT * 4);
+            FrameCopier.copy(frames.getPlane(), WIDTH, HEIGHT, frames.getRowStride(), 4, packed);
+            return packed.array();
+        }
+    }
+
+    // Runs nothing until told to.
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+
+    private SyntheticFrameSource source(int fps, float changeFraction) {
+        return new SyntheticFrameSource("synthetic", WIDTH, HEIGHT, fps, changeFraction, TILE, 42);
+    }
+
+    @Test
+    public void syntheticChangeRateMatchesDiff() {
+        SyntheticFrameSource source = source(60, 0.1f);
+        TileDiffer differ = new TileDiffer(TILE);
+        differ.diff(source.getPlane(), WIDTH, HEIGHT, source.getRowStride());
+
+        int repainted = 0;
+        int dirty = 0;
+        for (int i = 0; i < 50; i++) {
+            repainted += source.nextFrame();
+            dirty += differ.diff(source.getPlane(), WIDTH, HEIGHT, source.getRowStride()).getDirtyTileCount();
+            assertEquals(0, source.getPlane().position());
+        }
+
+        // 9 x 19 tiles, 10% of them per frame, a few repainted twice in one frame
+        int tiles = 9 * 19;
+        assertEquals(tiles * 5, repainted, tiles);
+        assertTrue(dirty <= repainted);
+        assertTrue(dirty > repainted * 9 / 10);
+    }
+
+    @Test
+    public void deliversAtTargetRate() {
+        pipeline = new CapturePipeline(30, TILE);
+        CountingSubscriber subscriber = new CountingSubscriber(0);
+        pipeline.subscribe(subscriber, Runnable::run,
+                CaptureRatePolicy.UNLIMITED_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+
+        SteppedSource source = new SteppedSource(source(60, 0.05f), 60);
+        pipeline.start(source);
+        source.step(120);
+        pipeline.stop();
+
+        // every other frame of a 60fps source
+        CaptureMetrics.Snapshot snapshot = pipeline.getMetricsSnapshot(null);
+        assertEquals(120, snapshot.getAcquiredCount());
+        assertEquals(60, pipeline.getDeliveredFrameCount());
+        assertEquals(60, pipeline.getDroppedFrameCount());
+        assertEquals(60, subscriber.frames.get());
+        assertEquals(0, snapshot.getUnchangedCount());
+        assertEquals(60, snapshot.getStage(CaptureMetrics.STAGE_COPY).getCount());
+    }
+
+    @Test
+    public void staticScreenStopsAtDiff() {
+        pipeline = new CapturePipeline(CaptureRatePolicy.UNLIMITED_FPS, TILE);
+        CountingSubscriber subscriber = new CountingSubscriber(0);
+        pipeline.subscribe(subscriber, Runnable::run,
+                CaptureRatePolicy.UNLIMITED_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+
+        SteppedSource source = new SteppedSource(source(120, 0f), 120);
+        pipeline.start(source);
+        source.step(50);
+        pipeline.stop();
+
+        CaptureMetrics.Snapshot snapshot = pipeline.getMetricsSnapshot(null);
+        assertEquals(1, pipeline.getDeliveredFrameCount());
+        assertEquals(49, snapshot.getUnchangedCount());
+        assertEquals(1, subscriber.frames.get());
+    }
+
+    // Frames that come while the consumer is busy go no further than admission; subscribers
+    // only see what the consumer could have taken.
+    @Test
+    public void busyConsumerDropsAtAdmission() {
+        ManualExecutor consumer = new ManualExecutor();
+        pipeline = new CapturePipeline(CaptureRatePolicy.UNLIMITED_FPS, TILE, true, consumer);
+        CountingSubscriber subscriber = new CountingSubscriber(0);
+        pipeline.subscribe(subscriber, Runnable::run,
+                CaptureRatePolicy.UNLIMITED_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+
+        SteppedSource source = new SteppedSource(source(60, 0.2f), 60);
+        pipeline.start(source);
+        source.step(10);
+        assertEquals(1, pipeline.getPublishedFrameCount());
+        assertEquals(9, pipeline.getDroppedFrameCount());
+        assertEquals(0, pipeline.getDeliveredFrameCount());
+
+        consumer.runAll();
+        assertEquals(1, pipeline.getDeliveredFrameCount());
+        FrameAnalyzer.Stats stats = new FrameAnalyzer.Stats();
+        assertTrue(pipeline.getLatestStats(stats));
+        assertEquals(WIDTH, stats.getWidth());
+        assertEquals(0, stats.getTimestampNanos());
+
+        source.step(1);
+        consumer.runAll();
+        assertEquals(2, pipeline.getPublishedFrameCount());
+        assertEquals(2, pipeline.getDeliveredFrameCount());
+        assertEquals(2, subscriber.frames.get());
+
+        pipeline.stop();
+        consumer.runAll();
+    }
+
+    // One downscaling pass fills every output, and the analysis output is what gets measured.
+    @Test
+    public void scaledOutputs() {
+        pipeline = new CapturePipeline(CaptureRatePolicy.UNLIMITED_FPS, TILE, true, Runnable::run);
+        FrameIngest.ScaledOutput thumbnail = pipeline.addScaledOutput(64, 64, Downscaler.Filter.BOX);
+        FrameIngest.ScaledOutput analysis = pipeline.addScaledOutput(100, 200, Downscaler.Filter.AREA);
+        byte[][] read = new byte[1][];
+        FrameIngest.ScaledOutput.Reader reader = (pixels, width, height, timestampNanos) ->
+                read[0] = Arrays.copyOf(pixels, width * height * 4);
+        assertFalse(thumbnail.read(reader));
+
+        SteppedSource source = new SteppedSource(source(60, 0.2f), 60);
+        pipeline.start(source);
+        source.step(3);
+
+        // fitted into the box, aspect ratio kept
+        Downscaler expected = new Downscaler(WIDTH, HEIGHT);
+        Downscaler.Output expectedThumbnail = expected.addOutput(29, 64, Downscaler.Filter.BOX);
+        Downscaler.Output expectedAnalysis = expected.addOutput(90, 200, Downscaler.Filter.AREA);
+        expected.scale(source.packed(), 0, WIDTH * 4);
+
+        assertTrue(thumbnail.read(reader));
+        assertArrayEquals(expectedThumbnail.getPixels(), read[0]);
+        assertTrue(analysis.read(reader));
+        assertArrayEquals(expectedAnalysis.getPixels(), read[0]);
+
+        // measured on the full frame in the copy, not on a scaled output
+        FrameAnalyzer.Stats stats = new FrameAnalyzer.Stats();
+        assertTrue(pipeline.getLatestStats(stats));
+        assertEquals(WIDTH, stats.getWidth());
+        assertEquals(HEIGHT, stats.getHeight());
+        pipeline.stop();
+    }
+
+    @Test
+    public void exportsIntoJournal() throws IOException {
+        FrameJournal journal = new FrameJournal(folder.getRoot(), 64 << 20, FrameJournal.UNLIMITED,
+                FrameJournal.UNLIMITED, Runnable::run);
+        try {
+            pipeline = new CapturePipeline(CaptureRatePolicy.UNLIMITED_FPS, TILE);
+            FrameJournalRecorder recorder = pipeline.export(journal, Runnable::run,
+                    CaptureRatePolicy.UNLIMITED_FPS, 2);
+
+            SteppedSource source = new SteppedSource(source(60, 0.1f), 60);
+            pipeline.start(source);
+            source.step(20);
+            pipeline.stop();
+            recorder.close();
+
+            assertEquals(20, recorder.getRecordedCount());
+            assertEquals(20, journal.getEntryCount());
+
+            DeltaDecoder decoder = new DeltaDecoder();
+            try {
+                assertTrue(FrameJournalRecorder.decodeAt(journal, Long.MAX_VALUE, decoder,
+                        ByteBuffer.allocate(WIDTH * HEIGHT * 8)));
+                assertArrayEquals(source.packed(), decoder.getPixels());
+            } finally {
+                decoder.close();
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    // Flat out with a fast and a slow subscriber: the slow one only loses its own frames, and
+    // no more frames are ever allocated than the pool can hold.
+    @Test
+    public void soakKeepsMemoryFlat() throws Exception {
+        pipeline = new CapturePipeline(CaptureRatePolicy.UNLIMITED_FPS, TILE);
+        CountingSubscriber fast = new CountingSubscriber(0);
+        CountingSubscriber slow = new CountingSubscriber(20);
+        FrameBus.Subscription<ByteBuffer> fastSubscription = pipeline.subscribe(fast,
+                executor.getLaneExecutor(WorkerExecutor.LANE_EXPORT),
+                CaptureRatePolicy.UNLIMITED_FPS, 2, FrameBus.DropPolicy.DROP_OLDEST);
+        FrameBus.Subscription<ByteBuffer> slowSubscription = pipeline.subscribe(slow,
+                executor.getLaneExecutor(WorkerExecutor.LANE_DEFAULT),
+                CaptureRatePolicy.UNLIMITED_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+
+        SyntheticFrameSource source = source(CaptureRatePolicy.UNLIMITED_FPS, 0.25f);
+        pipeline.start(source);
+        Thread.sleep(SOAK_SECONDS * 1000);
+        pipeline.stop();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        // a miss allocates; the pool covers every frame that can be held at once
+        long misses = pipeline.getFramePoolMissCount();
+        assertTrue(misses <= pipeline.getFramePoolCapacity());
+        assertTrue(pipeline.getFramePoolHitCount() > misses * 10);
+        assertTrue(source.getFrameCount() > 100);
+
+        // each subscriber got or dropped every published frame, and only the slow one fell behind
+        long published = pipeline.getPublishedFrameCount();
+        assertEquals(published, fastSubscription.getDeliveredCount() + fastSubscription.getOverflowDroppedCount());
+        assertEquals(published, slowSubscription.getDeliveredCount() + slowSubscription.getOverflowDroppedCount());
+        assertEquals(fastSubscription.getDeliveredCount(), fast.frames.get());
+        assertEquals(slowSubscription.getDeliveredCount(), slow.frames.get());
+        assertTrue(slowSubscription.getOverflowDroppedCount() > 0);
+        assertTrue(slowSubscription.getOverflowDroppedCount() > fastSubscription.getOverflowDroppedCount());
+    }
+}
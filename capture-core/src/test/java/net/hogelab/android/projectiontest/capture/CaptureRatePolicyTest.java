@@ -0,0 +1,75 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureRatePolicyTest {
+    private static final long VSYNC_NANOS = 16_666_667L;
+
+    @Test
+    public void unlimitedAdmitsEveryFrame() {
+        CaptureRatePolicy policy = new CaptureRatePolicy(CaptureRatePolicy.UNLIMITED_FPS, true);
+
+        for (int i = 0; i < 60; i++) {
+            assertTrue(policy.admit(i * VSYNC_NANOS, false));
+        }
+        assertEquals(0, policy.getDroppedCount());
+    }
+
+    @Test
+    public void targetFpsThinsVsyncFrames() {
+        CaptureRatePolicy policy = new CaptureRatePolicy(10, true);
+
+        int admitted = 0;
+        for (int i = 0; i < 600; i++) {
+            // +-1ms of jitter around each vsync
+            long jitter = (i % 3 - 1) * 1_000_000L;
+            if (policy.admit(i * VSYNC_NANOS + jitter, false)) {
+                admitted++;
+            }
+        }
+
+        // 600 vsyncs span ten seconds
+        assertTrue("admitted " + admitted, admitted >= 99 && admitted <= 101);
+        assertEquals(600 - admitted, policy.getRateDroppedCount());
+    }
+
+    @Test
+    public void thirtyFpsOnSixtyHzIsNotHalvedAgain() {
+        CaptureRatePolicy policy = new CaptureRatePolicy(30, true);
+
+        int admitted = 0;
+        for (int i = 0; i < 60; i++) {
+            if (policy.admit(i * VSYNC_NANOS, false)) {
+                admitted++;
+            }
+        }
+
+        assertEquals(30, admitted);
+    }
+
+    @Test
+    public void busyConsumerDropsOnlyWhenConfigured() {
+        CaptureRatePolicy dropping = new CaptureRatePolicy(CaptureRatePolicy.UNLIMITED_FPS, true);
+        assertFalse(dropping.admit(0, true));
+        assertEquals(1, dropping.getBackpressureDroppedCount());
+
+        CaptureRatePolicy latestWins = new CaptureRatePolicy(CaptureRatePolicy.UNLIMITED_FPS, false);
+        assertTrue(latestWins.admit(0, true));
+        latestWins.onSuperseded();
+        assertEquals(1, latestWins.getDroppedCount());
+    }
+
+    @Test
+    public void mailboxKeepsLatestFrame() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>();
+
+        assertNull(mailbox.offer("a"));
+        assertEquals("a", mailbox.offer("b"));
+        assertFalse(mailbox.isEmpty());
+        assertEquals("b", mailbox.take());
+        assertTrue(mailbox.isEmpty());
+        assertNull(mailbox.take());
+    }
+}
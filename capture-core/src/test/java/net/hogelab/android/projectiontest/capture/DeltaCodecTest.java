@@ -0,0 +1,235 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaCodecTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE = 16;
+
+    private final DeltaDecoder decoder = new DeltaDecoder();
+
+    @After
+    public void tearDown() {
+        decoder.close();
+    }
+
+    // Screen-like content: flat areas compress, a noisy band does not.
+    private static byte[] frame(long seed) {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        Random random = new Random(seed);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = (y * WIDTH + x) * 4;
+                boolean noisy = y >= 20 && y < 30;
+                pixels[i] = (byte) (noisy ? random.nextInt() : x);
+                pixels[i + 1] = (byte) (noisy ? random.nextInt() : y);
+                pixels[i + 2] = (byte) seed;
+                pixels[i + 3] = (byte) 0xff;
+            }
+        }
+        return pixels;
+    }
+
+    private static void fill(byte[] pixels, int x0, int y0, int w, int h, byte value) {
+        for (int y = y0; y < y0 + h; y++) {
+            for (int x = x0; x < x0 + w; x++) {
+                pixels[(y * WIDTH + x) * 4] = value;
+            }
+        }
+    }
+
+    // Writes the message the way the server does and returns the bytes on the wire.
+    private static ByteBuffer wire(DeltaEncoder.Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        channel.write(message.getHeader());
+        channel.write(message.getPayload());
+        assertEquals(message.getLength(), out.size());
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static ByteBuffer hello() {
+        ByteBuffer hello = ByteBuffer.allocate(DeltaProtocol.HELLO_LENGTH);
+        DeltaProtocol.writeHello(hello);
+        hello.flip();
+        return hello;
+    }
+
+    private void roundTrip(boolean compress) throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(TILE, compress);
+        DeltaEncoder.Message message = new DeltaEncoder.Message();
+        assertEquals(DeltaProtocol.MSG_HELLO, decoder.decode(hello()));
+
+        byte[] pixels = frame(1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(pixels.length);
+        buffer.put(pixels).flip();
+        assertTrue(encoder.diff(buffer, WIDTH, HEIGHT, WIDTH * 4).isFull());
+        encoder.encode(buffer, WIDTH, HEIGHT, WIDTH * 4, null, 1, 1000, message);
+
+        assertEquals(DeltaProtocol.MSG_KEYFRAME, decoder.decode(wire(message)));
+        assertEquals(WIDTH, decoder.getWidth());
+        assertEquals(HEIGHT, decoder.getHeight());
+        assertEquals(1, decoder.getSequence());
+        assertEquals(1000, decoder.getTimestampNanos());
+        assertArrayEquals(pixels, decoder.getPixels());
+        int keyframeLength = message.getLength();
+
+        // a change that straddles tile edges, including the partial right and bottom ones
+        fill(pixels, 90, 60, 10, 10, (byte) 0x55);
+        fill(pixels, 10, 12, 8, 8, (byte) 0x66);
+        buffer.clear();
+        buffer.put(pixels).flip();
+        FrameDiff diff = encoder.diff(buffer, WIDTH, HEIGHT, WIDTH * 4);
+        assertEquals(8, diff.getDirtyTileCount());
+
+        boolean[] tiles = new boolean[diff.getTileColumns() * diff.getTileRows()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = diff.isTileDirty(i);
+        }
+        encoder.encode(buffer, WIDTH, HEIGHT, WIDTH * 4, tiles, 2, 2000, message);
+        assertEquals(8, message.getTileCount());
+        assertTrue(message.getLength() < keyframeLength);
+
+        assertEquals(DeltaProtocol.MSG_DELTA, decoder.decode(wire(message)));
+        assertEquals(2, decoder.getSequence());
+        assertEquals(8, decoder.getTileCount());
+        assertArrayEquals(pixels, decoder.getPixels());
+
+        encoder.close();
+    }
+
+    @Test
+    public void roundTripUncompressed() throws IOException {
+        roundTrip(false);
+    }
+
+    @Test
+    public void roundTripDeflate() throws IOException {
+        roundTrip(true);
+    }
+
+    @Test
+    public void deflateShrinksFlatFrames() {
+        DeltaEncoder plain = new DeltaEncoder(TILE, false);
+        DeltaEncoder deflate = new DeltaEncoder(TILE, true);
+        DeltaEncoder.Message plainMessage = new DeltaEncoder.Message();
+        DeltaEncoder.Message deflateMessage = new DeltaEncoder.Message();
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame(3));
+        plain.encode(buffer, WIDTH, HEIGHT, WIDTH * 4, null, 1, 0, plainMessage);
+        deflate.encode(buffer, WIDTH, HEIGHT, WIDTH * 4, null, 1, 0, deflateMessage);
+        assertTrue(deflateMessage.getLength() * 2 < plainMessage.getLength());
+
+        plain.close();
+        deflate.close();
+    }
+
+    @Test
+    public void rowPaddingIsSkipped() throws IOException {
+        byte[] pixels = frame(4);
+        int rowStride = WIDTH * 4 + 12;
+        ByteBuffer padded = ByteBuffer.allocate(8 + rowStride * HEIGHT);
+        padded.position(8);
+        for (int y = 0; y < HEIGHT; y++) {
+            padded.position(8 + y * rowStride);
+            padded.put(pixels, y * WIDTH * 4, WIDTH * 4);
+            padded.put(new byte[12]);
+        }
+        padded.position(8);
+
+        DeltaEncoder encoder = new DeltaEncoder(TILE, true);
+        DeltaEncoder.Message message = new DeltaEncoder.Message();
+        encoder.encode(padded, WIDTH, HEIGHT, rowStride, null, 1, 0, message);
+        assertEquals(8, padded.position());
+
+        decoder.decode(wire(message));
+        assertArrayEquals(pixels, decoder.getPixels());
+        encoder.close();
+    }
+
+    @Test
+    public void deltaBeforeKeyframeFails() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(TILE, false);
+        DeltaEncoder.Message message = new DeltaEncoder.Message();
+        boolean[] tiles = new boolean[7 * 5];
+        tiles[3] = true;
+        encoder.encode(ByteBuffer.wrap(frame(5)), WIDTH, HEIGHT, WIDTH * 4, tiles, 1, 0, message);
+
+        try {
+            decoder.decode(wire(message));
+            fail();
+        } catch (IOException expected) {
+        }
+        encoder.close();
+    }
+
+    @Test
+    public void staleDeltaFails() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(TILE, false);
+        DeltaEncoder.Message message = new DeltaEncoder.Message();
+        boolean[] tiles = new boolean[7 * 5];
+        tiles[3] = true;
+        encoder.encode(ByteBuffer.wrap(frame(7)), WIDTH, HEIGHT, WIDTH * 4, null, Integer.MAX_VALUE, 0, message);
+        decoder.decode(wire(message));
+
+        // past the wrap still follows
+        encoder.encode(ByteBuffer.wrap(frame(8)), WIDTH, HEIGHT, WIDTH * 4, tiles, Integer.MIN_VALUE, 0, message);
+        ByteBuffer delta = wire(message);
+        assertEquals(DeltaProtocol.MSG_DELTA, decoder.decode(delta));
+        assertEquals(Integer.MIN_VALUE, decoder.getSequence());
+
+        delta.rewind();
+        try {
+            decoder.decode(delta);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        // a keyframe restarts the chain at any sequence
+        encoder.encode(ByteBuffer.wrap(frame(9)), WIDTH, HEIGHT, WIDTH * 4, null, 5, 0, message);
+        assertEquals(DeltaProtocol.MSG_KEYFRAME, decoder.decode(wire(message)));
+        assertEquals(5, decoder.getSequence());
+        encoder.close();
+    }
+
+    @Test
+    public void corruptPayloadFails() throws IOException {
+        DeltaEncoder encoder = new DeltaEncoder(TILE, true);
+        DeltaEncoder.Message message = new DeltaEncoder.Message();
+        encoder.encode(ByteBuffer.wrap(frame(6)), WIDTH, HEIGHT, WIDTH * 4, null, 1, 0, message);
+
+        ByteBuffer bytes = wire(message);
+        for (int i = DeltaProtocol.FRAME_HEADER_LENGTH; i < bytes.limit(); i += 7) {
+            bytes.put(i, (byte) ~bytes.get(i));
+        }
+        try {
+            decoder.decode(bytes);
+            fail();
+        } catch (IOException expected) {
+        }
+        encoder.close();
+    }
+
+    @Test
+    public void otherVersionIsRejected() {
+        ByteBuffer hello = hello();
+        hello.putShort(9, (short) (DeltaProtocol.VERSION + 1));
+        try {
+            decoder.decode(hello);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
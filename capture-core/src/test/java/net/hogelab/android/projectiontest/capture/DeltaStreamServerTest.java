@@ -0,0 +1,249 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DeltaStreamServerTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int TILE = 16;
+    private static final int WINDOW = 2;
+
+    private final Semaphore frameWanted = new Semaphore(0);
+    private final AtomicInteger openFrames = new AtomicInteger();
+    private DeltaStreamServer server;
+
+    // Blocking client that decodes everything it reads.
+    private static class Client implements AutoCloseable {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final DeltaDecoder decoder = new DeltaDecoder();
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(5000);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        byte read() throws IOException {
+            int length = in.readInt();
+            ByteBuffer message = ByteBuffer.allocate(4 + length);
+            message.putInt(length);
+            in.readFully(message.array(), 4, length);
+            message.rewind();
+            return decoder.decode(message);
+        }
+
+        void send(byte type, int sequence) throws IOException {
+            ByteBuffer message = ByteBuffer.allocate(DeltaProtocol.CLIENT_MESSAGE_LENGTH);
+            DeltaProtocol.writeClientMessage(message, type, sequence);
+            out.write(message.array());
+            out.flush();
+        }
+
+        boolean hasMore(int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+            try {
+                in.mark(1);
+                return in.read() >= 0;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(5000);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            decoder.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new DeltaStreamServer("delta-test", frameWanted::release, TILE, true, WINDOW);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        assertEquals(0, openFrames.get());
+    }
+
+    private static byte[] pixels(int value) {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i / 4 % WIDTH);
+        }
+        // one tile's worth of change per value
+        for (int y = 0; y < TILE; y++) {
+            Arrays.fill(pixels, (y * WIDTH) * 4, (y * WIDTH + TILE) * 4, (byte) value);
+        }
+        return pixels;
+    }
+
+    private void offer(byte[] pixels, long timestampNanos) throws InterruptedException {
+        long frames = server.getFrameCount();
+        openFrames.incrementAndGet();
+        server.offer(new Frame<>(ByteBuffer.wrap(pixels.clone()))
+                .open(timestampNanos, timestampNanos, WIDTH, HEIGHT, f -> openFrames.decrementAndGet()));
+        for (int i = 0; i < 500 && server.getFrameCount() == frames; i++) {
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitClients(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getClientCount() != count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getClientCount());
+    }
+
+    @Test
+    public void keyframeThenDeltas() throws Exception {
+        try (Client client = new Client(server.getLocalPort())) {
+            assertEquals(DeltaProtocol.MSG_HELLO, client.read());
+            // nothing to make a keyframe from yet
+            assertTrue(frameWanted.tryAcquire(5, TimeUnit.SECONDS));
+
+            byte[] first = pixels(1);
+            offer(first, 1);
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+            assertArrayEquals(first, client.decoder.getPixels());
+            client.send(DeltaProtocol.MSG_ACK, client.decoder.getSequence());
+
+            for (int value = 2; value <= 5; value++) {
+                byte[] next = pixels(value);
+                offer(next, value);
+                assertEquals(DeltaProtocol.MSG_DELTA, client.read());
+                assertEquals(1, client.decoder.getTileCount());
+                assertArrayEquals(next, client.decoder.getPixels());
+                client.send(DeltaProtocol.MSG_ACK, client.decoder.getSequence());
+            }
+
+            // unchanged frames send nothing
+            offer(pixels(5), 6);
+            assertFalse(client.hasMore(200));
+        }
+
+        awaitClients(0);
+        assertEquals(1, server.getKeyframeCount());
+        assertEquals(0, server.getSkippedFrameCount());
+    }
+
+    @Test
+    public void clientWithoutAcksFallsBackToMergedDelta() throws Exception {
+        offer(pixels(1), 1);
+
+        try (Client client = new Client(server.getLocalPort())) {
+            assertEquals(DeltaProtocol.MSG_HELLO, client.read());
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+
+            // a second client that keeps up shares the same deltas
+            try (Client other = new Client(server.getLocalPort())) {
+                assertEquals(DeltaProtocol.MSG_HELLO, other.read());
+                assertEquals(DeltaProtocol.MSG_KEYFRAME, other.read());
+                other.send(DeltaProtocol.MSG_ACK, other.decoder.getSequence());
+
+                // the first client never acknowledges: one more frame fills its window
+                byte[] latest = null;
+                for (int value = 2; value <= 6; value++) {
+                    latest = pixels(value);
+                    // and a tile that changes in a skipped frame and back in the next
+                    if (value == 4) {
+                        latest[(HEIGHT - 1) * WIDTH * 4] = 1;
+                    }
+                    offer(latest, value);
+
+                    assertEquals(DeltaProtocol.MSG_DELTA, other.read());
+                    assertArrayEquals(latest, other.decoder.getPixels());
+                    other.send(DeltaProtocol.MSG_ACK, other.decoder.getSequence());
+                }
+
+                assertEquals(DeltaProtocol.MSG_DELTA, client.read());
+                assertFalse(client.hasMore(200));
+                assertTrue(server.getSkippedFrameCount() >= 3);
+
+                // acknowledging catches it up in one delta with every tile it missed
+                client.send(DeltaProtocol.MSG_ACK, client.decoder.getSequence());
+                assertEquals(DeltaProtocol.MSG_DELTA, client.read());
+                assertEquals(2, client.decoder.getTileCount());
+                assertArrayEquals(latest, client.decoder.getPixels());
+            }
+        }
+    }
+
+    @Test
+    public void keyframeOnRequest() throws Exception {
+        offer(pixels(1), 1);
+
+        try (Client client = new Client(server.getLocalPort())) {
+            assertEquals(DeltaProtocol.MSG_HELLO, client.read());
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+
+            client.send(DeltaProtocol.MSG_KEYFRAME_REQUEST, 0);
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+            assertArrayEquals(pixels(1), client.decoder.getPixels());
+        }
+        assertEquals(2, server.getKeyframeCount());
+    }
+
+    @Test
+    public void sizeChangeSendsKeyframe() throws Exception {
+        offer(pixels(1), 1);
+
+        try (Client client = new Client(server.getLocalPort())) {
+            assertEquals(DeltaProtocol.MSG_HELLO, client.read());
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+            client.send(DeltaProtocol.MSG_ACK, client.decoder.getSequence());
+
+            byte[] small = new byte[32 * 16 * 4];
+            Arrays.fill(small, (byte) 9);
+            long frames = server.getFrameCount();
+            openFrames.incrementAndGet();
+            server.offer(new Frame<>(ByteBuffer.wrap(small))
+                    .open(2, 2, 32, 16, f -> openFrames.decrementAndGet()));
+
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+            assertEquals(32, client.decoder.getWidth());
+            assertEquals(16, client.decoder.getHeight());
+            assertTrue(server.getFrameCount() > frames);
+        }
+    }
+
+    @Test
+    public void invalidateAsksForFreshFrame() throws Exception {
+        offer(pixels(1), 1);
+        server.invalidate();
+
+        try (Client client = new Client(server.getLocalPort())) {
+            assertEquals(DeltaProtocol.MSG_HELLO, client.read());
+            assertTrue(frameWanted.tryAcquire(5, TimeUnit.SECONDS));
+
+            offer(pixels(2), 2);
+            assertEquals(DeltaProtocol.MSG_KEYFRAME, client.read());
+            assertArrayEquals(pixels(2), client.decoder.getPixels());
+        }
+    }
+}
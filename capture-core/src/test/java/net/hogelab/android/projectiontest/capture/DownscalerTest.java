@@ -0,0 +1,188 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DownscalerTest {
+
+    private static byte[] random(int width, int height, int rowStride, long seed) {
+        byte[] pixels = new byte[rowStride * height];
+        new Random(seed).nextBytes(pixels);
+        return pixels;
+    }
+
+    private static byte[] flat(int width, int height, int rowStride, int rgba) {
+        byte[] pixels = new byte[rowStride * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * rowStride + x * 4;
+                pixels[i] = (byte) (rgba >>> 24);
+                pixels[i + 1] = (byte) (rgba >>> 16);
+                pixels[i + 2] = (byte) (rgba >>> 8);
+                pixels[i + 3] = (byte) rgba;
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void flatStaysFlat() {
+        // odd ratios on both axes, all filled in the same pass
+        byte[] source = flat(101, 67, 101 * 4, 0x12f0807f);
+        Downscaler scaler = new Downscaler(101, 67);
+        List<Downscaler.Output> outputs = new ArrayList<>();
+        for (Downscaler.Filter filter : Downscaler.Filter.values()) {
+            for (int size : new int[] {1, 3, 10, 33, 50, 67}) {
+                outputs.add(scaler.addOutput(Math.min(101, size + 7), size, filter));
+            }
+        }
+        scaler.scale(source, 0, 101 * 4);
+
+        byte[] expected = flat(1, 1, 4, 0x12f0807f);
+        for (Downscaler.Output output : outputs) {
+            byte[] pixels = output.getPixels();
+            for (int i = 0; i < pixels.length; i++) {
+                assertEquals(output.getFilter() + " " + output.getWidth() + "x" + output.getHeight(),
+                        expected[i % 4], pixels[i]);
+            }
+        }
+    }
+
+    @Test
+    public void sameSizeIsACopy() {
+        byte[] source = random(101, 67, 101 * 4, 4);
+        for (Downscaler.Filter filter : Downscaler.Filter.values()) {
+            Downscaler scaler = new Downscaler(101, 67);
+            Downscaler.Output output = scaler.addOutput(101, 67, filter);
+            scaler.scale(source, 0, 101 * 4);
+            assertArrayEquals(source, output.getPixels());
+        }
+    }
+
+    @Test
+    public void halfSizeAveragesBlocks() {
+        int width = 8;
+        int height = 6;
+        byte[] source = random(width, height, width * 4, 1);
+        Downscaler scaler = new Downscaler(width, height);
+        Downscaler.Output box = scaler.addOutput(4, 3, Downscaler.Filter.BOX);
+        Downscaler.Output bilinear = scaler.addOutput(4, 3, Downscaler.Filter.BILINEAR);
+        Downscaler.Output area = scaler.addOutput(4, 3, Downscaler.Filter.AREA);
+        scaler.scale(source, 0, width * 4);
+
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                for (int c = 0; c < 4; c++) {
+                    int sum = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            sum += source[((y * 2 + dy) * width + x * 2 + dx) * 4 + c] & 0xff;
+                        }
+                    }
+                    int i = (y * 4 + x) * 4 + c;
+                    // exact mean up to the intermediate rounding
+                    assertEquals(sum / 4.0, box.getPixels()[i] & 0xff, 1);
+                    assertEquals(box.getPixels()[i], bilinear.getPixels()[i]);
+                    assertEquals(box.getPixels()[i], area.getPixels()[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void areaWeighsPartialPixels() {
+        // 3 pixels to 2: the middle one counts half for each
+        byte[] source = new byte[] {0, 0, 0, 0, 90, 90, 90, 90, (byte) 180, (byte) 180, (byte) 180, (byte) 180};
+        Downscaler scaler = new Downscaler(3, 1);
+        Downscaler.Output area = scaler.addOutput(2, 1, Downscaler.Filter.AREA);
+        scaler.scale(source, 0, 12);
+
+        assertEquals(30, area.getPixels()[0] & 0xff);
+        assertEquals(150, area.getPixels()[4] & 0xff);
+    }
+
+    @Test
+    public void onePassMatchesSeparatePasses() {
+        int width = 270;
+        int height = 600;
+        byte[] source = random(width, height, width * 4, 2);
+
+        Downscaler combined = new Downscaler(width, height);
+        Downscaler.Output[] outputs = {
+                combined.addOutput(54, 120, Downscaler.Filter.AREA),
+                combined.addOutput(135, 300, Downscaler.Filter.BILINEAR),
+                combined.addOutput(13, 30, Downscaler.Filter.BOX),
+        };
+        combined.scale(source, 0, width * 4);
+
+        for (Downscaler.Output output : outputs) {
+            Downscaler single = new Downscaler(width, height);
+            Downscaler.Output expected = single.addOutput(output.getWidth(), output.getHeight(), output.getFilter());
+            single.scale(source, 0, width * 4);
+            assertArrayEquals(expected.getPixels(), output.getPixels());
+        }
+
+        // and again, reusing the outputs
+        byte[] first = outputs[0].getPixels().clone();
+        combined.scale(source, 0, width * 4);
+        assertArrayEquals(first, outputs[0].getPixels());
+    }
+
+    @Test
+    public void paddedBufferMatchesArray() {
+        int width = 100;
+        int height = 70;
+        int rowStride = 448;
+        byte[] padded = random(width, height, rowStride, 3);
+        byte[] packed = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(padded, y * rowStride, packed, y * width * 4, width * 4);
+        }
+
+        for (Downscaler.Filter filter : Downscaler.Filter.values()) {
+            Downscaler fromArray = new Downscaler(width, height);
+            Downscaler.Output expected = fromArray.addOutput(31, 17, filter);
+            fromArray.scale(packed, 0, width * 4);
+
+            Downscaler fromBuffer = new Downscaler(width, height);
+            Downscaler.Output actual = fromBuffer.addOutput(31, 17, filter);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(padded.length + 8);
+            buffer.position(8);
+            buffer.put(padded);
+            buffer.position(8);
+            fromBuffer.scale(buffer, rowStride);
+
+            assertEquals(8, buffer.position());
+            assertArrayEquals(expected.getPixels(), actual.getPixels());
+        }
+    }
+
+    @Test
+    public void upscalingIsRejected() {
+        Downscaler scaler = new Downscaler(10, 10);
+        try {
+            scaler.addOutput(11, 5, Downscaler.Filter.AREA);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void fittedOutputKeepsAspectRatio() {
+        Downscaler scaler = new Downscaler(270, 600);
+        Downscaler.Output thumbnail = scaler.addFittedOutput(64, 64, Downscaler.Filter.AREA);
+        assertEquals(29, thumbnail.getWidth());
+        assertEquals(64, thumbnail.getHeight());
+
+        // never scaled up
+        Downscaler.Output large = scaler.addFittedOutput(1000, 1000, Downscaler.Filter.AREA);
+        assertEquals(270, large.getWidth());
+        assertEquals(600, large.getHeight());
+    }
+}
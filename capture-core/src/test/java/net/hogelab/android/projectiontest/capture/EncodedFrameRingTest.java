@@ -0,0 +1,224 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class EncodedFrameRingTest {
+    private static final long FRAME_US = 40_000L;   // 25fps
+
+    private static class CollectingWriter implements SegmentedRecorder.SegmentWriter {
+        final List<Long> times = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        final List<Integer> payloads = new ArrayList<>();
+        boolean closed;
+
+        @Override
+        public void writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame) {
+            times.add(presentationTimeUs);
+            keyFrames.add(keyFrame);
+            payloads.add(data.getInt(data.position()));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static ByteBuffer sample(int frameIndex, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(0, frameIndex);
+        return buffer;
+    }
+
+    private static void feed(EncodedFrameRing ring, int from, int to, int gopSize, int size) {
+        for (int i = from; i < to; i++) {
+            ring.append(sample(i, size), i * FRAME_US, i % gopSize == 0);
+        }
+    }
+
+    private static CollectingWriter drain(EncodedFrameRing ring) throws IOException {
+        CollectingWriter writer = new CollectingWriter();
+        ring.snapshot(null).writeTo(writer);
+        return writer;
+    }
+
+    @Test
+    public void keepsWindowStartingOnKeyFrame() throws IOException {
+        // 2s window, key frame every second
+        EncodedFrameRing ring = new EncodedFrameRing(2_000_000L, 1 << 20, 1000);
+
+        feed(ring, 0, 25 * 60, 25, 100);
+
+        CollectingWriter writer = drain(ring);
+        assertTrue(writer.keyFrames.get(0));
+        long duration = ring.getDurationUs();
+        assertTrue("duration " + duration, duration >= 2_000_000L - FRAME_US);
+        assertTrue("duration " + duration, duration < 3_000_000L);
+        assertEquals(Integer.valueOf(25 * 60 - 1), writer.payloads.get(writer.payloads.size() - 1));
+    }
+
+    @Test
+    public void byteCapacityBoundsMemory() throws IOException {
+        // room for 30 samples of 1000 bytes, window large enough never to matter
+        EncodedFrameRing ring = new EncodedFrameRing(3600_000_000L, 30_000, 1000);
+
+        feed(ring, 0, 10_000, 10, 1000);
+
+        assertTrue(ring.getByteCount() <= 30_000);
+        assertEquals(ring.getSampleCount() * 1000, ring.getByteCount());
+        CollectingWriter writer = drain(ring);
+        assertTrue(writer.keyFrames.get(0));
+        for (int i = 1; i < writer.payloads.size(); i++) {
+            assertEquals(writer.payloads.get(i - 1) + 1, (int) writer.payloads.get(i));
+        }
+    }
+
+    @Test
+    public void wrappedSamplesSurviveSnapshot() throws IOException {
+        EncodedFrameRing ring = new EncodedFrameRing(3600_000_000L, 1000, 100);
+
+        // odd sizes so samples straddle the end of the arena
+        for (int i = 0; i < 200; i++) {
+            ring.append(sample(i, 37 + i % 5), i * FRAME_US, i % 4 == 0);
+        }
+
+        CollectingWriter writer = drain(ring);
+        assertFalse(writer.payloads.isEmpty());
+        int first = writer.payloads.get(0);
+        assertEquals(0, first % 4);
+        for (int i = 0; i < writer.payloads.size(); i++) {
+            assertEquals(first + i, (int) writer.payloads.get(i));
+        }
+    }
+
+    @Test
+    public void snapshotIsSizedToContents() throws IOException {
+        EncodedFrameRing ring = new EncodedFrameRing(3600_000_000L, 1 << 20, 1000);
+        feed(ring, 0, 3, 10, 100);
+
+        EncodedFrameRing.Snapshot snapshot = ring.snapshot(null);
+        assertEquals(300, snapshot.getByteCapacity());
+
+        // reused while it fits, replaced once it does not
+        ring.clear();
+        feed(ring, 0, 2, 10, 100);
+        assertSame(snapshot, ring.snapshot(snapshot));
+        feed(ring, 2, 5, 10, 100);
+        EncodedFrameRing.Snapshot grown = ring.snapshot(snapshot);
+        assertNotSame(snapshot, grown);
+        assertEquals(500, grown.getByteCapacity());
+
+        CollectingWriter writer = new CollectingWriter();
+        grown.writeTo(writer);
+        assertEquals(5, writer.payloads.size());
+        assertEquals(Integer.valueOf(4), writer.payloads.get(4));
+    }
+
+    @Test
+    public void leadingDeltaFramesAndOversizedSamplesAreRejected() {
+        EncodedFrameRing ring = new EncodedFrameRing(1_000_000L, 100, 10);
+
+        ring.append(sample(0, 10), 0, false);
+        ring.append(sample(1, 200), FRAME_US, true);
+
+        assertEquals(0, ring.getSampleCount());
+        assertEquals(2, ring.getRejectedSampleCount());
+    }
+
+    @Test
+    public void replayFlushWritesSnapshotWhileRecordingContinues() {
+        List<Runnable> ioTasks = new ArrayList<>();
+        Executor direct = Runnable::run;
+        ReplayRecorder<String> recorder = new ReplayRecorder<>(
+                new EncodedFrameRing(1_000_000L, 1 << 16, 100), direct, ioTasks::add);
+        List<CollectingWriter> writers = new ArrayList<>();
+        int[] completed = new int[1];
+
+        recorder.onOutputFormatChanged("video/avc");
+        for (int i = 0; i < 50; i++) {
+            recorder.onEncodedFrame(sample(i, 16), i * FRAME_US, i % 10 == 0);
+        }
+
+        recorder.flush((segmentIndex, format) -> {
+            CollectingWriter writer = new CollectingWriter();
+            writers.add(writer);
+            return writer;
+        }, new ReplayRecorder.FlushCallback() {
+            @Override
+            public void onFlushCompleted(int sampleCount) {
+                completed[0] = sampleCount;
+            }
+
+            @Override
+            public void onFlushFailed(Exception e) {
+                fail(e.toString());
+            }
+        });
+
+        // capture keeps going before the io task gets to run
+        for (int i = 50; i < 100; i++) {
+            recorder.onEncodedFrame(sample(i, 16), i * FRAME_US, i % 10 == 0);
+        }
+        assertEquals(1, ioTasks.size());
+        ioTasks.get(0).run();
+
+        assertEquals(1, writers.size());
+        CollectingWriter writer = writers.get(0);
+        assertTrue(writer.closed);
+        assertEquals(completed[0], writer.payloads.size());
+        assertEquals(Integer.valueOf(49), writer.payloads.get(writer.payloads.size() - 1));
+        assertTrue(writer.keyFrames.get(0));
+    }
+
+    @Test
+    public void replayFlushJoinsTheOneInFlight() {
+        List<Runnable> ioTasks = new ArrayList<>();
+        ReplayRecorder<String> recorder = new ReplayRecorder<>(
+                new EncodedFrameRing(1_000_000L, 1 << 16, 100), Runnable::run, ioTasks::add);
+        List<CollectingWriter> writers = new ArrayList<>();
+        List<Integer> completed = new ArrayList<>();
+        SegmentedRecorder.SegmentWriterFactory<String> factory = (segmentIndex, format) -> {
+            CollectingWriter writer = new CollectingWriter();
+            writers.add(writer);
+            return writer;
+        };
+        ReplayRecorder.FlushCallback callback = new ReplayRecorder.FlushCallback() {
+            @Override
+            public void onFlushCompleted(int sampleCount) {
+                completed.add(sampleCount);
+            }
+
+            @Override
+            public void onFlushFailed(Exception e) {
+                fail(e.toString());
+            }
+        };
+
+        recorder.onOutputFormatChanged("video/avc");
+        for (int i = 0; i < 20; i++) {
+            recorder.onEncodedFrame(sample(i, 16), i * FRAME_US, i % 10 == 0);
+        }
+        recorder.flush(factory, callback);
+        recorder.flush(factory, callback);
+        assertEquals(1, ioTasks.size());
+        assertTrue(completed.isEmpty());
+
+        ioTasks.get(0).run();
+        assertEquals(1, writers.size());
+        assertEquals(2, completed.size());
+        assertEquals(Integer.valueOf(writers.get(0).payloads.size()), completed.get(0));
+        assertEquals(completed.get(0), completed.get(1));
+
+        // the next one is written on its own again
+        recorder.flush(factory, callback);
+        assertEquals(2, ioTasks.size());
+    }
+}
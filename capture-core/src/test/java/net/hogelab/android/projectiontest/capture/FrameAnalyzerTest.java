@@ -0,0 +1,174 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameAnalyzerTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 40;
+    private static final float EPSILON = 1e-6f;
+
+    private final FrameAnalyzer.Stats stats = new FrameAnalyzer.Stats();
+
+    private static ByteBuffer rgba(int width, int height, int rowStride, int r, int g, int b) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * rowStride + x * 4;
+                buffer.put(i, (byte) r).put(i + 1, (byte) g).put(i + 2, (byte) b).put(i + 3, (byte) 0xff);
+            }
+        }
+        return buffer;
+    }
+
+    private static void setPixel(ByteBuffer buffer, int rowStride, int x, int y, int value) {
+        int i = y * rowStride + x * 4;
+        buffer.put(i, (byte) value).put(i + 1, (byte) value).put(i + 2, (byte) value);
+    }
+
+    @Test
+    public void copiesLikeFrameCopier() {
+        int rowStride = WIDTH * 4 + 48;
+        ByteBuffer src = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        byte[] noise = new byte[src.capacity()];
+        new Random(5).nextBytes(noise);
+        src.put(noise).clear();
+
+        for (int step : new int[] {1, 3}) {
+            ByteBuffer expected = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+            FrameCopier.copy(src, WIDTH, HEIGHT, rowStride, 4, expected);
+            ByteBuffer actual = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 4);
+            new FrameAnalyzer(step).copy(src, WIDTH, HEIGHT, rowStride, 4, actual, 7, stats);
+
+            assertEquals(expected, actual);
+            assertEquals(0, src.position());
+            assertEquals(src.capacity(), src.limit());
+        }
+    }
+
+    @Test
+    public void uniformFrame() {
+        FrameAnalyzer analyzer = new FrameAnalyzer(1);
+        analyzer.copy(rgba(WIDTH, HEIGHT, WIDTH * 4, 40, 40, 40), WIDTH, HEIGHT, WIDTH * 4, 4, null, 99, stats);
+
+        assertEquals(99, stats.getTimestampNanos());
+        assertEquals(WIDTH * HEIGHT, stats.getSampleCount());
+        assertEquals(40, stats.getMeanLuma(), EPSILON);
+        assertEquals(40, stats.getLumaMin());
+        assertEquals(40, stats.getLumaMax());
+        assertTrue(stats.isUniform(0));
+        assertEquals(0, stats.getEdgeDensity(), EPSILON);
+        for (int channel = 0; channel < FrameAnalyzer.CHANNEL_COUNT; channel++) {
+            assertEquals(WIDTH * HEIGHT, stats.getHistogram(channel, 40 >> 4));
+        }
+        assertFalse(stats.isComparedToPrevious());
+        assertEquals(1, stats.getChangedFraction(), EPSILON);
+    }
+
+    @Test
+    public void colorHistogramPerChannel() {
+        FrameAnalyzer analyzer = new FrameAnalyzer(2);
+        analyzer.copy(rgba(WIDTH, HEIGHT, WIDTH * 4, 255, 0, 128), WIDTH, HEIGHT, WIDTH * 4, 4, null, 0, stats);
+
+        int samples = (WIDTH / 2) * (HEIGHT / 2);
+        assertEquals(samples, stats.getSampleCount());
+        assertEquals(samples, stats.getHistogram(FrameAnalyzer.CHANNEL_RED, 15));
+        assertEquals(samples, stats.getHistogram(FrameAnalyzer.CHANNEL_GREEN, 0));
+        assertEquals(samples, stats.getHistogram(FrameAnalyzer.CHANNEL_BLUE, 8));
+        // 77 * 255 + 29 * 128, rounded
+        assertEquals(91, stats.getMeanLuma(), EPSILON);
+    }
+
+    @Test
+    public void edgeDensity() {
+        FrameAnalyzer analyzer = new FrameAnalyzer(1);
+        // a checkerboard is all edges but the first sample
+        ByteBuffer checker = rgba(WIDTH, HEIGHT, WIDTH * 4, 0, 0, 0);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                if (((x + y) & 1) == 0) {
+                    setPixel(checker, WIDTH * 4, x, y, 255);
+                }
+            }
+        }
+        analyzer.copy(checker, WIDTH, HEIGHT, WIDTH * 4, 4, null, 0, stats);
+        assertEquals(WIDTH * HEIGHT - 1, Math.round(stats.getEdgeDensity() * stats.getSampleCount()));
+
+        // one vertical line: the samples on it and just right of it
+        ByteBuffer line = rgba(WIDTH, HEIGHT, WIDTH * 4, 0, 0, 0);
+        for (int y = 0; y < HEIGHT; y++) {
+            setPixel(line, WIDTH * 4, 10, y, 255);
+        }
+        analyzer.copy(line, WIDTH, HEIGHT, WIDTH * 4, 4, null, 0, stats);
+        assertEquals(2 * HEIGHT, Math.round(stats.getEdgeDensity() * stats.getSampleCount()));
+    }
+
+    @Test
+    public void changedFraction() {
+        FrameAnalyzer analyzer = new FrameAnalyzer(1);
+        ByteBuffer frame = rgba(WIDTH, HEIGHT, WIDTH * 4, 100, 100, 100);
+        analyzer.copy(frame, WIDTH, HEIGHT, WIDTH * 4, 4, null, 0, stats);
+        analyzer.copy(frame, WIDTH, HEIGHT, WIDTH * 4, 4, null, 1, stats);
+        assertTrue(stats.isComparedToPrevious());
+        assertEquals(0, stats.getChangedFraction(), EPSILON);
+
+        // the top half changes; noise below the threshold does not count
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                setPixel(frame, WIDTH * 4, x, y, y < HEIGHT / 2 ? 200 : 102);
+            }
+        }
+        analyzer.copy(frame, WIDTH, HEIGHT, WIDTH * 4, 4, null, 2, stats);
+        assertEquals(0.5f, stats.getChangedFraction(), EPSILON);
+
+        // a new size starts over
+        analyzer.copy(frame, WIDTH / 2, HEIGHT, WIDTH * 4, 4, null, 3, stats);
+        assertFalse(stats.isComparedToPrevious());
+        analyzer.reset();
+        analyzer.copy(frame, WIDTH / 2, HEIGHT, WIDTH * 4, 4, null, 4, stats);
+        assertFalse(stats.isComparedToPrevious());
+    }
+
+    @Test
+    public void rgb565() {
+        int rowStride = WIDTH * 2 + 16;
+        ByteBuffer src = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                // pure red, little-endian
+                src.putShort(y * rowStride + x * 2, Short.reverseBytes((short) 0xf800));
+            }
+        }
+
+        ByteBuffer dst = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2);
+        new FrameAnalyzer(1).copy(src, WIDTH, HEIGHT, rowStride, 2, dst, 0, stats);
+
+        assertEquals(WIDTH * HEIGHT * 2, dst.remaining());
+        assertEquals(WIDTH * HEIGHT, stats.getHistogram(FrameAnalyzer.CHANNEL_RED, 15));
+        assertEquals(WIDTH * HEIGHT, stats.getHistogram(FrameAnalyzer.CHANNEL_GREEN, 0));
+        assertEquals(77, stats.getMeanLuma(), EPSILON);
+    }
+
+    @Test
+    public void copyFromHandsOver() {
+        new FrameAnalyzer(1).copy(rgba(WIDTH, HEIGHT, WIDTH * 4, 10, 20, 30), WIDTH, HEIGHT, WIDTH * 4, 4,
+                null, 5, stats);
+
+        FrameAnalyzer.Stats copy = new FrameAnalyzer.Stats();
+        copy.copyFrom(stats);
+        assertEquals(stats.getMeanLuma(), copy.getMeanLuma(), EPSILON);
+        assertEquals(stats.getSampleCount(), copy.getSampleCount());
+        assertEquals(stats.getTimestampNanos(), copy.getTimestampNanos());
+        assertEquals(WIDTH * HEIGHT, copy.getHistogram(FrameAnalyzer.CHANNEL_BLUE, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsYuvPlanes() {
+        new FrameAnalyzer(1).copy(ByteBuffer.allocateDirect(WIDTH * HEIGHT), WIDTH, HEIGHT, WIDTH, 1, null, 0, stats);
+    }
+}
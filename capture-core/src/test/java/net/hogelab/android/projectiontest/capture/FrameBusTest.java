@@ -0,0 +1,225 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameBusTest {
+
+    private static final long FRAME = 16_666_667L;
+
+    // Runs tasks only when asked, so a test controls how far behind a subscriber is.
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class CountingPool implements Frame.Recycler<int[]> {
+        final FramePool<Frame<int[]>> pool = new FramePool<>(16, new FramePool.Factory<Frame<int[]>>() {
+            @Override
+            public Frame<int[]> create() {
+                return new Frame<>(new int[1]);
+            }
+
+            @Override
+            public void destroy(Frame<int[]> item) {
+            }
+        });
+        final AtomicInteger recycled = new AtomicInteger();
+
+        Frame<int[]> acquire(int value, long timestampNanos) {
+            Frame<int[]> frame = pool.acquire().open(timestampNanos, value, 1, 1, this);
+            frame.get()[0] = value;
+            return frame;
+        }
+
+        @Override
+        public void recycle(Frame<int[]> frame) {
+            recycled.incrementAndGet();
+            pool.release(frame);
+        }
+    }
+
+    // Records frame values, releasing as it goes.
+    private static class Recorder implements FrameBus.Subscriber<int[]> {
+        final List<Integer> values = new ArrayList<>();
+
+        @Override
+        public void onFrame(Frame<int[]> frame) {
+            values.add(frame.get()[0]);
+            frame.release();
+        }
+    }
+
+    @Test
+    public void slowSubscriberDropsOnlyItsOwnFrames() {
+        FrameBus<int[]> bus = new FrameBus<>();
+        CountingPool frames = new CountingPool();
+
+        ManualExecutor fastExecutor = new ManualExecutor();
+        ManualExecutor slowExecutor = new ManualExecutor();
+        Recorder fast = new Recorder();
+        Recorder slow = new Recorder();
+        bus.subscribe(fast, fastExecutor, CaptureRatePolicy.UNLIMITED_FPS, 2, FrameBus.DropPolicy.DROP_OLDEST);
+        FrameBus.Subscription<int[]> slowSubscription = bus.subscribe(slow, slowExecutor,
+                CaptureRatePolicy.UNLIMITED_FPS, 2, FrameBus.DropPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 10; i++) {
+            Frame<int[]> frame = frames.acquire(i, i * FRAME);
+            bus.publish(frame, i * FRAME);
+            frame.release();
+            fastExecutor.runAll();
+        }
+        slowExecutor.runAll();
+
+        assertEquals(10, fast.values.size());
+        assertEquals(Arrays.asList(8, 9), slow.values);
+        assertEquals(8, slowSubscription.getOverflowDroppedCount());
+        // every frame found its way back to the pool
+        assertEquals(10, frames.recycled.get());
+        assertTrue(frames.pool.getMissCount() <= 3);
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedFrames() {
+        FrameBus<int[]> bus = new FrameBus<>();
+        CountingPool frames = new CountingPool();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        bus.subscribe(recorder, executor, CaptureRatePolicy.UNLIMITED_FPS, 3, FrameBus.DropPolicy.DROP_NEWEST);
+
+        for (int i = 0; i < 6; i++) {
+            Frame<int[]> frame = frames.acquire(i, i * FRAME);
+            bus.publish(frame, i * FRAME);
+            frame.release();
+        }
+        executor.runAll();
+
+        assertEquals(Arrays.asList(0, 1, 2), recorder.values);
+        assertEquals(6, frames.recycled.get());
+    }
+
+    @Test
+    public void perSubscriberRateLimit() {
+        FrameBus<int[]> bus = new FrameBus<>();
+        CountingPool frames = new CountingPool();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder full = new Recorder();
+        Recorder limited = new Recorder();
+        bus.subscribe(full, executor, CaptureRatePolicy.UNLIMITED_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+        FrameBus.Subscription<int[]> limitedSubscription =
+                bus.subscribe(limited, executor, 10, 1, FrameBus.DropPolicy.DROP_OLDEST);
+
+        // one second at 60fps
+        for (int i = 0; i < 60; i++) {
+            Frame<int[]> frame = frames.acquire(i, i * FRAME);
+            bus.publish(frame, i * FRAME);
+            frame.release();
+            executor.runAll();
+        }
+
+        assertEquals(60, full.values.size());
+        // the policy's jitter slack may let one extra frame in at a 60/10 boundary
+        int admitted = limited.values.size();
+        assertTrue(admitted == 10 || admitted == 11);
+        assertEquals(60 - admitted, limitedSubscription.getRateDroppedCount());
+    }
+
+    @Test
+    public void unsubscribeReleasesQueuedFrames() {
+        FrameBus<int[]> bus = new FrameBus<>();
+        CountingPool frames = new CountingPool();
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        FrameBus.Subscription<int[]> subscription = bus.subscribe(recorder, executor,
+                CaptureRatePolicy.UNLIMITED_FPS, 4, FrameBus.DropPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < 3; i++) {
+            Frame<int[]> frame = frames.acquire(i, i * FRAME);
+            bus.publish(frame, i * FRAME);
+            frame.release();
+        }
+        assertEquals(0, frames.recycled.get());
+
+        subscription.unsubscribe();
+        assertEquals(3, frames.recycled.get());
+        assertEquals(0, bus.getSubscriberCount());
+
+        executor.runAll();
+        assertTrue(recorder.values.isEmpty());
+    }
+
+    @Test
+    public void retainAfterFinalReleaseFails() {
+        CountingPool frames = new CountingPool();
+        Frame<int[]> frame = frames.acquire(0, 0);
+        frame.retain();
+        frame.release();
+        frame.release();
+        assertEquals(1, frames.recycled.get());
+
+        try {
+            frame.retain();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void concurrentSubscribersReturnEveryFrame() throws Exception {
+        FrameBus<int[]> bus = new FrameBus<>();
+        CountingPool frames = new CountingPool();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        int frameCount = 2000;
+        CountDownLatch delivered = new CountDownLatch(1);
+
+        for (int s = 0; s < 3; s++) {
+            bus.subscribe(frame -> frame.release(), executor,
+                    CaptureRatePolicy.UNLIMITED_FPS, 2, FrameBus.DropPolicy.DROP_OLDEST);
+        }
+        bus.subscribe(frame -> {
+            if (frame.get()[0] == frameCount - 1) {
+                delivered.countDown();
+            }
+            frame.release();
+        }, executor, CaptureRatePolicy.UNLIMITED_FPS, 1, FrameBus.DropPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < frameCount; i++) {
+            Frame<int[]> frame = frames.acquire(i, i * FRAME);
+            bus.publish(frame, i * FRAME);
+            frame.release();
+        }
+
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(frameCount, frames.recycled.get());
+    }
+}
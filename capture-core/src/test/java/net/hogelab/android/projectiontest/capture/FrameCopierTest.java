@@ -0,0 +1,107 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameCopierTest {
+
+    // Fills a plane where every pixel byte encodes (x, y, channel) and padding is 0xEE.
+    private static ByteBuffer createPlane(int width, int height, int rowStride, int pixelStride,
+                                          boolean shortLastRow, boolean direct) {
+        int size = rowStride * height;
+        if (shortLastRow) {
+            size = rowStride * (height - 1) + width * pixelStride;
+        }
+
+        ByteBuffer plane = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            plane.put(i, (byte) 0xEE);
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int c = 0; c < pixelStride; c++) {
+                    plane.put(y * rowStride + x * pixelStride + c, expected(x, y, c));
+                }
+            }
+        }
+
+        return plane;
+    }
+
+    private static byte expected(int x, int y, int c) {
+        return (byte) (x * 7 + y * 13 + c);
+    }
+
+    private static void assertPacked(ByteBuffer dst, int width, int height, int pixelStride) {
+        assertEquals(0, dst.position());
+        assertEquals(width * height * pixelStride, dst.limit());
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int c = 0; c < pixelStride; c++) {
+                    assertEquals(expected(x, y, c), dst.get(i++));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bulkPathCopiesPackedPlane() {
+        int width = 5, height = 3, pixelStride = 4;
+        ByteBuffer plane = createPlane(width, height, width * pixelStride, pixelStride, false, true);
+        ByteBuffer dst = FrameCopier.ensureCapacity(null, FrameCopier.packedSize(width, height, pixelStride));
+
+        assertTrue(FrameCopier.isTightlyPacked(width, width * pixelStride, pixelStride));
+        FrameCopier.copy(plane, width, height, width * pixelStride, pixelStride, dst);
+
+        assertPacked(dst, width, height, pixelStride);
+    }
+
+    @Test
+    public void rowPathDropsPadding() {
+        int width = 5, height = 4, pixelStride = 4, rowStride = 32;
+        ByteBuffer plane = createPlane(width, height, rowStride, pixelStride, false, false);
+        ByteBuffer dst = ByteBuffer.allocate(FrameCopier.packedSize(width, height, pixelStride));
+
+        assertFalse(FrameCopier.isTightlyPacked(width, rowStride, pixelStride));
+        FrameCopier.copy(plane, width, height, rowStride, pixelStride, dst);
+
+        assertPacked(dst, width, height, pixelStride);
+    }
+
+    @Test
+    public void rowPathHandlesShortLastRow() {
+        int width = 3, height = 3, pixelStride = 4, rowStride = 16;
+        ByteBuffer plane = createPlane(width, height, rowStride, pixelStride, true, true);
+        ByteBuffer dst = ByteBuffer.allocateDirect(FrameCopier.packedSize(width, height, pixelStride));
+
+        FrameCopier.copy(plane, width, height, rowStride, pixelStride, dst);
+
+        assertPacked(dst, width, height, pixelStride);
+    }
+
+    @Test
+    public void sourceStateIsRestoredAndDestinationReused() {
+        int width = 4, height = 2, pixelStride = 4, rowStride = 20;
+        ByteBuffer plane = createPlane(width, height, rowStride, pixelStride, false, true);
+        int limit = plane.limit();
+        ByteBuffer dst = ByteBuffer.allocateDirect(FrameCopier.packedSize(width, height, pixelStride) + 8);
+
+        FrameCopier.copy(plane, width, height, rowStride, pixelStride, dst);
+        FrameCopier.copy(plane, width, height, rowStride, pixelStride, dst);
+
+        assertEquals(0, plane.position());
+        assertEquals(limit, plane.limit());
+        assertSame(dst, FrameCopier.ensureCapacity(dst, FrameCopier.packedSize(width, height, pixelStride)));
+        assertPacked(dst, width, height, pixelStride);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallDestination() {
+        ByteBuffer plane = ByteBuffer.allocate(64);
+        FrameCopier.copy(plane, 4, 4, 16, 4, ByteBuffer.allocate(32));
+    }
+}
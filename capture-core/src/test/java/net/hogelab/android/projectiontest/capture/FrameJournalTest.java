@@ -0,0 +1,444 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class FrameJournalTest {
+
+    private static final Executor DIRECT = Runnable::run;
+    private static final long MS = 1_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FrameJournal journal;
+
+    @After
+    public void tearDown() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // Runs nothing until told to.
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+
+    private static ByteBuffer payload(int i, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int j = 0; j < length; j++) {
+            buffer.put((byte) (i * 31 + j));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private FrameJournal open(long segmentBytes, long maxBytes, long maxAgeNanos) throws IOException {
+        return new FrameJournal(folder.getRoot(), segmentBytes, maxBytes, maxAgeNanos, DIRECT);
+    }
+
+    // Every tenth record is a keyframe; record i is stamped i ms.
+    private static void appendRecords(FrameJournal journal, int from, int to) {
+        for (int i = from; i < to; i++) {
+            journal.append(i * MS, i % 10 == 0, payload(i, 100 + i % 50));
+        }
+    }
+
+    private void assertRecord(FrameJournal.Entry entry, int i) throws IOException {
+        assertEquals(i * MS, entry.getTimestampNanos());
+        assertEquals(i % 10 == 0, entry.isKeyframe());
+        ByteBuffer read = ByteBuffer.allocate(entry.getLength());
+        journal.read(entry, read);
+        read.flip();
+        assertEquals(payload(i, 100 + i % 50), read);
+    }
+
+    private void assertRecords(int from, int to) throws IOException {
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        assertTrue(journal.seek(from * MS, false, entry));
+        for (int i = from; i < to; i++) {
+            assertRecord(entry, i);
+            assertEquals(i + 1 < to, journal.next(entry));
+        }
+    }
+
+    private File[] files(String suffix) {
+        File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(suffix));
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    public void appendAndReadBack() throws IOException {
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 100);
+
+        assertEquals(100, journal.getEntryCount());
+        assertRecords(0, 100);
+    }
+
+    @Test
+    public void seekFindsFloorEntry() throws IOException {
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 1, 500);
+        assertTrue(journal.getSegmentCount() > 10);
+
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        assertFalse(journal.seek(0, false, entry));
+        assertFalse(journal.seek(5 * MS, true, entry));
+
+        assertTrue(journal.seek(123 * MS + 500, false, entry));
+        assertRecord(entry, 123);
+        assertTrue(journal.seek(123 * MS, true, entry));
+        assertRecord(entry, 120);
+        assertTrue(journal.seek(Long.MAX_VALUE, false, entry));
+        assertRecord(entry, 499);
+        assertTrue(journal.seek(Long.MAX_VALUE, true, entry));
+        assertRecord(entry, 490);
+    }
+
+    @Test
+    public void appendsAreBatched() throws IOException {
+        ManualExecutor executor = new ManualExecutor();
+        journal = new FrameJournal(folder.getRoot(), 1 << 20, FrameJournal.UNLIMITED,
+                FrameJournal.UNLIMITED, executor);
+
+        appendRecords(journal, 0, 50);
+        assertEquals(1, executor.tasks.size());
+        assertEquals(0, journal.getEntryCount());
+
+        executor.runAll();
+        assertEquals(1, journal.getBatchCount());
+        assertEquals(50, journal.getEntryCount());
+        assertRecords(0, 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTimestampsGoingBack() throws IOException {
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        journal.append(10, true, payload(0, 10));
+        journal.append(9, true, payload(1, 10));
+    }
+
+    @Test
+    public void segmentsStartOnKeyframes() throws IOException {
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 300);
+        journal.close();
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+
+        File[] segments = files(FrameJournal.SEGMENT_SUFFIX);
+        assertEquals(journal.getSegmentCount(), segments.length);
+        assertTrue(segments.length > 10);
+        for (File segment : segments) {
+            if (segment.length() == FrameJournal.SEGMENT_HEADER_LENGTH) {
+                // the new, still empty active segment
+                continue;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+                // flags of the first record
+                file.seek(FrameJournal.SEGMENT_HEADER_LENGTH + FrameJournal.RECORD_HEADER_LENGTH - 1);
+                assertEquals(segment.getName(), 1, file.read());
+            }
+        }
+        assertRecords(0, 300);
+    }
+
+    @Test
+    public void evictsOldestSegmentsBySize() throws IOException {
+        journal = open(2000, 10_000, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 1000);
+
+        assertTrue(journal.getEvictedSegmentCount() > 0);
+        assertTrue(journal.getByteCount() <= 10_000 + 2000);
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        assertFalse(journal.seek(500 * MS, false, entry));
+        assertTrue(journal.seek(Long.MAX_VALUE, true, entry));
+        assertRecord(entry, 990);
+        assertEquals(journal.getSegmentCount(), files(FrameJournal.SEGMENT_SUFFIX).length);
+    }
+
+    @Test
+    public void evictsSegmentsByAge() throws IOException {
+        journal = open(2000, FrameJournal.UNLIMITED, 100 * MS);
+        appendRecords(journal, 0, 1000);
+
+        assertTrue(journal.getEvictedSegmentCount() > 0);
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        assertTrue(journal.seek(Long.MAX_VALUE, false, entry));
+        assertFalse(journal.seek(850 * MS, false, entry));
+        assertTrue(journal.seek(900 * MS, true, entry));
+    }
+
+    @Test
+    public void reopenLoadsIndex() throws IOException {
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 200);
+        journal.close();
+
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        assertEquals(0, journal.getRebuiltIndexCount());
+        assertEquals(200, journal.getEntryCount());
+        assertRecords(0, 200);
+
+        appendRecords(journal, 200, 250);
+        assertRecords(0, 250);
+    }
+
+    @Test
+    public void rebuildsMissingAndStaleIndexes() throws IOException {
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 200);
+        journal.close();
+
+        File[] indexes = files(FrameJournal.INDEX_SUFFIX);
+        assertTrue(indexes.length > 3);
+        assertTrue(indexes[0].delete());
+        try (RandomAccessFile file = new RandomAccessFile(indexes[1], "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(indexes[2], "rw")) {
+            file.seek(0);
+            file.writeInt(0);
+        }
+
+        journal = open(2000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        assertEquals(3, journal.getRebuiltIndexCount());
+        assertEquals(0, journal.getRecoveredBytes());
+        assertRecords(0, 200);
+        assertEquals(indexes.length, files(FrameJournal.INDEX_SUFFIX).length);
+    }
+
+    @Test
+    public void recoversFromTornTail() throws IOException {
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 50);
+        // a crash: written but never sealed, and the last record only half on disk
+        journal = null;
+        File segment = files(FrameJournal.SEGMENT_SUFFIX)[0];
+        long intact;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            intact = file.length() - (FrameJournal.RECORD_HEADER_LENGTH + 100 + 49);
+            file.setLength(file.length() - 20);
+        }
+        assertEquals(0, files(FrameJournal.INDEX_SUFFIX).length);
+
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        assertEquals(49, journal.getEntryCount());
+        assertEquals(1, journal.getRebuiltIndexCount());
+        assertEquals(intact, segment.length());
+        assertRecords(0, 49);
+
+        appendRecords(journal, 49, 60);
+        assertRecords(0, 60);
+    }
+
+    @Test
+    public void recoversFromCorruptRecord() throws IOException {
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 50);
+        journal = null;
+        File segment = files(FrameJournal.SEGMENT_SUFFIX)[0];
+
+        // flip a payload byte of record 40
+        long offset = FrameJournal.SEGMENT_HEADER_LENGTH;
+        for (int i = 0; i < 40; i++) {
+            offset += FrameJournal.RECORD_HEADER_LENGTH + 100 + i % 50;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(offset + FrameJournal.RECORD_HEADER_LENGTH + 3);
+            int value = file.read();
+            file.seek(offset + FrameJournal.RECORD_HEADER_LENGTH + 3);
+            file.write(value ^ 0xff);
+        }
+
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        assertEquals(40, journal.getEntryCount());
+        assertTrue(journal.getRecoveredBytes() > 0);
+        assertRecords(0, 40);
+    }
+
+    @Test
+    public void dropsGarbageSegments() throws IOException {
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        appendRecords(journal, 0, 10);
+        journal.close();
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(),
+                String.format("%016d", 5) + FrameJournal.SEGMENT_SUFFIX), "rw")) {
+            file.writeInt(0x12345678);
+        }
+
+        journal = open(1 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        assertEquals(10, journal.getEntryCount());
+        assertFalse(new File(folder.getRoot(), String.format("%016d", 5) + FrameJournal.SEGMENT_SUFFIX).exists());
+    }
+
+    @Test
+    public void seekMatchesLinearSearch() throws IOException {
+        journal = open(4000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        Random random = new Random(7);
+        long[] timestamps = new long[2000];
+        long t = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            t += random.nextInt(3);
+            timestamps[i] = t;
+            journal.append(t, i % 7 == 0, payload(i, 50));
+        }
+
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        for (int n = 0; n < 500; n++) {
+            long target = random.nextInt((int) t + 10) - 5;
+            int floor = -1;
+            int keyFloor = -1;
+            for (int i = 0; i < timestamps.length && timestamps[i] <= target; i++) {
+                floor = i;
+                if (i % 7 == 0) {
+                    keyFloor = i;
+                }
+            }
+
+            assertEquals(floor >= 0, journal.seek(target, false, entry));
+            if (floor >= 0) {
+                assertEquals(timestamps[floor], entry.getTimestampNanos());
+            }
+            assertEquals(keyFloor >= 0, journal.seek(target, true, entry));
+            if (keyFloor >= 0) {
+                assertTrue(entry.isKeyframe());
+                assertEquals(timestamps[keyFloor], entry.getTimestampNanos());
+            }
+        }
+    }
+
+    @Test
+    public void recorderRoundTrip() throws IOException {
+        int width = 64;
+        int height = 48;
+        journal = open(8000, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED);
+        FrameJournalRecorder recorder = new FrameJournalRecorder(journal, 16, 5, 1000 * MS);
+
+        List<byte[]> frames = new ArrayList<>();
+        byte[] pixels = new byte[width * height * 4];
+        Random random = new Random(3);
+        for (int i = 0; i < 40; i++) {
+            if (i % 4 != 3) {
+                // repaint one tile-sized block; every fourth frame is unchanged
+                int x = random.nextInt(width - 16);
+                int y = random.nextInt(height - 16);
+                for (int row = y; row < y + 16; row++) {
+                    Arrays.fill(pixels, (row * width + x) * 4, (row * width + x + 16) * 4, (byte) i);
+                }
+            }
+            frames.add(pixels.clone());
+            Frame<ByteBuffer> frame = new Frame<>(ByteBuffer.wrap(pixels.clone()));
+            frame.open(i * MS, i, width, height, null);
+            recorder.onFrame(frame);
+        }
+        recorder.close();
+        assertEquals(10, recorder.getUnchangedCount());
+        assertEquals(30, recorder.getRecordedCount());
+
+        DeltaDecoder decoder = new DeltaDecoder();
+        ByteBuffer scratch = ByteBuffer.allocate(width * height * 8);
+        try {
+            assertFalse(FrameJournalRecorder.decodeAt(journal, 999 * MS, decoder, scratch));
+            for (int i = 0; i < 40; i++) {
+                assertTrue(FrameJournalRecorder.decodeAt(journal, 1000 * MS + i * MS, decoder, scratch));
+                assertArrayEquals("frame " + i, frames.get(i), decoder.getPixels());
+            }
+        } finally {
+            decoder.close();
+        }
+    }
+
+    // Noise; each frame repaints the other half, so a delta is only right against the frame
+    // before it.
+    private static byte[] noisyFrame(int i, int width, int height) {
+        byte[] pixels = new byte[width * height * 4];
+        int half = pixels.length / 2;
+        byte[] noise = new byte[half];
+        new Random(i & ~1).nextBytes(noise);
+        System.arraycopy(noise, 0, pixels, 0, half);
+        new Random((i + 1) | 1).nextBytes(noise);
+        System.arraycopy(noise, 0, pixels, half, half);
+        return pixels;
+    }
+
+    @Test
+    public void recorderRestartsChainAfterDrop() throws IOException {
+        int width = 512;
+        int height = 256;
+        ManualExecutor executor = new ManualExecutor();
+        journal = new FrameJournal(folder.getRoot(), 64 << 20, FrameJournal.UNLIMITED, FrameJournal.UNLIMITED,
+                executor);
+        FrameJournalRecorder recorder = new FrameJournalRecorder(journal, 16, 1000, 0);
+
+        // the disk falls behind until the batch is full
+        int i = 0;
+        while (recorder.getDroppedCount() == 0) {
+            Frame<ByteBuffer> frame = new Frame<>(ByteBuffer.wrap(noisyFrame(i, width, height)));
+            recorder.onFrame(frame.open(i * MS, i, width, height, null));
+            i++;
+        }
+        assertTrue(journal.isKeyframeNeeded());
+
+        // then catches up; deltas against the dropped frame must not reach the journal
+        executor.runAll();
+        for (int end = i + 5; i < end; i++) {
+            Frame<ByteBuffer> frame = new Frame<>(ByteBuffer.wrap(noisyFrame(i, width, height)));
+            recorder.onFrame(frame.open(i * MS, i, width, height, null));
+        }
+        executor.runAll();
+        recorder.close();
+        assertFalse(journal.isKeyframeNeeded());
+        assertEquals(1, recorder.getDroppedCount());
+
+        DeltaDecoder decoder = new DeltaDecoder();
+        ByteBuffer scratch = ByteBuffer.allocate(width * height * 8);
+        FrameJournal.Entry entry = new FrameJournal.Entry();
+        try {
+            assertTrue(journal.seek(0, false, entry));
+            int checked = 0;
+            long last;
+            do {
+                last = entry.getTimestampNanos();
+                assertTrue(FrameJournalRecorder.decodeAt(journal, last, decoder, scratch));
+                assertArrayEquals("frame " + last / MS, noisyFrame((int) (last / MS), width, height),
+                        decoder.getPixels());
+                checked++;
+                assertTrue(journal.seek(last, false, entry));
+            } while (journal.next(entry));
+            assertEquals(recorder.getRecordedCount(), checked);
+            assertEquals((i - 1) * MS, last);
+        } finally {
+            decoder.close();
+        }
+    }
+}
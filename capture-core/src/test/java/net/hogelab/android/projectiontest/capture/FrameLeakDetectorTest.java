@@ -0,0 +1,119 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameLeakDetectorTest {
+
+    private final List<String> reports = new ArrayList<>();
+    private final List<Throwable> sites = new ArrayList<>();
+    private FrameLeakDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new FrameLeakDetector((description, openedAt) -> {
+            synchronized (reports) {
+                reports.add(description);
+                sites.add(openedAt);
+            }
+        });
+        Frame.setLeakDetector(detector);
+    }
+
+    @After
+    public void tearDown() {
+        Frame.setLeakDetector(null);
+    }
+
+    private static void openAndDrop(long sequenceNumber) {
+        new Frame<>(new byte[16]).open(0, sequenceNumber, 4, 1, frame -> {
+        });
+    }
+
+    @Test
+    public void openCarriesFrameInfo() {
+        Frame<byte[]> frame = new Frame<>(new byte[16]).open(123, 7, 4, 1, f -> {
+        });
+        assertEquals(123, frame.getTimestampNanos());
+        assertEquals(7, frame.getSequenceNumber());
+        assertEquals(4, frame.getWidth());
+        assertEquals(1, frame.getHeight());
+        assertEquals(1, frame.getRefCount());
+        frame.release();
+    }
+
+    @Test
+    public void releasedFramesAreNotTracked() {
+        List<Frame<byte[]>> recycled = new ArrayList<>();
+        Frame<byte[]> frame = new Frame<>(new byte[16]);
+        for (int i = 0; i < 100; i++) {
+            frame.open(i, i, 4, 1, recycled::add);
+            frame.retain();
+            frame.release();
+            assertEquals(1, detector.getOutstandingCount());
+            frame.release();
+            assertEquals(0, detector.getOutstandingCount());
+        }
+
+        assertEquals(100, recycled.size());
+        assertEquals(0, detector.reportOutstanding(System.nanoTime(), 0));
+        assertTrue(reports.isEmpty());
+    }
+
+    @Test
+    public void unreleasedFrameIsReportedWithOpenSite() throws Exception {
+        openAndDrop(42);
+        assertEquals(1, detector.getOutstandingCount());
+
+        for (int i = 0; i < 50 && detector.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            detector.poll();
+        }
+
+        assertEquals(1, detector.getLeakCount());
+        assertEquals(0, detector.getOutstandingCount());
+        assertEquals(1, reports.size());
+        assertTrue(reports.get(0), reports.get(0).contains("#42"));
+
+        boolean fromHere = false;
+        for (StackTraceElement element : sites.get(0).getStackTrace()) {
+            fromHere |= element.getMethodName().equals("openAndDrop");
+        }
+        assertTrue(fromHere);
+    }
+
+    @Test
+    public void outstandingFramesAreReportedByAge() {
+        Frame<byte[]> frame = new Frame<>(new byte[16]).open(0, 1, 4, 1, f -> {
+        });
+        long now = System.nanoTime();
+
+        assertEquals(0, detector.reportOutstanding(now, 1_000_000_000L));
+        assertEquals(1, detector.reportOutstanding(now + 2_000_000_000L, 1_000_000_000L));
+        assertEquals(0, detector.getLeakCount());
+        assertTrue(reports.get(0), reports.get(0).startsWith("outstanding frame #1"));
+
+        frame.release();
+        assertEquals(0, detector.reportOutstanding(now + 2_000_000_000L, 1_000_000_000L));
+    }
+
+    @Test
+    public void reopenWhileReferencedFails() {
+        Frame<byte[]> frame = new Frame<>(new byte[16]).open(0, 1, 4, 1, f -> {
+        });
+        try {
+            frame.open(0, 2, 4, 1, f -> {
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        frame.release();
+    }
+}
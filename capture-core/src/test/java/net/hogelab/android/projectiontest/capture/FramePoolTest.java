@@ -0,0 +1,81 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FramePoolTest {
+
+    private static class CountingFactory implements FramePool.Factory<int[]> {
+        int created;
+        final List<int[]> destroyed = new ArrayList<>();
+
+        @Override
+        public int[] create() {
+            created++;
+            return new int[16];
+        }
+
+        @Override
+        public void destroy(int[] item) {
+            destroyed.add(item);
+        }
+    }
+
+    @Test
+    public void steadyStateReusesBuffers() {
+        CountingFactory factory = new CountingFactory();
+        FramePool<int[]> pool = new FramePool<>(3, factory);
+
+        int[] first = pool.acquire();
+        pool.release(first);
+        for (int i = 0; i < 100; i++) {
+            int[] buffer = pool.acquire();
+            assertSame(first, buffer);
+            pool.release(buffer);
+        }
+
+        assertEquals(1, factory.created);
+        assertEquals(1, pool.getMissCount());
+        assertEquals(100, pool.getHitCount());
+    }
+
+    @Test
+    public void releaseBeyondCapacityIsDiscarded() {
+        CountingFactory factory = new CountingFactory();
+        FramePool<int[]> pool = new FramePool<>(2, factory);
+
+        int[] a = pool.acquire();
+        int[] b = pool.acquire();
+        int[] c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        assertEquals(2, pool.getFreeCount());
+        assertEquals(1, pool.getDiscardCount());
+        assertEquals(1, factory.destroyed.size());
+        assertSame(c, factory.destroyed.get(0));
+    }
+
+    @Test
+    public void clearDestroysFreeBuffers() {
+        CountingFactory factory = new CountingFactory();
+        FramePool<int[]> pool = new FramePool<>(4, factory);
+
+        pool.release(pool.acquire());
+        pool.release(new int[16]);
+        pool.clear();
+
+        assertEquals(0, pool.getFreeCount());
+        assertEquals(2, factory.destroyed.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveCapacity() {
+        new FramePool<>(0, new CountingFactory());
+    }
+}
@@ -0,0 +1,144 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HammingIndexTest {
+
+    private static long flip(long hash, int bits, Random random) {
+        for (int i = 0; i < bits; i++) {
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+
+    private static List<Long> sorted(HammingIndex.Matches matches) {
+        List<Long> values = new ArrayList<>();
+        for (int i = 0; i < matches.getCount(); i++) {
+            values.add(matches.getValue(i));
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    @Test
+    public void searchMatchesLinearScan() {
+        Random random = new Random(11);
+        HammingIndex index = new HammingIndex(5000);
+        long[] hashes = new long[5000];
+        // clusters of near-identical hashes, like frames of one screen
+        long base = random.nextLong();
+        for (int i = 0; i < hashes.length; i++) {
+            if (i % 50 == 0) {
+                base = random.nextLong();
+            }
+            hashes[i] = flip(base, random.nextInt(6), random);
+            index.add(hashes[i], i);
+        }
+
+        HammingIndex.Matches matches = new HammingIndex.Matches(hashes.length);
+        for (int maxDistance : new int[] {0, 1, 3, 4, 7, 8, 11, 12, 20}) {
+            for (int n = 0; n < 50; n++) {
+                long query = flip(hashes[random.nextInt(hashes.length)], random.nextInt(4), random);
+                List<Long> expected = new ArrayList<>();
+                for (int i = 0; i < hashes.length; i++) {
+                    if (PerceptualHasher.distance(hashes[i], query) <= maxDistance) {
+                        expected.add((long) i);
+                    }
+                }
+
+                assertEquals(expected.size(), index.search(query, maxDistance, matches));
+                assertEquals("k=" + maxDistance, expected, sorted(matches));
+                for (int i = 0; i < matches.getCount(); i++) {
+                    assertEquals(PerceptualHasher.distance(hashes[(int) matches.getValue(i)], query),
+                            matches.getDistance(i));
+                }
+                assertEquals(!expected.isEmpty(), index.containsWithin(query, maxDistance, hashes.length));
+            }
+        }
+    }
+
+    @Test
+    public void evictsOldestWhenFull() {
+        HammingIndex index = new HammingIndex(100);
+        for (int i = 0; i < 250; i++) {
+            index.add(i, i);
+        }
+        assertEquals(100, index.size());
+
+        HammingIndex.Matches matches = new HammingIndex.Matches(10);
+        assertEquals(0, index.search(149, 0, matches));
+        assertEquals(1, index.search(150, 0, matches));
+        assertEquals(150, matches.getValue(0));
+        assertEquals(1, index.search(249, 0, matches));
+    }
+
+    @Test
+    public void containsWithinOnlyLooksAtRecentEntries() {
+        HammingIndex index = new HammingIndex(10);
+        // wraps the ring
+        for (int i = 0; i < 17; i++) {
+            index.add(i * 0x0101010101010101L, i);
+        }
+
+        long hash = 9 * 0x0101010101010101L;
+        assertTrue(index.containsWithin(hash, 0, 10));
+        assertTrue(index.containsWithin(hash, 0, 8));
+        assertFalse(index.containsWithin(hash, 0, 7));
+        assertTrue(index.containsWithin(16 * 0x0101010101010101L, 0, 1));
+        assertFalse(index.containsWithin(15 * 0x0101010101010101L, 0, 1));
+        // the scan path
+        assertFalse(index.containsWithin(hash ^ 0xffffL, 15, 7));
+        assertTrue(index.containsWithin(hash ^ 0xffffL, 16, 8));
+    }
+
+    // Entries that share buckets: the probe stops at the first one outside the window.
+    @Test
+    public void containsWithinStopsAtOldEntriesInABucket() {
+        HammingIndex index = new HammingIndex(16);
+        long base = 0x123456789abcdef0L;
+        for (int i = 0; i < 12; i++) {
+            index.add(base ^ i, i);
+        }
+
+        assertTrue(index.containsWithin(base ^ 11, 0, 4));
+        assertTrue(index.containsWithin(base ^ 8, 0, 4));
+        assertFalse(index.containsWithin(base ^ 7, 0, 4));
+        assertFalse(index.containsWithin(base, 0, 4));
+        assertFalse(index.containsWithin(base ^ 12, 0, 4));
+        assertTrue(index.containsWithin(base ^ 12, 1, 4));
+        assertTrue(index.containsWithin(base, 0, 12));
+    }
+
+    @Test
+    public void truncatesToMatchesCapacity() {
+        HammingIndex index = new HammingIndex(100);
+        for (int i = 0; i < 100; i++) {
+            index.add(42, i);
+        }
+
+        HammingIndex.Matches matches = new HammingIndex.Matches(10);
+        assertEquals(10, index.search(42, 0, matches));
+        assertTrue(matches.isTruncated());
+        assertEquals(10, index.search(42, 20, matches));
+        assertTrue(matches.isTruncated());
+    }
+
+    @Test
+    public void clearEmptiesIndex() {
+        HammingIndex index = new HammingIndex(10);
+        index.add(1, 1);
+        index.clear();
+
+        assertEquals(0, index.size());
+        assertFalse(index.containsWithin(1, 64, 10));
+        index.add(2, 2);
+        assertTrue(index.containsWithin(2, 0, 10));
+    }
+}
@@ -0,0 +1,60 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueContiguously() {
+        assertEquals(0, LatencyHistogram.bucketLowerBound(0));
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+            assertEquals(LatencyHistogram.bucketUpperBound(i) + 1, LatencyHistogram.bucketLowerBound(i + 1));
+        }
+
+        long[] values = {0, 1, 3, 4, 7, 8, 15, 1000, 999_999, 16_666_667, 1L << 39, (1L << 40) - 1};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.bucketLowerBound(bucket) <= value);
+            assertTrue(LatencyHistogram.bucketUpperBound(bucket) >= value);
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+    }
+
+    @Test
+    public void percentilesStayWithinBucketResolution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(null);
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500, snapshot.getMeanNanos());
+        assertEquals(1_000_000, snapshot.getMaxNanos());
+
+        // four sub-buckets per power of two: within 25% above the exact value
+        long p50 = snapshot.getPercentileNanos(0.5);
+        assertTrue(p50 >= 500_000 && p50 <= 625_000);
+        long p99 = snapshot.getPercentileNanos(0.99);
+        assertTrue(p99 >= 990_000 && p99 <= 1_000_000);
+        assertEquals(1_000_000, snapshot.getPercentileNanos(1.0));
+    }
+
+    @Test
+    public void snapshotIsReusedAndResetClears() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        LatencyHistogram.Snapshot first = histogram.snapshot(null);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+
+        LatencyHistogram.Snapshot second = histogram.snapshot(first);
+        assertSame(first, second);
+        assertEquals(0, second.getCount());
+        assertEquals(0, second.getPercentileNanos(0.5));
+    }
+}
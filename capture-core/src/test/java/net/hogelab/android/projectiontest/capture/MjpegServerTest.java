@@ -0,0 +1,219 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MjpegServerTest {
+
+    private final Semaphore frameWanted = new Semaphore(0);
+    private MjpegServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MjpegServer("mjpeg-test", frameWanted::release);
+        server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private Socket connect(String path) throws IOException {
+        Socket socket = new Socket();
+        // keeps a client that stops reading from absorbing whole frames in its socket buffer
+        socket.setReceiveBufferSize(64 * 1024);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        return socket;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("eof");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    // Reads header lines up to the blank line; the first line is stored under "".
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line = readLine(in);
+        headers.put("", line);
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).toLowerCase(), line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    private static byte[] readPart(DataInputStream in) throws IOException {
+        Map<String, String> headers = readHeaders(in);
+        assertTrue(headers.get(""), headers.get("").startsWith("--"));
+        assertEquals("image/jpeg", headers.get("content-type"));
+
+        byte[] body = new byte[Integer.parseInt(headers.get("content-length"))];
+        in.readFully(body);
+        assertEquals("", readLine(in));
+        return body;
+    }
+
+    private static byte[] frame(int size, int value) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private void awaitClients(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getClientCount() != count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getClientCount());
+    }
+
+    @Test
+    public void singleFrameWaitsForFirstPublish() throws Exception {
+        try (Socket socket = connect(MjpegServer.FRAME_PATH)) {
+            assertTrue(frameWanted.tryAcquire(5, TimeUnit.SECONDS));
+            assertTrue(server.isFrameWanted());
+            // only the bytes up to length are served
+            byte[] jpeg = frame(1000, 7);
+            server.publish(jpeg, 600);
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            Map<String, String> headers = readHeaders(in);
+            assertEquals("HTTP/1.1 200 OK", headers.get(""));
+            assertEquals("image/jpeg", headers.get("content-type"));
+            assertEquals("600", headers.get("content-length"));
+
+            byte[] body = new byte[600];
+            in.readFully(body);
+            assertArrayEquals(frame(600, 7), body);
+            assertEquals(-1, in.read());
+        }
+
+        awaitClients(0);
+        assertEquals(1, server.getSentFrameCount());
+    }
+
+    @Test
+    public void singleFrameServesCurrentFrameAtOnce() throws Exception {
+        server.publish(frame(100, 1), 100);
+
+        try (Socket socket = connect(MjpegServer.FRAME_PATH)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals("100", readHeaders(in).get("content-length"));
+        }
+        assertFalse(frameWanted.tryAcquire());
+
+        // a stale frame is not served; the server asks for a fresh one instead
+        server.clearFrame();
+        try (Socket socket = connect(MjpegServer.FRAME_PATH)) {
+            assertTrue(frameWanted.tryAcquire(5, TimeUnit.SECONDS));
+            server.publish(frame(50, 2), 50);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals("50", readHeaders(in).get("content-length"));
+        }
+    }
+
+    @Test
+    public void streamDeliversEveryFrameToFastClients() throws Exception {
+        try (Socket first = connect(MjpegServer.STREAM_PATH);
+             Socket second = connect("/")) {
+            DataInputStream in1 = new DataInputStream(first.getInputStream());
+            DataInputStream in2 = new DataInputStream(second.getInputStream());
+            assertTrue(readHeaders(in1).get("content-type").startsWith("multipart/x-mixed-replace"));
+            assertTrue(readHeaders(in2).get("content-type").startsWith("multipart/x-mixed-replace"));
+            awaitClients(2);
+
+            for (int i = 1; i <= 5; i++) {
+                server.publish(frame(10_000, i), 10_000);
+                assertArrayEquals(frame(10_000, i), readPart(in1));
+                assertArrayEquals(frame(10_000, i), readPart(in2));
+            }
+        }
+
+        awaitClients(0);
+        assertEquals(10, server.getSentFrameCount());
+        assertEquals(0, server.getDroppedFrameCount());
+    }
+
+    @Test
+    public void slowClientSkipsToNewestFrame() throws Exception {
+        int size = 4 * 1024 * 1024;
+        try (Socket slow = connect(MjpegServer.STREAM_PATH);
+             Socket fast = connect(MjpegServer.STREAM_PATH)) {
+            DataInputStream slowIn = new DataInputStream(slow.getInputStream());
+            DataInputStream fastIn = new DataInputStream(fast.getInputStream());
+            readHeaders(slowIn);
+            readHeaders(fastIn);
+            awaitClients(2);
+
+            // the slow client reads nothing while the frames go out
+            int frameCount = 10;
+            for (int i = 1; i <= frameCount; i++) {
+                server.publish(frame(size, i), size);
+                assertEquals((byte) i, readPart(fastIn)[0]);
+            }
+
+            assertTrue(server.getDroppedFrameCount() > 0);
+
+            // it gets the frame it was writing, then the newest one, and nothing in between
+            byte first = readPart(slowIn)[0];
+            byte next = readPart(slowIn)[0];
+            assertTrue(first < next);
+            assertEquals((byte) frameCount, next);
+        }
+    }
+
+    @Test
+    public void unknownPathIsNotFound() throws Exception {
+        try (Socket socket = connect("/nothing")) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals("HTTP/1.1 404 Not Found", readHeaders(in).get(""));
+        }
+        assertEquals(0, server.getClientCount());
+    }
+
+    @Test
+    public void stopDisconnectsClients() throws Exception {
+        try (Socket socket = connect(MjpegServer.STREAM_PATH)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            readHeaders(in);
+            awaitClients(1);
+
+            server.stop();
+            assertFalse(server.isRunning());
+            assertEquals(-1, in.read());
+            assertEquals(0, server.getClientCount());
+        }
+    }
+}
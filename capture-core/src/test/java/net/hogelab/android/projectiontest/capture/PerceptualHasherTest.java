@@ -0,0 +1,149 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PerceptualHasherTest {
+
+    private static final int WIDTH = 270;
+    private static final int HEIGHT = 600;
+
+    // Screen-like: a gradient background with a few flat boxes.
+    private static byte[] screen(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] pixels = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                pixels[i] = (byte) (x * 255 / width);
+                pixels[i + 1] = (byte) (y * 255 / height);
+                pixels[i + 2] = (byte) 128;
+                pixels[i + 3] = (byte) 0xff;
+            }
+        }
+        for (int n = 0; n < 6; n++) {
+            box(pixels, width, random.nextInt(width / 2), random.nextInt(height / 2),
+                    width / 3, height / 4, (byte) random.nextInt(256));
+        }
+        return pixels;
+    }
+
+    private static void box(byte[] pixels, int width, int x0, int y0, int w, int h, byte value) {
+        for (int y = y0; y < y0 + h; y++) {
+            for (int x = x0; x < x0 + w; x++) {
+                int i = (y * width + x) * 4;
+                pixels[i] = value;
+                pixels[i + 1] = value;
+                pixels[i + 2] = value;
+            }
+        }
+    }
+
+    private static Frame<ByteBuffer> frame(byte[] pixels, long timestampNanos, List<Frame<ByteBuffer>> released) {
+        return new Frame<>(ByteBuffer.wrap(pixels)).open(timestampNanos, timestampNanos, WIDTH, HEIGHT,
+                released::add);
+    }
+
+    @Test
+    public void flatFrameHashesToZero() {
+        byte[] pixels = new byte[WIDTH * HEIGHT * 4];
+        assertEquals(0, new PerceptualHasher(1).hash(pixels, 0, WIDTH, HEIGHT, WIDTH * 4));
+    }
+
+    @Test
+    public void similarFramesHashClose() {
+        PerceptualHasher hasher = new PerceptualHasher(2);
+        byte[] pixels = screen(WIDTH, HEIGHT, 1);
+        long hash = hasher.hash(pixels, 0, WIDTH, HEIGHT, WIDTH * 4);
+
+        // a cursor-sized change
+        byte[] changed = pixels.clone();
+        box(changed, WIDTH, 100, 300, 4, 12, (byte) 0);
+        assertTrue(PerceptualHasher.distance(hash, hasher.hash(changed, 0, WIDTH, HEIGHT, WIDTH * 4)) <= 2);
+
+        // a different screen
+        long other = hasher.hash(screen(WIDTH, HEIGHT, 2), 0, WIDTH, HEIGHT, WIDTH * 4);
+        assertTrue(PerceptualHasher.distance(hash, other) > 10);
+    }
+
+    @Test
+    public void hashIgnoresScaleAndStride() {
+        byte[] pixels = screen(WIDTH, HEIGHT, 3);
+        long hash = new PerceptualHasher(1).hash(pixels, 0, WIDTH, HEIGHT, WIDTH * 4);
+
+        // the same content at half size, box-filtered like a downscaled capture
+        Downscaler downscaler = new Downscaler(WIDTH, HEIGHT);
+        Downscaler.Output half = downscaler.addOutput(WIDTH / 2, HEIGHT / 2, Downscaler.Filter.BOX);
+        downscaler.scale(pixels, 0, WIDTH * 4);
+        long halfHash = new PerceptualHasher(1).hash(half.getPixels(), 0, WIDTH / 2, HEIGHT / 2, WIDTH / 2 * 4);
+        assertTrue(PerceptualHasher.distance(hash, halfHash) <= 4);
+
+        // padded rows in a direct buffer, read from a non-zero position
+        int rowStride = (WIDTH * 4 + 63) & ~63;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16 + rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            buffer.position(16 + y * rowStride);
+            buffer.put(pixels, y * WIDTH * 4, WIDTH * 4);
+        }
+        buffer.position(16);
+        PerceptualHasher hasher = new PerceptualHasher(2);
+        assertEquals(hasher.hash(pixels, 0, WIDTH, HEIGHT, WIDTH * 4), hasher.hash(buffer, WIDTH, HEIGHT, rowStride));
+        assertEquals(16, buffer.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFramesSmallerThanGrid() {
+        new PerceptualHasher(1).hash(new byte[8 * 8 * 4], 0, 8, 8, 32);
+    }
+
+    @Test
+    public void filterSuppressesNearDuplicates() {
+        List<Frame<ByteBuffer>> passed = new ArrayList<>();
+        List<Frame<ByteBuffer>> released = new ArrayList<>();
+        NearDuplicateFilter filter = new NearDuplicateFilter(passed::add,
+                NearDuplicateFilter.DEFAULT_MAX_DISTANCE, 1, 100);
+
+        byte[] a = screen(WIDTH, HEIGHT, 10);
+        byte[] aCursor = a.clone();
+        box(aCursor, WIDTH, 50, 50, 4, 12, (byte) 0);
+        byte[] b = screen(WIDTH, HEIGHT, 20);
+
+        filter.onFrame(frame(a, 1, released));
+        filter.onFrame(frame(aCursor, 2, released));
+        filter.onFrame(frame(b, 3, released));
+        // back to a: not a repeat of the previous frame, so it passes with a window of 1
+        filter.onFrame(frame(a, 4, released));
+
+        assertEquals(3, filter.getPassedCount());
+        assertEquals(1, filter.getSuppressedCount());
+        assertEquals(3, passed.size());
+        // only the suppressed frame was released by the filter
+        assertEquals(1, released.size());
+        assertEquals(2, released.get(0).getTimestampNanos());
+
+        HammingIndex.Matches matches = new HammingIndex.Matches(10);
+        assertEquals(2, filter.search(filter.getLastHash(), 0, matches));
+        assertEquals(5, matches.getValue(0) + matches.getValue(1));
+    }
+
+    @Test
+    public void filterWindowSuppressesReturningScreens() {
+        List<Frame<ByteBuffer>> passed = new ArrayList<>();
+        NearDuplicateFilter filter = new NearDuplicateFilter(passed::add,
+                NearDuplicateFilter.DEFAULT_MAX_DISTANCE, 8, 100);
+
+        byte[][] screens = {screen(WIDTH, HEIGHT, 30), screen(WIDTH, HEIGHT, 31), screen(WIDTH, HEIGHT, 32)};
+        for (int i = 0; i < 30; i++) {
+            filter.onFrame(frame(screens[i % 3], i, new ArrayList<>()));
+        }
+
+        assertEquals(3, filter.getPassedCount());
+        assertEquals(27, filter.getSuppressedCount());
+    }
+}
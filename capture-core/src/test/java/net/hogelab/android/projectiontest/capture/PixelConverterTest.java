@@ -0,0 +1,167 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PixelConverterTest {
+
+    // Straightforward floating point reference for BT.601 full range.
+    private static int referenceYuv(int y, int u, int v) {
+        double d = u - 128;
+        double e = v - 128;
+        int r = clamp((int) Math.round(y + 1.402 * e));
+        int g = clamp((int) Math.round(y - 0.344136 * d - 0.714136 * e));
+        int b = clamp((int) Math.round(y + 1.772 * d));
+        return 0xff000000 | r << 16 | g << 8 | b;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static void assertArgbClose(int expected, int actual) {
+        for (int shift = 0; shift <= 24; shift += 8) {
+            int e = (expected >>> shift) & 0xff;
+            int a = (actual >>> shift) & 0xff;
+            assertTrue(String.format("%08x vs %08x", expected, actual), Math.abs(e - a) <= 1);
+        }
+    }
+
+    @Test
+    public void yuvPlanarAndSemiPlanarMatchReference() {
+        int width = 7;
+        int height = 5;
+        int yRowStride = 8;
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        byte[] y = new byte[yRowStride * height];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (byte) (i * 37);
+        }
+
+        // planar: separate U and V planes, pixel stride 1
+        int planarStride = 4;
+        byte[] u = new byte[planarStride * chromaHeight];
+        byte[] v = new byte[planarStride * chromaHeight];
+        // semi-planar: interleaved, pixel stride 2
+        int semiStride = 8;
+        byte[] uSemi = new byte[semiStride * chromaHeight];
+        byte[] vSemi = new byte[semiStride * chromaHeight];
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int column = 0; column < chromaWidth; column++) {
+                byte uValue = (byte) (row * 61 + column * 23 + 5);
+                byte vValue = (byte) (row * 17 + column * 71 + 200);
+                u[row * planarStride + column] = uValue;
+                v[row * planarStride + column] = vValue;
+                uSemi[row * semiStride + column * 2] = uValue;
+                vSemi[row * semiStride + column * 2] = vValue;
+            }
+        }
+
+        int[] planar = new int[width * height];
+        int[] semi = new int[width * height];
+        PixelConverter.yuv420ToArgb(y, yRowStride, u, v, planarStride, 1, width, height, planar, width);
+        PixelConverter.yuv420ToArgb(y, yRowStride, uSemi, vSemi, semiStride, 2, width, height, semi, width);
+
+        assertArrayEquals(planar, semi);
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int chroma = (row / 2) * planarStride + column / 2;
+                int expected = referenceYuv(y[row * yRowStride + column] & 0xff, u[chroma] & 0xff, v[chroma] & 0xff);
+                assertArgbClose(expected, planar[row * width + column]);
+            }
+        }
+    }
+
+    @Test
+    public void yuvGraysAreExact() {
+        byte[] y = {0, (byte) 128, (byte) 255, 16};
+        byte[] uv = {(byte) 128};
+        int[] argb = new int[4];
+        PixelConverter.yuv420ToArgb(y, 2, uv, uv, 1, 1, 2, 2, argb, 2);
+
+        assertArrayEquals(new int[] {0xff000000, 0xff808080, 0xffffffff, 0xff101010}, argb);
+    }
+
+    @Test
+    public void rgbaToGrayWeightsChannels() {
+        // two pixels per row, then four bytes of row padding that must be skipped
+        byte[] rgba = {
+                (byte) 255, 0, 0, (byte) 255,
+                0, (byte) 255, 0, (byte) 255,
+                1, 2, 3, 4,
+                0, 0, (byte) 255, (byte) 255,
+                (byte) 255, (byte) 255, (byte) 255, 0,
+                10, 20, 30, 40,
+        };
+        byte[] gray = new byte[4];
+        PixelConverter.rgbaToGray(rgba, 0, 12, 2, 2, gray, 2);
+
+        assertEquals(77, gray[0] & 0xff);
+        assertEquals(149, gray[1] & 0xff);
+        assertEquals(29, gray[2] & 0xff);
+        assertEquals(255, gray[3] & 0xff);
+    }
+
+    @Test
+    public void rgbaToRgb565RoundTripsWithinChannelPrecision() {
+        int width = 64;
+        byte[] rgba = new byte[width * 4];
+        for (int i = 0; i < width; i++) {
+            rgba[i * 4] = (byte) (i * 4);
+            rgba[i * 4 + 1] = (byte) (255 - i * 4);
+            rgba[i * 4 + 2] = (byte) (i * 3);
+            rgba[i * 4 + 3] = (byte) 255;
+        }
+        short[] rgb565 = new short[width];
+        PixelConverter.rgbaToRgb565(rgba, 0, width * 4, width, 1, rgb565, width);
+
+        for (int i = 0; i < width; i++) {
+            int argb = PixelConverter.rgb565ToArgb(rgb565[i]);
+            assertTrue(Math.abs(((argb >>> 16) & 0xff) - (rgba[i * 4] & 0xff)) <= 7);
+            assertTrue(Math.abs(((argb >>> 8) & 0xff) - (rgba[i * 4 + 1] & 0xff)) <= 3);
+            assertTrue(Math.abs((argb & 0xff) - (rgba[i * 4 + 2] & 0xff)) <= 7);
+        }
+
+        assertEquals(0xffffffff, PixelConverter.rgb565ToArgb((short) 0xffff));
+        assertEquals(0xff000000, PixelConverter.rgb565ToArgb((short) 0));
+    }
+
+    @Test
+    public void negotiationPicksCheapestSufficientFormat() {
+        assertEquals(PixelFormatNegotiator.FORMAT_YUV_420_888, PixelFormatNegotiator.negotiate(0));
+        assertEquals(PixelFormatNegotiator.FORMAT_YUV_420_888,
+                PixelFormatNegotiator.negotiate(PixelFormatNegotiator.NEEDS_8BIT_COLOR));
+        assertEquals(PixelFormatNegotiator.FORMAT_RGB_565,
+                PixelFormatNegotiator.negotiate(PixelFormatNegotiator.NEEDS_PACKED_RGB));
+        assertEquals(PixelFormatNegotiator.FORMAT_RGBA_8888,
+                PixelFormatNegotiator.negotiate(PixelFormatNegotiator.NEEDS_ALPHA));
+
+        PixelFormatNegotiator negotiator = new PixelFormatNegotiator();
+        negotiator.declare(PixelFormatNegotiator.NEEDS_FULL_CHROMA);
+        assertEquals(PixelFormatNegotiator.FORMAT_RGB_565, negotiator.negotiate());
+        negotiator.declare(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+        assertEquals(PixelFormatNegotiator.FORMAT_RGBA_8888, negotiator.negotiate());
+        negotiator.clear();
+        assertEquals(PixelFormatNegotiator.FORMAT_YUV_420_888, negotiator.negotiate());
+
+        // a need stays until every consumer that declared it has taken it back
+        negotiator.declare(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+        negotiator.declare(PixelFormatNegotiator.NEEDS_8BIT_COLOR | PixelFormatNegotiator.NEEDS_PACKED_RGB);
+        assertEquals(PixelFormatNegotiator.FORMAT_RGBA_8888, negotiator.negotiate());
+        negotiator.retract(PixelFormatNegotiator.NEEDS_8BIT_COLOR | PixelFormatNegotiator.NEEDS_PACKED_RGB);
+        assertEquals(PixelFormatNegotiator.NEEDS_8BIT_COLOR, negotiator.getNeeds());
+        negotiator.retract(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+        assertEquals(0, negotiator.getNeeds());
+        try {
+            negotiator.retract(PixelFormatNegotiator.NEEDS_8BIT_COLOR);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        assertTrue(PixelFormatNegotiator.halfBytesPerPixel(PixelFormatNegotiator.FORMAT_YUV_420_888)
+                < PixelFormatNegotiator.halfBytesPerPixel(PixelFormatNegotiator.FORMAT_RGB_565));
+    }
+}
@@ -0,0 +1,152 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SegmentedRecorderTest {
+
+    // Stands in for a surface encoder: one sample per frame, a key frame every gopSize frames.
+    private static class FakeEncoder {
+        private final SegmentedRecorder<String> recorder;
+        private final long frameDurationUs;
+        private final int gopSize;
+        private final ByteBuffer output = ByteBuffer.allocateDirect(64);
+        private int frameIndex;
+
+        FakeEncoder(SegmentedRecorder<String> recorder, int fps, int gopSize) {
+            this.recorder = recorder;
+            this.frameDurationUs = 1_000_000L / fps;
+            this.gopSize = gopSize;
+        }
+
+        void emitFormat() throws IOException {
+            recorder.onOutputFormatChanged("video/avc");
+        }
+
+        void emitFrames(int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                output.clear();
+                output.putInt(frameIndex);
+                output.flip();
+                recorder.onEncodedFrame(output, frameIndex * frameDurationUs, frameIndex % gopSize == 0);
+                frameIndex++;
+            }
+        }
+    }
+
+    private static class FakeWriter implements SegmentedRecorder.SegmentWriter {
+        final String format;
+        final List<Integer> frames = new ArrayList<>();
+        final List<Boolean> keyFrames = new ArrayList<>();
+        boolean closed;
+
+        FakeWriter(String format) {
+            this.format = format;
+        }
+
+        @Override
+        public void writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame) {
+            assertFalse(closed);
+            frames.add(data.getInt(data.position()));
+            keyFrames.add(keyFrame);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final List<FakeWriter> writers = new ArrayList<>();
+
+    private SegmentedRecorder<String> createRecorder(long segmentDurationUs) {
+        return new SegmentedRecorder<>((segmentIndex, format) -> {
+            assertEquals(writers.size(), segmentIndex);
+            FakeWriter writer = new FakeWriter(format);
+            writers.add(writer);
+            return writer;
+        }, segmentDurationUs);
+    }
+
+    @Test
+    public void singleSegmentReceivesWholeStream() throws IOException {
+        SegmentedRecorder<String> recorder = createRecorder(SegmentedRecorder.SINGLE_SEGMENT);
+        FakeEncoder encoder = new FakeEncoder(recorder, 30, 30);
+
+        encoder.emitFormat();
+        encoder.emitFrames(300);
+        recorder.onEndOfStream();
+
+        assertEquals(1, writers.size());
+        assertEquals("video/avc", writers.get(0).format);
+        assertEquals(300, writers.get(0).frames.size());
+        assertTrue(writers.get(0).closed);
+        assertEquals(300 * 4, recorder.getByteCount());
+    }
+
+    @Test
+    public void segmentsSplitOnKeyFramesAfterDuration() throws IOException {
+        // 2s segments, key frame every 0.4s at 25fps
+        SegmentedRecorder<String> recorder = createRecorder(2_000_000L);
+        FakeEncoder encoder = new FakeEncoder(recorder, 25, 10);
+
+        encoder.emitFormat();
+        encoder.emitFrames(300);
+        recorder.onEndOfStream();
+
+        assertEquals(6, writers.size());
+        int expectedFrame = 0;
+        for (FakeWriter writer : writers) {
+            assertTrue(writer.closed);
+            assertTrue(writer.keyFrames.get(0));
+            for (int frame : writer.frames) {
+                assertEquals(expectedFrame++, frame);
+            }
+        }
+        assertEquals(300, expectedFrame);
+    }
+
+    @Test
+    public void samplesBeforeFormatOrFirstKeyFrameAreSkipped() throws IOException {
+        SegmentedRecorder<String> recorder = createRecorder(SegmentedRecorder.SINGLE_SEGMENT);
+        FakeEncoder encoder = new FakeEncoder(recorder, 30, 10);
+
+        encoder.emitFrames(3);
+        encoder.emitFormat();
+        encoder.emitFrames(17);
+        recorder.onEndOfStream();
+
+        assertEquals(1, writers.size());
+        assertEquals(Integer.valueOf(10), writers.get(0).frames.get(0));
+        assertEquals(10, recorder.getSkippedSampleCount());
+        assertEquals(10, recorder.getSampleCount());
+    }
+
+    @Test
+    public void serialExecutorKeepsOrderOnPool() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        SerialExecutor serial = new SerialExecutor(pool);
+        List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++) {
+            int value = i;
+            serial.execute(() -> order.add(value));
+        }
+        serial.execute(pool::shutdown);
+
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1000, order.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TileDifferTest {
+
+    private static int[] createFrame(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 0xFF000000 | (i * 0x9E3779B1);
+        }
+        return pixels;
+    }
+
+    private static ByteBuffer toPlane(int[] pixels, int width, int height, int rowStride) {
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                plane.putInt(y * rowStride + x * 4, pixels[y * width + x]);
+            }
+            // padding changes every time; it must not count as content
+            for (int p = width * 4; p < rowStride; p += 4) {
+                plane.putInt(y * rowStride + p, (int) System.nanoTime());
+            }
+        }
+        return plane;
+    }
+
+    @Test
+    public void firstFrameIsFullyDirty() {
+        TileDiffer differ = new TileDiffer(16);
+
+        FrameDiff diff = differ.diff(createFrame(40, 20), 40, 20, 40);
+
+        assertTrue(diff.isFull());
+        assertEquals(3, diff.getTileColumns());
+        assertEquals(2, diff.getTileRows());
+        assertEquals(6, diff.getDirtyTileCount());
+        assertEquals(1, diff.getDirtyRectCount());
+        assertEquals(40, diff.getDirtyRectWidth(0));
+        assertEquals(20, diff.getDirtyRectHeight(0));
+    }
+
+    @Test
+    public void identicalFrameIsUnchanged() {
+        TileDiffer differ = new TileDiffer(16);
+        int[] frame = createFrame(64, 48);
+
+        differ.diff(frame, 64, 48, 64);
+        FrameDiff diff = differ.diff(frame.clone(), 64, 48, 64);
+
+        assertFalse(diff.isFull());
+        assertTrue(diff.isUnchanged());
+        assertEquals(0, diff.getDirtyRectCount());
+        assertEquals(1, differ.getUnchangedFrameCount());
+    }
+
+    @Test
+    public void singlePixelChangeMarksOneTile() {
+        TileDiffer differ = new TileDiffer(16);
+        int[] frame = createFrame(64, 48);
+        differ.diff(frame, 64, 48, 64);
+
+        frame[20 * 64 + 37] ^= 1;
+        FrameDiff diff = differ.diff(frame, 64, 48, 64);
+
+        assertEquals(1, diff.getDirtyTileCount());
+        assertTrue(diff.isTileDirty(2, 1));
+        assertEquals(1, diff.getDirtyRectCount());
+        assertEquals(32, diff.getDirtyRectX(0));
+        assertEquals(16, diff.getDirtyRectY(0));
+        assertEquals(16, diff.getDirtyRectWidth(0));
+        assertEquals(16, diff.getDirtyRectHeight(0));
+    }
+
+    @Test
+    public void verticallyAlignedTilesMergeIntoOneRect() {
+        TileDiffer differ = new TileDiffer(8);
+        int width = 64, height = 64;
+        int[] frame = createFrame(width, height);
+        differ.diff(frame, width, height, width);
+
+        // columns 2..3 on rows 1..4, plus an isolated tile at (7, 7)
+        for (int row = 1; row <= 4; row++) {
+            frame[(row * 8) * width + 16] ^= 1;
+            frame[(row * 8) * width + 24] ^= 1;
+        }
+        frame[63 * width + 63] ^= 1;
+        FrameDiff diff = differ.diff(frame, width, height, width);
+
+        assertEquals(9, diff.getDirtyTileCount());
+        assertEquals(2, diff.getDirtyRectCount());
+        assertEquals(16, diff.getDirtyRectX(0));
+        assertEquals(8, diff.getDirtyRectY(0));
+        assertEquals(16, diff.getDirtyRectWidth(0));
+        assertEquals(32, diff.getDirtyRectHeight(0));
+        assertEquals(56, diff.getDirtyRectX(1));
+        assertEquals(56, diff.getDirtyRectY(1));
+    }
+
+    @Test
+    public void paddedPlaneIgnoresPadding() {
+        TileDiffer differ = new TileDiffer(16);
+        int width = 30, height = 20, rowStride = 160;
+        int[] frame = createFrame(width, height);
+
+        differ.diff(toPlane(frame, width, height, rowStride), width, height, rowStride);
+        FrameDiff unchanged = differ.diff(toPlane(frame, width, height, rowStride), width, height, rowStride);
+        assertTrue(unchanged.isUnchanged());
+
+        frame[19 * width + 29] = 0;
+        FrameDiff changed = differ.diff(toPlane(frame, width, height, rowStride), width, height, rowStride);
+        assertEquals(1, changed.getDirtyTileCount());
+        assertTrue(changed.isTileDirty(1, 1));
+        assertEquals(14, changed.getDirtyRectWidth(0));
+        assertEquals(4, changed.getDirtyRectHeight(0));
+    }
+
+    @Test
+    public void sizeChangeAndResetForceFullFrame() {
+        TileDiffer differ = new TileDiffer(16);
+        differ.diff(createFrame(32, 32), 32, 32, 32);
+
+        assertTrue(differ.diff(createFrame(48, 32), 48, 32, 48).isFull());
+        differ.reset();
+        assertTrue(differ.diff(createFrame(48, 32), 48, 32, 48).isFull());
+    }
+
+    @Test
+    public void bufferAndArrayHashesAgreeOnChanges() {
+        int[] a = createFrame(7, 5);
+        int[] b = a.clone();
+        b[4] = ~b[4];
+
+        ByteBuffer planeA = toPlane(a, 7, 5, 28);
+        ByteBuffer planeB = toPlane(b, 7, 5, 28);
+        assertNotEquals(TileHasher.hash(planeA, 0, 28, 7, 5), TileHasher.hash(planeB, 0, 28, 7, 5));
+        assertNotEquals(TileHasher.hash(a, 0, 7, 7, 5), TileHasher.hash(b, 0, 7, 7, 5));
+        assertEquals(TileHasher.hash(a, 0, 7, 7, 5), TileHasher.hash(a.clone(), 0, 7, 7, 5));
+    }
+}
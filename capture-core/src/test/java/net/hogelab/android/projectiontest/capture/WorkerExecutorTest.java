@@ -0,0 +1,197 @@
+package net.hogelab.android.projectiontest.capture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WorkerExecutorTest {
+
+    private WorkerExecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Occupies the single worker thread until the returned latch is released.
+    private CountDownLatch blockWorker() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void threadsAreNamed() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 4, WorkerExecutor.RejectionPolicy.ABORT);
+
+        Future<String> name = executor.submit(() -> Thread.currentThread().getName(), WorkerExecutor.LANE_DEFAULT);
+        assertEquals("test-worker-1", name.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void higherLanesRunFirst() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 8, WorkerExecutor.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+        executor.execute(() -> { order.add("export"); done.countDown(); }, WorkerExecutor.LANE_EXPORT);
+        executor.execute(() -> { order.add("default"); done.countDown(); });
+        executor.execute(() -> { order.add("capture1"); done.countDown(); }, WorkerExecutor.LANE_CAPTURE);
+        executor.execute(() -> { order.add("capture2"); done.countDown(); }, WorkerExecutor.LANE_CAPTURE);
+        assertEquals(2, executor.getQueuedTaskCount(WorkerExecutor.LANE_CAPTURE));
+        assertEquals(4, executor.getQueuedTaskCount());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("capture1", "capture2", "default", "export"), order);
+    }
+
+    @Test
+    public void abortRejectsWhenQueueIsFull() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 1, WorkerExecutor.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+
+        executor.execute(() -> { });
+        try {
+            executor.execute(() -> { });
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, executor.getRejectedTaskCount());
+        release.countDown();
+    }
+
+    @Test
+    public void callerRunsOnSubmittingThreadWhenQueueIsFull() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 1, WorkerExecutor.RejectionPolicy.CALLER_RUNS);
+        CountDownLatch release = blockWorker();
+
+        executor.execute(() -> { });
+        Thread[] ranOn = new Thread[1];
+        executor.execute(() -> ranOn[0] = Thread.currentThread());
+        assertSame(Thread.currentThread(), ranOn[0]);
+        assertEquals(1, executor.getRejectedTaskCount());
+        release.countDown();
+    }
+
+    @Test
+    public void rejectionOnWorkerThreadRunsThere() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 1, WorkerExecutor.RejectionPolicy.ABORT);
+
+        CountDownLatch done = new CountDownLatch(1);
+        Thread[] ranOn = new Thread[2];
+        executor.execute(() -> {
+            ranOn[0] = Thread.currentThread();
+            // fills the queue, then would be rejected but for the worker thread
+            executor.execute(() -> { });
+            executor.execute(() -> ranOn[1] = Thread.currentThread());
+            done.countDown();
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(ranOn[0], ranOn[1]);
+        assertEquals(1, executor.getRejectedTaskCount());
+    }
+
+    @Test
+    public void serialExecutorFallsBackOnRejection() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 1, WorkerExecutor.RejectionPolicy.ABORT);
+        CountDownLatch release = blockWorker();
+        executor.execute(() -> { });
+
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> fallback = new ArrayList<>();
+        SerialExecutor serial = new SerialExecutor(executor.getLaneExecutor(WorkerExecutor.LANE_DEFAULT),
+                fallback::add);
+        // rejected by the full queue: goes to the fallback without waiting for another execute()
+        serial.execute(() -> order.add(1));
+        assertEquals(1, executor.getRejectedTaskCount());
+        assertEquals(1, fallback.size());
+
+        // still behind the first one
+        CountDownLatch done = new CountDownLatch(1);
+        serial.execute(() -> {
+            order.add(2);
+            done.countDown();
+        });
+        assertEquals(1, fallback.size());
+
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.getQueuedTaskCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        fallback.get(0).run();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2), order);
+        assertEquals(1, fallback.size());
+    }
+
+    @Test
+    public void discardOldestDropsLeastImportantLane() throws Exception {
+        executor = new WorkerExecutor("test-worker", 1, 2, WorkerExecutor.RejectionPolicy.DISCARD_OLDEST);
+        CountDownLatch release = blockWorker();
+
+        Future<?> export = executor.submit(() -> "export", WorkerExecutor.LANE_EXPORT);
+        Future<?> capture1 = executor.submit(() -> "capture1", WorkerExecutor.LANE_CAPTURE);
+        Future<?> capture2 = executor.submit(() -> "capture2", WorkerExecutor.LANE_CAPTURE);
+        assertTrue(export.isCancelled());
+
+        // everything queued now outranks an export task, so the newcomer is the one dropped
+        Future<?> lateExport = executor.submit(() -> "late", WorkerExecutor.LANE_EXPORT);
+        assertTrue(lateExport.isCancelled());
+        assertEquals(2, executor.getRejectedTaskCount());
+
+        release.countDown();
+        assertEquals("capture1", capture1.get(5, TimeUnit.SECONDS));
+        assertEquals("capture2", capture2.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void recordsQueueAndRunLatency() throws Exception {
+        executor = new WorkerExecutor("test-worker", 2, 16, WorkerExecutor.RejectionPolicy.BLOCK);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            futures.add(executor.submit(() -> {
+                Thread.sleep(1);
+                return null;
+            }, WorkerExecutor.LANE_DEFAULT));
+        }
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        // run time is recorded after the future completes
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(0, executor.getRejectedTaskCount());
+        assertEquals(32, executor.getRunLatency().getCount());
+        assertEquals(32, executor.getQueueLatency().getCount());
+        assertTrue(executor.getRunLatency().snapshot(null).getPercentileNanos(0.5) >= 1_000_000);
+    }
+}